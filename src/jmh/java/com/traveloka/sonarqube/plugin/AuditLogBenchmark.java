@@ -0,0 +1,118 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.Settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording an audit event for the login thread, from 8 threads while the background
+ * writer writes to a temporary logs directory. Events dropped because the writer could not keep
+ * up are reported as the {@code droppedEvents} secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class AuditLogBenchmark {
+
+  private static final String EMAIL = "john.doe@" + BenchmarkSettings.HOSTED_DOMAIN;
+  private static final ThreadLocal<Drops> DROPS = new ThreadLocal<>();
+
+  private File logsDir;
+  private LoginMetrics metrics;
+  private AuditLog auditLog;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    logsDir = Files.createTempDirectory("audit-log").toFile();
+    Settings settings = BenchmarkSettings.settings();
+    settings.setProperty(GoogleSettings.LOGS_DIR, logsDir.getAbsolutePath());
+    metrics = new CountingMetrics();
+    auditLog = new AuditLog(new GoogleSettings(settings), metrics);
+    auditLog.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    auditLog.stop();
+    File[] files = logsDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Files.delete(file.toPath());
+      }
+    }
+    Files.delete(logsDir.toPath());
+  }
+
+  @Benchmark
+  public void record(Drops drops) {
+    auditLog.record(AuditLog.Action.CALLBACK, EMAIL, BenchmarkSettings.HOSTED_DOMAIN, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime());
+  }
+
+  /**
+   * Events dropped by the benchmark thread during the iteration.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Drops {
+
+    public long droppedEvents;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      droppedEvents = 0;
+      DROPS.set(this);
+    }
+  }
+
+  private static final class CountingMetrics extends LoginMetrics {
+
+    @Override
+    public void auditEventDropped() {
+      super.auditEventDropped();
+      Drops drops = DROPS.get();
+      if (drops != null) {
+        drops.droppedEvents++;
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeRequestUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.Settings;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login redirect of {@code init}. {@link #perRequestUrl()} is the URL building done before the
+ * authorization URL was precompiled in the settings snapshot, kept as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizationUrlBenchmark {
+
+  private Settings settings;
+  private GoogleSettings googleSettings;
+  private GoogleIdentityProvider provider;
+  private StubContexts.Init context;
+
+  @Setup
+  public void setUp() {
+    settings = BenchmarkSettings.settings();
+    googleSettings = new GoogleSettings(settings);
+    GoogleHttpTransport httpTransport = new GoogleHttpTransport(googleSettings);
+    provider = new GoogleIdentityProvider(googleSettings, httpTransport, new GoogleTokenExchange(googleSettings, httpTransport),
+      new GoogleIdTokenValidator(googleSettings, new GoogleSigningKeys(googleSettings, httpTransport, new ProviderMetadataRegistry(googleSettings, httpTransport))),
+      new GoogleGroups(googleSettings, new GoogleDirectoryClient(googleSettings, httpTransport), new SharedIdentityCache(googleSettings)), new LoginMetrics(),
+      new LoginMappingFile(googleSettings), new AuditLog(googleSettings, new LoginMetrics()),
+      new LoginRateLimiter(googleSettings), new CallbackLookups(googleSettings),
+      new RefreshTokenVault(googleSettings));
+    context = new StubContexts.Init(BenchmarkSettings.STATE);
+  }
+
+  @Benchmark
+  public String perRequestUrl() {
+    if (!(settings.getBoolean(GoogleSettings.ENABLED) && settings.getString(GoogleSettings.CLIENT_ID) != null
+      && settings.getString(GoogleSettings.CLIENT_SECRET) != null && settings.getString(GoogleSettings.REDIRECT_URI) != null)) {
+      throw new IllegalStateException();
+    }
+    return new GoogleAuthorizationCodeRequestUrl(settings.getString(GoogleSettings.CLIENT_ID), settings.getString(GoogleSettings.REDIRECT_URI),
+      GoogleSettings.SCOPES).setState(BenchmarkSettings.STATE).setAccessType("offline")
+      .set("hd", settings.getString(GoogleSettings.HOSTED_DOMAIN)).build();
+  }
+
+  @Benchmark
+  public String precompiledUrl() {
+    return googleSettings.snapshot().authorizationUrl(BenchmarkSettings.STATE);
+  }
+
+  @Benchmark
+  public String init() {
+    provider.init(context);
+    return context.redirectedTo();
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.Settings;
+
+/**
+ * Settings shared by the benchmarks.
+ */
+final class BenchmarkSettings {
+
+  static final String CLIENT_ID = IdTokenFixture.CLIENT_ID;
+  static final String HOSTED_DOMAIN = "example.com";
+  static final String STATE = "f8d3a2c1b0e94d7c8a6b5e4f3d2c1b0a";
+
+  private BenchmarkSettings() {
+    // only static stuff
+  }
+
+  static Settings settings() {
+    Settings settings = new Settings(new PropertyDefinitions(GoogleSettings.definitions()));
+    settings.setProperty(GoogleSettings.CLIENT_ID, CLIENT_ID);
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, StubContexts.CALLBACK_URL);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, HOSTED_DOMAIN);
+    settings.setProperty(GoogleSettings.ALLOW_USERS_TO_SIGN_UP, true);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 0);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 0);
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    return settings;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.Settings;
+import org.sonar.api.server.authentication.UserIdentity;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole {@code callback}, run by concurrent users against an in-process {@link MockGoogleServer}
+ * which answers immediately. It measures the overhead of the plugin, including the pooled HTTP
+ * connections and the bounded token exchange, not the latency of Google.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class CallbackBenchmark {
+
+  private MockGoogleServer google;
+  private LoginLoadDriver.Plugin plugin;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    google = new MockGoogleServer(BenchmarkSettings.HOSTED_DOMAIN).start();
+    Settings settings = BenchmarkSettings.settings();
+    google.configure(settings);
+    plugin = new LoginLoadDriver.Plugin(new GoogleSettings(settings));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    plugin.close();
+    google.close();
+  }
+
+  @Benchmark
+  public UserIdentity callback() {
+    String code = google.issueCode("john.doe@" + BenchmarkSettings.HOSTED_DOMAIN);
+    StubContexts.Callback context = new StubContexts.Callback(Collections.singletonMap("code", code), null);
+    plugin.provider.callback(context);
+    return context.authenticated();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.server.authentication.UserIdentity;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done by {@code callback} on the ID token once it is received: parsing, membership
+ * checks and building of the identity. Run with {@code -prof gc} to compare the bytes allocated
+ * by {@link IdTokenReader} and {@link GoogleIdToken#parse} ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdTokenBenchmark {
+
+  private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+  private String idToken;
+  private final IdTokenReader reader = new IdTokenReader(jsonFactory);
+  private IdTokenClaims claims;
+  private HostedDomains hostedDomains;
+  private HostedDomains.Policy policy;
+
+  @Setup
+  public void setUp() {
+    IdTokenFixture fixture = new IdTokenFixture();
+    idToken = fixture.sign(fixture.profilePayload("john.doe@" + BenchmarkSettings.HOSTED_DOMAIN, BenchmarkSettings.HOSTED_DOMAIN));
+    claims = fixture.read(idToken);
+    hostedDomains = new GoogleSettings(BenchmarkSettings.settings()).hostedDomains();
+    policy = hostedDomains.policy(BenchmarkSettings.HOSTED_DOMAIN);
+  }
+
+  @Benchmark
+  public GoogleIdToken parse() throws IOException {
+    return GoogleIdToken.parse(jsonFactory, idToken);
+  }
+
+  @Benchmark
+  public IdTokenClaims read() throws IOException {
+    return reader.read(idToken);
+  }
+
+  @Benchmark
+  public LoginMetrics.Outcome checkMembership() {
+    return GoogleIdentityProvider.checkMembership(claims, hostedDomains);
+  }
+
+  @Benchmark
+  public UserIdentity buildUserIdentity() {
+    return GoogleIdentityProvider.userIdentity(claims.email(), policy.login(claims.email())).build();
+  }
+}
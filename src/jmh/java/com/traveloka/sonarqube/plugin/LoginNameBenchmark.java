@@ -0,0 +1,96 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonar.api.config.Settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolution of the login of a user by {@code callback}, with 50,000 entries in the login
+ * mapping file and a login rule that the mapped users do not reach.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginNameBenchmark {
+
+  private static final int MAPPINGS = 50_000;
+  private static final String MAPPED_EMAIL = "user" + (MAPPINGS / 2) + "@" + BenchmarkSettings.HOSTED_DOMAIN;
+  private static final String UNMAPPED_EMAIL = "john.doe@" + BenchmarkSettings.HOSTED_DOMAIN;
+
+  private File file;
+  private LoginMappingFile loginMappings;
+  private LoginRules loginRules;
+  private HostedDomains.Policy policy;
+
+  @Setup
+  public void setUp() throws IOException {
+    file = File.createTempFile("logins", ".csv");
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      writer.write("email,login\n");
+      for (int i = 0; i < MAPPINGS; i++) {
+        writer.write("user" + i + "@" + BenchmarkSettings.HOSTED_DOMAIN + ",u" + i + "\n");
+      }
+    }
+    Settings settings = BenchmarkSettings.settings();
+    settings.setProperty(GoogleSettings.LOGIN_MAPPING_FILE, file.getAbsolutePath());
+    settings.setProperty(GoogleSettings.LOGIN_RULES, "([^.@]+)\\.([^@]+)@example\\.com=>$2-$1");
+    GoogleSettings googleSettings = new GoogleSettings(settings);
+    loginMappings = new LoginMappingFile(googleSettings);
+    loginMappings.reload();
+    loginRules = googleSettings.snapshot().loginRules();
+    policy = googleSettings.hostedDomains().policy(BenchmarkSettings.HOSTED_DOMAIN);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file.toPath());
+  }
+
+  @Benchmark
+  public String mappedLogin() {
+    return GoogleIdentityProvider.login(MAPPED_EMAIL, loginMappings, loginRules, policy);
+  }
+
+  @Benchmark
+  public String ruleLogin() {
+    return GoogleIdentityProvider.login(UNMAPPED_EMAIL, loginMappings, loginRules, policy);
+  }
+}
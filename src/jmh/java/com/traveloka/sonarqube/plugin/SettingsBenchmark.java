@@ -0,0 +1,85 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.api.config.Settings;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings read on each login: directly from SonarQube, through {@link GoogleSettings}, and
+ * from a snapshot held for the whole login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SettingsBenchmark {
+
+  private Settings settings;
+  private GoogleSettings googleSettings;
+
+  @Setup
+  public void setUp() {
+    settings = BenchmarkSettings.settings();
+    googleSettings = new GoogleSettings(settings);
+  }
+
+  @Benchmark
+  public void sonarSettings(Blackhole blackhole) {
+    blackhole.consume(settings.getBoolean(GoogleSettings.ENABLED));
+    blackhole.consume(settings.getString(GoogleSettings.CLIENT_ID));
+    blackhole.consume(settings.getString(GoogleSettings.CLIENT_SECRET));
+    blackhole.consume(settings.getString(GoogleSettings.REDIRECT_URI));
+    blackhole.consume(settings.getString(GoogleSettings.HOSTED_DOMAIN));
+  }
+
+  @Benchmark
+  public void googleSettings(Blackhole blackhole) {
+    blackhole.consume(googleSettings.isEnabled());
+    blackhole.consume(googleSettings.clientId());
+    blackhole.consume(googleSettings.clientSecret());
+    blackhole.consume(googleSettings.redirectUri());
+    blackhole.consume(googleSettings.hostedDomains());
+  }
+
+  @Benchmark
+  public void snapshot(Blackhole blackhole) {
+    GoogleSettings.Snapshot snapshot = googleSettings.snapshot();
+    blackhole.consume(snapshot.isEnabled());
+    blackhole.consume(snapshot.clientId());
+    blackhole.consume(snapshot.clientSecret());
+    blackhole.consume(snapshot.redirectUri());
+    blackhole.consume(snapshot.hostedDomains());
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit trail of the Google logins, written as JSON lines to {@value #FILE_NAME} in the logs
+ * directory of the server and rotated by size.
+ * <p>
+ * Logins only put their event in a {@link RingBuffer}. A background writer takes the events in
+ * batches and writes each batch at once, so that no disk I/O happens on request threads. When
+ * the buffer is full, the event is dropped and counted by {@link LoginMetrics}, or the login
+ * waits for room, see {@link GoogleSettings#AUDIT_LOG_OVERFLOW}.
+ */
+@ServerSide
+public class AuditLog implements Startable {
+
+    private static final Logger LOG = Loggers.get(AuditLog.class);
+
+    static final String FILE_NAME = "auth-google-audit.log";
+    static final int BATCH_SIZE = 512;
+    // the writer is not woken up by each event, it polls the buffer when idle
+    private static final long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long BLOCKED_WAIT_NS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long STOP_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    public enum Action {
+        INIT, CALLBACK;
+
+        final String label = name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private final GoogleSettings settings;
+    private final LoginMetrics metrics;
+    private final System2 system2;
+    private volatile RingBuffer<Event> buffer;
+    private volatile boolean running;
+    private boolean blocks;
+    private File file;
+    private long maxFileSize;
+    private int maxFiles;
+    private volatile Thread writer;
+    private OutputStream out;
+    private long fileSize;
+
+    public AuditLog(GoogleSettings settings, LoginMetrics metrics) {
+        this(settings, metrics, System2.INSTANCE);
+    }
+
+    AuditLog(GoogleSettings settings, LoginMetrics metrics, System2 system2) {
+        this.settings = settings;
+        this.metrics = metrics;
+        this.system2 = system2;
+    }
+
+    @Override
+    public void start() {
+        if (open()) {
+            startWriter();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        Thread current = writer;
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        buffer = null;
+    }
+
+    /**
+     * Records an attempt which began at {@code startNanos}, as given by {@link System#nanoTime()}.
+     */
+    public void record(Action action, @Nullable String email, @Nullable String hostedDomain, LoginMetrics.Outcome outcome,
+                       @Nullable String reason, long startNanos) {
+        RingBuffer<Event> current = buffer;
+        if (current == null) {
+            return;
+        }
+        Event event = new Event(system2.now(), action, email, hostedDomain, outcome, reason, System.nanoTime() - startNanos);
+        while (!current.offer(event)) {
+            if (!blocks || !running) {
+                metrics.auditEventDropped();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(this, BLOCKED_WAIT_NS);
+        }
+    }
+
+    /**
+     * Creates the buffer, if the audit log is enabled and the server has a logs directory.
+     */
+    boolean open() {
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        if (!snapshot.isAuditLogEnabled() || snapshot.logsDir() == null) {
+            return false;
+        }
+        file = new File(snapshot.logsDir(), FILE_NAME);
+        blocks = snapshot.auditLogBlocks();
+        maxFileSize = snapshot.auditLogMaxFileSize();
+        maxFiles = snapshot.auditLogMaxFiles();
+        running = true;
+        buffer = new RingBuffer<>(snapshot.auditLogBufferSize());
+        return true;
+    }
+
+    void startWriter() {
+        writer = new NamedThreadFactory("audit-log").newThread(this::writeLoop);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        RingBuffer<Event> current = buffer;
+        List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder lines = new StringBuilder(BATCH_SIZE * 256);
+        try {
+            while (true) {
+                // read before draining, so that events recorded before stop are written
+                boolean stopping = !running;
+                if (current.drainTo(batch, BATCH_SIZE) > 0) {
+                    for (Event event : batch) {
+                        event.appendTo(lines);
+                    }
+                    write(lines, batch.size());
+                    batch.clear();
+                    lines.setLength(0);
+                } else if (stopping) {
+                    break;
+                } else {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NS);
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void write(StringBuilder lines, int events) {
+        byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (out == null) {
+                openFile();
+            }
+            if (fileSize > 0 && fileSize + bytes.length > maxFileSize) {
+                close();
+                rotate();
+                openFile();
+            }
+            out.write(bytes);
+            fileSize += bytes.length;
+        } catch (IOException e) {
+            LOG.warn("Fail to write {} events to audit log {}", events, file, e);
+            close();
+            for (int i = 0; i < events; i++) {
+                metrics.auditEventDropped();
+            }
+        }
+    }
+
+    private void openFile() throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        out = new FileOutputStream(file, true);
+        fileSize = file.length();
+    }
+
+    /**
+     * Renames the log to {@code .1.log}, the previous {@code .1.log} to {@code .2.log}, and so on
+     * up to {@link GoogleSettings#AUDIT_LOG_MAX_FILES}.
+     */
+    private void rotate() throws IOException {
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = rotated(i);
+            if (Files.exists(source)) {
+                Files.move(source, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file.toPath(), rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private Path rotated(int index) {
+        String name = FILE_NAME.substring(0, FILE_NAME.lastIndexOf('.'));
+        return file.toPath().resolveSibling(name + "." + index + ".log");
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.debug("Fail to close audit log {}", file, e);
+            }
+            out = null;
+        }
+    }
+
+    static final class Event {
+        private final long timestamp;
+        private final Action action;
+        private final String email;
+        private final String hostedDomain;
+        private final LoginMetrics.Outcome outcome;
+        private final String reason;
+        private final long latencyNanos;
+
+        Event(long timestamp, Action action, @Nullable String email, @Nullable String hostedDomain, LoginMetrics.Outcome outcome,
+              @Nullable String reason, long latencyNanos) {
+            this.timestamp = timestamp;
+            this.action = action;
+            this.email = email;
+            this.hostedDomain = hostedDomain;
+            this.outcome = outcome;
+            this.reason = reason;
+            this.latencyNanos = latencyNanos;
+        }
+
+        void appendTo(StringBuilder line) {
+            line.append("{\"timestamp\":\"").append(Instant.ofEpochMilli(timestamp)).append('"');
+            line.append(",\"action\":\"").append(action.label).append('"');
+            line.append(",\"outcome\":\"").append(outcome.label).append('"');
+            appendString(line, "email", email);
+            appendString(line, "hostedDomain", hostedDomain);
+            appendString(line, "reason", reason);
+            long micros = Math.max(0L, latencyNanos / 1000);
+            line.append(",\"latencyMs\":").append(micros / 1000).append('.');
+            int fraction = (int) (micros % 1000);
+            line.append(fraction < 100 ? (fraction < 10 ? "00" : "0") : "").append(fraction);
+            line.append("}\n");
+        }
+
+        private static void appendString(StringBuilder line, String name, @CheckForNull String value) {
+            if (value == null) {
+                return;
+            }
+            line.append(",\"").append(name).append("\":\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c == '\n') {
+                    line.append("\\n");
+                } else if (c == '\r') {
+                    line.append("\\r");
+                } else if (c == '\t') {
+                    line.append("\\t");
+                } else if (c < 0x20) {
+                    line.append(String.format(Locale.ENGLISH, "\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+}
@@ -28,7 +28,26 @@ public class AuthGooglePlugin implements Plugin {
   public void define(Context context) {
     context.addExtensions(
             GoogleIdentityProvider.class,
-            GoogleSettings.class);
+            GoogleSettings.class,
+            GoogleSettingsChangeHandler.class,
+            GoogleHttpTransport.class,
+            GoogleTokenExchange.class,
+            ProviderMetadataRegistry.class,
+            GoogleSigningKeys.class,
+            GoogleIdTokenValidator.class,
+            GoogleDirectoryClient.class,
+            SharedIdentityCache.class,
+            GoogleGroups.class,
+            LoginMappingFile.class,
+            LoginRateLimiter.class,
+            CallbackLookups.class,
+            RefreshTokenVault.class,
+            ProfileRefresher.class,
+            DeprovisioningSweep.class,
+            LoginMetrics.class,
+            AuditLog.class,
+            GoogleMetricsWs.class,
+            GoogleWarmUp.class);
     context.addExtensions(GoogleSettings.definitions());
   }
 }
@@ -0,0 +1,198 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the independent lookups of a callback, once the tokens are received, in parallel on a
+ * dedicated and bounded pool of threads, so that a login waits for the slowest lookup instead
+ * of the sum of them. The lookups of a callback share a single deadline, and each of them is
+ * either {@link Batch#require required} or {@link Batch#orElse optional}. When every thread is
+ * busy, lookups run in the calling thread, one after the other.
+ */
+@ServerSide
+public class CallbackLookups implements Startable {
+
+    private static final Logger LOG = Loggers.get(CallbackLookups.class);
+
+    private volatile ThreadPoolExecutor executor;
+
+    public CallbackLookups(GoogleSettings settings) {
+        this.executor = newExecutor(settings.snapshot().lookupMaxConcurrency());
+        settings.addListener(this::settingsChanged);
+    }
+
+    @CheckForNull
+    private static ThreadPoolExecutor newExecutor(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("callback-lookups"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void settingsChanged(GoogleSettings.Snapshot previous, GoogleSettings.Snapshot current) {
+        if (previous.lookupMaxConcurrency() == current.lookupMaxConcurrency()) {
+            return;
+        }
+        ThreadPoolExecutor replaced = executor;
+        executor = newExecutor(current.lookupMaxConcurrency());
+        if (replaced != null) {
+            // lookups running on the replaced pool complete
+            replaced.shutdown();
+        }
+    }
+
+    @Override
+    public void start() {
+        // threads are created on demand
+    }
+
+    @Override
+    public void stop() {
+        ThreadPoolExecutor current = executor;
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts the lookups of a callback, whose deadline begins now.
+     */
+    public Batch start(GoogleSettings.Snapshot snapshot) {
+        return new Batch(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(snapshot.lookupTimeout()));
+    }
+
+    /**
+     * Lookups of a single callback. Not thread-safe, used by the thread of the callback only.
+     */
+    public final class Batch implements AutoCloseable {
+        private final long deadlineNanos;
+        private final List<FutureTask<?>> lookups = new ArrayList<>();
+
+        private Batch(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public <T> Lookup<T> submit(String name, Callable<T> task) {
+            FutureTask<T> lookup = new FutureTask<>(task);
+            lookups.add(lookup);
+            ThreadPoolExecutor current = executor;
+            try {
+                if (current == null) {
+                    lookup.run();
+                } else {
+                    current.execute(lookup);
+                }
+            } catch (RejectedExecutionException e) {
+                lookup.run();
+            }
+            return new Lookup<>(name, lookup);
+        }
+
+        /**
+         * Result of a lookup the login can not do without: the login fails if it fails or misses
+         * the deadline.
+         */
+        public <T> T require(Lookup<T> lookup) {
+            try {
+                return lookup.task.get(remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                lookup.task.cancel(false);
+                throw new UnauthorizedException("Login could not be completed in time, please retry in a few seconds");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for " + lookup.name, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException("Fail to look up " + lookup.name, cause);
+            }
+        }
+
+        /**
+         * Result of a lookup the login can do without, or {@code fallback} if it fails or misses
+         * the deadline.
+         */
+        @CheckForNull
+        public <T> T orElse(Lookup<T> lookup, @Nullable T fallback) {
+            try {
+                return lookup.task.get(remainingNanos(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                lookup.task.cancel(false);
+                LOG.warn("Lookup of {} missed the login deadline, it is skipped", lookup.name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                LOG.warn("Fail to look up {}, it is skipped", lookup.name, e);
+            }
+            return fallback;
+        }
+
+        long remainingNanos() {
+            return Math.max(0L, deadlineNanos - System.nanoTime());
+        }
+
+        /**
+         * Cancels the lookups not started yet, whose result is not needed anymore, for instance
+         * because the login failed. Running lookups are not interrupted, their load may be shared
+         * with other logins by a cache.
+         */
+        @Override
+        public void close() {
+            for (FutureTask<?> lookup : lookups) {
+                lookup.cancel(false);
+            }
+        }
+    }
+
+    public static final class Lookup<T> {
+        private final String name;
+        private final FutureTask<T> task;
+
+        private Lookup(String name, FutureTask<T> task) {
+            this.name = name;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.utils.System2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Opens after a number of consecutive failures. While open, calls are rejected without being
+ * attempted. Once the open duration has elapsed, a single call is let through: its success
+ * closes the breaker, its failure opens it again.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final System2 system2;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    CircuitBreaker(System2 system2) {
+        this.system2 = system2;
+    }
+
+    /**
+     * Whether a call may be attempted. A caller allowed while the breaker is half-open is the
+     * probe, and must report its outcome.
+     */
+    boolean tryAcquire(long openDurationMs) {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        return current == State.OPEN
+                && system2.now() - openedAt >= openDurationMs
+                && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    void onSuccess() {
+        consecutiveFailures.set(0);
+        state.set(State.CLOSED);
+    }
+
+    void onFailure(int threshold) {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state.get() == State.HALF_OPEN || failures >= threshold) {
+            openedAt = system2.now();
+            state.set(State.OPEN);
+        }
+    }
+
+    /**
+     * Called by a caller that was allowed through but did not reach the protected resource. If it
+     * was the probe, the next caller probes instead.
+     */
+    void release() {
+        state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+
+    State state() {
+        return state.get();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically deactivates the SonarQube users whose Google account is suspended or was
+ * deleted. The Directory API has no sync token for users, and its change notifications
+ * ({@code users.watch}) push to a public HTTPS callback, which a server behind a firewall can
+ * not expose. Each sweep lists the suspended users instead, then the recently deleted ones,
+ * which are few compared to all users of the account: a sweep of a large account costs a
+ * handful of requests.
+ * <p>
+ * The plugin API has no component looking up or deactivating users but deprecated ones, so users
+ * are looked up and deactivated through the web API of the server, at the URL explicitly
+ * configured for it, which is either https or of a loopback address so that the admin token
+ * never travels in clear.
+ * <p>
+ * Pages are processed one after the other, the users of a page being deactivated by a small
+ * pool of low priority workers before the next page is read, so that a sweep never holds
+ * more than one page nor competes with web requests for connections. Accounts handled by the
+ * previous sweep are not looked up again, those that could not be deactivated are retried.
+ */
+@ServerSide
+public class DeprovisioningSweep implements Startable {
+
+    private static final Logger LOG = Loggers.get(DeprovisioningSweep.class);
+
+    static final String DEACTIVATE_PATH = "/api/users/deactivate";
+    static final String SEARCH_PATH = "/api/users/search";
+    // searches match logins partially, the largest page makes sure the exact login is among them
+    private static final int SEARCH_PAGE_SIZE = 500;
+
+    private final GoogleSettings settings;
+    private final GoogleDirectoryClient directory;
+    private final GoogleHttpTransport transport;
+    private final LoginMappingFile loginMappings;
+    private final LoginMetrics metrics;
+    private final System2 system2;
+    // emails handled by the last sweep, only read and replaced by the sweeping thread
+    private Set<String> handled = Collections.emptySet();
+    private final Object lifecycle = new Object();
+    // guarded by lifecycle
+    private boolean started;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> sweeps;
+    private ExecutorService workers;
+
+    public DeprovisioningSweep(GoogleSettings settings, GoogleDirectoryClient directory, GoogleHttpTransport transport,
+                               LoginMappingFile loginMappings, LoginMetrics metrics) {
+        this(settings, directory, transport, loginMappings, metrics, System2.INSTANCE);
+    }
+
+    DeprovisioningSweep(GoogleSettings settings, GoogleDirectoryClient directory, GoogleHttpTransport transport,
+                        LoginMappingFile loginMappings, LoginMetrics metrics, System2 system2) {
+        this.settings = settings;
+        this.directory = directory;
+        this.transport = transport;
+        this.loginMappings = loginMappings;
+        this.metrics = metrics;
+        this.system2 = system2;
+        settings.addListener(this::settingsChanged);
+    }
+
+    @Override
+    public void start() {
+        synchronized (lifecycle) {
+            started = true;
+            schedule(settings.snapshot());
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (lifecycle) {
+            started = false;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+                sweeps = null;
+            }
+            if (workers != null) {
+                workers.shutdownNow();
+                workers = null;
+            }
+        }
+    }
+
+    boolean isScheduled() {
+        synchronized (lifecycle) {
+            return sweeps != null;
+        }
+    }
+
+    private void settingsChanged(GoogleSettings.Snapshot previous, GoogleSettings.Snapshot current) {
+        synchronized (lifecycle) {
+            if (started && (previous.isDeprovisioningEnabled() != current.isDeprovisioningEnabled()
+                    || previous.deprovisioningIntervalMs() != current.deprovisioningIntervalMs())) {
+                schedule(current);
+            }
+            if (workers != null && previous.deprovisioningConcurrency() != current.deprovisioningConcurrency()) {
+                // deactivations already submitted complete, the next ones use a new pool
+                workers.shutdown();
+                workers = null;
+            }
+        }
+    }
+
+    /**
+     * Replaces the schedule of the sweeps by the one of the given settings. A sweep in progress
+     * completes. Called with the lifecycle lock held.
+     */
+    private void schedule(GoogleSettings.Snapshot snapshot) {
+        if (sweeps != null) {
+            sweeps.cancel(false);
+            sweeps = null;
+        }
+        if (!snapshot.isDeprovisioningEnabled()) {
+            return;
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(lowPriority("deprovisioning"));
+        }
+        long intervalMs = Math.max(TimeUnit.MINUTES.toMillis(1), snapshot.deprovisioningIntervalMs());
+        sweeps = scheduler.scheduleWithFixedDelay(this::sweepQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            metrics.add(LoginMetrics.Deprovisioning.FAILURES, 1);
+            LOG.warn("Deprovisioning sweep failed, it is retried at the next interval", e);
+        }
+    }
+
+    /**
+     * Runs a whole sweep in the calling thread, deactivations being run by the workers.
+     * Only called by one thread at a time: by the scheduler, or by tests.
+     */
+    synchronized void sweep() throws IOException, InterruptedException {
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        if (!snapshot.isDeprovisioningEnabled()) {
+            return;
+        }
+        if (snapshot.deprovisioningAdminToken() == null) {
+            LOG.warn("Deprovisioning is skipped, {} is not set", GoogleSettings.DEPROVISIONING_ADMIN_TOKEN);
+            return;
+        }
+        if (snapshot.deprovisioningServerUrl() == null) {
+            LOG.warn("Deprovisioning is skipped, {} is not set to a valid URL", GoogleSettings.DEPROVISIONING_SERVER_URL);
+            return;
+        }
+        long start = system2.now();
+        Set<String> done = new HashSet<>();
+        int deactivated = sweep(snapshot, false, done) + sweep(snapshot, true, done);
+        handled = done;
+        long end = system2.now();
+        metrics.add(LoginMetrics.Deprovisioning.SWEEPS, 1);
+        metrics.sweepCompleted(start, end);
+        LOG.info("Deprovisioning sweep completed in {} ms: {} suspended or deleted accounts, {} users deactivated", end - start,
+                done.size(), deactivated);
+    }
+
+    private int sweep(GoogleSettings.Snapshot snapshot, boolean deleted, Set<String> done) throws IOException, InterruptedException {
+        int deactivated = 0;
+        String pageToken = null;
+        do {
+            GoogleDirectoryClient.UsersPage page = directory.deprovisionedUsers(deleted, pageToken, snapshot.deprovisioningPageSize());
+            metrics.add(LoginMetrics.Deprovisioning.PAGES, 1);
+            deactivated += process(snapshot, page.users, done);
+            pageToken = page.nextPageToken;
+        } while (pageToken != null && !pageToken.isEmpty() && !Thread.currentThread().isInterrupted());
+        return deactivated;
+    }
+
+    /**
+     * Deactivates the users of a page and waits for all of them, adding to {@code done} the
+     * accounts that need no further deactivation.
+     */
+    private int process(GoogleSettings.Snapshot snapshot, List<GoogleDirectoryClient.User> users, Set<String> done)
+            throws InterruptedException {
+        if (users == null) {
+            return 0;
+        }
+        List<String> emails = new ArrayList<>();
+        List<Future<Boolean>> deactivations = new ArrayList<>();
+        for (GoogleDirectoryClient.User user : users) {
+            if (user.primaryEmail == null) {
+                continue;
+            }
+            String email = user.primaryEmail.toLowerCase(Locale.ENGLISH);
+            metrics.add(LoginMetrics.Deprovisioning.USERS_CHECKED, 1);
+            if (done.contains(email) || handled.contains(email)) {
+                done.add(email);
+                continue;
+            }
+            String login = login(snapshot, email);
+            if (login == null) {
+                done.add(email);
+            } else {
+                emails.add(email);
+                deactivations.add(workers().submit(() -> deactivate(snapshot, email, login)));
+            }
+        }
+        int deactivated = 0;
+        for (int i = 0; i < deactivations.size(); i++) {
+            try {
+                if (deactivations.get(i).get()) {
+                    deactivated++;
+                }
+                done.add(emails.get(i));
+            } catch (ExecutionException e) {
+                metrics.add(LoginMetrics.Deprovisioning.FAILURES, 1);
+                LOG.warn("Fail to deactivate the user of " + emails.get(i), e.getCause());
+            }
+        }
+        return deactivated;
+    }
+
+    /**
+     * Login of the SonarQube user of the given account, {@code null} if the account is not of an
+     * allowed hosted domain.
+     */
+    @CheckForNull
+    private String login(GoogleSettings.Snapshot snapshot, String email) {
+        int at = email.lastIndexOf('@');
+        HostedDomains.Policy policy = at < 0 ? null : snapshot.hostedDomains().policy(email.substring(at + 1));
+        if (policy == null) {
+            return null;
+        }
+        return GoogleIdentityProvider.login(email, loginMappings, snapshot.loginRules(), policy);
+    }
+
+    /**
+     * Deactivates the active user with the given login, unless it has not the email of the account.
+     * Several accounts may derive the same login, for example john@a.com and john@b.com with a rule
+     * keeping the local part: the user is only the one of the account if it has its email.
+     */
+    private boolean deactivate(GoogleSettings.Snapshot snapshot, String email, String login) throws IOException {
+        HttpRequestFactory requestFactory = transport.transport().createRequestFactory(transport);
+        SonarUser user = activeUser(snapshot, requestFactory, login);
+        if (user == null) {
+            return false;
+        }
+        if (!email.equalsIgnoreCase(user.email)) {
+            LOG.warn("User {} is not deactivated, its email {} is not the one of the suspended or deleted account {}", login,
+                    user.email, email);
+            return false;
+        }
+        HttpRequest request = requestFactory.buildPostRequest(new GenericUrl(snapshot.deprovisioningServerUrl() + DEACTIVATE_PATH),
+                new UrlEncodedContent(Collections.singletonMap("login", login)));
+        request.getHeaders().setBasicAuthentication(snapshot.deprovisioningAdminToken(), "");
+        request.setThrowExceptionOnExecuteError(false);
+        HttpResponse response = request.execute();
+        try {
+            int status = response.getStatusCode();
+            if (status == 404) {
+                // deactivated in the meantime
+                return false;
+            }
+            if (!response.isSuccessStatusCode()) {
+                throw new IOException("Deactivation of " + login + " failed with status " + status);
+            }
+        } finally {
+            response.disconnect();
+        }
+        metrics.add(LoginMetrics.Deprovisioning.USERS_DEACTIVATED, 1);
+        LOG.info("User {} deactivated, its Google account is suspended or deleted", login);
+        return true;
+    }
+
+    @CheckForNull
+    private SonarUser activeUser(GoogleSettings.Snapshot snapshot, HttpRequestFactory requestFactory, String login) throws IOException {
+        GenericUrl url = new GenericUrl(snapshot.deprovisioningServerUrl() + SEARCH_PATH);
+        url.set("q", login);
+        url.set("ps", SEARCH_PAGE_SIZE);
+        HttpRequest request = requestFactory.buildGetRequest(url);
+        request.getHeaders().setBasicAuthentication(snapshot.deprovisioningAdminToken(), "");
+        request.setParser(transport.jsonFactory().createJsonObjectParser());
+        HttpResponse response = request.execute();
+        UsersSearch search;
+        try {
+            search = response.parseAs(UsersSearch.class);
+        } finally {
+            response.disconnect();
+        }
+        if (search.users != null) {
+            for (SonarUser user : search.users) {
+                if (login.equals(user.login)) {
+                    return user;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ExecutorService workers() {
+        synchronized (lifecycle) {
+            if (workers == null) {
+                workers = Executors.newFixedThreadPool(Math.max(1, settings.snapshot().deprovisioningConcurrency()),
+                        lowPriority("deprovisioning-worker"));
+            }
+            return workers;
+        }
+    }
+
+    private static ThreadFactory lowPriority(String name) {
+        ThreadFactory threads = new NamedThreadFactory(name);
+        return runnable -> {
+            Thread thread = threads.newThread(runnable);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+    }
+
+    public static class UsersSearch extends GenericJson {
+        @Key
+        public List<SonarUser> users;
+    }
+
+    public static class SonarUser extends GenericJson {
+        @Key
+        public String login;
+        @Key
+        public String email;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import com.google.api.client.util.PemReader;
+import org.sonar.api.server.ServerSide;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Reads group memberships and suspended or deleted users from the Google Directory API,
+ * authenticated as a service account acting on behalf of a Workspace administrator.
+ */
+@ServerSide
+public class GoogleDirectoryClient {
+
+    public static final String SCOPE = "https://www.googleapis.com/auth/admin.directory.group.readonly";
+    public static final String USER_SCOPE = "https://www.googleapis.com/auth/admin.directory.user.readonly";
+    static final int PAGE_SIZE = 200;
+    static final int MAX_USERS_PAGE_SIZE = 500;
+
+    private final GoogleSettings settings;
+    private final GoogleHttpTransport httpTransport;
+    private volatile Authorized authorized;
+
+    public GoogleDirectoryClient(GoogleSettings settings, GoogleHttpTransport httpTransport) {
+        this.settings = settings;
+        this.httpTransport = httpTransport;
+    }
+
+    /**
+     * Lower-cased emails of the groups the user is a direct member of.
+     */
+    public Set<String> groupsOf(String userEmail) throws IOException {
+        Authorized authorized = authorized();
+        Set<String> groups = new HashSet<>();
+        String pageToken = null;
+        do {
+            GenericUrl url = new GenericUrl(authorized.snapshot.directoryUrl() + "/admin/directory/v1/groups");
+            url.set("userKey", userEmail);
+            url.set("maxResults", PAGE_SIZE);
+            url.set("fields", "groups(email),nextPageToken");
+            url.set("pageToken", pageToken);
+            HttpResponse response = authorized.requestFactory.buildGetRequest(url).execute();
+            GroupsPage page;
+            try {
+                page = response.parseAs(GroupsPage.class);
+            } finally {
+                response.disconnect();
+            }
+            if (page.groups != null) {
+                for (Group group : page.groups) {
+                    groups.add(group.email.toLowerCase(Locale.ENGLISH));
+                }
+            }
+            pageToken = page.nextPageToken;
+        } while (pageToken != null);
+        return Collections.unmodifiableSet(groups);
+    }
+
+    /**
+     * A page of the users of the Workspace account who are suspended, or who were deleted
+     * recently if {@code deleted}. Both lists are short compared to the list of all users, so
+     * that a few requests cover the whole account.
+     */
+    public UsersPage deprovisionedUsers(boolean deleted, @Nullable String pageToken, int pageSize) throws IOException {
+        Authorized authorized = authorized();
+        GenericUrl url = new GenericUrl(authorized.snapshot.directoryUrl() + "/admin/directory/v1/users");
+        url.set("customer", "my_customer");
+        url.set("maxResults", Math.max(1, Math.min(MAX_USERS_PAGE_SIZE, pageSize)));
+        url.set("fields", "users(primaryEmail,suspended),nextPageToken");
+        url.set("pageToken", pageToken);
+        if (deleted) {
+            url.set("showDeleted", "true");
+        } else {
+            url.set("query", "isSuspended=true");
+        }
+        HttpResponse response = authorized.requestFactory.buildGetRequest(url).execute();
+        try {
+            return response.parseAs(UsersPage.class);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * The credential caches its access token, so it is kept as long as the settings it was
+     * built from do not change.
+     */
+    private Authorized authorized() throws IOException {
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        Authorized current = authorized;
+        if (current != null && current.snapshot == snapshot) {
+            return current;
+        }
+        String keyFile = snapshot.serviceAccountKeyFile();
+        if (keyFile == null || snapshot.directoryAdmin() == null) {
+            throw new IllegalStateException("Groups synchronization and deprovisioning require properties "
+                    + GoogleSettings.SERVICE_ACCOUNT_KEY_FILE + " and " + GoogleSettings.DIRECTORY_ADMIN);
+        }
+        ServiceAccountKey key;
+        try (InputStream input = new FileInputStream(new File(keyFile))) {
+            key = httpTransport.jsonFactory().fromInputStream(input, StandardCharsets.UTF_8, ServiceAccountKey.class);
+        }
+        GoogleCredential credential = new GoogleCredential.Builder()
+                .setTransport(httpTransport.transport())
+                .setJsonFactory(httpTransport.jsonFactory())
+                .setRequestInitializer(httpTransport)
+                .setTokenServerEncodedUrl(snapshot.tokenUrl())
+                .setServiceAccountId(key.clientEmail)
+                .setServiceAccountPrivateKeyId(key.privateKeyId)
+                .setServiceAccountPrivateKey(privateKey(key.privateKey))
+                .setServiceAccountScopes(scopes(snapshot))
+                .setServiceAccountUser(snapshot.directoryAdmin())
+                .build();
+        HttpRequestFactory requestFactory = httpTransport.transport().createRequestFactory(request -> {
+            httpTransport.initialize(request);
+            credential.initialize(request);
+            request.setParser(httpTransport.jsonFactory().createJsonObjectParser());
+        });
+        current = new Authorized(snapshot, requestFactory);
+        authorized = current;
+        return current;
+    }
+
+    /**
+     * Scopes granted to the service account are checked by Google, the user scope is only
+     * requested when deprovisioning is enabled.
+     */
+    static Set<String> scopes(GoogleSettings.Snapshot snapshot) {
+        Set<String> scopes = new LinkedHashSet<>();
+        if (snapshot.isGroupsSyncEnabled() || !snapshot.isDeprovisioningEnabled()) {
+            scopes.add(SCOPE);
+        }
+        if (snapshot.isDeprovisioningEnabled()) {
+            scopes.add(USER_SCOPE);
+        }
+        return scopes;
+    }
+
+    private static PrivateKey privateKey(String pem) throws IOException {
+        PemReader.Section section = PemReader.readFirstSectionAndClose(new StringReader(pem), "PRIVATE KEY");
+        if (section == null) {
+            throw new IOException("Invalid private key in service account key file");
+        }
+        try {
+            return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(section.getBase64DecodedBytes()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid private key in service account key file", e);
+        }
+    }
+
+    private static final class Authorized {
+        private final GoogleSettings.Snapshot snapshot;
+        private final HttpRequestFactory requestFactory;
+
+        Authorized(GoogleSettings.Snapshot snapshot, HttpRequestFactory requestFactory) {
+            this.snapshot = snapshot;
+            this.requestFactory = requestFactory;
+        }
+    }
+
+    public static class ServiceAccountKey extends GenericJson {
+        @Key("client_email")
+        public String clientEmail;
+        @Key("private_key_id")
+        public String privateKeyId;
+        @Key("private_key")
+        public String privateKey;
+    }
+
+    public static class GroupsPage extends GenericJson {
+        @Key
+        public List<Group> groups;
+        @Key
+        public String nextPageToken;
+    }
+
+    public static class Group extends GenericJson {
+        @Key
+        public String email;
+    }
+
+    public static class UsersPage extends GenericJson {
+        @Key
+        public List<User> users;
+        @Key
+        public String nextPageToken;
+    }
+
+    public static class User extends GenericJson {
+        @Key
+        public String primaryEmail;
+        @Key
+        public Boolean suspended;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the SonarQube groups of a user from their Google groups. Memberships are cached,
+ * so a login normally makes no call to the Directory API. When enabled, the memberships missing
+ * from memory are read from the {@link SharedIdentityCache} before calling the Directory API.
+ */
+@ServerSide
+public class GoogleGroups implements Startable {
+
+    private static final Logger LOG = Loggers.get(GoogleGroups.class);
+    private static final int REFRESH_THREADS = 2;
+    private static final int REFRESH_QUEUE_SIZE = 1000;
+    static final String SHARED_CACHE_REGION = "groups";
+
+    private final GoogleSettings settings;
+    private final GoogleDirectoryClient directory;
+    private final SharedIdentityCache sharedCache;
+    private final ThreadPoolExecutor refreshExecutor;
+    private final RefreshingCache<String, Set<String>> memberships;
+
+    public GoogleGroups(GoogleSettings settings, GoogleDirectoryClient directory, SharedIdentityCache sharedCache) {
+        this(settings, directory, sharedCache, System2.INSTANCE);
+    }
+
+    GoogleGroups(GoogleSettings settings, GoogleDirectoryClient directory, SharedIdentityCache sharedCache, System2 system2) {
+        this.settings = settings;
+        this.directory = directory;
+        this.sharedCache = sharedCache;
+        this.refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), new NamedThreadFactory("groups-refresh"));
+        this.refreshExecutor.allowCoreThreadTimeOut(true);
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        long ttlMs = snapshot.groupsCacheTtlMs();
+        this.memberships = new RefreshingCache<>("Google groups",
+                email -> sharedCache.get(SHARED_CACHE_REGION, email, ttlMs, directory::groupsOf),
+                refreshExecutor, system2, ttlMs, snapshot.groupsCacheSize());
+        sharedCache.onUpdate(SHARED_CACHE_REGION, memberships::invalidate);
+        settings.addListener(this::settingsChanged);
+    }
+
+    private void settingsChanged(GoogleSettings.Snapshot previous, GoogleSettings.Snapshot current) {
+        // memberships read from another directory, or with other credentials, are not valid anymore
+        if (!Objects.equals(previous.serviceAccountKeyFile(), current.serviceAccountKeyFile())
+                || !Objects.equals(previous.directoryAdmin(), current.directoryAdmin())
+                || !previous.directoryUrl().equals(current.directoryUrl())) {
+            memberships.invalidateAll();
+        }
+    }
+
+    @Override
+    public void start() {
+        // threads are created on demand
+    }
+
+    @Override
+    public void stop() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * Loads the Google groups of the user from the Directory API, replacing the cached ones,
+     * so that the next login of the user finds them up to date. Called by the {@link ProfileRefresher}.
+     */
+    public void refresh(String email) throws IOException {
+        String key = email.toLowerCase(Locale.ENGLISH);
+        Set<String> googleGroups = directory.groupsOf(key);
+        memberships.put(key, googleGroups);
+        sharedCache.put(SHARED_CACHE_REGION, key, settings.snapshot().groupsCacheTtlMs(), googleGroups);
+    }
+
+    /**
+     * SonarQube groups mapped from the Google groups of the user, or {@code null} when they
+     * can not be resolved, in which case the groups of the user must be left untouched.
+     */
+    @CheckForNull
+    public Set<String> sonarGroupsOf(String email) {
+        return sonarGroupsOf(settings.snapshot(), email);
+    }
+
+    /**
+     * Same as {@link #sonarGroupsOf(String)}, with the mapping of the settings the login started with.
+     */
+    @CheckForNull
+    public Set<String> sonarGroupsOf(GoogleSettings.Snapshot snapshot, String email) {
+        Set<String> googleGroups;
+        try {
+            googleGroups = memberships.get(email.toLowerCase(Locale.ENGLISH));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Fail to get the Google groups of {}, groups are not synchronized", email, e);
+            return null;
+        }
+        Map<String, Set<String>> mapping = snapshot.groupsMapping();
+        Set<String> sonarGroups = new HashSet<>();
+        for (String googleGroup : googleGroups) {
+            Set<String> mapped = mapping.get(googleGroup);
+            if (mapped != null) {
+                sonarGroups.addAll(mapped);
+            }
+        }
+        return sonarGroups;
+    }
+}
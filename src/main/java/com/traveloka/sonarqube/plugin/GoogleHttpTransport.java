@@ -0,0 +1,292 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.AbstractConnPool;
+import org.apache.http.impl.conn.tsccm.ConnPoolByRoute;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single HTTP stack shared by every call the plugin makes to Google. Connections are kept
+ * alive in a bounded pool so that logins reuse an established TLS session instead of paying
+ * a new handshake each time. When the size of the pool or the connect timeout is changed, a
+ * new pool is used for the next requests, and the previous one is closed once the requests in
+ * flight have released their connection.
+ */
+@ServerSide
+public class GoogleHttpTransport implements HttpRequestInitializer, Startable {
+
+    private static final long IDLE_CONNECTION_TIMEOUT_MS = 60_000L;
+
+    private final GoogleSettings settings;
+    private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicReference<Stack> stack;
+    private final Queue<Stack> retired = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService idleConnectionReaper;
+
+    public GoogleHttpTransport(GoogleSettings settings) {
+        this.settings = settings;
+        this.stack = new AtomicReference<>(new Stack(settings.snapshot()));
+        settings.addListener(this::settingsChanged);
+    }
+
+    public HttpTransport transport() {
+        return stack.get().transport;
+    }
+
+    public JsonFactory jsonFactory() {
+        return jsonFactory;
+    }
+
+    @Override
+    public void initialize(HttpRequest request) {
+        request.setConnectTimeout(settings.connectTimeout());
+        request.setReadTimeout(settings.readTimeout());
+    }
+
+    public PoolStats poolStats() {
+        return stack.get().connectionManager.pool().stats(handshakes.get());
+    }
+
+    /**
+     * Number of replaced pools still holding connections of requests in flight.
+     */
+    int retiredPools() {
+        return retired.size();
+    }
+
+    @Override
+    public void start() {
+        idleConnectionReaper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("http-reaper"));
+        idleConnectionReaper.scheduleWithFixedDelay(this::reapIdleConnections, IDLE_CONNECTION_TIMEOUT_MS, IDLE_CONNECTION_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (idleConnectionReaper != null) {
+            idleConnectionReaper.shutdownNow();
+        }
+        stack.get().connectionManager.shutdown();
+        for (Stack old; (old = retired.poll()) != null; ) {
+            old.connectionManager.shutdown();
+        }
+    }
+
+    void reapIdleConnections() {
+        PooledConnectionManager connectionManager = stack.get().connectionManager;
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        for (Iterator<Stack> it = retired.iterator(); it.hasNext(); ) {
+            Stack old = it.next();
+            old.connectionManager.closeIdleConnections(0L, TimeUnit.MILLISECONDS);
+            if (old.connectionManager.pool().stats(0L).leased() == 0) {
+                old.connectionManager.shutdown();
+                it.remove();
+            }
+        }
+    }
+
+    private void settingsChanged(GoogleSettings.Snapshot previous, GoogleSettings.Snapshot current) {
+        if (previous.maxConnections() == current.maxConnections() && previous.connectTimeout() == current.connectTimeout()) {
+            return;
+        }
+        Stack old = stack.getAndSet(new Stack(current));
+        // shut down by the reaper, once no request in flight holds one of its connections
+        retired.add(old);
+        old.connectionManager.closeIdleConnections(0L, TimeUnit.MILLISECONDS);
+    }
+
+    private final class Stack {
+        private final PooledConnectionManager connectionManager;
+        private final HttpTransport transport;
+
+        Stack(GoogleSettings.Snapshot snapshot) {
+            int maxConnections = snapshot.maxConnections();
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setSocketBufferSize(params, 8192);
+            ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+            ConnManagerParams.setTimeout(params, snapshot.connectTimeout());
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", new CountingSocketFactory(), 80));
+            registry.register(new Scheme("https", new CountingTlsSocketFactory(), 443));
+            this.connectionManager = new PooledConnectionManager(params, registry);
+
+            DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+            client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+            this.transport = new ApacheHttpTransport(client);
+        }
+    }
+
+    public static final class PoolStats {
+        private final int leased;
+        private final int idle;
+        private final int pending;
+        private final long handshakes;
+
+        PoolStats(int leased, int idle, int pending, long handshakes) {
+            this.leased = leased;
+            this.idle = idle;
+            this.pending = pending;
+            this.handshakes = handshakes;
+        }
+
+        public int leased() {
+            return leased;
+        }
+
+        public int idle() {
+            return idle;
+        }
+
+        public int pending() {
+            return pending;
+        }
+
+        public long handshakes() {
+            return handshakes;
+        }
+
+        @Override
+        public String toString() {
+            return "leased=" + leased + ", idle=" + idle + ", pending=" + pending + ", handshakes=" + handshakes;
+        }
+    }
+
+    private static final class PooledConnectionManager extends ThreadSafeClientConnManager {
+
+        PooledConnectionManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        @Override
+        protected AbstractConnPool createConnectionPool(HttpParams params) {
+            return new StatsConnPool(connOperator, params);
+        }
+
+        StatsConnPool pool() {
+            return (StatsConnPool) connectionPool;
+        }
+    }
+
+    private static final class StatsConnPool extends ConnPoolByRoute {
+
+        StatsConnPool(ClientConnectionOperator operator, HttpParams params) {
+            super(operator, params);
+        }
+
+        PoolStats stats(long handshakes) {
+            poolLock.lock();
+            try {
+                return new PoolStats(leasedConnections.size(), freeConnections.size(), waitingThreads.size(), handshakes);
+            } finally {
+                poolLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Opens plain sockets and counts every new connection as a handshake.
+     */
+    private class CountingSocketFactory implements SocketFactory {
+
+        private final PlainSocketFactory plain = PlainSocketFactory.getSocketFactory();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return plain.createSocket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException {
+            Socket connected = plain.connectSocket(socket, host, port, localAddress, localPort, params);
+            handshakes.incrementAndGet();
+            return connected;
+        }
+
+        @Override
+        public boolean isSecure(Socket socket) {
+            return false;
+        }
+    }
+
+    /**
+     * Layers TLS on top of the connected socket, so that SNI is always sent to Google.
+     */
+    private final class CountingTlsSocketFactory extends CountingSocketFactory implements LayeredSocketFactory {
+
+        private final SSLSocketFactory tls = SSLSocketFactory.getSocketFactory();
+
+        @Override
+        public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException {
+            Socket connected = super.connectSocket(socket, host, port, localAddress, localPort, params);
+            connected.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+            return tls.createSocket(connected, host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            handshakes.incrementAndGet();
+            return tls.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public boolean isSecure(Socket socket) {
+            return tls.isSecure(socket);
+        }
+    }
+}
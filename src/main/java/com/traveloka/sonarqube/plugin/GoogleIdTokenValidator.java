@@ -0,0 +1,99 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Verifies an ID token locally: RS256 signature against {@link GoogleSigningKeys}, issuer,
+ * audience and validity period.
+ */
+@ServerSide
+public class GoogleIdTokenValidator {
+
+    static final List<String> ISSUERS = Collections.unmodifiableList(Arrays.asList("accounts.google.com", "https://accounts.google.com"));
+    static final long ACCEPTABLE_TIME_SKEW_SECONDS = 300L;
+
+    private final GoogleSettings settings;
+    private final GoogleSigningKeys signingKeys;
+    private final System2 system2;
+
+    public GoogleIdTokenValidator(GoogleSettings settings, GoogleSigningKeys signingKeys) {
+        this(settings, signingKeys, System2.INSTANCE);
+    }
+
+    GoogleIdTokenValidator(GoogleSettings settings, GoogleSigningKeys signingKeys, System2 system2) {
+        this.settings = settings;
+        this.signingKeys = signingKeys;
+        this.system2 = system2;
+    }
+
+    public void validate(IdTokenClaims idToken) {
+        validate(settings.snapshot(), idToken);
+    }
+
+    /**
+     * Validates the ID token against the settings the login started with, so that a login in
+     * flight while the client ID is changed completes.
+     */
+    public void validate(GoogleSettings.Snapshot snapshot, IdTokenClaims idToken) {
+        if (!"RS256".equals(idToken.algorithm())) {
+            throw new UnauthorizedException("ID token is not signed with RS256");
+        }
+        if (!idToken.verifyIssuer(snapshot.issuers())) {
+            throw new UnauthorizedException("ID token is not issued by Google");
+        }
+        Collection<String> audience = Collections.singleton(snapshot.clientId());
+        if (!idToken.verifyAudience(audience)) {
+            throw new UnauthorizedException("ID token is not issued for this application");
+        }
+        if (!idToken.verifyTime(system2.now(), ACCEPTABLE_TIME_SKEW_SECONDS)) {
+            throw new UnauthorizedException("ID token is expired");
+        }
+        if (!verifySignature(idToken)) {
+            throw new UnauthorizedException("ID token signature is invalid");
+        }
+    }
+
+    private boolean verifySignature(IdTokenClaims idToken) {
+        String keyId = idToken.keyId();
+        if (keyId == null) {
+            return false;
+        }
+        try {
+            PublicKey key = signingKeys.get(keyId);
+            return key != null && idToken.verifySignature(key);
+        } catch (IOException e) {
+            throw new IllegalStateException("Fail to fetch Google signing keys", e);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+}
@@ -19,30 +19,73 @@
  */
 package com.traveloka.sonarqube.plugin;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeRequestUrl;
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeTokenRequest;
-import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
 import org.sonar.api.server.ServerSide;
 import org.sonar.api.server.authentication.Display;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
 import org.sonar.api.server.authentication.UnauthorizedException;
 import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 @ServerSide
 public class GoogleIdentityProvider implements OAuth2IdentityProvider {
 
+    static final String TOO_MANY_ATTEMPTS = "Too many login attempts, please retry in a minute";
+    // errors of a silent login which the interactive login solves
+    static final List<String> INTERACTION_ERRORS = Arrays.asList("login_required", "consent_required", "interaction_required",
+            "account_selection_required");
+    // parameter of the init request falling back from a silent login
+    static final String INTERACTIVE_PARAMETER = "interactive";
+
     private final GoogleSettings settings;
+    private final IdTokenReader idTokenReader;
+    private final GoogleTokenExchange tokenExchange;
+    private final GoogleIdTokenValidator idTokenValidator;
+    private final GoogleGroups groups;
+    private final LoginMetrics metrics;
+    private final LoginMappingFile loginMappings;
+    private final AuditLog auditLog;
+    private final LoginRateLimiter rateLimiter;
+    private final CallbackLookups lookups;
+    private final RefreshTokenVault refreshTokens;
+    private final System2 system2;
+    // sign-up of the login authenticating on the current thread, see allowsUsersToSignUp()
+    private final ThreadLocal<SignUp> signUps = new ThreadLocal<>();
+
+    public GoogleIdentityProvider(GoogleSettings settings, GoogleHttpTransport httpTransport, GoogleTokenExchange tokenExchange,
+                                  GoogleIdTokenValidator idTokenValidator, GoogleGroups groups, LoginMetrics metrics,
+                                  LoginMappingFile loginMappings, AuditLog auditLog, LoginRateLimiter rateLimiter,
+                                  CallbackLookups lookups, RefreshTokenVault refreshTokens) {
+        this(settings, httpTransport, tokenExchange, idTokenValidator, groups, metrics, loginMappings, auditLog, rateLimiter,
+                lookups, refreshTokens, System2.INSTANCE);
+    }
 
-    public GoogleIdentityProvider(GoogleSettings settings) {
+    GoogleIdentityProvider(GoogleSettings settings, GoogleHttpTransport httpTransport, GoogleTokenExchange tokenExchange,
+                           GoogleIdTokenValidator idTokenValidator, GoogleGroups groups, LoginMetrics metrics,
+                           LoginMappingFile loginMappings, AuditLog auditLog, LoginRateLimiter rateLimiter,
+                           CallbackLookups lookups, RefreshTokenVault refreshTokens, System2 system2) {
         this.settings = settings;
+        this.idTokenReader = new IdTokenReader(httpTransport.jsonFactory());
+        this.tokenExchange = tokenExchange;
+        this.idTokenValidator = idTokenValidator;
+        this.groups = groups;
+        this.metrics = metrics;
+        this.loginMappings = loginMappings;
+        this.auditLog = auditLog;
+        this.rateLimiter = rateLimiter;
+        this.lookups = lookups;
+        this.refreshTokens = refreshTokens;
+        this.system2 = system2;
     }
 
     @Override
@@ -69,60 +112,242 @@ public class GoogleIdentityProvider implements OAuth2IdentityProvider {
         return settings.isEnabled();
     }
 
+    /**
+     * SonarQube only asks when it registers a new user, on the thread of the login: the answer is
+     * then the policy of the domain of the user, and the login is known to be a sign-up.
+     */
     @Override
     public boolean allowsUsersToSignUp() {
-        return settings.allowUsersToSignUp();
+        SignUp signUp = signUps.get();
+        if (signUp == null) {
+            return settings.hostedDomains().anyAllowsSignUp();
+        }
+        signUp.asked = true;
+        return signUp.policy.allowsSignUp();
     }
 
     @Override
     public void init(InitContext context) {
-        String state = context.generateCsrfState();
-        if (!isEnabled()) {
-            throw new IllegalStateException("Google Authentication is disabled");
+        long start = System.nanoTime();
+        LoginMetrics.Outcome outcome = LoginMetrics.Outcome.ERROR;
+        String reason = null;
+        try {
+            GoogleSettings.Snapshot snapshot = settings.snapshot();
+            if (!snapshot.isEnabled()) {
+                throw new IllegalStateException("Google Authentication is disabled");
+            }
+            String state = context.generateCsrfState();
+            context.redirectTo(snapshot.authorizationUrl(state, loginHint(snapshot, context.getRequest())));
+            metrics.record(LoginMetrics.Phase.INIT, start);
+            outcome = LoginMetrics.Outcome.SUCCESS;
+        } catch (RuntimeException e) {
+            reason = e.getMessage();
+            throw e;
+        } finally {
+            auditLog.record(AuditLog.Action.INIT, null, null, outcome, reason, start);
         }
-        String url = new GoogleAuthorizationCodeRequestUrl(settings.clientId(), settings.redirectUri(), Arrays.asList(
-                "email", "profile", "openid")).setState(state)
-                .setAccessType("offline").set("hd", settings.hostedDomain())
-                .build();
-        context.redirectTo(url);
     }
 
     @Override
     public void callback(CallbackContext context) {
-        context.verifyCsrfState();
-        HttpServletRequest request = context.getRequest();
-        String code = null;
+        long start = System.nanoTime();
+        // updated as the callback progresses, so that the phase which fails is counted
+        LoginMetrics.Outcome outcome = LoginMetrics.Outcome.CSRF_FAILURE;
+        String email = null;
+        String hostedDomain = null;
+        String reason = null;
         try {
-            code = request.getParameter("code");
-        } catch (NullPointerException e) {
-            throw new IllegalStateException("Authorization Code Fail", e);
+            GoogleSettings.Snapshot snapshot = settings.snapshot();
+            HttpServletRequest request = context.getRequest();
+            // charged once per login, here rather than at init, which makes no call to Google
+            if (!rateLimiter.tryAcquireClient(snapshot, request)) {
+                outcome = LoginMetrics.Outcome.RATE_LIMITED;
+                throw new UnauthorizedException(TOO_MANY_ATTEMPTS);
+            }
+            context.verifyCsrfState();
+            String error = request.getParameter("error");
+            if (error != null && INTERACTION_ERRORS.contains(error)) {
+                outcome = LoginMetrics.Outcome.INTERACTION_REQUIRED;
+                reason = error;
+                restartInteractively(request, context.getResponse());
+                return;
+            }
+            outcome = LoginMetrics.Outcome.TOKEN_FAILURE;
+            String code = null;
+            try {
+                code = request.getParameter("code");
+            } catch (NullPointerException e) {
+                throw new IllegalStateException("Authorization Code Fail", e);
+            }
+            long phaseStart = System.nanoTime();
+            GoogleTokenResponse tokenResponse = tokenExchange.exchange(snapshot, code);
+            metrics.record(LoginMetrics.Phase.TOKEN_EXCHANGE, phaseStart);
+            IdTokenClaims idToken;
+            phaseStart = System.nanoTime();
+            try {
+                idToken = idTokenReader.read(tokenResponse.getIdToken());
+            } catch (IOException e) {
+                throw new IllegalStateException("ID Token Fail", e);
+            }
+            metrics.record(LoginMetrics.Phase.TOKEN_PARSE, phaseStart);
+            String claimedEmail = idToken.email();
+            // charged before any lookup is started, the exchange above being needed to learn the account
+            if (claimedEmail != null && !rateLimiter.tryAcquireAccount(snapshot, claimedEmail)) {
+                outcome = LoginMetrics.Outcome.RATE_LIMITED;
+                throw new UnauthorizedException(TOO_MANY_ATTEMPTS);
+            }
+            try (CallbackLookups.Batch batch = lookups.start(snapshot)) {
+                CallbackLookups.Lookup<Void> validation = batch.submit("ID token signature", () -> {
+                    long validationStart = System.nanoTime();
+                    idTokenValidator.validate(snapshot, idToken);
+                    metrics.record(LoginMetrics.Phase.TOKEN_VALIDATION, validationStart);
+                    return null;
+                });
+                HostedDomains hostedDomains = snapshot.hostedDomains();
+                // started before the token is verified, their results are only used once it is
+                HostedDomains.Policy claimedPolicy = hostedDomains.policy(idToken.hostedDomain());
+                CallbackLookups.Lookup<Set<String>> groupsLookup = null;
+                if (claimedPolicy != null && claimedEmail != null && snapshot.isGroupsSyncEnabled()) {
+                    groupsLookup = batch.submit("Google groups", () -> {
+                        long groupsStart = System.nanoTime();
+                        Set<String> sonarGroups = groups.sonarGroupsOf(snapshot, claimedEmail);
+                        metrics.record(LoginMetrics.Phase.GROUPS, groupsStart);
+                        return sonarGroups;
+                    });
+                }
+                batch.require(validation);
+                // only audited once the token is known to come from Google
+                email = idToken.email();
+                hostedDomain = idToken.hostedDomain();
+                LoginMetrics.Outcome rejection = checkMembership(idToken, hostedDomains);
+                if (rejection != null) {
+                    outcome = rejection;
+                    throw new UnauthorizedException("You must be a verified member of traveloka");
+                }
+                HostedDomains.Policy policy = hostedDomains.policy(hostedDomain);
+                String login = login(email, loginMappings, snapshot.loginRules(), policy);
+                UserIdentity.Builder userIdentity = userIdentity(email, login);
+                outcome = LoginMetrics.Outcome.ERROR;
+                if (groupsLookup != null) {
+                    // groups are left untouched when they can not be resolved in time
+                    Set<String> sonarGroups = batch.orElse(groupsLookup, null);
+                    if (sonarGroups != null) {
+                        userIdentity.setGroups(withDefaultGroups(sonarGroups, policy));
+                    }
+                }
+                phaseStart = System.nanoTime();
+                SignUp signUp = new SignUp(policy);
+                signUps.set(signUp);
+                try {
+                    context.authenticate(userIdentity.build());
+                } catch (UnauthorizedException e) {
+                    if (signUp.asked && !policy.allowsSignUp()) {
+                        outcome = LoginMetrics.Outcome.SIGN_UP_NOT_ALLOWED;
+                    }
+                    throw e;
+                } finally {
+                    signUps.remove();
+                }
+                if (signUp.asked && groupsLookup == null && !policy.defaultGroups().isEmpty()) {
+                    // groups replace all memberships: only set at sign-up, not to lose the groups granted since
+                    context.authenticate(userIdentity.setGroups(policy.defaultGroups()).build());
+                }
+                metrics.record(LoginMetrics.Phase.AUTHENTICATE, phaseStart);
+                if (tokenResponse.getRefreshToken() != null) {
+                    // only returned when the user consents, kept for the ProfileRefresher
+                    refreshTokens.store(email, login, tokenResponse.getRefreshToken());
+                }
+                if (snapshot.isSilentLoginEnabled()) {
+                    context.getResponse().addCookie(LoginHintCookie.create(request, snapshot.clientSecret(), email, system2.now(),
+                            snapshot.silentLoginMaxAgeMs()));
+                }
+                outcome = LoginMetrics.Outcome.SUCCESS;
+            }
+        } catch (RuntimeException e) {
+            reason = e.getMessage();
+            throw e;
+        } finally {
+            metrics.increment(outcome);
+            metrics.record(LoginMetrics.Phase.CALLBACK, start);
+            auditLog.record(AuditLog.Action.CALLBACK, email, hostedDomain, outcome, reason, start);
         }
-        JsonFactory jsonFactory = new JacksonFactory();
-        GoogleTokenResponse tokenResponse;
-        try {
-            tokenResponse = new GoogleAuthorizationCodeTokenRequest(new NetHttpTransport(), jsonFactory, settings.clientId(), settings.clientSecret(), code, settings.redirectUri()).execute();
-        } catch (IOException e) {
-            throw new IllegalStateException("Authorization Token Fail", e);
+        context.redirectToRequestedPage();
+    }
+
+    /**
+     * Account of the user to log in silently, or {@code null} for an interactive login.
+     */
+    @CheckForNull
+    private String loginHint(GoogleSettings.Snapshot snapshot, @Nullable HttpServletRequest request) {
+        if (!snapshot.isSilentLoginEnabled() || (request != null && request.getParameter(INTERACTIVE_PARAMETER) != null)) {
+            return null;
         }
-        GoogleIdToken googleIdToken;
-        String idToken = tokenResponse.getIdToken();
+        return LoginHintCookie.read(request, snapshot.clientSecret(), system2.now());
+    }
+
+    /**
+     * Forgets the account of the user and starts the login again, this time letting Google prompt
+     * them. The parameter makes sure the login is interactive even if the cookie is not dropped.
+     */
+    private void restartInteractively(HttpServletRequest request, HttpServletResponse response) {
+        response.addCookie(LoginHintCookie.delete(request));
         try {
-            googleIdToken = GoogleIdToken.parse(jsonFactory, idToken);
+            response.sendRedirect(request.getContextPath() + "/sessions/init/" + getKey() + "?" + INTERACTIVE_PARAMETER + "=true");
         } catch (IOException e) {
-            throw new IllegalStateException("ID Token Fail", e);
+            throw new IllegalStateException("Fail to redirect to the interactive login", e);
         }
-        if (!googleIdToken.getPayload().getHostedDomain().equals(settings.hostedDomain()) || !googleIdToken.getPayload().getEmailVerified())
-            throw new UnauthorizedException("You must be a verified member of traveloka");
-        String email = googleIdToken.getPayload().getEmail();
-        String userName = email.substring(0, email.indexOf('@'));
-        UserIdentity userIdentity = UserIdentity.builder()
-                .setProviderLogin(userName)
-                .setLogin(userName)
-                .setName(userName)
-                .setEmail(googleIdToken.getPayload().getEmail())
-                .build();
-        context.authenticate(userIdentity);
-        context.redirectToRequestedPage();
     }
 
+    /**
+     * Why the user of the token is not a member of the hosted domain, or {@code null} if they are.
+     */
+    @CheckForNull
+    static LoginMetrics.Outcome checkMembership(IdTokenClaims idToken, HostedDomains hostedDomains) {
+        if (hostedDomains.policy(idToken.hostedDomain()) == null) {
+            return LoginMetrics.Outcome.WRONG_HOSTED_DOMAIN;
+        }
+        if (!Boolean.TRUE.equals(idToken.emailVerified())) {
+            return LoginMetrics.Outcome.UNVERIFIED_EMAIL;
+        }
+        return null;
+    }
+
+    /**
+     * Login of the user: the one of the mapping file, otherwise the one of the first matching
+     * login rule, otherwise the one of the hosted domain policy.
+     */
+    static String login(String email, LoginMappingFile loginMappings, LoginRules loginRules, HostedDomains.Policy policy) {
+        String login = loginMappings.login(email);
+        if (login == null) {
+            login = loginRules.login(email);
+        }
+        return login != null ? login : policy.login(email);
+    }
+
+    static UserIdentity.Builder userIdentity(String email, String login) {
+        return UserIdentity.builder()
+                .setProviderLogin(login)
+                .setLogin(login)
+                .setName(email.substring(0, email.indexOf('@')))
+                .setEmail(email);
+    }
+
+    private static Set<String> withDefaultGroups(Set<String> sonarGroups, HostedDomains.Policy policy) {
+        if (policy.defaultGroups().isEmpty()) {
+            return sonarGroups;
+        }
+        Set<String> groups = new HashSet<>(sonarGroups);
+        groups.addAll(policy.defaultGroups());
+        return groups;
+    }
+
+    private static final class SignUp {
+        private final HostedDomains.Policy policy;
+        // whether SonarQube asked if the user may sign up, i.e. whether it registers a new user
+        private boolean asked;
+
+        private SignUp(HostedDomains.Policy policy) {
+            this.policy = policy;
+        }
+    }
 }
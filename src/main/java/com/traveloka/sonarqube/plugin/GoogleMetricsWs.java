@@ -0,0 +1,236 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Request;
+import org.sonar.api.server.ws.RequestHandler;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.utils.text.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Internal web service {@code api/authgoogle/metrics}, serving {@link LoginMetrics} as JSON or in
+ * the Prometheus text format to system administrators. The plugin API has no access to the user
+ * session, so the permission is checked by calling, as the current user, a web service of
+ * SonarQube restricted to them.
+ */
+public class GoogleMetricsWs implements WebService, RequestHandler {
+
+    static final String CONTROLLER = "api/authgoogle";
+    static final String PARAM_FORMAT = "format";
+    static final String FORMAT_JSON = "json";
+    static final String FORMAT_PROMETHEUS = "prometheus";
+    static final String PROMETHEUS_MEDIA_TYPE = "text/plain; version=0.0.4";
+    // requires the 'Administer System' permission
+    static final String ADMIN_CHECK_PATH = "api/permissions/search_global_permissions";
+
+    private static final String LATENCY_METRIC = "sonar_auth_google_phase_duration_seconds";
+    private static final String OUTCOME_METRIC = "sonar_auth_google_logins_total";
+    private static final String DROPPED_AUDIT_EVENTS_METRIC = "sonar_auth_google_audit_events_dropped_total";
+    private static final String DEPROVISIONING_METRIC = "sonar_auth_google_deprovisioning_total";
+    private static final String LAST_SWEEP_METRIC = "sonar_auth_google_deprovisioning_last_sweep_timestamp_seconds";
+    private static final String LAST_SWEEP_DURATION_METRIC = "sonar_auth_google_deprovisioning_last_sweep_duration_seconds";
+
+    private final LoginMetrics metrics;
+
+    public GoogleMetricsWs(LoginMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void define(Context context) {
+        NewController controller = context.createController(CONTROLLER)
+                .setDescription("Google Authentication");
+        NewAction action = controller.createAction("metrics")
+                .setDescription("Latency of each phase of the Google logins, number of logins per outcome, of dropped audit events "
+                        + "and progress of the deprovisioning sweeps.")
+                .setSince("1.1")
+                .setInternal(true)
+                .setResponseExample(getClass().getResource("metrics-example.json"))
+                .setHandler(this);
+        action.createParam(PARAM_FORMAT)
+                .setDescription("Output format")
+                .setPossibleValues(FORMAT_JSON, FORMAT_PROMETHEUS)
+                .setDefaultValue(FORMAT_JSON);
+        controller.done();
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws IOException {
+        int status = adminCheckStatus(request);
+        if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            deny(response, status, "Authentication is required");
+            return;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            deny(response, HttpURLConnection.HTTP_FORBIDDEN, "Insufficient privileges");
+            return;
+        }
+        if (FORMAT_PROMETHEUS.equals(request.param(PARAM_FORMAT))) {
+            Response.Stream stream = response.stream().setMediaType(PROMETHEUS_MEDIA_TYPE);
+            try (Writer writer = new OutputStreamWriter(stream.output(), StandardCharsets.UTF_8)) {
+                writePrometheus(writer);
+            }
+        } else {
+            JsonWriter json = response.newJsonWriter();
+            writeJson(json);
+            json.close();
+        }
+    }
+
+    private static int adminCheckStatus(Request request) {
+        return request.localConnector().call(new AdminCheck()).getStatus();
+    }
+
+    private static void deny(Response response, int status, String message) {
+        Response.Stream stream = response.stream().setMediaType("application/json").setStatus(status);
+        JsonWriter json = JsonWriter.of(new OutputStreamWriter(stream.output(), StandardCharsets.UTF_8));
+        json.beginObject().name("errors").beginArray()
+                .beginObject().prop("msg", message).endObject()
+                .endArray().endObject();
+        json.close();
+    }
+
+    void writeJson(JsonWriter json) {
+        json.beginObject();
+        json.name("outcomes").beginObject();
+        for (LoginMetrics.Outcome outcome : LoginMetrics.Outcome.values()) {
+            json.prop(outcome.label, metrics.count(outcome));
+        }
+        json.endObject();
+        json.name("phases").beginObject();
+        for (LoginMetrics.Phase phase : LoginMetrics.Phase.values()) {
+            LatencyHistogram histogram = metrics.latency(phase);
+            long[] counts = histogram.bucketCounts();
+            json.name(phase.label).beginObject();
+            json.prop("count", sum(counts));
+            json.prop("sumMillis", histogram.sumNanos() / 1_000_000d);
+            json.prop("maxMillis", histogram.maxNanos() / 1_000_000d);
+            json.prop("p50Millis", histogram.quantileMillis(0.5));
+            json.prop("p95Millis", histogram.quantileMillis(0.95));
+            json.prop("p99Millis", histogram.quantileMillis(0.99));
+            json.name("buckets").beginArray();
+            for (int i = 0; i < counts.length; i++) {
+                json.beginObject();
+                if (i < LatencyHistogram.BOUNDS_MS.length) {
+                    json.prop("leMillis", LatencyHistogram.BOUNDS_MS[i]);
+                }
+                json.prop("count", counts[i]);
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endObject();
+        json.prop("droppedAuditEvents", metrics.getDroppedAuditEvents());
+        json.name("deprovisioning").beginObject();
+        for (LoginMetrics.Deprovisioning counter : LoginMetrics.Deprovisioning.values()) {
+            json.prop(counter.label, metrics.count(counter));
+        }
+        json.prop("lastSweepMillis", metrics.getLastSweepMillis());
+        json.prop("lastSweepDurationMillis", metrics.getLastSweepDurationMillis());
+        json.endObject();
+        json.endObject();
+    }
+
+    void writePrometheus(Writer writer) throws IOException {
+        writer.write("# HELP " + LATENCY_METRIC + " Duration of each phase of the Google logins.\n");
+        writer.write("# TYPE " + LATENCY_METRIC + " histogram\n");
+        for (LoginMetrics.Phase phase : LoginMetrics.Phase.values()) {
+            LatencyHistogram histogram = metrics.latency(phase);
+            long[] counts = histogram.bucketCounts();
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                String le = i < LatencyHistogram.BOUNDS_MS.length ? seconds(LatencyHistogram.BOUNDS_MS[i] * 1_000_000L) : "+Inf";
+                writer.write(LATENCY_METRIC + "_bucket{phase=\"" + phase.label + "\",le=\"" + le + "\"} " + cumulated + "\n");
+            }
+            writer.write(LATENCY_METRIC + "_sum{phase=\"" + phase.label + "\"} " + seconds(histogram.sumNanos()) + "\n");
+            writer.write(LATENCY_METRIC + "_count{phase=\"" + phase.label + "\"} " + cumulated + "\n");
+        }
+        writer.write("# HELP " + OUTCOME_METRIC + " Google login callbacks per outcome.\n");
+        writer.write("# TYPE " + OUTCOME_METRIC + " counter\n");
+        for (LoginMetrics.Outcome outcome : LoginMetrics.Outcome.values()) {
+            writer.write(OUTCOME_METRIC + "{outcome=\"" + outcome.label + "\"} " + metrics.count(outcome) + "\n");
+        }
+        writer.write("# HELP " + DROPPED_AUDIT_EVENTS_METRIC + " Audit events that could not be written.\n");
+        writer.write("# TYPE " + DROPPED_AUDIT_EVENTS_METRIC + " counter\n");
+        writer.write(DROPPED_AUDIT_EVENTS_METRIC + " " + metrics.getDroppedAuditEvents() + "\n");
+        writer.write("# HELP " + DEPROVISIONING_METRIC + " Progress of the deprovisioning sweeps.\n");
+        writer.write("# TYPE " + DEPROVISIONING_METRIC + " counter\n");
+        for (LoginMetrics.Deprovisioning counter : LoginMetrics.Deprovisioning.values()) {
+            writer.write(DEPROVISIONING_METRIC + "{counter=\"" + counter.label + "\"} " + metrics.count(counter) + "\n");
+        }
+        writer.write("# HELP " + LAST_SWEEP_METRIC + " End of the last completed deprovisioning sweep.\n");
+        writer.write("# TYPE " + LAST_SWEEP_METRIC + " gauge\n");
+        writer.write(LAST_SWEEP_METRIC + " " + seconds(metrics.getLastSweepMillis() * 1_000_000L) + "\n");
+        writer.write("# HELP " + LAST_SWEEP_DURATION_METRIC + " Duration of the last completed deprovisioning sweep.\n");
+        writer.write("# TYPE " + LAST_SWEEP_DURATION_METRIC + " gauge\n");
+        writer.write(LAST_SWEEP_DURATION_METRIC + " " + seconds(metrics.getLastSweepDurationMillis() * 1_000_000L) + "\n");
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ENGLISH, "%.6f", nanos / 1_000_000_000d).replaceAll("0+$", "").replaceAll("\\.$", ".0");
+    }
+
+    private static final class AdminCheck implements LocalConnector.LocalRequest {
+
+        @Override
+        public String getPath() {
+            return ADMIN_CHECK_PATH;
+        }
+
+        @Override
+        public String getMediaType() {
+            return "application/json";
+        }
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+
+        @Override
+        public boolean hasParam(String key) {
+            return false;
+        }
+
+        @Override
+        public String getParam(String key) {
+            return null;
+        }
+    }
+}
@@ -19,32 +19,165 @@
  */
 package com.traveloka.sonarqube.plugin;
 
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeRequestUrl;
+import com.google.api.client.googleapis.auth.oauth2.GoogleOAuthConstants;
+import com.google.api.client.util.escape.CharEscapers;
 import org.sonar.api.config.PropertyDefinition;
+import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.Settings;
 import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
 
 import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 import static java.lang.String.valueOf;
 import static org.sonar.api.PropertyType.BOOLEAN;
+import static org.sonar.api.PropertyType.INTEGER;
 import static org.sonar.api.PropertyType.PASSWORD;
+import static org.sonar.api.PropertyType.SINGLE_SELECT_LIST;
 import static org.sonar.api.PropertyType.STRING;
 
 @ServerSide
 public class GoogleSettings {
 
+    private static final Logger LOG = Loggers.get(GoogleSettings.class);
+    private static final Pattern LOOPBACK_V4 = Pattern.compile("127\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+
     public static final String ENABLED = "sonar.auth.google.enabled";
     public static final String CLIENT_ID = "sonar.auth.google.clientId";
     public static final String CLIENT_SECRET = "sonar.auth.google.clientSecret.secured";
     public static final String REDIRECT_URI = "sonar.auth.google.redirectUri";
     public static final String ALLOW_USERS_TO_SIGN_UP = "sonar.auth.google.allowUsersToSignUp";
     public static final String HOSTED_DOMAIN = "sonar.auth.google.hostedDomain";
+    public static final String CONNECT_TIMEOUT = "sonar.auth.google.connectTimeout";
+    public static final String READ_TIMEOUT = "sonar.auth.google.readTimeout";
+    public static final String MAX_CONNECTIONS = "sonar.auth.google.maxConnections";
+    public static final String CERTS_URL = "sonar.auth.google.certsUrl";
+    public static final String TOKEN_URL = "sonar.auth.google.tokenUrl";
+    public static final String AUTHORIZATION_URL = "sonar.auth.google.authorizationUrl";
+    public static final String GROUPS_SYNC = "sonar.auth.google.groupsSync";
+    public static final String GROUPS_MAPPING = "sonar.auth.google.groupsMapping";
+    public static final String SERVICE_ACCOUNT_KEY_FILE = "sonar.auth.google.serviceAccountKeyFile";
+    public static final String DIRECTORY_ADMIN = "sonar.auth.google.directoryAdmin";
+    public static final String DIRECTORY_URL = "sonar.auth.google.directoryUrl";
+    public static final String GROUPS_CACHE_TTL = "sonar.auth.google.groupsCacheTtl";
+    public static final String GROUPS_CACHE_SIZE = "sonar.auth.google.groupsCacheSize";
+    public static final String TOKEN_MAX_CONCURRENCY = "sonar.auth.google.tokenMaxConcurrency";
+    public static final String TOKEN_QUEUE_SIZE = "sonar.auth.google.tokenQueueSize";
+    public static final String TOKEN_TIMEOUT = "sonar.auth.google.tokenTimeout";
+    public static final String CIRCUIT_BREAKER_THRESHOLD = "sonar.auth.google.circuitBreakerThreshold";
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION = "sonar.auth.google.circuitBreakerOpenDuration";
+    public static final String WARM_UP = "sonar.auth.google.warmUp";
+    public static final String DOMAIN_POLICIES = "sonar.auth.google.domainPolicies";
+    public static final String LOGIN_RULES = "sonar.auth.google.loginRules";
+    public static final String LOGIN_MAPPING_FILE = "sonar.auth.google.loginMappingFile";
+    public static final String AUDIT_LOG = "sonar.auth.google.auditLog";
+    public static final String AUDIT_LOG_OVERFLOW = "sonar.auth.google.auditLogOverflow";
+    public static final String AUDIT_LOG_BUFFER_SIZE = "sonar.auth.google.auditLogBufferSize";
+    public static final String AUDIT_LOG_MAX_FILE_SIZE = "sonar.auth.google.auditLogMaxFileSize";
+    public static final String AUDIT_LOG_MAX_FILES = "sonar.auth.google.auditLogMaxFiles";
+    public static final String RATE_LIMIT_PER_CLIENT = "sonar.auth.google.rateLimitPerClient";
+    public static final String RATE_LIMIT_PER_ACCOUNT = "sonar.auth.google.rateLimitPerAccount";
+    public static final String RATE_LIMIT_CLIENT_IP_HEADER = "sonar.auth.google.rateLimitClientIpHeader";
+    public static final String RATE_LIMIT_MAX_KEYS = "sonar.auth.google.rateLimitMaxKeys";
+    public static final String DISCOVERY_URL = "sonar.auth.google.discoveryUrl";
+    public static final String LOOKUP_MAX_CONCURRENCY = "sonar.auth.google.lookupMaxConcurrency";
+    public static final String LOOKUP_TIMEOUT = "sonar.auth.google.lookupTimeout";
+    public static final String SHARED_CACHE = "sonar.auth.google.sharedCache";
+    public static final String SHARED_CACHE_POLL_INTERVAL = "sonar.auth.google.sharedCachePollInterval";
+    public static final String ACCESS_TYPE = "sonar.auth.google.accessType";
+    public static final String SILENT_LOGIN = "sonar.auth.google.silentLogin";
+    public static final String SILENT_LOGIN_MAX_AGE = "sonar.auth.google.silentLoginMaxAge";
+    public static final String PROFILE_REFRESH = "sonar.auth.google.profileRefresh";
+    public static final String PROFILE_REFRESH_INTERVAL = "sonar.auth.google.profileRefreshInterval";
+    public static final String PROFILE_REFRESH_BATCH_SIZE = "sonar.auth.google.profileRefreshBatchSize";
+    public static final String PROFILE_REFRESH_RATE = "sonar.auth.google.profileRefreshRate";
+    public static final String DEPROVISIONING = "sonar.auth.google.deprovisioning";
+    public static final String DEPROVISIONING_INTERVAL = "sonar.auth.google.deprovisioningInterval";
+    public static final String DEPROVISIONING_PAGE_SIZE = "sonar.auth.google.deprovisioningPageSize";
+    public static final String DEPROVISIONING_CONCURRENCY = "sonar.auth.google.deprovisioningConcurrency";
+    public static final String DEPROVISIONING_ADMIN_TOKEN = "sonar.auth.google.deprovisioningAdminToken.secured";
+    public static final String DEPROVISIONING_SERVER_URL = "sonar.auth.google.deprovisioningServerUrl";
     public static final String CATEGORY = "Google Oauth2";
     public static final String AUTHENTICATION_SUBCATEGORY = "Authentication";
+    public static final String GROUPS_SUBCATEGORY = "Groups Synchronization";
+    public static final String ADVANCED_SUBCATEGORY = "Advanced";
+    public static final String AUDIT_SUBCATEGORY = "Audit Log";
+    public static final String RATE_LIMIT_SUBCATEGORY = "Rate Limiting";
+    public static final String DEPROVISIONING_SUBCATEGORY = "Deprovisioning";
+    public static final String PROFILE_REFRESH_SUBCATEGORY = "Profile Refresh";
+
+    // set by SonarQube, not by administrators
+    static final String DATA_DIR = "sonar.path.data";
+    static final String LOGS_DIR = "sonar.path.logs";
+    static final String JDBC_URL = "sonar.jdbc.url";
+    static final String JDBC_USERNAME = "sonar.jdbc.username";
+    static final String JDBC_PASSWORD = "sonar.jdbc.password";
+
+    static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    static final int DEFAULT_READ_TIMEOUT = 10000;
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+    static final String DEFAULT_CERTS_URL = "https://www.googleapis.com/oauth2/v3/certs";
+    static final String DEFAULT_TOKEN_URL = GoogleOAuthConstants.TOKEN_SERVER_URL;
+    static final String DEFAULT_AUTHORIZATION_URL = GoogleOAuthConstants.AUTHORIZATION_SERVER_URL;
+    static final String DEFAULT_DISCOVERY_URL = "https://accounts.google.com/.well-known/openid-configuration";
+    static final String DEFAULT_DIRECTORY_URL = "https://www.googleapis.com";
+    static final int DEFAULT_GROUPS_CACHE_TTL = 3600;
+    static final int DEFAULT_GROUPS_CACHE_SIZE = 10000;
+    static final int DEFAULT_TOKEN_MAX_CONCURRENCY = 16;
+    static final int DEFAULT_TOKEN_QUEUE_SIZE = 32;
+    static final int DEFAULT_TOKEN_TIMEOUT = 8000;
+    static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+    static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30;
+    static final String AUDIT_LOG_OVERFLOW_DROP = "drop";
+    static final String AUDIT_LOG_OVERFLOW_BLOCK = "block";
+    static final int DEFAULT_AUDIT_LOG_BUFFER_SIZE = 8192;
+    static final int DEFAULT_AUDIT_LOG_MAX_FILE_SIZE = 10240;
+    static final int DEFAULT_AUDIT_LOG_MAX_FILES = 10;
+    static final int DEFAULT_RATE_LIMIT_PER_CLIENT = 0;
+    static final int DEFAULT_RATE_LIMIT_PER_ACCOUNT = 10;
+    static final int DEFAULT_RATE_LIMIT_MAX_KEYS = 100000;
+    static final int DEFAULT_LOOKUP_MAX_CONCURRENCY = 32;
+    static final int DEFAULT_LOOKUP_TIMEOUT = 5000;
+    static final int DEFAULT_SHARED_CACHE_POLL_INTERVAL = 5;
+    static final String ACCESS_TYPE_ONLINE = "online";
+    static final String ACCESS_TYPE_OFFLINE = "offline";
+    static final int DEFAULT_SILENT_LOGIN_MAX_AGE = 12;
+    static final int DEFAULT_PROFILE_REFRESH_INTERVAL = 60;
+    static final int DEFAULT_PROFILE_REFRESH_BATCH_SIZE = 100;
+    static final int DEFAULT_PROFILE_REFRESH_RATE = 5;
+    static final int DEFAULT_DEPROVISIONING_INTERVAL = 60;
+    static final int DEFAULT_DEPROVISIONING_PAGE_SIZE = 500;
+    static final int DEFAULT_DEPROVISIONING_CONCURRENCY = 2;
+
+    static final List<String> SCOPES = Collections.unmodifiableList(Arrays.asList("email", "profile", "openid"));
+    private static final List<String> SOURCE_KEYS = sourceKeys();
+    private static final PropertyDefinitions DEFINITIONS = new PropertyDefinitions(definitions());
 
     private final Settings settings;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicReference<ProviderMetadata> providerMetadata = new AtomicReference<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // last generation passed to the listeners, guarded by listeners
+    private Snapshot notified;
 
     public GoogleSettings(Settings settings) {
         this.settings = settings;
@@ -88,7 +221,8 @@ public class GoogleSettings {
                         .build(),
                 PropertyDefinition.builder(ALLOW_USERS_TO_SIGN_UP)
                         .name("Allow users to sign-up")
-                        .description("Allow new users to authenticate. When set to 'false', only existing users will be able to authenticate to the server.")
+                        .description("Allow new users to authenticate. When set to 'false', only existing users will be able to authenticate to the server. "
+                                + "Can be overridden for each hosted domain.")
                         .category(CATEGORY)
                         .subCategory(AUTHENTICATION_SUBCATEGORY)
                         .type(BOOLEAN)
@@ -97,37 +231,1248 @@ public class GoogleSettings {
                         .build(),
                 PropertyDefinition.builder(HOSTED_DOMAIN)
                         .name("Hosted Domain")
-                        .description("Google Oauth2 Hosted Domain (https://developers.google.com/identity/protocols/OpenIDConnect#authenticationuriparameters)")
+                        .description("Google Oauth2 Hosted Domains whose users may log in "
+                                + "(https://developers.google.com/identity/protocols/OpenIDConnect#authenticationuriparameters)")
                         .category(CATEGORY)
                         .subCategory(AUTHENTICATION_SUBCATEGORY)
                         .index(6)
                         .type(STRING)
+                        .multiValues(true)
+                        .build(),
+                PropertyDefinition.builder(CONNECT_TIMEOUT)
+                        .name("Connect timeout")
+                        .description("Timeout in milliseconds when opening a connection to Google endpoints.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_CONNECT_TIMEOUT))
+                        .index(7)
+                        .build(),
+                PropertyDefinition.builder(READ_TIMEOUT)
+                        .name("Read timeout")
+                        .description("Timeout in milliseconds when waiting for a response from Google endpoints.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_READ_TIMEOUT))
+                        .index(8)
+                        .build(),
+                PropertyDefinition.builder(MAX_CONNECTIONS)
+                        .name("Maximum connections")
+                        .description("Maximum number of pooled keep-alive connections to Google endpoints.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_MAX_CONNECTIONS))
+                        .index(9)
+                        .build(),
+                PropertyDefinition.builder(CERTS_URL)
+                        .name("Signing keys URL")
+                        .description("URL of the JSON Web Key Set used to verify ID tokens. Leave empty to use the one of the discovery "
+                                + "document, or " + DEFAULT_CERTS_URL + " until it is loaded.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(STRING)
+                        .index(10)
+                        .build(),
+                PropertyDefinition.builder(TOKEN_URL)
+                        .name("Token URL")
+                        .description("URL of the OAuth2 token endpoint. Leave empty to use the one of the discovery document, or "
+                                + DEFAULT_TOKEN_URL + " until it is loaded.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(STRING)
+                        .index(11)
+                        .build(),
+                PropertyDefinition.builder(GROUPS_SYNC)
+                        .name("Synchronize groups")
+                        .description("Set the SonarQube groups of users from their Google groups at each login, according to the mapping below. "
+                                + "Users are removed from the SonarQube groups that are not mapped.")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(BOOLEAN)
+                        .defaultValue(valueOf(false))
+                        .index(12)
+                        .build(),
+                PropertyDefinition.builder(GROUPS_MAPPING)
+                        .name("Groups mapping")
+                        .description("Each value maps a Google group to a SonarQube group, for example 'developers@example.com=sonar-users'.")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(STRING)
+                        .multiValues(true)
+                        .index(13)
+                        .build(),
+                PropertyDefinition.builder(SERVICE_ACCOUNT_KEY_FILE)
+                        .name("Service account key file")
+                        .description("Path to the JSON key of a service account with domain-wide delegation on the Directory API scope "
+                                + GoogleDirectoryClient.SCOPE + ".")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(STRING)
+                        .index(14)
+                        .build(),
+                PropertyDefinition.builder(DIRECTORY_ADMIN)
+                        .name("Directory administrator")
+                        .description("Email of the Google Workspace administrator the service account acts on behalf of.")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(STRING)
+                        .index(15)
+                        .build(),
+                PropertyDefinition.builder(GROUPS_CACHE_TTL)
+                        .name("Groups cache TTL")
+                        .description("Time in seconds the Google groups of a user are kept in memory. They are refreshed in the background "
+                                + "once half of this time has elapsed.")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_GROUPS_CACHE_TTL))
+                        .index(16)
+                        .build(),
+                PropertyDefinition.builder(GROUPS_CACHE_SIZE)
+                        .name("Groups cache size")
+                        .description("Maximum number of users whose Google groups are kept in memory. Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_GROUPS_CACHE_SIZE))
+                        .index(17)
+                        .build(),
+                PropertyDefinition.builder(DIRECTORY_URL)
+                        .name("Directory API URL")
+                        .description("Base URL of the Google Directory API. Leave empty to use " + DEFAULT_DIRECTORY_URL + ".")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(STRING)
+                        .index(18)
+                        .build(),
+                PropertyDefinition.builder(TOKEN_MAX_CONCURRENCY)
+                        .name("Maximum concurrent token requests")
+                        .description("Maximum number of authorization codes exchanged with Google at the same time.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_TOKEN_MAX_CONCURRENCY))
+                        .index(19)
+                        .build(),
+                PropertyDefinition.builder(TOKEN_QUEUE_SIZE)
+                        .name("Token requests queue size")
+                        .description("Number of logins allowed to wait for a token request slot. Further logins fail immediately.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_TOKEN_QUEUE_SIZE))
+                        .index(20)
+                        .build(),
+                PropertyDefinition.builder(TOKEN_TIMEOUT)
+                        .name("Token request deadline")
+                        .description("Time in milliseconds a login waits for the token exchange, including the time spent in the queue. " +
+                                "It also caps the connect and read timeouts of the token request.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_TOKEN_TIMEOUT))
+                        .index(21)
+                        .build(),
+                PropertyDefinition.builder(CIRCUIT_BREAKER_THRESHOLD)
+                        .name("Circuit breaker threshold")
+                        .description("Number of consecutive failed or timed out token requests after which logins fail immediately.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_CIRCUIT_BREAKER_THRESHOLD))
+                        .index(22)
+                        .build(),
+                PropertyDefinition.builder(CIRCUIT_BREAKER_OPEN_DURATION)
+                        .name("Circuit breaker open duration")
+                        .description("Time in seconds logins fail immediately once the circuit breaker is open, before a single login "
+                                + "is let through to probe the token endpoint.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION))
+                        .index(23)
+                        .build(),
+                PropertyDefinition.builder(AUTHORIZATION_URL)
+                        .name("Authorization URL")
+                        .description("URL of the OAuth2 authorization endpoint users are redirected to. Leave empty to use the one of "
+                                + "the discovery document, or " + DEFAULT_AUTHORIZATION_URL + " until it is loaded.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(STRING)
+                        .index(24)
+                        .build(),
+                PropertyDefinition.builder(WARM_UP)
+                        .name("Warm up on startup")
+                        .description("Prepare the connections to Google and the signing keys in the background when the server starts, "
+                                + "so that the first login is as fast as the next ones.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(BOOLEAN)
+                        .defaultValue(valueOf(true))
+                        .index(25)
+                        .build(),
+                PropertyDefinition.builder(DOMAIN_POLICIES)
+                        .name("Hosted domain policies")
+                        .description("Each value overrides the policy of a hosted domain, for example "
+                                + "'acquired.com:signUp=false;groups=sonar-users|acquired;login=email'. 'signUp' allows new users of the domain "
+                                + "to authenticate, 'groups' lists the SonarQube groups its users are members of, on top of the synchronized "
+                                + "ones (when set, memberships of these users are managed by the plugin), and 'login' is 'local' to use the "
+                                + "part of the email before '@' as login, or 'email' to use the whole email.")
+                        .category(CATEGORY)
+                        .subCategory(AUTHENTICATION_SUBCATEGORY)
+                        .type(STRING)
+                        .multiValues(true)
+                        .index(26)
+                        .build(),
+                PropertyDefinition.builder(LOGIN_RULES)
+                        .name("Login rules")
+                        .description("Each value derives the login of the users whose email matches a regular expression, for example "
+                                + "'(.+)@acquired\\.com=>acq-$1'. The template after '=>' refers to the groups of the expression with "
+                                + "$1 or ${name}. The first matching rule wins, users matching none get the login of their hosted domain "
+                                + "policy. Write commas in expressions as %2C.")
+                        .category(CATEGORY)
+                        .subCategory(AUTHENTICATION_SUBCATEGORY)
+                        .type(STRING)
+                        .multiValues(true)
+                        .index(27)
+                        .build(),
+                PropertyDefinition.builder(LOGIN_MAPPING_FILE)
+                        .name("Login mapping file")
+                        .description("Path to a file of explicit logins, taking precedence over the login rules. Each line of a .csv "
+                                + "file is 'email,login', each line of any other file is 'email=login'. Changes of the file are "
+                                + "applied within " + TimeUnit.MILLISECONDS.toSeconds(LoginMappingFile.RELOAD_INTERVAL_MS) + " seconds.")
+                        .category(CATEGORY)
+                        .subCategory(AUTHENTICATION_SUBCATEGORY)
+                        .type(STRING)
+                        .index(28)
+                        .build(),
+                PropertyDefinition.builder(AUDIT_LOG)
+                        .name("Audit log")
+                        .description("Record each Google login attempt as a JSON line in " + AuditLog.FILE_NAME + ", in the logs "
+                                + "directory of the server: time, email, hosted domain, outcome, failure reason and duration. "
+                                + "Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(AUDIT_SUBCATEGORY)
+                        .type(BOOLEAN)
+                        .defaultValue(valueOf(true))
+                        .index(29)
+                        .build(),
+                PropertyDefinition.builder(AUDIT_LOG_OVERFLOW)
+                        .name("Audit log overflow")
+                        .description("What logins do when the audit events waiting to be written fill the buffer: '"
+                                + AUDIT_LOG_OVERFLOW_DROP + "' the event, counted by the metrics, or '" + AUDIT_LOG_OVERFLOW_BLOCK
+                                + "' until there is room. Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(AUDIT_SUBCATEGORY)
+                        .type(SINGLE_SELECT_LIST)
+                        .options(AUDIT_LOG_OVERFLOW_DROP, AUDIT_LOG_OVERFLOW_BLOCK)
+                        .defaultValue(AUDIT_LOG_OVERFLOW_DROP)
+                        .index(30)
+                        .build(),
+                PropertyDefinition.builder(AUDIT_LOG_BUFFER_SIZE)
+                        .name("Audit log buffer size")
+                        .description("Maximum number of audit events waiting to be written. Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(AUDIT_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_AUDIT_LOG_BUFFER_SIZE))
+                        .index(31)
+                        .build(),
+                PropertyDefinition.builder(AUDIT_LOG_MAX_FILE_SIZE)
+                        .name("Audit log file size")
+                        .description("Size in kilobytes beyond which the audit log is rotated. Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(AUDIT_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_AUDIT_LOG_MAX_FILE_SIZE))
+                        .index(32)
+                        .build(),
+                PropertyDefinition.builder(AUDIT_LOG_MAX_FILES)
+                        .name("Audit log rotated files")
+                        .description("Number of rotated audit log files kept, the oldest ones are deleted. Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(AUDIT_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_AUDIT_LOG_MAX_FILES))
+                        .index(33)
+                        .build(),
+                PropertyDefinition.builder(RATE_LIMIT_PER_CLIENT)
+                        .name("Login attempts per client")
+                        .description("Number of logins, counted at the callback, allowed per minute from a single IP address, in "
+                                + "bursts of up to this number. Further attempts are rejected before Google is called. Behind a "
+                                + "reverse proxy or a NAT, every user shares the address of the proxy: set the client IP header "
+                                + "first. Disabled by default, set to 0 to disable.")
+                        .category(CATEGORY)
+                        .subCategory(RATE_LIMIT_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_RATE_LIMIT_PER_CLIENT))
+                        .index(34)
+                        .build(),
+                PropertyDefinition.builder(RATE_LIMIT_PER_ACCOUNT)
+                        .name("Logins per account")
+                        .description("Number of logins allowed per minute for a single Google account, in bursts of up to this "
+                                + "number. The account is only known once the authorization code is exchanged, further logins are "
+                                + "rejected before the groups are looked up and the user is authenticated. Set to 0 to disable.")
+                        .category(CATEGORY)
+                        .subCategory(RATE_LIMIT_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_RATE_LIMIT_PER_ACCOUNT))
+                        .index(35)
+                        .build(),
+                PropertyDefinition.builder(RATE_LIMIT_CLIENT_IP_HEADER)
+                        .name("Client IP header")
+                        .description("Header holding the IP address of clients when the server is behind a reverse proxy, for "
+                                + "example X-Forwarded-For. Its last entry, appended by the proxy, is used. Leave empty to use the "
+                                + "remote address of requests.")
+                        .category(CATEGORY)
+                        .subCategory(RATE_LIMIT_SUBCATEGORY)
+                        .type(STRING)
+                        .index(36)
+                        .build(),
+                PropertyDefinition.builder(RATE_LIMIT_MAX_KEYS)
+                        .name("Tracked clients and accounts")
+                        .description("Maximum number of IP addresses, and of accounts, whose attempts are counted. Changes are "
+                                + "applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(RATE_LIMIT_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_RATE_LIMIT_MAX_KEYS))
+                        .index(37)
+                        .build(),
+                PropertyDefinition.builder(DEPROVISIONING)
+                        .name("Deactivate suspended users")
+                        .description("Periodically deactivate the SonarQube users whose Google account is suspended or was deleted. "
+                                + "Requires the service account and the administrator of the Groups Synchronization, the service "
+                                + "account must be granted the scope " + GoogleDirectoryClient.USER_SCOPE + ".")
+                        .category(CATEGORY)
+                        .subCategory(DEPROVISIONING_SUBCATEGORY)
+                        .type(BOOLEAN)
+                        .defaultValue(valueOf(false))
+                        .index(38)
+                        .build(),
+                PropertyDefinition.builder(DEPROVISIONING_INTERVAL)
+                        .name("Deprovisioning interval")
+                        .description("Time in minutes between two sweeps of the suspended and deleted Google accounts.")
+                        .category(CATEGORY)
+                        .subCategory(DEPROVISIONING_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_DEPROVISIONING_INTERVAL))
+                        .index(39)
+                        .build(),
+                PropertyDefinition.builder(DEPROVISIONING_PAGE_SIZE)
+                        .name("Deprovisioning page size")
+                        .description("Number of Google accounts read per request to the Directory API, at most "
+                                + GoogleDirectoryClient.MAX_USERS_PAGE_SIZE + ". The users of a page are deactivated before the "
+                                + "next page is read.")
+                        .category(CATEGORY)
+                        .subCategory(DEPROVISIONING_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_DEPROVISIONING_PAGE_SIZE))
+                        .index(40)
+                        .build(),
+                PropertyDefinition.builder(DEPROVISIONING_CONCURRENCY)
+                        .name("Deprovisioning concurrency")
+                        .description("Number of users deactivated in parallel.")
+                        .category(CATEGORY)
+                        .subCategory(DEPROVISIONING_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_DEPROVISIONING_CONCURRENCY))
+                        .index(41)
+                        .build(),
+                PropertyDefinition.builder(DEPROVISIONING_ADMIN_TOKEN)
+                        .name("Deprovisioning token")
+                        .description("Token of a SonarQube user with the 'Administer System' permission, used to deactivate users.")
+                        .category(CATEGORY)
+                        .subCategory(DEPROVISIONING_SUBCATEGORY)
+                        .type(PASSWORD)
+                        .index(42)
+                        .build(),
+                PropertyDefinition.builder(DEPROVISIONING_SERVER_URL)
+                        .name("Deprovisioning server URL")
+                        .description("URL the web API of this SonarQube server is called on to deactivate users, with the "
+                                + "deprovisioning token, for example http://localhost:9000. Must be an https URL, or an http URL "
+                                + "of a loopback address so that the token never travels in clear over the network. Deprovisioning "
+                                + "is skipped when it is not set.")
+                        .category(CATEGORY)
+                        .subCategory(DEPROVISIONING_SUBCATEGORY)
+                        .type(STRING)
+                        .index(43)
+                        .build(),
+                PropertyDefinition.builder(DISCOVERY_URL)
+                        .name("Discovery URL")
+                        .description("URL of the OpenID Connect discovery document the endpoints and the signing keys URL are read "
+                                + "from, unless set above. The document is cached and refreshed in the background. Leave empty to use "
+                                + DEFAULT_DISCOVERY_URL + ".")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(STRING)
+                        .index(44)
+                        .build(),
+                PropertyDefinition.builder(LOOKUP_MAX_CONCURRENCY)
+                        .name("Maximum concurrent login lookups")
+                        .description("Maximum number of lookups run in parallel once the tokens are received: verification of the ID "
+                                + "token, groups and existing user. Lookups of logins beyond that run one after the other. Set to 0 "
+                                + "to always run them one after the other.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_LOOKUP_MAX_CONCURRENCY))
+                        .index(45)
+                        .build(),
+                PropertyDefinition.builder(LOOKUP_TIMEOUT)
+                        .name("Login lookups deadline")
+                        .description("Time in milliseconds a login waits for all its lookups once the tokens are received. A user "
+                                + "whose groups are not resolved in time logs in with unchanged groups, a login whose ID token is "
+                                + "not verified in time fails.")
+                        .category(CATEGORY)
+                        .subCategory(ADVANCED_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_LOOKUP_TIMEOUT))
+                        .index(46)
+                        .build(),
+                PropertyDefinition.builder(SHARED_CACHE)
+                        .name("Share the groups cache between nodes")
+                        .description("Also keep the Google groups of users in a table of the SonarQube database, so that the web "
+                                + "nodes of a cluster reuse the groups resolved by each other instead of calling the Directory API "
+                                + "again. The groups cache of each node stays in front of it. The plugin creates its own tables, "
+                                + "AUTHGOOGLE_IDENTITY_CACHE and AUTHGOOGLE_IDENTITY_VERSION, which SonarQube does not manage: drop them "
+                                + "once disabled. Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(BOOLEAN)
+                        .defaultValue(valueOf(false))
+                        .index(47)
+                        .build(),
+                PropertyDefinition.builder(SHARED_CACHE_POLL_INTERVAL)
+                        .name("Shared groups cache poll interval")
+                        .description("Time in seconds between two checks of the groups updated by the other nodes. Their entries "
+                                + "are then dropped from the groups cache of this node. Changes are applied on restart.")
+                        .category(CATEGORY)
+                        .subCategory(GROUPS_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_SHARED_CACHE_POLL_INTERVAL))
+                        .index(48)
+                        .build(),
+                PropertyDefinition.builder(ACCESS_TYPE)
+                        .name("Access type")
+                        .description("'" + ACCESS_TYPE_OFFLINE + "' asks Google for a refresh token at login, which makes Google ask "
+                                + "users for their consent more often. '" + ACCESS_TYPE_ONLINE + "' only asks for the identity of users.")
+                        .category(CATEGORY)
+                        .subCategory(AUTHENTICATION_SUBCATEGORY)
+                        .type(SINGLE_SELECT_LIST)
+                        .options(ACCESS_TYPE_ONLINE, ACCESS_TYPE_OFFLINE)
+                        .defaultValue(ACCESS_TYPE_OFFLINE)
+                        .index(49)
+                        .build(),
+                PropertyDefinition.builder(SILENT_LOGIN)
+                        .name("Silent login")
+                        .description("Log returning users in without showing them the Google account chooser. A signed cookie "
+                                + "remembers the account of the user after a login, and the next login asks Google for that account "
+                                + "without prompting. When Google needs the user to interact, the interactive login is shown instead.")
+                        .category(CATEGORY)
+                        .subCategory(AUTHENTICATION_SUBCATEGORY)
+                        .type(BOOLEAN)
+                        .defaultValue(valueOf(false))
+                        .index(50)
+                        .build(),
+                PropertyDefinition.builder(SILENT_LOGIN_MAX_AGE)
+                        .name("Silent login max age")
+                        .description("Time in hours the account of a user is remembered for silent login.")
+                        .category(CATEGORY)
+                        .subCategory(AUTHENTICATION_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_SILENT_LOGIN_MAX_AGE))
+                        .index(51)
+                        .build(),
+                PropertyDefinition.builder(PROFILE_REFRESH)
+                        .name("Enabled")
+                        .description("Keep the refresh tokens Google returns at login in an encrypted file of the data directory, "
+                                + "and use them to refresh the email and the Google groups of users in the background, so that the "
+                                + "groups cache TTL can be raised well above the refresh interval. Requires the 'offline' access type.")
+                        .category(CATEGORY)
+                        .subCategory(PROFILE_REFRESH_SUBCATEGORY)
+                        .type(BOOLEAN)
+                        .defaultValue(valueOf(false))
+                        .index(52)
+                        .build(),
+                PropertyDefinition.builder(PROFILE_REFRESH_INTERVAL)
+                        .name("Interval")
+                        .description("Time in minutes between the start of a refresh of all users and the end of the previous one.")
+                        .category(CATEGORY)
+                        .subCategory(PROFILE_REFRESH_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_PROFILE_REFRESH_INTERVAL))
+                        .index(53)
+                        .build(),
+                PropertyDefinition.builder(PROFILE_REFRESH_BATCH_SIZE)
+                        .name("Batch size")
+                        .description("Number of users refreshed between two writes of the refresh tokens file.")
+                        .category(CATEGORY)
+                        .subCategory(PROFILE_REFRESH_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_PROFILE_REFRESH_BATCH_SIZE))
+                        .index(54)
+                        .build(),
+                PropertyDefinition.builder(PROFILE_REFRESH_RATE)
+                        .name("Rate")
+                        .description("Maximum number of users refreshed per second, each costing a call to the token endpoint and "
+                                + "one to the Directory API.")
+                        .category(CATEGORY)
+                        .subCategory(PROFILE_REFRESH_SUBCATEGORY)
+                        .type(INTEGER)
+                        .defaultValue(valueOf(DEFAULT_PROFILE_REFRESH_RATE))
+                        .index(55)
                         .build()
         );
     }
 
     public String clientId() {
-        return settings.getString(CLIENT_ID);
+        return snapshot().clientId();
     }
 
     public String clientSecret() {
-        return settings.getString(CLIENT_SECRET);
+        return snapshot().clientSecret();
     }
 
     public String redirectUri() {
-        return settings.getString(REDIRECT_URI);
+        return snapshot().redirectUri();
     }
 
     public boolean isEnabled() {
-        return settings.getBoolean(ENABLED) && clientId() != null && clientSecret() != null && redirectUri() != null;
+        return snapshot().isEnabled();
     }
 
     public boolean allowUsersToSignUp() {
-        return settings.getBoolean(ALLOW_USERS_TO_SIGN_UP);
+        return snapshot().allowUsersToSignUp();
+    }
+
+    public HostedDomains hostedDomains() {
+        return snapshot().hostedDomains();
+    }
+
+    public int connectTimeout() {
+        return snapshot().connectTimeout();
+    }
+
+    public int readTimeout() {
+        return snapshot().readTimeout();
+    }
+
+    public int maxConnections() {
+        return snapshot().maxConnections();
+    }
+
+    public String certsUrl() {
+        return snapshot().certsUrl();
+    }
+
+    public String tokenUrl() {
+        return snapshot().tokenUrl();
+    }
+
+    public String authorizationServerUrl() {
+        return snapshot().authorizationServerUrl();
+    }
+
+    /**
+     * Settings as compiled by the last {@link #refresh()}. Callers that need several values
+     * should read them all from the same snapshot. Never blocks: a login keeps the snapshot it
+     * started with until it completes, whatever is published meanwhile.
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot.get();
+        if (current == null) {
+            Snapshot first = new Snapshot(source(settings), providerMetadata.get(), 1L);
+            if (snapshot.compareAndSet(null, first)) {
+                synchronized (listeners) {
+                    if (notified == null) {
+                        notified = first;
+                    }
+                }
+            }
+            current = snapshot.get();
+        }
+        return current;
     }
 
-    @CheckForNull
-    public String hostedDomain() {
-        return settings.getString(HOSTED_DOMAIN);
+    /**
+     * Publishes a new generation of the snapshot if the settings or the provider metadata changed
+     * since the current one was compiled, and returns the snapshot in use. Called when an
+     * administrator changes a property, see {@link GoogleSettingsChangeHandler}.
+     */
+    public Snapshot refresh() {
+        while (true) {
+            Snapshot current = snapshot();
+            ProviderMetadata metadata = providerMetadata.get();
+            Map<String, String> source = source(settings);
+            if (source.equals(current.source) && metadata == current.discovered) {
+                return current;
+            }
+            Snapshot compiled = new Snapshot(source, metadata, current.generation + 1);
+            // a concurrent refresh published first, compare with its generation instead
+            if (snapshot.compareAndSet(current, compiled)) {
+                notifyListeners(current, compiled);
+            }
+        }
+    }
+
+    /**
+     * Recompiles the snapshot with the endpoints of the given discovery document, or with the
+     * built-in defaults if {@code null}. Properties set by administrators take precedence. Called
+     * by {@link ProviderMetadataRegistry}.
+     */
+    public Snapshot useProviderMetadata(@Nullable ProviderMetadata metadata) {
+        providerMetadata.set(metadata);
+        return refresh();
+    }
+
+    /**
+     * Registers a component that keeps state derived from the settings, to rebuild it when a new
+     * generation is published. Listeners are called one generation after the other, in the
+     * thread that published it, and must not block.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private void notifyListeners(Snapshot published, Snapshot compiled) {
+        synchronized (listeners) {
+            Snapshot previous = notified == null ? published : notified;
+            if (previous.generation >= compiled.generation) {
+                // a later generation was already notified
+                return;
+            }
+            notified = compiled;
+            LOG.info("Google authentication settings changed, generation {} is in use", compiled.generation);
+            for (Listener listener : listeners) {
+                try {
+                    listener.settingsChanged(previous, compiled);
+                } catch (RuntimeException e) {
+                    LOG.warn("Fail to apply generation {} of Google authentication settings to {}", compiled.generation, listener, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Raw values of every property the snapshot is compiled from, defaults included. Reading them
+     * once freezes the snapshot against properties changed while it is compiled.
+     */
+    private static Map<String, String> source(Settings settings) {
+        Map<String, String> source = new LinkedHashMap<>();
+        for (String key : SOURCE_KEYS) {
+            String value = settings.getString(key);
+            if (value != null) {
+                source.put(key, value);
+            }
+        }
+        return source;
+    }
+
+    private static List<String> sourceKeys() {
+        List<String> keys = new ArrayList<>();
+        for (PropertyDefinition definition : definitions()) {
+            keys.add(definition.key());
+        }
+        keys.addAll(Arrays.asList(DATA_DIR, LOGS_DIR, JDBC_URL, JDBC_USERNAME, JDBC_PASSWORD));
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Component keeping state derived from the settings: a connection pool, a thread pool, or a
+     * cache whose entries are no longer valid with the new values.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void settingsChanged(Snapshot previous, Snapshot current);
+    }
+
+    /**
+     * Immutable generation of the settings, with everything derived from them compiled once:
+     * matchers, mappings and the authorization URL.
+     */
+    public static final class Snapshot {
+        private final long generation;
+        private final Map<String, String> source;
+        private final ProviderMetadata discovered;
+        private final boolean enabled;
+        private final String clientId;
+        private final String clientSecret;
+        private final String redirectUri;
+        private final boolean allowUsersToSignUp;
+        private final HostedDomains hostedDomains;
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final int maxConnections;
+        private final String certsUrl;
+        private final String tokenUrl;
+        private final String authorizationServerUrl;
+        private final String discoveryUrl;
+        private final ProviderMetadata providerMetadata;
+        private final List<String> issuers;
+        private final boolean groupsSync;
+        private final Map<String, Set<String>> groupsMapping;
+        private final String serviceAccountKeyFile;
+        private final String directoryAdmin;
+        private final String directoryUrl;
+        private final long groupsCacheTtlMs;
+        private final int groupsCacheSize;
+        private final int tokenMaxConcurrency;
+        private final int tokenQueueSize;
+        private final int tokenTimeout;
+        private final int circuitBreakerThreshold;
+        private final long circuitBreakerOpenDurationMs;
+        private final boolean warmUp;
+        private final LoginRules loginRules;
+        private final String loginMappingFile;
+        private final String dataDir;
+        private final boolean auditLog;
+        private final boolean auditLogBlocks;
+        private final int auditLogBufferSize;
+        private final long auditLogMaxFileSize;
+        private final int auditLogMaxFiles;
+        private final String logsDir;
+        private final int rateLimitPerClient;
+        private final int rateLimitPerAccount;
+        private final String rateLimitClientIpHeader;
+        private final int rateLimitMaxKeys;
+        private final int lookupMaxConcurrency;
+        private final int lookupTimeout;
+        private final boolean sharedCache;
+        private final long sharedCachePollIntervalMs;
+        private final String jdbcUrl;
+        private final String jdbcUsername;
+        private final String jdbcPassword;
+        private final String accessType;
+        private final boolean silentLogin;
+        private final long silentLoginMaxAgeMs;
+        private final boolean profileRefresh;
+        private final long profileRefreshIntervalMs;
+        private final int profileRefreshBatchSize;
+        private final int profileRefreshRate;
+        private final boolean deprovisioning;
+        private final long deprovisioningIntervalMs;
+        private final int deprovisioningPageSize;
+        private final int deprovisioningConcurrency;
+        private final String deprovisioningAdminToken;
+        private final String deprovisioningServerUrl;
+        private final String authorizationUrlPrefix;
+        private final String authorizationUrlSuffix;
+
+        private Snapshot(Map<String, String> source, @Nullable ProviderMetadata discovered, long generation) {
+            this.generation = generation;
+            this.source = source;
+            this.discovered = discovered;
+            Settings settings = new FrozenSettings(source);
+            this.clientId = settings.getString(CLIENT_ID);
+            this.clientSecret = settings.getString(CLIENT_SECRET);
+            this.redirectUri = settings.getString(REDIRECT_URI);
+            this.enabled = settings.getBoolean(ENABLED) && clientId != null && clientSecret != null && redirectUri != null;
+            this.allowUsersToSignUp = settings.getBoolean(ALLOW_USERS_TO_SIGN_UP);
+            this.hostedDomains = HostedDomains.compile(settings.getStringArray(HOSTED_DOMAIN), settings.getStringArray(DOMAIN_POLICIES),
+                    allowUsersToSignUp);
+            this.connectTimeout = intValue(settings, CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+            this.readTimeout = intValue(settings, READ_TIMEOUT, DEFAULT_READ_TIMEOUT);
+            this.maxConnections = intValue(settings, MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+            this.discoveryUrl = stringValue(settings, DISCOVERY_URL, DEFAULT_DISCOVERY_URL).trim();
+            // metadata of a discovery URL changed since it was fetched is ignored
+            this.providerMetadata = discovered != null && discovered.discoveryUrl().equals(discoveryUrl) ? discovered : null;
+            this.certsUrl = stringValue(settings, CERTS_URL, providerMetadata == null ? DEFAULT_CERTS_URL : providerMetadata.jwksUri());
+            this.tokenUrl = stringValue(settings, TOKEN_URL, providerMetadata == null ? DEFAULT_TOKEN_URL : providerMetadata.tokenEndpoint());
+            this.authorizationServerUrl = stringValue(settings, AUTHORIZATION_URL,
+                    providerMetadata == null ? DEFAULT_AUTHORIZATION_URL : providerMetadata.authorizationEndpoint());
+            this.issuers = issuers(providerMetadata);
+            this.groupsSync = settings.getBoolean(GROUPS_SYNC);
+            this.groupsMapping = groupsMapping(settings.getStringArray(GROUPS_MAPPING));
+            this.serviceAccountKeyFile = settings.getString(SERVICE_ACCOUNT_KEY_FILE);
+            this.directoryAdmin = settings.getString(DIRECTORY_ADMIN);
+            this.directoryUrl = stringValue(settings, DIRECTORY_URL, DEFAULT_DIRECTORY_URL);
+            this.groupsCacheTtlMs = TimeUnit.SECONDS.toMillis(intValue(settings, GROUPS_CACHE_TTL, DEFAULT_GROUPS_CACHE_TTL));
+            this.groupsCacheSize = intValue(settings, GROUPS_CACHE_SIZE, DEFAULT_GROUPS_CACHE_SIZE);
+            this.tokenMaxConcurrency = intValue(settings, TOKEN_MAX_CONCURRENCY, DEFAULT_TOKEN_MAX_CONCURRENCY);
+            this.tokenQueueSize = intValue(settings, TOKEN_QUEUE_SIZE, DEFAULT_TOKEN_QUEUE_SIZE);
+            this.tokenTimeout = intValue(settings, TOKEN_TIMEOUT, DEFAULT_TOKEN_TIMEOUT);
+            this.circuitBreakerThreshold = intValue(settings, CIRCUIT_BREAKER_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+            this.circuitBreakerOpenDurationMs = TimeUnit.SECONDS.toMillis(intValue(settings, CIRCUIT_BREAKER_OPEN_DURATION, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION));
+            this.warmUp = booleanValue(settings, WARM_UP, true);
+            this.loginRules = LoginRules.compile(settings.getStringArray(LOGIN_RULES));
+            this.loginMappingFile = stringValue(settings, LOGIN_MAPPING_FILE, null);
+            this.dataDir = settings.getString(DATA_DIR);
+            this.auditLog = booleanValue(settings, AUDIT_LOG, true);
+            this.auditLogBlocks = AUDIT_LOG_OVERFLOW_BLOCK.equals(stringValue(settings, AUDIT_LOG_OVERFLOW, AUDIT_LOG_OVERFLOW_DROP).trim());
+            this.auditLogBufferSize = intValue(settings, AUDIT_LOG_BUFFER_SIZE, DEFAULT_AUDIT_LOG_BUFFER_SIZE);
+            this.auditLogMaxFileSize = 1024L * intValue(settings, AUDIT_LOG_MAX_FILE_SIZE, DEFAULT_AUDIT_LOG_MAX_FILE_SIZE);
+            this.auditLogMaxFiles = intValue(settings, AUDIT_LOG_MAX_FILES, DEFAULT_AUDIT_LOG_MAX_FILES);
+            this.logsDir = settings.getString(LOGS_DIR);
+            this.rateLimitPerClient = intValue(settings, RATE_LIMIT_PER_CLIENT, DEFAULT_RATE_LIMIT_PER_CLIENT);
+            this.rateLimitPerAccount = intValue(settings, RATE_LIMIT_PER_ACCOUNT, DEFAULT_RATE_LIMIT_PER_ACCOUNT);
+            String ipHeader = stringValue(settings, RATE_LIMIT_CLIENT_IP_HEADER, null);
+            this.rateLimitClientIpHeader = ipHeader == null || ipHeader.trim().isEmpty() ? null : ipHeader.trim();
+            this.rateLimitMaxKeys = intValue(settings, RATE_LIMIT_MAX_KEYS, DEFAULT_RATE_LIMIT_MAX_KEYS);
+            this.lookupMaxConcurrency = intValue(settings, LOOKUP_MAX_CONCURRENCY, DEFAULT_LOOKUP_MAX_CONCURRENCY);
+            this.lookupTimeout = intValue(settings, LOOKUP_TIMEOUT, DEFAULT_LOOKUP_TIMEOUT);
+            this.sharedCache = booleanValue(settings, SHARED_CACHE, false);
+            this.sharedCachePollIntervalMs = TimeUnit.SECONDS.toMillis(
+                    intValue(settings, SHARED_CACHE_POLL_INTERVAL, DEFAULT_SHARED_CACHE_POLL_INTERVAL));
+            this.jdbcUrl = stringValue(settings, JDBC_URL, null);
+            this.jdbcUsername = stringValue(settings, JDBC_USERNAME, null);
+            this.jdbcPassword = stringValue(settings, JDBC_PASSWORD, null);
+            this.accessType = ACCESS_TYPE_ONLINE.equals(stringValue(settings, ACCESS_TYPE, ACCESS_TYPE_OFFLINE).trim())
+                    ? ACCESS_TYPE_ONLINE : ACCESS_TYPE_OFFLINE;
+            this.silentLogin = booleanValue(settings, SILENT_LOGIN, false);
+            this.silentLoginMaxAgeMs = TimeUnit.HOURS.toMillis(intValue(settings, SILENT_LOGIN_MAX_AGE, DEFAULT_SILENT_LOGIN_MAX_AGE));
+            this.profileRefresh = booleanValue(settings, PROFILE_REFRESH, false);
+            this.profileRefreshIntervalMs = TimeUnit.MINUTES.toMillis(intValue(settings, PROFILE_REFRESH_INTERVAL, DEFAULT_PROFILE_REFRESH_INTERVAL));
+            this.profileRefreshBatchSize = intValue(settings, PROFILE_REFRESH_BATCH_SIZE, DEFAULT_PROFILE_REFRESH_BATCH_SIZE);
+            this.profileRefreshRate = intValue(settings, PROFILE_REFRESH_RATE, DEFAULT_PROFILE_REFRESH_RATE);
+            this.deprovisioning = booleanValue(settings, DEPROVISIONING, false);
+            this.deprovisioningIntervalMs = TimeUnit.MINUTES.toMillis(intValue(settings, DEPROVISIONING_INTERVAL, DEFAULT_DEPROVISIONING_INTERVAL));
+            this.deprovisioningPageSize = intValue(settings, DEPROVISIONING_PAGE_SIZE, DEFAULT_DEPROVISIONING_PAGE_SIZE);
+            this.deprovisioningConcurrency = intValue(settings, DEPROVISIONING_CONCURRENCY, DEFAULT_DEPROVISIONING_CONCURRENCY);
+            this.deprovisioningAdminToken = stringValue(settings, DEPROVISIONING_ADMIN_TOKEN, null);
+            this.deprovisioningServerUrl = deprovisioningServerUrl(settings);
+            if (enabled) {
+                this.authorizationUrlPrefix = new GoogleAuthorizationCodeRequestUrl(authorizationServerUrl, clientId, redirectUri, SCOPES)
+                        .setAccessType(accessType)
+                        .build() + "&state=";
+                String hd = hostedDomains.authorizationHint();
+                this.authorizationUrlSuffix = hd == null ? "" : ("&hd=" + CharEscapers.escapeUriQuery(hd));
+            } else {
+                this.authorizationUrlPrefix = null;
+                this.authorizationUrlSuffix = null;
+            }
+        }
+
+        /**
+         * Number of the generation, incremented each time a change is published.
+         */
+        public long generation() {
+            return generation;
+        }
+
+        public String clientId() {
+            return clientId;
+        }
+
+        public String clientSecret() {
+            return clientSecret;
+        }
+
+        public String redirectUri() {
+            return redirectUri;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public boolean allowUsersToSignUp() {
+            return allowUsersToSignUp;
+        }
+
+        public HostedDomains hostedDomains() {
+            return hostedDomains;
+        }
+
+        public int connectTimeout() {
+            return connectTimeout;
+        }
+
+        public int readTimeout() {
+            return readTimeout;
+        }
+
+        public int maxConnections() {
+            return maxConnections;
+        }
+
+        public String certsUrl() {
+            return certsUrl;
+        }
+
+        public String discoveryUrl() {
+            return discoveryUrl;
+        }
+
+        /**
+         * Metadata of the discovery document currently in use, {@code null} until it is loaded.
+         */
+        @CheckForNull
+        public ProviderMetadata providerMetadata() {
+            return providerMetadata;
+        }
+
+        /**
+         * Accepted issuers of ID tokens: the ones of Google and the one of the discovery document.
+         */
+        public List<String> issuers() {
+            return issuers;
+        }
+
+        public String tokenUrl() {
+            return tokenUrl;
+        }
+
+        public String authorizationServerUrl() {
+            return authorizationServerUrl;
+        }
+
+        public boolean isGroupsSyncEnabled() {
+            return groupsSync;
+        }
+
+        /**
+         * SonarQube groups indexed by the lower-cased email of the Google group they are mapped from.
+         */
+        public Map<String, Set<String>> groupsMapping() {
+            return groupsMapping;
+        }
+
+        @CheckForNull
+        public String serviceAccountKeyFile() {
+            return serviceAccountKeyFile;
+        }
+
+        @CheckForNull
+        public String directoryAdmin() {
+            return directoryAdmin;
+        }
+
+        public String directoryUrl() {
+            return directoryUrl;
+        }
+
+        public long groupsCacheTtlMs() {
+            return groupsCacheTtlMs;
+        }
+
+        public int groupsCacheSize() {
+            return groupsCacheSize;
+        }
+
+        public int tokenMaxConcurrency() {
+            return tokenMaxConcurrency;
+        }
+
+        public int tokenQueueSize() {
+            return tokenQueueSize;
+        }
+
+        public int tokenTimeout() {
+            return tokenTimeout;
+        }
+
+        public int circuitBreakerThreshold() {
+            return circuitBreakerThreshold;
+        }
+
+        public long circuitBreakerOpenDurationMs() {
+            return circuitBreakerOpenDurationMs;
+        }
+
+        public boolean isWarmUpEnabled() {
+            return warmUp;
+        }
+
+        public LoginRules loginRules() {
+            return loginRules;
+        }
+
+        @CheckForNull
+        public String loginMappingFile() {
+            return loginMappingFile;
+        }
+
+        /**
+         * Data directory of the SonarQube server, {@code null} when not run by a server.
+         */
+        @CheckForNull
+        public String dataDir() {
+            return dataDir;
+        }
+
+        public boolean isAuditLogEnabled() {
+            return auditLog;
+        }
+
+        /**
+         * Whether logins wait for room in the audit log buffer rather than dropping their event.
+         */
+        public boolean auditLogBlocks() {
+            return auditLogBlocks;
+        }
+
+        public int auditLogBufferSize() {
+            return auditLogBufferSize;
+        }
+
+        public long auditLogMaxFileSize() {
+            return auditLogMaxFileSize;
+        }
+
+        public int auditLogMaxFiles() {
+            return auditLogMaxFiles;
+        }
+
+        /**
+         * Logs directory of the SonarQube server, {@code null} when not run by a server.
+         */
+        @CheckForNull
+        public String logsDir() {
+            return logsDir;
+        }
+
+        /**
+         * Login attempts allowed per minute and IP address, not limited if not positive.
+         */
+        public int rateLimitPerClient() {
+            return rateLimitPerClient;
+        }
+
+        /**
+         * Logins allowed per minute and account, not limited if not positive.
+         */
+        public int rateLimitPerAccount() {
+            return rateLimitPerAccount;
+        }
+
+        @CheckForNull
+        public String rateLimitClientIpHeader() {
+            return rateLimitClientIpHeader;
+        }
+
+        public int rateLimitMaxKeys() {
+            return rateLimitMaxKeys;
+        }
+
+        public int lookupMaxConcurrency() {
+            return lookupMaxConcurrency;
+        }
+
+        /**
+         * Deadline in milliseconds shared by the lookups of a callback.
+         */
+        public int lookupTimeout() {
+            return lookupTimeout;
+        }
+
+        public boolean isSharedCacheEnabled() {
+            return sharedCache;
+        }
+
+        public long sharedCachePollIntervalMs() {
+            return sharedCachePollIntervalMs;
+        }
+
+        /**
+         * JDBC URL of the SonarQube database, as configured in sonar.properties.
+         */
+        @CheckForNull
+        public String jdbcUrl() {
+            return jdbcUrl;
+        }
+
+        @CheckForNull
+        public String jdbcUsername() {
+            return jdbcUsername;
+        }
+
+        @CheckForNull
+        public String jdbcPassword() {
+            return jdbcPassword;
+        }
+
+        public String accessType() {
+            return accessType;
+        }
+
+        public boolean isSilentLoginEnabled() {
+            return silentLogin;
+        }
+
+        public long silentLoginMaxAgeMs() {
+            return silentLoginMaxAgeMs;
+        }
+
+        public boolean isProfileRefreshEnabled() {
+            return profileRefresh;
+        }
+
+        public long profileRefreshIntervalMs() {
+            return profileRefreshIntervalMs;
+        }
+
+        public int profileRefreshBatchSize() {
+            return profileRefreshBatchSize;
+        }
+
+        /**
+         * Maximum number of users refreshed per second.
+         */
+        public int profileRefreshRate() {
+            return profileRefreshRate;
+        }
+
+        public boolean isDeprovisioningEnabled() {
+            return deprovisioning;
+        }
+
+        public long deprovisioningIntervalMs() {
+            return deprovisioningIntervalMs;
+        }
+
+        public int deprovisioningPageSize() {
+            return deprovisioningPageSize;
+        }
+
+        public int deprovisioningConcurrency() {
+            return deprovisioningConcurrency;
+        }
+
+        @CheckForNull
+        public String deprovisioningAdminToken() {
+            return deprovisioningAdminToken;
+        }
+
+        /**
+         * URL the web services of this server are called on to deactivate users, without trailing
+         * slash, {@code null} when not set or not safe to send the deprovisioning token to.
+         */
+        @CheckForNull
+        public String deprovisioningServerUrl() {
+            return deprovisioningServerUrl;
+        }
+
+        /**
+         * Authorization URL to redirect the user to. Everything but the CSRF state is encoded
+         * once, when the snapshot is compiled.
+         */
+        public String authorizationUrl(String state) {
+            return authorizationUrl(state, null);
+        }
+
+        /**
+         * Authorization URL of a silent login when the account of the user is known: Google
+         * redirects back without prompting, or with an error if the user must interact.
+         */
+        public String authorizationUrl(String state, @Nullable String loginHint) {
+            if (!enabled) {
+                throw new IllegalStateException("Google Authentication is disabled");
+            }
+            String encodedState = CharEscapers.escapeUriQuery(state);
+            StringBuilder url = new StringBuilder(authorizationUrlPrefix.length() + encodedState.length() + authorizationUrlSuffix.length()
+                    + (loginHint == null ? 0 : 64))
+                    .append(authorizationUrlPrefix)
+                    .append(encodedState)
+                    .append(authorizationUrlSuffix);
+            if (loginHint != null) {
+                url.append("&prompt=none&login_hint=").append(CharEscapers.escapeUriQuery(loginHint));
+            }
+            return url.toString();
+        }
+
+        private static Map<String, Set<String>> groupsMapping(String[] values) {
+            Map<String, Set<String>> mapping = new HashMap<>();
+            for (String value : values) {
+                int separator = value.indexOf('=');
+                if (separator <= 0 || separator == value.length() - 1) {
+                    LOG.warn("Ignoring invalid value of {}: '{}'. Expected format is <google group>=<sonarqube group>", GROUPS_MAPPING, value);
+                    continue;
+                }
+                String googleGroup = value.substring(0, separator).trim().toLowerCase(Locale.ENGLISH);
+                String sonarGroup = value.substring(separator + 1).trim();
+                Set<String> sonarGroups = mapping.get(googleGroup);
+                if (sonarGroups == null) {
+                    sonarGroups = new HashSet<>();
+                    mapping.put(googleGroup, sonarGroups);
+                }
+                sonarGroups.add(sonarGroup);
+            }
+            return Collections.unmodifiableMap(mapping);
+        }
+
+        private static List<String> issuers(@Nullable ProviderMetadata metadata) {
+            if (metadata == null || GoogleIdTokenValidator.ISSUERS.contains(metadata.issuer())) {
+                return GoogleIdTokenValidator.ISSUERS;
+            }
+            List<String> issuers = new ArrayList<>(GoogleIdTokenValidator.ISSUERS);
+            issuers.add(metadata.issuer());
+            return Collections.unmodifiableList(issuers);
+        }
+
+        @CheckForNull
+        private static String deprovisioningServerUrl(Settings settings) {
+            String url = stringValue(settings, DEPROVISIONING_SERVER_URL, null);
+            if (url == null) {
+                return null;
+            }
+            url = url.trim();
+            if (!isSafeServerUrl(url)) {
+                LOG.warn("Ignoring invalid value of {}: '{}'. Expected an https URL, or an http URL of a loopback address",
+                        DEPROVISIONING_SERVER_URL, url);
+                return null;
+            }
+            return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        }
+
+        private static boolean isSafeServerUrl(String url) {
+            try {
+                URI uri = new URI(url);
+                String host = uri.getHost();
+                if (host == null) {
+                    return false;
+                }
+                if ("https".equalsIgnoreCase(uri.getScheme())) {
+                    return true;
+                }
+                // literal addresses only, a name could resolve elsewhere
+                return "http".equalsIgnoreCase(uri.getScheme())
+                        && ("localhost".equalsIgnoreCase(host) || LOOPBACK_V4.matcher(host).matches() || "[::1]".equals(host));
+            } catch (URISyntaxException e) {
+                return false;
+            }
+        }
+
+        private static String stringValue(Settings settings, String key, @Nullable String defaultValue) {
+            String value = settings.getString(key);
+            return value == null || value.isEmpty() ? defaultValue : value;
+        }
+
+        private static boolean booleanValue(Settings settings, String key, boolean defaultValue) {
+            String value = settings.getString(key);
+            return value == null || value.isEmpty() ? defaultValue : Boolean.parseBoolean(value.trim());
+        }
+
+        private static int intValue(Settings settings, String key, int defaultValue) {
+            String value = settings.getString(key);
+            if (value == null || value.isEmpty()) {
+                return defaultValue;
+            }
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring invalid value of {}: '{}'. Expected an integer, using {}", key, value, defaultValue);
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * Values read once from the settings of the server, already decrypted.
+     */
+    private static final class FrozenSettings extends Settings {
+        private final Map<String, String> source;
+
+        FrozenSettings(Map<String, String> source) {
+            super(DEFINITIONS);
+            this.source = source;
+        }
+
+        @Override
+        public String getString(String key) {
+            return source.get(key);
+        }
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.config.GlobalPropertyChangeHandler;
+import org.sonar.api.server.ServerSide;
+
+/**
+ * Publishes a new generation of the {@link GoogleSettings} snapshot when an administrator changes
+ * one of the plugin properties, so that no restart is needed. Components keeping derived state
+ * rebuild it as {@link GoogleSettings.Listener listeners}. A new discovery URL is resolved by
+ * {@link ProviderMetadataRegistry}, in the background.
+ */
+@ServerSide
+public class GoogleSettingsChangeHandler extends GlobalPropertyChangeHandler {
+
+    static final String PROPERTY_PREFIX = "sonar.auth.google.";
+
+    private final GoogleSettings settings;
+    private final ProviderMetadataRegistry providerMetadata;
+
+    public GoogleSettingsChangeHandler(GoogleSettings settings, ProviderMetadataRegistry providerMetadata) {
+        this.settings = settings;
+        this.providerMetadata = providerMetadata;
+    }
+
+    @Override
+    public void onChange(PropertyChange change) {
+        if (change.getKey().startsWith(PROPERTY_PREFIX)) {
+            settings.refresh();
+            providerMetadata.settingsChanged();
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.Key;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory cache of the keys Google signs ID tokens with. The key set is kept for the
+ * {@code max-age} announced by the certs endpoint and refreshed in the background before it
+ * expires, so that logins never wait for a fetch. A token signed with an unknown key triggers
+ * a single refetch shared by all concurrent logins.
+ * <p>
+ * The last key set fetched is saved to the data directory of the server and loaded on startup,
+ * so that tokens can be verified right away, even if Google can not be reached yet.
+ * <p>
+ * Keys are trusted for their {@code max-age} plus a grace period of {@link #EXPIRY_GRACE_MS}, which
+ * covers an outage of the certs endpoint. Past that, they are no longer used and ID tokens are
+ * rejected until the key set is refetched, so that a key revoked by Google is not trusted forever.
+ */
+@ServerSide
+public class GoogleSigningKeys implements Startable {
+
+    private static final Logger LOG = Loggers.get(GoogleSigningKeys.class);
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=(\\d+)");
+
+    static final long DEFAULT_MAX_AGE_MS = TimeUnit.HOURS.toMillis(1);
+    static final long MIN_REFETCH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+    static final long RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    static final long EXPIRY_GRACE_MS = TimeUnit.HOURS.toMillis(12);
+    static final String KEYS_FILE = "auth-google/signing-keys.json";
+
+    private final GoogleSettings settings;
+    private final GoogleHttpTransport httpTransport;
+    private final System2 system2;
+    private final AtomicReference<KeySet> keys = new AtomicReference<>(KeySet.EMPTY);
+    private final AtomicReference<FutureTask<KeySet>> inFlight = new AtomicReference<>();
+    private final AtomicReference<ScheduledFuture<?>> nextRefresh = new AtomicReference<>();
+    private volatile Attempt lastAttempt;
+    private ScheduledExecutorService refresher;
+
+    public GoogleSigningKeys(GoogleSettings settings, GoogleHttpTransport httpTransport, ProviderMetadataRegistry providerMetadata) {
+        // provider metadata is only a dependency, so that keys are first fetched from the discovered URL
+        this(settings, httpTransport, System2.INSTANCE);
+    }
+
+    GoogleSigningKeys(GoogleSettings settings, GoogleHttpTransport httpTransport, System2 system2) {
+        this.settings = settings;
+        this.httpTransport = httpTransport;
+        this.system2 = system2;
+    }
+
+    @Override
+    public void start() {
+        load();
+        refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("signing-keys"));
+        scheduleRefresh(0L);
+    }
+
+    @Override
+    public void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the key with the given id, refetching the key set once if it is unknown, missing or expired.
+     * Such refetches are at most one per {@link #MIN_REFETCH_INTERVAL_MS}, otherwise the login does not
+     * wait and the background refresh replaces the keys. Returns {@code null} when no valid key has the id.
+     */
+    @CheckForNull
+    public PublicKey get(String keyId) throws IOException {
+        KeySet current = keys.get();
+        if (!isExpired(current)) {
+            PublicKey key = current.get(keyId);
+            if (key != null) {
+                return key;
+            }
+        }
+        FutureTask<KeySet> task = inFlight.get();
+        KeySet refreshed;
+        if (task != null) {
+            refreshed = await(task);
+        } else if (isThrottled()) {
+            return null;
+        } else {
+            refreshed = refresh();
+        }
+        return isExpired(refreshed) ? null : refreshed.get(keyId);
+    }
+
+    /**
+     * Whether the keys were fetched, or tried to, less than {@link #MIN_REFETCH_INTERVAL_MS} ago. Keys
+     * of a previous URL, for instance before the discovery document was loaded, are refetched right away.
+     */
+    private boolean isThrottled() {
+        Attempt attempt = lastAttempt;
+        return attempt != null && settings.certsUrl().equals(attempt.url) && system2.now() - attempt.at < MIN_REFETCH_INTERVAL_MS;
+    }
+
+    KeySet refresh() throws IOException {
+        while (true) {
+            FutureTask<KeySet> task = inFlight.get();
+            if (task == null) {
+                FutureTask<KeySet> fetch = new FutureTask<>(this::fetch);
+                if (!inFlight.compareAndSet(null, fetch)) {
+                    continue;
+                }
+                try {
+                    fetch.run();
+                } finally {
+                    inFlight.set(null);
+                }
+                task = fetch;
+            }
+            return await(task);
+        }
+    }
+
+    private static KeySet await(FutureTask<KeySet> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching Google signing keys", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Fail to fetch Google signing keys", cause);
+        }
+    }
+
+    private KeySet fetch() throws IOException {
+        String url = settings.certsUrl();
+        lastAttempt = new Attempt(url, system2.now());
+        HttpResponse response = httpTransport.transport().createRequestFactory(httpTransport)
+                .buildGetRequest(new GenericUrl(url))
+                .execute();
+        long maxAge = maxAge(response.getHeaders().getCacheControl());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            IOUtils.copy(response.getContent(), content);
+        } finally {
+            response.disconnect();
+        }
+        long now = system2.now();
+        KeySet fetched = new KeySet(toPublicKeys(parse(content.toByteArray())), now + maxAge + EXPIRY_GRACE_MS);
+        if (fetched.isEmpty()) {
+            // keep the current keys, the background refresh retries
+            throw new IOException("No Google signing key in the response of " + url);
+        }
+        keys.set(fetched);
+        scheduleRefresh(refreshDelay(maxAge));
+        save(content.toByteArray());
+        return fetched;
+    }
+
+    /**
+     * Loads the key set saved by a previous run, unless keys were fetched already. The loaded keys
+     * are considered stale, so that an unknown key id still triggers a refetch immediately. As the
+     * max-age they were served with is not saved, they expire {@link #DEFAULT_MAX_AGE_MS} plus the
+     * grace period after the file was written.
+     */
+    private void load() {
+        File file = keysFile();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        try {
+            Map<String, PublicKey> saved = toPublicKeys(parse(Files.readAllBytes(file.toPath())));
+            long savedAt = file.lastModified();
+            KeySet loaded = new KeySet(saved, savedAt + DEFAULT_MAX_AGE_MS + EXPIRY_GRACE_MS);
+            if (!saved.isEmpty() && !isExpired(loaded) && keys.compareAndSet(KeySet.EMPTY, loaded)) {
+                LOG.info("Loaded {} Google signing keys from {}", saved.size(), file);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring Google signing keys saved in {}", file, e);
+        }
+    }
+
+    private void save(byte[] jwks) {
+        File file = keysFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            Path dir = Files.createDirectories(file.getParentFile().toPath());
+            Path tmp = Files.createTempFile(dir, "signing-keys", ".tmp");
+            try {
+                Files.write(tmp, jwks);
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            LOG.warn("Fail to save Google signing keys to {}", file, e);
+        }
+    }
+
+    @CheckForNull
+    private File keysFile() {
+        String dataDir = settings.snapshot().dataDir();
+        return dataDir == null ? null : new File(dataDir, KEYS_FILE);
+    }
+
+    private JsonWebKeySet parse(byte[] jwks) throws IOException {
+        return httpTransport.jsonFactory().fromInputStream(new ByteArrayInputStream(jwks), StandardCharsets.UTF_8, JsonWebKeySet.class);
+    }
+
+    private void backgroundRefresh() {
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            if (!isExpired(keys.get())) {
+                LOG.warn("Fail to refresh Google signing keys from {}, keeping the current ones", settings.certsUrl(), e);
+            }
+            scheduleRefresh(RETRY_DELAY_MS);
+        }
+    }
+
+    /**
+     * Whether the keys are past their max-age and grace period. Logs an error the first time, as no
+     * ID token can be verified until the keys are refetched.
+     */
+    private boolean isExpired(KeySet keySet) {
+        if (keySet.isEmpty() || system2.now() < keySet.expiresAt) {
+            return false;
+        }
+        if (keySet.expiryReported.compareAndSet(false, true)) {
+            LOG.error("Google signing keys expired at {}, ID tokens are rejected until they are refetched from {}",
+                    new Date(keySet.expiresAt), settings.certsUrl());
+        }
+        return true;
+    }
+
+    private void scheduleRefresh(long delayMs) {
+        ScheduledExecutorService executor = refresher;
+        if (executor != null && !executor.isShutdown()) {
+            ScheduledFuture<?> previous = nextRefresh.getAndSet(executor.schedule(this::backgroundRefresh, delayMs, TimeUnit.MILLISECONDS));
+            if (previous != null) {
+                previous.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Refresh once 80% of the max-age has elapsed, leaving room for a retry before the keys expire.
+     */
+    static long refreshDelay(long maxAgeMs) {
+        return Math.max(MIN_REFETCH_INTERVAL_MS, maxAgeMs - maxAgeMs / 5);
+    }
+
+    static long maxAge(@CheckForNull String cacheControl) {
+        if (cacheControl != null) {
+            Matcher matcher = MAX_AGE.matcher(cacheControl);
+            if (matcher.find()) {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1)));
+            }
+        }
+        return DEFAULT_MAX_AGE_MS;
+    }
+
+    private static Map<String, PublicKey> toPublicKeys(JsonWebKeySet jwks) throws IOException {
+        Map<String, PublicKey> result = new HashMap<>();
+        if (jwks.keys == null) {
+            return result;
+        }
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            for (JsonWebKey jwk : jwks.keys) {
+                if ("RSA".equals(jwk.kty) && jwk.kid != null) {
+                    BigInteger modulus = new BigInteger(1, Base64.getUrlDecoder().decode(jwk.n));
+                    BigInteger exponent = new BigInteger(1, Base64.getUrlDecoder().decode(jwk.e));
+                    result.put(jwk.kid, keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+                }
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Invalid Google signing key", e);
+        }
+        return result;
+    }
+
+    private static final class Attempt {
+        private final String url;
+        private final long at;
+
+        private Attempt(String url, long at) {
+            this.url = url;
+            this.at = at;
+        }
+    }
+
+    static final class KeySet {
+        static final KeySet EMPTY = new KeySet(Collections.<String, PublicKey>emptyMap(), 0L);
+
+        private final Map<String, PublicKey> keysById;
+        private final long expiresAt;
+        private final AtomicBoolean expiryReported = new AtomicBoolean();
+
+        KeySet(Map<String, PublicKey> keysById, long expiresAt) {
+            this.keysById = keysById;
+            this.expiresAt = expiresAt;
+        }
+
+        @CheckForNull
+        PublicKey get(String keyId) {
+            return keysById.get(keyId);
+        }
+
+        boolean isEmpty() {
+            return keysById.isEmpty();
+        }
+    }
+
+    public static class JsonWebKeySet extends GenericJson {
+        @Key
+        public List<JsonWebKey> keys;
+    }
+
+    public static class JsonWebKey extends GenericJson {
+        @Key
+        public String kid;
+        @Key
+        public String kty;
+        @Key
+        public String n;
+        @Key
+        public String e;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeTokenRequest;
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exchanges authorization codes against tokens on a dedicated, bounded pool of threads, so that
+ * a slow token endpoint can not hold every web server thread. Each exchange has a deadline, which
+ * also bounds the connect and read timeouts of its request: blocking socket IO does not react to
+ * interruption, so a cancelled exchange would otherwise hold its thread until the read timeout. A
+ * circuit breaker makes logins fail immediately while the endpoint keeps failing. A code
+ * submitted again, by a replayed callback, is not sent to Google twice: the duplicate waits for
+ * the first exchange and shares its tokens, or is rejected once the code has been redeemed.
+ */
+@ServerSide
+public class GoogleTokenExchange implements Startable {
+
+    private static final Logger LOG = Loggers.get(GoogleTokenExchange.class);
+
+    // codes expire after 10 minutes on Google side
+    static final long REDEEMED_CODES_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+    static final int REDEEMED_CODES_MAX_SIZE = 10_000;
+
+    private final GoogleSettings settings;
+    private final GoogleHttpTransport httpTransport;
+    private final CircuitBreaker circuitBreaker;
+    private volatile ThreadPoolExecutor executor;
+    private final RedeemedCodes<GoogleTokenResponse> redeemedCodes;
+
+    public GoogleTokenExchange(GoogleSettings settings, GoogleHttpTransport httpTransport) {
+        this(settings, httpTransport, System2.INSTANCE);
+    }
+
+    GoogleTokenExchange(GoogleSettings settings, GoogleHttpTransport httpTransport, System2 system2) {
+        this.settings = settings;
+        this.httpTransport = httpTransport;
+        this.circuitBreaker = new CircuitBreaker(system2);
+        this.executor = newExecutor(settings.snapshot());
+        this.redeemedCodes = new RedeemedCodes<>(system2, REDEEMED_CODES_TTL_MS, REDEEMED_CODES_MAX_SIZE);
+        settings.addListener(this::settingsChanged);
+    }
+
+    private static ThreadPoolExecutor newExecutor(GoogleSettings.Snapshot snapshot) {
+        int queueSize = snapshot.tokenQueueSize();
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(snapshot.tokenMaxConcurrency(), snapshot.tokenMaxConcurrency(), 60L,
+                TimeUnit.SECONDS, queue, new NamedThreadFactory("token-exchange"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void settingsChanged(GoogleSettings.Snapshot previous, GoogleSettings.Snapshot current) {
+        if (previous.tokenMaxConcurrency() == current.tokenMaxConcurrency() && previous.tokenQueueSize() == current.tokenQueueSize()) {
+            return;
+        }
+        ThreadPoolExecutor replaced = executor;
+        executor = newExecutor(current);
+        // exchanges running or queued on the replaced pool complete
+        replaced.shutdown();
+    }
+
+    @Override
+    public void start() {
+        // threads are created on demand
+    }
+
+    @Override
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public GoogleTokenResponse exchange(GoogleSettings.Snapshot snapshot, String code) {
+        RedeemedCodes<GoogleTokenResponse>.Redemption redemption = redeemedCodes.redeem(code);
+        if (!redemption.isFirst()) {
+            return awaitEarlierRedemption(snapshot, redemption);
+        }
+        try {
+            GoogleTokenResponse tokenResponse = doExchange(snapshot, code);
+            redemption.succeed(tokenResponse);
+            return tokenResponse;
+        } catch (RuntimeException e) {
+            // a code refused by Google is consumed, other failures leave it to a retry
+            redemption.fail(e, isClientError(e.getCause()));
+            throw e;
+        }
+    }
+
+    CircuitBreaker.State circuitState() {
+        return circuitBreaker.state();
+    }
+
+    int redeemedCodes() {
+        return redeemedCodes.size();
+    }
+
+    private static GoogleTokenResponse awaitEarlierRedemption(GoogleSettings.Snapshot snapshot,
+                                                              RedeemedCodes<GoogleTokenResponse>.Redemption earlier) {
+        CompletableFuture<GoogleTokenResponse> result = earlier.result();
+        if (result == null) {
+            throw new UnauthorizedException("This sign-in has already been completed, please sign in again");
+        }
+        try {
+            return result.get(snapshot.tokenTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new UnauthorizedException("Google did not respond in time, please retry in a few seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Authorization Token Fail", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Authorization Token Fail", cause);
+        }
+    }
+
+    private Future<GoogleTokenResponse> submit(Callable<GoogleTokenResponse> task) {
+        ThreadPoolExecutor current = executor;
+        try {
+            return current.submit(task);
+        } catch (RejectedExecutionException e) {
+            ThreadPoolExecutor replacement = executor;
+            if (replacement == current) {
+                throw e;
+            }
+            // the pool has just been replaced by a change of settings
+            return replacement.submit(task);
+        }
+    }
+
+    private GoogleTokenResponse doExchange(GoogleSettings.Snapshot snapshot, String code) {
+        if (!circuitBreaker.tryAcquire(snapshot.circuitBreakerOpenDurationMs())) {
+            throw new UnauthorizedException("Google is not responding, please retry in a few seconds");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(snapshot.tokenTimeout());
+        Future<GoogleTokenResponse> response;
+        try {
+            response = submit(() -> request(snapshot, code, deadline).execute());
+        } catch (RejectedExecutionException e) {
+            circuitBreaker.release();
+            throw new UnauthorizedException("Too many users are logging in, please retry in a few seconds");
+        }
+        try {
+            GoogleTokenResponse tokenResponse = response.get(snapshot.tokenTimeout(), TimeUnit.MILLISECONDS);
+            circuitBreaker.onSuccess();
+            return tokenResponse;
+        } catch (TimeoutException e) {
+            // the request itself gives up once its timeouts, capped by the deadline, elapse
+            response.cancel(true);
+            onFailure(snapshot, e);
+            throw new UnauthorizedException("Google did not respond in time, please retry in a few seconds");
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            circuitBreaker.release();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Authorization Token Fail", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (isClientError(cause)) {
+                // the endpoint is healthy, the code is not
+                circuitBreaker.onSuccess();
+            } else {
+                onFailure(snapshot, cause);
+            }
+            throw new IllegalStateException("Authorization Token Fail", cause);
+        }
+    }
+
+    private GoogleAuthorizationCodeTokenRequest request(GoogleSettings.Snapshot snapshot, String code, long deadline) {
+        return new GoogleAuthorizationCodeTokenRequest(httpTransport.transport(), httpTransport.jsonFactory(),
+                snapshot.clientId(), snapshot.clientSecret(), code, snapshot.redirectUri())
+                .setTokenServerUrl(new GenericUrl(snapshot.tokenUrl()))
+                .setRequestInitializer(request -> withinDeadline(request, deadline));
+    }
+
+    private void withinDeadline(HttpRequest request, long deadline) throws IOException {
+        httpTransport.initialize(request);
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            // spent in the queue, the login has already given up
+            throw new SocketTimeoutException("Token request deadline exceeded before it was sent");
+        }
+        request.setConnectTimeout((int) Math.min(request.getConnectTimeout(), remaining));
+        request.setReadTimeout((int) Math.min(request.getReadTimeout(), remaining));
+    }
+
+    private void onFailure(GoogleSettings.Snapshot snapshot, Throwable cause) {
+        CircuitBreaker.State before = circuitBreaker.state();
+        circuitBreaker.onFailure(snapshot.circuitBreakerThreshold());
+        if (before != CircuitBreaker.State.OPEN && circuitBreaker.state() == CircuitBreaker.State.OPEN) {
+            LOG.warn("Google token endpoint {} is failing, logins are rejected for {} ms", snapshot.tokenUrl(),
+                    snapshot.circuitBreakerOpenDurationMs(), cause);
+        }
+    }
+
+    private static boolean isClientError(@Nullable Throwable cause) {
+        return cause instanceof TokenResponseException && ((TokenResponseException) cause).getStatusCode() < 500;
+    }
+}
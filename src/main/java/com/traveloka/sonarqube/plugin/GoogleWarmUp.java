@@ -0,0 +1,183 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pays on server startup, in the background, what the first login would pay otherwise: loading
+ * the classes of the Google client and Jackson, resolving the Google hosts and opening pooled
+ * connections to them. Signing keys are loaded and fetched by {@link GoogleSigningKeys} itself,
+ * which is started before this component.
+ */
+@ServerSide
+public class GoogleWarmUp implements Startable {
+
+    private static final Logger LOG = Loggers.get(GoogleWarmUp.class);
+
+    private static final String SAMPLE_EMAIL = "warm-up@example.com";
+    private static final String SAMPLE_TOKEN_RESPONSE = "{\"access_token\":\"warm-up\",\"token_type\":\"Bearer\",\"expires_in\":3600,"
+            + "\"id_token\":\"warm-up\"}";
+    private static final String SAMPLE_ID_TOKEN = base64Url("{\"alg\":\"RS256\",\"kid\":\"warm-up\"}") + "."
+            + base64Url("{\"iss\":\"accounts.google.com\",\"aud\":\"warm-up\",\"email\":\"" + SAMPLE_EMAIL + "\","
+            + "\"email_verified\":true,\"hd\":\"example.com\",\"exp\":0,\"iat\":0}") + "."
+            + base64Url("warm-up");
+
+    private static final HostedDomains.Policy SAMPLE_POLICY = new HostedDomains.Policy("example.com", false,
+            Collections.<String>emptySet(), HostedDomains.LoginRule.LOCAL_PART);
+
+    private final GoogleSettings settings;
+    private final GoogleHttpTransport httpTransport;
+    private ExecutorService executor;
+
+    public GoogleWarmUp(GoogleSettings settings, GoogleHttpTransport httpTransport, GoogleSigningKeys signingKeys) {
+        // signing keys are only a dependency, so that they are started first
+        this.settings = settings;
+        this.httpTransport = httpTransport;
+    }
+
+    @Override
+    public void start() {
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        if (!snapshot.isEnabled() || !snapshot.isWarmUpEnabled()) {
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("warm-up"));
+        executor.execute(() -> warmUp(snapshot));
+        executor.shutdown();
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    void warmUp(GoogleSettings.Snapshot snapshot) {
+        long start = System.nanoTime();
+        loadClasses(snapshot);
+        Set<String> origins = origins(snapshot);
+        for (String origin : origins) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            resolve(origin);
+        }
+        for (String origin : origins) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            connect(origin);
+        }
+        LOG.info("Google authentication warmed up in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Runs, on sample data, the code of a login that does not depend on Google answering.
+     */
+    private void loadClasses(GoogleSettings.Snapshot snapshot) {
+        try {
+            snapshot.authorizationUrl("warm-up");
+            httpTransport.jsonFactory().fromString(SAMPLE_TOKEN_RESPONSE, GoogleTokenResponse.class);
+            IdTokenClaims idToken = new IdTokenReader(httpTransport.jsonFactory()).read(SAMPLE_ID_TOKEN);
+            GoogleIdentityProvider.checkMembership(idToken, snapshot.hostedDomains());
+            String login = snapshot.loginRules().login(SAMPLE_EMAIL);
+            GoogleIdentityProvider.userIdentity(SAMPLE_EMAIL, login != null ? login : SAMPLE_POLICY.login(SAMPLE_EMAIL)).build();
+            RedeemedCodes.hash("warm-up");
+            KeyFactory.getInstance("RSA");
+            Signature.getInstance("SHA256withRSA");
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            LOG.warn("Fail to load Google authentication classes", e);
+        }
+    }
+
+    private static void resolve(String origin) {
+        String host = URI.create(origin).getHost();
+        try {
+            InetAddress.getAllByName(host);
+        } catch (IOException e) {
+            LOG.warn("Fail to resolve {}", host, e);
+        }
+    }
+
+    /**
+     * Sends a HEAD request to the origin, whatever it answers the connection stays in the pool.
+     */
+    private void connect(String origin) {
+        HttpRequestFactory requestFactory = httpTransport.transport().createRequestFactory(httpTransport);
+        try {
+            requestFactory.buildHeadRequest(new GenericUrl(origin))
+                    .setThrowExceptionOnExecuteError(false)
+                    .execute()
+                    .ignore();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Fail to connect to {}", origin, e);
+        }
+    }
+
+    /**
+     * Origins the server calls on logins. The authorization endpoint is called by browsers only.
+     */
+    static Set<String> origins(GoogleSettings.Snapshot snapshot) {
+        Set<String> origins = new LinkedHashSet<>();
+        addOrigin(origins, snapshot.tokenUrl());
+        addOrigin(origins, snapshot.certsUrl());
+        if (snapshot.isGroupsSyncEnabled()) {
+            addOrigin(origins, snapshot.directoryUrl());
+        }
+        return origins;
+    }
+
+    private static void addOrigin(Set<String> origins, String url) {
+        try {
+            URL parsed = new URL(url);
+            origins.add(parsed.getProtocol() + "://" + parsed.getHost() + (parsed.getPort() == -1 ? "" : (":" + parsed.getPort())) + "/");
+        } catch (IOException e) {
+            LOG.warn("Ignoring invalid URL {}", url, e);
+        }
+    }
+
+    private static String base64Url(String json) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
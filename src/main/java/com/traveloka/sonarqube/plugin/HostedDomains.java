@@ -0,0 +1,233 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Google Workspace domains whose users may log in, each with its own {@link Policy}. Compiled
+ * once per settings snapshot into a hash map, so that checking the domain of a user does not
+ * depend on the number of domains.
+ */
+public final class HostedDomains {
+
+    private static final Logger LOG = Loggers.get(HostedDomains.class);
+
+    static final String POLICY_FORMAT = "<domain>:<option>=<value>;<option>=<value>";
+
+    private final Map<String, Policy> policies;
+    private final boolean anyAllowsSignUp;
+
+    private HostedDomains(Map<String, Policy> policies, boolean anyAllowsSignUp) {
+        this.policies = policies;
+        this.anyAllowsSignUp = anyAllowsSignUp;
+    }
+
+    /**
+     * @param domains        values of {@link GoogleSettings#HOSTED_DOMAIN}
+     * @param policyValues   values of {@link GoogleSettings#DOMAIN_POLICIES}
+     * @param allowsSignUp   value of {@link GoogleSettings#ALLOW_USERS_TO_SIGN_UP}, the default of each domain
+     */
+    static HostedDomains compile(String[] domains, String[] policyValues, boolean allowsSignUp) {
+        Map<String, Policy> policies = new HashMap<>();
+        for (String domain : domains) {
+            String normalized = normalize(domain);
+            if (!normalized.isEmpty()) {
+                policies.put(normalized, new Policy(normalized, allowsSignUp, Collections.<String>emptySet(), LoginRule.LOCAL_PART));
+            }
+        }
+        for (String value : policyValues) {
+            Policy policy = parsePolicy(value, policies);
+            if (policy != null) {
+                policies.put(policy.domain, policy);
+            }
+        }
+        boolean anyAllowsSignUp = policies.isEmpty() && allowsSignUp;
+        for (Policy policy : policies.values()) {
+            anyAllowsSignUp |= policy.allowsSignUp;
+        }
+        return new HostedDomains(Collections.unmodifiableMap(policies), anyAllowsSignUp);
+    }
+
+    /**
+     * Policy of the given domain, or {@code null} if its users may not log in.
+     */
+    @CheckForNull
+    public Policy policy(@Nullable String hostedDomain) {
+        if (hostedDomain == null) {
+            return null;
+        }
+        Policy policy = policies.get(hostedDomain);
+        // Google sends domains in lower case, others are normalized on the slow path only
+        return policy != null ? policy : policies.get(normalize(hostedDomain));
+    }
+
+    public Set<String> domains() {
+        return policies.keySet();
+    }
+
+    /**
+     * Whether the users of at least one domain may sign up. Other domains are checked on callback.
+     */
+    public boolean anyAllowsSignUp() {
+        return anyAllowsSignUp;
+    }
+
+    /**
+     * Value of the {@code hd} parameter of the authorization request: the domain when there is a
+     * single one, otherwise {@code *} to restrict the account chooser to Workspace accounts.
+     */
+    @CheckForNull
+    String authorizationHint() {
+        if (policies.isEmpty()) {
+            return null;
+        }
+        return policies.size() == 1 ? policies.keySet().iterator().next() : "*";
+    }
+
+    @CheckForNull
+    private static Policy parsePolicy(String value, Map<String, Policy> policies) {
+        int separator = value.indexOf(':');
+        Policy defaults = separator <= 0 ? null : policies.get(normalize(value.substring(0, separator)));
+        if (defaults == null) {
+            LOG.warn("Ignoring invalid value of {}: '{}'. Expected format is {} with <domain> one of {}", GoogleSettings.DOMAIN_POLICIES,
+                    value, POLICY_FORMAT, GoogleSettings.HOSTED_DOMAIN);
+            return null;
+        }
+        boolean allowsSignUp = defaults.allowsSignUp;
+        Set<String> defaultGroups = defaults.defaultGroups;
+        LoginRule loginRule = defaults.loginRule;
+        for (String option : value.substring(separator + 1).split(";")) {
+            int equals = option.indexOf('=');
+            String name = equals < 0 ? option.trim() : option.substring(0, equals).trim();
+            String optionValue = equals < 0 ? "" : option.substring(equals + 1).trim();
+            if ("signUp".equals(name) && ("true".equals(optionValue) || "false".equals(optionValue))) {
+                allowsSignUp = Boolean.parseBoolean(optionValue);
+            } else if ("groups".equals(name)) {
+                defaultGroups = groups(optionValue);
+            } else if ("login".equals(name) && LoginRule.of(optionValue) != null) {
+                loginRule = LoginRule.of(optionValue);
+            } else if (!name.isEmpty()) {
+                LOG.warn("Ignoring invalid option '{}' of {}: '{}'. Options are signUp=true|false, groups=<group>|<group>, login={}",
+                        option.trim(), GoogleSettings.DOMAIN_POLICIES, value, LoginRule.names());
+            }
+        }
+        return new Policy(defaults.domain, allowsSignUp, defaultGroups, loginRule);
+    }
+
+    private static Set<String> groups(String value) {
+        Set<String> groups = new LinkedHashSet<>();
+        for (String group : value.split("\\|")) {
+            if (!group.trim().isEmpty()) {
+                groups.add(group.trim());
+            }
+        }
+        return Collections.unmodifiableSet(groups);
+    }
+
+    private static String normalize(String domain) {
+        return domain.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * How the SonarQube login of a user is derived from their email.
+     */
+    public enum LoginRule {
+        /** {@code john} for {@code john@example.com} */
+        LOCAL_PART("local"),
+        /** {@code john@example.com} */
+        EMAIL("email");
+
+        private final String key;
+
+        LoginRule(String key) {
+            this.key = key;
+        }
+
+        public String login(String email) {
+            return this == EMAIL ? email : email.substring(0, email.indexOf('@'));
+        }
+
+        @CheckForNull
+        static LoginRule of(String key) {
+            for (LoginRule rule : values()) {
+                if (rule.key.equals(key)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
+
+        static String names() {
+            StringBuilder names = new StringBuilder();
+            for (LoginRule rule : values()) {
+                names.append(names.length() == 0 ? "" : "|").append(rule.key);
+            }
+            return names.toString();
+        }
+    }
+
+    public static final class Policy {
+        private final String domain;
+        private final boolean allowsSignUp;
+        private final Set<String> defaultGroups;
+        private final LoginRule loginRule;
+
+        Policy(String domain, boolean allowsSignUp, Set<String> defaultGroups, LoginRule loginRule) {
+            this.domain = domain;
+            this.allowsSignUp = allowsSignUp;
+            this.defaultGroups = defaultGroups;
+            this.loginRule = loginRule;
+        }
+
+        public String domain() {
+            return domain;
+        }
+
+        public boolean allowsSignUp() {
+            return allowsSignUp;
+        }
+
+        /**
+         * SonarQube groups the users of the domain are members of, on top of the synchronized ones.
+         */
+        public Set<String> defaultGroups() {
+            return defaultGroups;
+        }
+
+        public LoginRule loginRule() {
+            return loginRule;
+        }
+
+        public String login(String email) {
+            return loginRule.login(email);
+        }
+    }
+}
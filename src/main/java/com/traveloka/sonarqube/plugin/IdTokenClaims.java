@@ -0,0 +1,156 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+
+import javax.annotation.CheckForNull;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The claims of an ID token the plugin relies on, as read by {@link IdTokenReader}. The checks
+ * behave as the ones of {@link GoogleIdToken} they replace.
+ */
+public final class IdTokenClaims {
+
+    private final String algorithm;
+    private final String keyId;
+    private final String issuer;
+    private final List<String> audience;
+    private final Long expirationTimeSeconds;
+    private final Long issuedAtTimeSeconds;
+    private final String subject;
+    private final String email;
+    private final Boolean emailVerified;
+    private final String hostedDomain;
+    // signature material: either the raw token, verified by IdTokenReader, or the token parsed by the client library
+    private final String token;
+    private final int signedLength;
+    private final GoogleIdToken parsed;
+
+    IdTokenClaims(String algorithm, @CheckForNull String keyId, @CheckForNull String issuer, List<String> audience,
+                  @CheckForNull Long expirationTimeSeconds, @CheckForNull Long issuedAtTimeSeconds, @CheckForNull String subject,
+                  @CheckForNull String email, @CheckForNull Boolean emailVerified, @CheckForNull String hostedDomain,
+                  @CheckForNull String token, int signedLength, @CheckForNull GoogleIdToken parsed) {
+        this.algorithm = algorithm;
+        this.keyId = keyId;
+        this.issuer = issuer;
+        this.audience = audience;
+        this.expirationTimeSeconds = expirationTimeSeconds;
+        this.issuedAtTimeSeconds = issuedAtTimeSeconds;
+        this.subject = subject;
+        this.email = email;
+        this.emailVerified = emailVerified;
+        this.hostedDomain = hostedDomain;
+        this.token = token;
+        this.signedLength = signedLength;
+        this.parsed = parsed;
+    }
+
+    static IdTokenClaims of(GoogleIdToken idToken) {
+        GoogleIdToken.Payload payload = idToken.getPayload();
+        return new IdTokenClaims(idToken.getHeader().getAlgorithm(), idToken.getHeader().getKeyId(), payload.getIssuer(),
+                payload.getAudienceAsList(), payload.getExpirationTimeSeconds(), payload.getIssuedAtTimeSeconds(), payload.getSubject(),
+                payload.getEmail(), payload.getEmailVerified(), payload.getHostedDomain(), null, 0, idToken);
+    }
+
+    public String algorithm() {
+        return algorithm;
+    }
+
+    @CheckForNull
+    public String keyId() {
+        return keyId;
+    }
+
+    @CheckForNull
+    public String issuer() {
+        return issuer;
+    }
+
+    public List<String> audience() {
+        return audience;
+    }
+
+    @CheckForNull
+    public Long expirationTimeSeconds() {
+        return expirationTimeSeconds;
+    }
+
+    @CheckForNull
+    public Long issuedAtTimeSeconds() {
+        return issuedAtTimeSeconds;
+    }
+
+    @CheckForNull
+    public String subject() {
+        return subject;
+    }
+
+    @CheckForNull
+    public String email() {
+        return email;
+    }
+
+    @CheckForNull
+    public Boolean emailVerified() {
+        return emailVerified;
+    }
+
+    @CheckForNull
+    public String hostedDomain() {
+        return hostedDomain;
+    }
+
+    public boolean verifyIssuer(Collection<String> issuers) {
+        return issuers.contains(issuer);
+    }
+
+    public boolean verifyAudience(Collection<String> trustedClientIds) {
+        return !audience.isEmpty() && trustedClientIds.containsAll(audience);
+    }
+
+    /**
+     * Whether the token is valid at the given time. A token without expiration or issue time
+     * is never valid.
+     */
+    public boolean verifyTime(long currentTimeMillis, long acceptableTimeSkewSeconds) {
+        return expirationTimeSeconds != null && issuedAtTimeSeconds != null
+                && currentTimeMillis <= (expirationTimeSeconds + acceptableTimeSkewSeconds) * 1000
+                && currentTimeMillis >= (issuedAtTimeSeconds - acceptableTimeSkewSeconds) * 1000;
+    }
+
+    public boolean verifySignature(PublicKey publicKey) throws GeneralSecurityException {
+        if (parsed != null) {
+            return parsed.verifySignature(publicKey);
+        }
+        return "RS256".equals(algorithm) && IdTokenReader.verifyRs256(token, signedLength, publicKey);
+    }
+
+    @Override
+    public String toString() {
+        return "IdTokenClaims{alg=" + algorithm + ", kid=" + keyId + ", iss=" + issuer + ", aud=" + audience
+                + ", exp=" + expirationTimeSeconds + ", iat=" + issuedAtTimeSeconds + ", sub=" + subject + ", email=" + email
+                + ", email_verified=" + emailVerified + ", hd=" + hostedDomain + "}";
+    }
+}
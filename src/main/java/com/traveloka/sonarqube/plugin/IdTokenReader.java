@@ -0,0 +1,751 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.ClassInfo;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the claims of an ID token without building the {@code GenericJson} object graph of
+ * {@link GoogleIdToken#parse}. The Base64URL segments are decoded into buffers reused by each
+ * thread, and the JSON is scanned once, keeping only the claims of {@link IdTokenClaims}.
+ * <p>
+ * Tokens are read this way only when the result is certain to be the one of
+ * {@link GoogleIdToken#parse}: strict Base64URL, strict JSON, and claims declared by the client
+ * library having the type it expects. Anything else is left to {@link GoogleIdToken#parse}, so that
+ * unusual and malformed tokens are accepted or rejected exactly as before.
+ */
+final class IdTokenReader {
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_DEPTH = 32;
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        Arrays.fill(BASE64URL, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    // claims kept, by slot of the cursor
+    private static final int ALG = 0;
+    private static final int KID = 1;
+    private static final int ISS = 2;
+    private static final int AUD = 3;
+    private static final int EXP = 4;
+    private static final int IAT = 5;
+    private static final int SUB = 6;
+    private static final int EMAIL = 7;
+    private static final int EMAIL_VERIFIED = 8;
+    private static final int HD = 9;
+
+    private static final Keys HEADER_KEYS = new Keys(JsonWebSignature.Header.class, "alg", ALG, "kid", KID);
+    private static final Keys PAYLOAD_KEYS = new Keys(GoogleIdToken.Payload.class, "iss", ISS, "aud", AUD, "exp", EXP, "iat", IAT,
+            "sub", SUB, "email", EMAIL, "email_verified", EMAIL_VERIFIED, "hd", HD);
+
+    private static final ThreadLocal<Cursor> CURSORS = ThreadLocal.withInitial(Cursor::new);
+
+    private final JsonFactory jsonFactory;
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    IdTokenReader(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    IdTokenClaims read(String idToken) throws IOException {
+        IdTokenClaims claims = CURSORS.get().read(idToken);
+        if (claims != null) {
+            return claims;
+        }
+        fallbacks.incrementAndGet();
+        return IdTokenClaims.of(GoogleIdToken.parse(jsonFactory, idToken));
+    }
+
+    /**
+     * Number of tokens read by {@link GoogleIdToken#parse}.
+     */
+    long fallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * Verifies the RS256 signature of a token accepted by {@link Cursor#read(String)}.
+     */
+    static boolean verifyRs256(String token, int signedLength, PublicKey publicKey) throws GeneralSecurityException {
+        Cursor cursor = CURSORS.get();
+        byte[] signedContent = cursor.buffer(signedLength);
+        for (int i = 0; i < signedLength; i++) {
+            signedContent[i] = (byte) token.charAt(i);
+        }
+        Signature signature = cursor.rs256();
+        signature.initVerify(publicKey);
+        signature.update(signedContent, 0, signedLength);
+        try {
+            int length = cursor.decode(token, signedLength + 1, token.length());
+            return signature.verify(cursor.bytes, 0, length);
+        } catch (Unsupported e) {
+            return false;
+        } catch (SignatureException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Thrown, without stack trace, when a token must be left to {@link GoogleIdToken#parse}.
+     */
+    private static final class Unsupported extends Exception {
+        static final Unsupported INSTANCE = new Unsupported();
+
+        private Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private enum Kind {
+        STRING, LONG, ANY, STRING_LIST, OTHER
+    }
+
+    /**
+     * Keys declared by a class of the client library, with the JSON type they must have and
+     * the slot of the claims to keep.
+     */
+    private static final class Keys {
+        private final byte[][] names;
+        private final Kind[] kinds;
+        private final int[] slots;
+
+        Keys(Class<?> declaringClass, Object... kept) {
+            ClassInfo classInfo = ClassInfo.of(declaringClass);
+            List<String> declared = new ArrayList<>(classInfo.getNames());
+            this.names = new byte[declared.size()][];
+            this.kinds = new Kind[declared.size()];
+            this.slots = new int[declared.size()];
+            for (int i = 0; i < declared.size(); i++) {
+                String name = declared.get(i);
+                names[i] = name.getBytes(StandardCharsets.UTF_8);
+                kinds[i] = kind(classInfo.getFieldInfo(name).getGenericType());
+                slots[i] = -1;
+                for (int k = 0; k < kept.length; k += 2) {
+                    if (kept[k].equals(name)) {
+                        slots[i] = (Integer) kept[k + 1];
+                    }
+                }
+            }
+        }
+
+        int indexOf(byte[] bytes, int from, int to) {
+            int length = to - from;
+            for (int i = 0; i < names.length; i++) {
+                byte[] name = names[i];
+                if (name.length == length && regionMatches(name, bytes, from)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean regionMatches(byte[] name, byte[] bytes, int from) {
+            for (int i = 0; i < name.length; i++) {
+                if (name[i] != bytes[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static Kind kind(Type type) {
+            if (type == String.class) {
+                return Kind.STRING;
+            }
+            if (type == Long.class) {
+                return Kind.LONG;
+            }
+            if (type == Object.class) {
+                return Kind.ANY;
+            }
+            if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() == List.class
+                    && ((ParameterizedType) type).getActualTypeArguments()[0] == String.class) {
+                return Kind.STRING_LIST;
+            }
+            return Kind.OTHER;
+        }
+    }
+
+    /**
+     * Buffers and state of the reads made by one thread.
+     */
+    private static final class Cursor {
+        private byte[] retained = new byte[1024];
+        private final StringBuilder chars = new StringBuilder(64);
+        private Signature rs256;
+        // JSON being scanned
+        private byte[] bytes;
+        private int pos;
+        private int end;
+        // claims read so far
+        private final Object[] claims = new Object[HD + 1];
+
+        @CheckForNull
+        IdTokenClaims read(String token) {
+            try {
+                int firstDot = token.indexOf('.');
+                int secondDot = firstDot < 0 ? -1 : token.indexOf('.', firstDot + 1);
+                if (secondDot < 0 || token.indexOf('.', secondDot + 1) >= 0) {
+                    return null;
+                }
+                validateBase64(token, secondDot + 1, token.length());
+                Arrays.fill(claims, null);
+                end = decode(token, 0, firstDot);
+                readObject(HEADER_KEYS);
+                if (claims[ALG] == null) {
+                    return null;
+                }
+                end = decode(token, firstDot + 1, secondDot);
+                readObject(PAYLOAD_KEYS);
+                return new IdTokenClaims((String) claims[ALG], (String) claims[KID], (String) claims[ISS], audience(),
+                        (Long) claims[EXP], (Long) claims[IAT], (String) claims[SUB], (String) claims[EMAIL],
+                        emailVerified(), (String) claims[HD], token, secondDot, null);
+            } catch (Unsupported e) {
+                return null;
+            } finally {
+                Arrays.fill(claims, null);
+                bytes = null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<String> audience() {
+            Object audience = claims[AUD];
+            if (audience == null) {
+                return Collections.emptyList();
+            }
+            if (audience instanceof String) {
+                return Collections.singletonList((String) audience);
+            }
+            return (List<String>) audience;
+        }
+
+        @CheckForNull
+        private Boolean emailVerified() {
+            Object emailVerified = claims[EMAIL_VERIFIED];
+            if (emailVerified == null || emailVerified instanceof Boolean) {
+                return (Boolean) emailVerified;
+            }
+            return Boolean.valueOf((String) emailVerified);
+        }
+
+        Signature rs256() throws GeneralSecurityException {
+            if (rs256 == null) {
+                rs256 = Signature.getInstance("SHA256withRSA");
+            }
+            return rs256;
+        }
+
+        /**
+         * Buffer of at least the given size. Buffers larger than usual are not kept.
+         */
+        byte[] buffer(int size) {
+            if (size <= retained.length) {
+                return retained;
+            }
+            if (size > MAX_RETAINED_BUFFER_SIZE) {
+                return new byte[size];
+            }
+            retained = new byte[Math.max(size, retained.length * 2)];
+            return retained;
+        }
+
+        /**
+         * Decodes a Base64URL segment of the token into {@link #bytes}. Returns the decoded length.
+         */
+        int decode(String token, int from, int to) throws Unsupported {
+            int length = to - from;
+            if (length % 4 == 1) {
+                throw Unsupported.INSTANCE;
+            }
+            bytes = buffer(length / 4 * 3 + Math.max(0, length % 4 - 1));
+            pos = 0;
+            int out = 0;
+            int i = from;
+            for (; i + 4 <= to; i += 4) {
+                int value = sextet(token, i) << 18 | sextet(token, i + 1) << 12 | sextet(token, i + 2) << 6 | sextet(token, i + 3);
+                bytes[out++] = (byte) (value >> 16);
+                bytes[out++] = (byte) (value >> 8);
+                bytes[out++] = (byte) value;
+            }
+            if (to - i == 2) {
+                int value = sextet(token, i) << 6 | sextet(token, i + 1);
+                if ((value & 0xF) != 0) {
+                    throw Unsupported.INSTANCE;
+                }
+                bytes[out++] = (byte) (value >> 4);
+            } else if (to - i == 3) {
+                int value = sextet(token, i) << 12 | sextet(token, i + 1) << 6 | sextet(token, i + 2);
+                if ((value & 0x3) != 0) {
+                    throw Unsupported.INSTANCE;
+                }
+                bytes[out++] = (byte) (value >> 10);
+                bytes[out++] = (byte) (value >> 2);
+            }
+            return out;
+        }
+
+        private static void validateBase64(String token, int from, int to) throws Unsupported {
+            int length = to - from;
+            if (length % 4 == 1) {
+                throw Unsupported.INSTANCE;
+            }
+            for (int i = from; i < to; i++) {
+                sextet(token, i);
+            }
+            // unused bits of the last character must be zero
+            if (length % 4 == 2 && (sextet(token, to - 1) & 0xF) != 0 || length % 4 == 3 && (sextet(token, to - 1) & 0x3) != 0) {
+                throw Unsupported.INSTANCE;
+            }
+        }
+
+        private static int sextet(String token, int index) throws Unsupported {
+            char c = token.charAt(index);
+            int value = c < 128 ? BASE64URL[c] : -1;
+            if (value < 0) {
+                throw Unsupported.INSTANCE;
+            }
+            return value;
+        }
+
+        private void readObject(Keys keys) throws Unsupported {
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    expect('"');
+                    int keyStart = pos;
+                    int keyEnd = skipStringContent();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    if (keyEnd < 0) {
+                        // might be a declared key once unescaped
+                        throw Unsupported.INSTANCE;
+                    }
+                    int index = keys.indexOf(bytes, keyStart, keyEnd);
+                    if (index < 0) {
+                        skipAny(0);
+                    } else if (keys.slots[index] >= 0) {
+                        claims[keys.slots[index]] = readClaim(keys.slots[index]);
+                    } else {
+                        skipValue(keys.kinds[index]);
+                    }
+                    skipWhitespace();
+                    byte next = next();
+                    if (next == '}') {
+                        break;
+                    }
+                    if (next != ',') {
+                        throw Unsupported.INSTANCE;
+                    }
+                    skipWhitespace();
+                }
+            }
+            skipWhitespace();
+            if (pos != end) {
+                throw Unsupported.INSTANCE;
+            }
+        }
+
+        private Object readClaim(int slot) throws Unsupported {
+            switch (slot) {
+                case EXP:
+                case IAT:
+                    return readLong();
+                case AUD:
+                    return peek() == '[' ? readStringList() : readString();
+                case EMAIL_VERIFIED:
+                    if (peek() == '"') {
+                        return readString();
+                    }
+                    return readBoolean();
+                default:
+                    return readString();
+            }
+        }
+
+        private void skipValue(Kind kind) throws Unsupported {
+            switch (kind) {
+                case STRING:
+                    expect('"');
+                    skipStringContent();
+                    break;
+                case LONG:
+                    readLong();
+                    break;
+                case STRING_LIST:
+                    skipStringList();
+                    break;
+                case ANY:
+                    skipAny(0);
+                    break;
+                default:
+                    throw Unsupported.INSTANCE;
+            }
+        }
+
+        private void skipAny(int depth) throws Unsupported {
+            if (depth > MAX_DEPTH) {
+                throw Unsupported.INSTANCE;
+            }
+            byte first = peek();
+            switch (first) {
+                case '"':
+                    pos++;
+                    skipStringContent();
+                    break;
+                case '{':
+                    pos++;
+                    skipWhitespace();
+                    if (peek() == '}') {
+                        pos++;
+                        return;
+                    }
+                    while (true) {
+                        expect('"');
+                        skipStringContent();
+                        skipWhitespace();
+                        expect(':');
+                        skipWhitespace();
+                        skipAny(depth + 1);
+                        skipWhitespace();
+                        byte next = next();
+                        if (next == '}') {
+                            return;
+                        }
+                        if (next != ',') {
+                            throw Unsupported.INSTANCE;
+                        }
+                        skipWhitespace();
+                    }
+                case '[':
+                    pos++;
+                    skipWhitespace();
+                    if (peek() == ']') {
+                        pos++;
+                        return;
+                    }
+                    while (true) {
+                        skipAny(depth + 1);
+                        skipWhitespace();
+                        byte next = next();
+                        if (next == ']') {
+                            return;
+                        }
+                        if (next != ',') {
+                            throw Unsupported.INSTANCE;
+                        }
+                        skipWhitespace();
+                    }
+                case 't':
+                    expectLiteral("true");
+                    break;
+                case 'f':
+                    expectLiteral("false");
+                    break;
+                case 'n':
+                    expectLiteral("null");
+                    break;
+                default:
+                    skipNumber();
+            }
+        }
+
+        private void skipStringList() throws Unsupported {
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return;
+            }
+            while (true) {
+                expect('"');
+                skipStringContent();
+                skipWhitespace();
+                byte next = next();
+                if (next == ']') {
+                    return;
+                }
+                if (next != ',') {
+                    throw Unsupported.INSTANCE;
+                }
+                skipWhitespace();
+            }
+        }
+
+        private List<String> readStringList() throws Unsupported {
+            expect('[');
+            List<String> values = new ArrayList<>(2);
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return values;
+            }
+            while (true) {
+                values.add(readString());
+                skipWhitespace();
+                byte next = next();
+                if (next == ']') {
+                    return values;
+                }
+                if (next != ',') {
+                    throw Unsupported.INSTANCE;
+                }
+                skipWhitespace();
+            }
+        }
+
+        private Boolean readBoolean() throws Unsupported {
+            if (peek() == 't') {
+                expectLiteral("true");
+                return Boolean.TRUE;
+            }
+            expectLiteral("false");
+            return Boolean.FALSE;
+        }
+
+        /**
+         * Reads an integer that fits a long without doubt. Fractions and exponents are left to
+         * the client library.
+         */
+        private Long readLong() throws Unsupported {
+            boolean negative = peek() == '-';
+            if (negative) {
+                pos++;
+            }
+            int start = pos;
+            long value = 0L;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                value = value * 10 + (bytes[pos] - '0');
+                pos++;
+            }
+            int digits = pos - start;
+            if (digits == 0 || digits > 18 || (digits > 1 && bytes[start] == '0')) {
+                throw Unsupported.INSTANCE;
+            }
+            if (pos < end && (bytes[pos] == '.' || bytes[pos] == 'e' || bytes[pos] == 'E')) {
+                throw Unsupported.INSTANCE;
+            }
+            return negative ? -value : value;
+        }
+
+        private void skipNumber() throws Unsupported {
+            if (peek() == '-') {
+                pos++;
+            }
+            if (peek() == '0') {
+                pos++;
+            } else {
+                skipDigits();
+            }
+            if (pos < end && bytes[pos] == '.') {
+                pos++;
+                skipDigits();
+            }
+            if (pos < end && (bytes[pos] == 'e' || bytes[pos] == 'E')) {
+                pos++;
+                if (peek() == '+' || peek() == '-') {
+                    pos++;
+                }
+                skipDigits();
+            }
+        }
+
+        private void skipDigits() throws Unsupported {
+            int start = pos;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                pos++;
+            }
+            if (pos == start) {
+                throw Unsupported.INSTANCE;
+            }
+        }
+
+        /**
+         * Skips the rest of a string, validating it. Returns the index of the closing quote, or -1
+         * if the string contains escapes.
+         */
+        private int skipStringContent() throws Unsupported {
+            boolean escaped = false;
+            while (true) {
+                int b = next() & 0xFF;
+                if (b == '"') {
+                    return escaped ? -1 : pos - 1;
+                }
+                if (b == '\\') {
+                    escaped = true;
+                    unescape();
+                } else if (b < 0x20) {
+                    throw Unsupported.INSTANCE;
+                } else if (b >= 0x80) {
+                    codePoint(b);
+                }
+            }
+        }
+
+        private String readString() throws Unsupported {
+            expect('"');
+            chars.setLength(0);
+            while (true) {
+                int b = next() & 0xFF;
+                if (b == '"') {
+                    return chars.toString();
+                }
+                if (b == '\\') {
+                    chars.append(unescape());
+                } else if (b < 0x20) {
+                    throw Unsupported.INSTANCE;
+                } else if (b >= 0x80) {
+                    chars.appendCodePoint(codePoint(b));
+                } else {
+                    chars.append((char) b);
+                }
+            }
+        }
+
+        private char unescape() throws Unsupported {
+            byte b = next();
+            switch (b) {
+                case '"':
+                case '\\':
+                case '/':
+                    return (char) b;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        value = value << 4 | hexDigit(next());
+                    }
+                    return (char) value;
+                default:
+                    throw Unsupported.INSTANCE;
+            }
+        }
+
+        private static int hexDigit(byte b) throws Unsupported {
+            if (b >= '0' && b <= '9') {
+                return b - '0';
+            }
+            if (b >= 'a' && b <= 'f') {
+                return b - 'a' + 10;
+            }
+            if (b >= 'A' && b <= 'F') {
+                return b - 'A' + 10;
+            }
+            throw Unsupported.INSTANCE;
+        }
+
+        /**
+         * Decodes a well-formed UTF-8 sequence starting with the given byte. Overlong forms,
+         * surrogates and code points above U+10FFFF are left to the client library.
+         */
+        private int codePoint(int first) throws Unsupported {
+            if (first >= 0xC2 && first <= 0xDF) {
+                return (first & 0x1F) << 6 | continuation(0x80, 0xBF);
+            }
+            if (first >= 0xE0 && first <= 0xEF) {
+                int second = continuation(first == 0xE0 ? 0xA0 : 0x80, first == 0xED ? 0x9F : 0xBF);
+                return (first & 0x0F) << 12 | second << 6 | continuation(0x80, 0xBF);
+            }
+            if (first >= 0xF0 && first <= 0xF4) {
+                int second = continuation(first == 0xF0 ? 0x90 : 0x80, first == 0xF4 ? 0x8F : 0xBF);
+                int third = continuation(0x80, 0xBF);
+                return (first & 0x07) << 18 | second << 12 | third << 6 | continuation(0x80, 0xBF);
+            }
+            throw Unsupported.INSTANCE;
+        }
+
+        private int continuation(int min, int max) throws Unsupported {
+            int b = next() & 0xFF;
+            if (b < min || b > max) {
+                throw Unsupported.INSTANCE;
+            }
+            return b & 0x3F;
+        }
+
+        private void expectLiteral(String literal) throws Unsupported {
+            for (int i = 0; i < literal.length(); i++) {
+                expect(literal.charAt(i));
+            }
+        }
+
+        private void expect(char c) throws Unsupported {
+            if (next() != c) {
+                throw Unsupported.INSTANCE;
+            }
+        }
+
+        private byte peek() throws Unsupported {
+            if (pos >= end) {
+                throw Unsupported.INSTANCE;
+            }
+            return bytes[pos];
+        }
+
+        private byte next() throws Unsupported {
+            byte b = peek();
+            pos++;
+            return b;
+        }
+
+        private void skipWhitespace() {
+            while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t' || bytes[pos] == '\n' || bytes[pos] == '\r')) {
+                pos++;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cookie remembering the Google account of the last user logged in from a browser, so that the
+ * next login can ask Google for it without prompting. The value is the email, its expiry and an
+ * HMAC of both keyed by the client secret, which all the nodes of a cluster share and users never
+ * see: a user can not make the server ask Google for another account, and a changed client secret
+ * invalidates every cookie.
+ */
+final class LoginHintCookie {
+
+    static final String NAME = "AUTHGOOGLE_LOGIN_HINT";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String SEPARATOR = ".";
+
+    private LoginHintCookie() {
+        // only static stuff
+    }
+
+    static Cookie create(HttpServletRequest request, String secret, String email, long now, long maxAgeMs) {
+        long expiresAt = now + maxAgeMs;
+        String value = encode(email.getBytes(StandardCharsets.UTF_8)) + SEPARATOR + expiresAt + SEPARATOR
+                + encode(sign(secret, email, expiresAt));
+        return cookie(request, value, (int) TimeUnit.MILLISECONDS.toSeconds(maxAgeMs));
+    }
+
+    static Cookie delete(HttpServletRequest request) {
+        return cookie(request, "", 0);
+    }
+
+    /**
+     * Email of the cookie of the request, or {@code null} if it has none, or one which is
+     * expired or not signed with the given secret.
+     */
+    @CheckForNull
+    static String read(@Nullable HttpServletRequest request, String secret, long now) {
+        Cookie[] cookies = request == null ? null : request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        for (Cookie cookie : cookies) {
+            if (NAME.equals(cookie.getName())) {
+                return verify(cookie.getValue(), secret, now);
+            }
+        }
+        return null;
+    }
+
+    @CheckForNull
+    static String verify(@Nullable String value, String secret, long now) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split("\\" + SEPARATOR, -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            String email = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+            long expiresAt = Long.parseLong(parts[1]);
+            byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+            if (expiresAt <= now || !MessageDigest.isEqual(signature, sign(secret, email, expiresAt))) {
+                return null;
+            }
+            return email;
+        } catch (IllegalArgumentException e) {
+            // neither Base64URL nor a number, NumberFormatException included
+            return null;
+        }
+    }
+
+    private static byte[] sign(String secret, String email, long expiresAt) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(("login-hint:" + secret).getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            return mac.doFinal((email + '\n' + expiresAt).getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Fail to sign the login hint", e);
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static Cookie cookie(HttpServletRequest request, String value, int maxAgeSeconds) {
+        Cookie cookie = new Cookie(NAME, value);
+        String contextPath = request.getContextPath();
+        cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        cookie.setMaxAge(maxAgeSeconds);
+        return cookie;
+    }
+}
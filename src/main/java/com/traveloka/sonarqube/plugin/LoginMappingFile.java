@@ -0,0 +1,337 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Explicit email to login overrides read from the file set in
+ * {@link GoogleSettings#LOGIN_MAPPING_FILE}. Each line maps an email to a login, as
+ * {@code email,login} in a {@code .csv} file and as {@code email=login} in any other file. Blank
+ * lines and lines starting with {@code #} are ignored, a later line overrides an earlier one.
+ * <p>
+ * The mappings are held in an immutable hash index swapped atomically, so that a lookup is a
+ * single hash map access whatever the number of mappings. The file is checked for changes in
+ * the background: lines appended since the last check are read on their own and go to a small
+ * index looked up first, which is merged back into the main one once it grows. Any other change
+ * of the file, including its replacement, reloads it entirely. A file that can not be read
+ * leaves the loaded mappings in place.
+ */
+@ServerSide
+public class LoginMappingFile implements Startable {
+
+    private static final Logger LOG = Loggers.get(LoginMappingFile.class);
+
+    static final long RELOAD_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+    // bytes before the end of the last read kept to check that the file was only appended to
+    private static final int TAIL_SIZE = 64;
+    private static final int MIN_MERGE_SIZE = 1024;
+
+    private final GoogleSettings settings;
+    private final AtomicReference<Index> index = new AtomicReference<>(Index.EMPTY);
+    private ScheduledExecutorService reloader;
+
+    public LoginMappingFile(GoogleSettings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public void start() {
+        reload();
+        reloader = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("login-mapping"));
+        reloader.scheduleWithFixedDelay(this::reload, RELOAD_INTERVAL_MS, RELOAD_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    /**
+     * Login the given email is mapped to, or {@code null} if it is not.
+     */
+    @CheckForNull
+    public String login(String email) {
+        return index.get().get(email.toLowerCase(Locale.ENGLISH));
+    }
+
+    public int size() {
+        return index.get().size();
+    }
+
+    Index index() {
+        return index.get();
+    }
+
+    /**
+     * Brings the index up to date with the file. Only called by one thread at a time: on start,
+     * then by the reloader.
+     */
+    synchronized void reload() {
+        Index current = index.get();
+        String file = settings.snapshot().loginMappingFile();
+        if (file == null) {
+            if (current != Index.EMPTY) {
+                LOG.info("Login mappings cleared, {} is not set", GoogleSettings.LOGIN_MAPPING_FILE);
+                index.set(Index.EMPTY);
+            }
+            return;
+        }
+        Path path = Paths.get(file);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (current.isAppendedTo(path, attributes)) {
+                if (attributes.size() > current.length) {
+                    index.set(append(current, path, attributes));
+                }
+            } else {
+                Index loaded = load(path, attributes);
+                index.set(loaded);
+                LOG.info("Loaded {} login mappings from {}", loaded.size(), path);
+            }
+        } catch (NoSuchFileException e) {
+            if (!current.isMissing(path)) {
+                LOG.warn("Login mapping file {} does not exist, keeping the {} loaded mappings", path, current.size());
+                index.set(current.missing(path));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Fail to read login mapping file {}, keeping the {} loaded mappings", path, current.size(), e);
+        }
+    }
+
+    private static Index load(Path path, BasicFileAttributes attributes) throws IOException {
+        byte[] content = Files.readAllBytes(path);
+        Map<String, String> mappings = new HashMap<>();
+        int end = parse(content, 0, isCsv(path), mappings, true);
+        return new Index(Collections.unmodifiableMap(mappings), Collections.<String, String>emptyMap(), path,
+                attributes.fileKey(), attributes.lastModifiedTime().toMillis(), end, tail(content, end));
+    }
+
+    private static Index append(Index current, Path path, BasicFileAttributes attributes) throws IOException {
+        int appended = (int) Math.min(Integer.MAX_VALUE, attributes.size() - current.length);
+        byte[] content = new byte[current.tail.length + appended];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            long position = current.length - current.tail.length;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+            if (buffer.hasRemaining()) {
+                // truncated since the attributes were read, reload it
+                return load(path, Files.readAttributes(path, BasicFileAttributes.class));
+            }
+        }
+        if (!Arrays.equals(current.tail, Arrays.copyOf(content, current.tail.length))) {
+            return load(path, attributes);
+        }
+        Map<String, String> added = new HashMap<>(current.appended);
+        int end = parse(content, current.tail.length, isCsv(path), added, false);
+        if (end == current.tail.length) {
+            // the last line is still being written
+            return current;
+        }
+        long length = current.length - current.tail.length + end;
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        byte[] tail = tail(content, end);
+        if (added.size() >= Math.max(MIN_MERGE_SIZE, current.mappings.size() / 8)) {
+            Map<String, String> merged = new HashMap<>(current.mappings);
+            merged.putAll(added);
+            return new Index(Collections.unmodifiableMap(merged), Collections.<String, String>emptyMap(), path,
+                    attributes.fileKey(), lastModified, length, tail);
+        }
+        return new Index(current.mappings, Collections.unmodifiableMap(added), path, attributes.fileKey(), lastModified, length, tail);
+    }
+
+    /**
+     * Parses the lines of the content from the given offset into the mappings and returns the
+     * offset after the last complete one. A last line without end of line is parsed only if
+     * {@code whole}, and read again on next reload as the file may be being written.
+     */
+    static int parse(byte[] content, int offset, boolean csv, Map<String, String> mappings, boolean whole) {
+        int start = offset;
+        int complete = offset;
+        int invalid = 0;
+        while (start < content.length) {
+            int end = start;
+            while (end < content.length && content[end] != '\n') {
+                end++;
+            }
+            if (end == content.length && !whole) {
+                break;
+            }
+            String line = new String(content, start, end - start, StandardCharsets.UTF_8).trim();
+            if (!line.isEmpty() && line.charAt(0) != '#' && !put(line, csv, mappings) && !isCsvHeader(line, csv, start)) {
+                invalid++;
+            }
+            if (end < content.length) {
+                complete = end + 1;
+            }
+            start = end + 1;
+        }
+        if (invalid > 0) {
+            LOG.warn("Ignored {} invalid lines of login mapping file, expected {}", invalid, csv ? "email,login" : "email=login");
+        }
+        return complete;
+    }
+
+    private static boolean put(String line, boolean csv, Map<String, String> mappings) {
+        int separator = csv ? line.indexOf(',') : line.indexOf('=');
+        if (separator <= 0) {
+            return false;
+        }
+        String email = unquote(line.substring(0, separator)).toLowerCase(Locale.ENGLISH);
+        String login = unquote(line.substring(separator + 1));
+        if (email.indexOf('@') <= 0 || login.isEmpty()) {
+            return false;
+        }
+        mappings.put(email, login);
+        return true;
+    }
+
+    private static boolean isCsvHeader(String line, boolean csv, int offset) {
+        return csv && offset == 0 && line.indexOf('@') < 0;
+    }
+
+    private static String unquote(String value) {
+        String trimmed = value.trim();
+        if (trimmed.length() >= 2 && trimmed.charAt(0) == '"' && trimmed.charAt(trimmed.length() - 1) == '"') {
+            return trimmed.substring(1, trimmed.length() - 1).trim();
+        }
+        return trimmed;
+    }
+
+    private static boolean isCsv(Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".csv");
+    }
+
+    private static byte[] tail(byte[] content, int end) {
+        return Arrays.copyOfRange(content, Math.max(0, end - TAIL_SIZE), end);
+    }
+
+    static final class Index {
+        static final Index EMPTY = new Index(Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(), null,
+                null, 0L, 0L, new byte[0]);
+
+        private final Map<String, String> mappings;
+        // mappings appended to the file since the main map was built, they take precedence
+        private final Map<String, String> appended;
+        private final Path path;
+        private final Object fileKey;
+        private final long lastModified;
+        private final long length;
+        private final byte[] tail;
+
+        Index(Map<String, String> mappings, Map<String, String> appended, @Nullable Path path, @Nullable Object fileKey,
+              long lastModified, long length, byte[] tail) {
+            this.mappings = mappings;
+            this.appended = appended;
+            this.path = path;
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.tail = tail;
+        }
+
+        @CheckForNull
+        String get(String email) {
+            if (!appended.isEmpty()) {
+                String login = appended.get(email);
+                if (login != null) {
+                    return login;
+                }
+            }
+            return mappings.get(email);
+        }
+
+        int size() {
+            if (appended.isEmpty()) {
+                return mappings.size();
+            }
+            int size = mappings.size();
+            for (String email : appended.keySet()) {
+                if (!mappings.containsKey(email)) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Whether the file is the one indexed, possibly with lines appended. Files without a key
+         * (depending on the file system) are identified by their path only.
+         */
+        boolean isAppendedTo(Path other, BasicFileAttributes attributes) {
+            if (path == null || !path.equals(other) || length < 0 || !Objects.equals(fileKey, attributes.fileKey())) {
+                return false;
+            }
+            if (attributes.size() == length) {
+                return attributes.lastModifiedTime().toMillis() == lastModified;
+            }
+            return attributes.size() > length;
+        }
+
+        boolean hasAppended() {
+            return !appended.isEmpty();
+        }
+
+        boolean isMissing(Path other) {
+            return length < 0 && other.equals(path);
+        }
+
+        /**
+         * The same mappings, to be reloaded entirely once the given file exists.
+         */
+        Index missing(Path other) {
+            return new Index(mappings, appended, other, null, 0L, -1L, new byte[0]);
+        }
+    }
+}
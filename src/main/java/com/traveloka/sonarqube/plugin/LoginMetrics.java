@@ -0,0 +1,224 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of each phase of a login, and number of callbacks per outcome. Recording neither
+ * locks nor allocates. Exposed by {@link GoogleMetricsWs} and through JMX.
+ */
+@ServerSide
+public class LoginMetrics implements LoginMetricsMXBean, Startable {
+
+    static final String OBJECT_NAME = "com.traveloka.sonarqube:type=GoogleAuthentication,name=LoginMetrics";
+
+    private static final Logger LOG = Loggers.get(LoginMetrics.class);
+
+    public enum Phase {
+        /** Whole {@code init}, from generating the state to the redirect */
+        INIT,
+        /** Exchange of the authorization code against tokens */
+        TOKEN_EXCHANGE,
+        /** Parsing of the ID token */
+        TOKEN_PARSE,
+        /** Verification of the signature and claims of the ID token */
+        TOKEN_VALIDATION,
+        /** Resolution of the groups of the user */
+        GROUPS,
+        /** {@code context.authenticate}, ie. creation or update of the user by SonarQube */
+        AUTHENTICATE,
+        /** Whole {@code callback}, whatever its outcome */
+        CALLBACK;
+
+        final String label = name().toLowerCase(Locale.ENGLISH);
+    }
+
+    public enum Outcome {
+        SUCCESS, WRONG_HOSTED_DOMAIN, UNVERIFIED_EMAIL,
+        /** New user of a hosted domain whose policy does not allow sign-up */
+        SIGN_UP_NOT_ALLOWED,
+        /** Too many attempts from the client or for the account */
+        RATE_LIMITED,
+        TOKEN_FAILURE, CSRF_FAILURE,
+        /** Silent login refused by Google, the user is sent through the interactive login */
+        INTERACTION_REQUIRED,
+        /** Any other failure, for instance a user rejected by SonarQube */
+        ERROR;
+
+        final String label = name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Progress of the {@link DeprovisioningSweep}.
+     */
+    public enum Deprovisioning {
+        SWEEPS, PAGES, USERS_CHECKED, USERS_DEACTIVATED,
+        /** Sweeps aborted by the Directory API and users that could not be deactivated */
+        FAILURES;
+
+        final String label = name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Phase.values().length];
+    private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+    private final AtomicLong droppedAuditEvents = new AtomicLong();
+    private final AtomicLongArray deprovisioning = new AtomicLongArray(Deprovisioning.values().length);
+    private final AtomicLong lastSweepMillis = new AtomicLong();
+    private final AtomicLong lastSweepDurationMillis = new AtomicLong();
+    private ObjectName objectName;
+
+    public LoginMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void start() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // left by a previous instance of the plugin, for instance after a restart of the web server
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.warn("Fail to register login metrics in JMX", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.debug("Fail to unregister login metrics from JMX", e);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Records the duration of a phase which began at {@code startNanos}, as given by {@link System#nanoTime()}.
+     */
+    public void record(Phase phase, long startNanos) {
+        latencies[phase.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void increment(Outcome outcome) {
+        outcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    /**
+     * Counts an event {@link AuditLog} could not write, because its buffer was full or the file
+     * could not be written.
+     */
+    public void auditEventDropped() {
+        droppedAuditEvents.incrementAndGet();
+    }
+
+    @Override
+    public long getDroppedAuditEvents() {
+        return droppedAuditEvents.get();
+    }
+
+    public void add(Deprovisioning counter, long delta) {
+        deprovisioning.addAndGet(counter.ordinal(), delta);
+    }
+
+    /**
+     * Records the end of a sweep, started at {@code startMillis} and completed at {@code endMillis}.
+     */
+    public void sweepCompleted(long startMillis, long endMillis) {
+        lastSweepDurationMillis.set(endMillis - startMillis);
+        lastSweepMillis.set(endMillis);
+    }
+
+    long count(Deprovisioning counter) {
+        return deprovisioning.get(counter.ordinal());
+    }
+
+    @Override
+    public Map<String, Long> getDeprovisioning() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Deprovisioning counter : Deprovisioning.values()) {
+            result.put(counter.label, count(counter));
+        }
+        return result;
+    }
+
+    @Override
+    public long getLastSweepMillis() {
+        return lastSweepMillis.get();
+    }
+
+    @Override
+    public long getLastSweepDurationMillis() {
+        return lastSweepDurationMillis.get();
+    }
+
+    long count(Outcome outcome) {
+        return outcomes.get(outcome.ordinal());
+    }
+
+    LatencyHistogram latency(Phase phase) {
+        return latencies[phase.ordinal()];
+    }
+
+    @Override
+    public Map<String, Long> getOutcomes() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Outcome outcome : Outcome.values()) {
+            result.put(outcome.label, count(outcome));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, PhaseLatency> getPhaseLatencies() {
+        Map<String, PhaseLatency> result = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = latency(phase);
+            long count = histogram.count();
+            result.put(phase.label, new PhaseLatency(count,
+                    count == 0 ? 0d : histogram.sumNanos() / 1_000_000d / count,
+                    histogram.quantileMillis(0.5), histogram.quantileMillis(0.95), histogram.quantileMillis(0.99),
+                    histogram.maxNanos() / 1_000_000d));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * JMX view of {@link LoginMetrics}, registered as {@value LoginMetrics#OBJECT_NAME}.
+ */
+public interface LoginMetricsMXBean {
+
+    /**
+     * Number of callbacks per outcome, keyed by the lower-case outcome name.
+     */
+    Map<String, Long> getOutcomes();
+
+    /**
+     * Latency of each phase of a login, keyed by the lower-case phase name.
+     */
+    Map<String, PhaseLatency> getPhaseLatencies();
+
+    /**
+     * Number of audit events that could not be written.
+     */
+    long getDroppedAuditEvents();
+
+    /**
+     * Progress counters of the deprovisioning sweeps, keyed by the lower-case counter name.
+     */
+    Map<String, Long> getDeprovisioning();
+
+    /**
+     * End of the last completed deprovisioning sweep, in milliseconds since the epoch, 0 if none.
+     */
+    long getLastSweepMillis();
+
+    long getLastSweepDurationMillis();
+
+    final class PhaseLatency {
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p95Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        @ConstructorProperties({"count", "meanMillis", "p50Millis", "p95Millis", "p99Millis", "maxMillis"})
+        public PhaseLatency(long count, double meanMillis, double p50Millis, double p95Millis, double p99Millis, double maxMillis) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p95Millis = p95Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP95Millis() {
+            return p95Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
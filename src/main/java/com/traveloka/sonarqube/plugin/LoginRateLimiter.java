@@ -0,0 +1,100 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Locale;
+
+/**
+ * Limits the login attempts of each client IP address and of each Google account, so that a
+ * script looping on {@code callback} neither consumes the OAuth quota of the server nor holds
+ * its threads in token requests. The limit per client is off by default: behind a reverse proxy,
+ * it needs the header of the client IP address to tell users apart. Limits are read from the current settings,
+ * the number of tracked clients and accounts is applied on restart.
+ */
+@ServerSide
+public class LoginRateLimiter {
+
+    private final GoogleSettings settings;
+    private final TokenBuckets clients;
+    private final TokenBuckets accounts;
+
+    public LoginRateLimiter(GoogleSettings settings) {
+        this(settings, System2.INSTANCE);
+    }
+
+    LoginRateLimiter(GoogleSettings settings, System2 system2) {
+        this.settings = settings;
+        int maxKeys = settings.snapshot().rateLimitMaxKeys();
+        this.clients = new TokenBuckets(maxKeys, system2);
+        this.accounts = new TokenBuckets(maxKeys, system2);
+    }
+
+    /**
+     * Takes a token of the client of the request, or returns {@code false} if it exceeded its
+     * limit.
+     */
+    public boolean tryAcquireClient(GoogleSettings.Snapshot snapshot, @Nullable HttpServletRequest request) {
+        int limit = snapshot.rateLimitPerClient();
+        if (limit <= 0 || request == null) {
+            return true;
+        }
+        String ip = clientIp(request, snapshot.rateLimitClientIpHeader());
+        return ip == null || clients.tryAcquire(ip, limit);
+    }
+
+    /**
+     * Takes a token of the account, or returns {@code false} if it exceeded its limit.
+     */
+    public boolean tryAcquireAccount(GoogleSettings.Snapshot snapshot, String email) {
+        return accounts.tryAcquire(email.toLowerCase(Locale.ENGLISH), snapshot.rateLimitPerAccount());
+    }
+
+    /**
+     * Address of the client: the last entry of the given header, as appended by the reverse
+     * proxy of the server, or the remote address of the request.
+     */
+    @CheckForNull
+    static String clientIp(HttpServletRequest request, @Nullable String header) {
+        if (header != null) {
+            String forwarded = request.getHeader(header);
+            if (forwarded != null) {
+                String last = forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+                if (!last.isEmpty()) {
+                    return last;
+                }
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    int trackedClients() {
+        return clients.size();
+    }
+
+    int trackedAccounts() {
+        return accounts.size();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rules deriving the SonarQube login of a user from their email, for instance
+ * {@code (.+)@acquired\.com=>acq-$1}. Each rule is a regular expression matched against the
+ * whole email and a template of the login, in which {@code $n} and {@code ${name}} refer to the
+ * groups of the expression and {@code \$} is a literal {@code $}. The first matching rule wins.
+ * <p>
+ * Rules are compiled once per settings snapshot: templates are split into literals and group
+ * references, so that resolving a login is a regex match and a single string concatenation.
+ */
+public final class LoginRules {
+
+    private static final Logger LOG = Loggers.get(LoginRules.class);
+
+    static final String SEPARATOR = "=>";
+    static final LoginRules NONE = new LoginRules(Collections.<Rule>emptyList());
+
+    private final List<Rule> rules;
+
+    private LoginRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @param values values of {@link GoogleSettings#LOGIN_RULES}
+     */
+    static LoginRules compile(String[] values) {
+        List<Rule> rules = new ArrayList<>(values.length);
+        for (String value : values) {
+            Rule rule = parse(value);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        return rules.isEmpty() ? NONE : new LoginRules(Collections.unmodifiableList(rules));
+    }
+
+    /**
+     * Login of the user with the given email, or {@code null} if no rule matches.
+     */
+    @CheckForNull
+    public String login(String email) {
+        for (Rule rule : rules) {
+            String login = rule.apply(email);
+            if (login != null) {
+                return login;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    @CheckForNull
+    private static Rule parse(String value) {
+        int separator = value.lastIndexOf(SEPARATOR);
+        if (separator <= 0) {
+            LOG.warn("Ignoring invalid value of {}: '{}'. Expected format is <regular expression>{}<login template>",
+                    GoogleSettings.LOGIN_RULES, value, SEPARATOR);
+            return null;
+        }
+        try {
+            Pattern pattern = Pattern.compile(value.substring(0, separator).trim());
+            return new Rule(pattern, template(pattern, value.substring(separator + SEPARATOR.length()).trim()));
+        } catch (IllegalArgumentException e) {
+            // PatternSyntaxException included
+            LOG.warn("Ignoring invalid value of {}: '{}'. {}", GoogleSettings.LOGIN_RULES, value, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Splits the template into literals ({@code String}) and group references ({@code Integer}
+     * or {@code GroupName}), checking that the referenced groups exist.
+     */
+    private static Object[] template(Pattern pattern, String template) {
+        if (template.isEmpty()) {
+            throw new IllegalArgumentException("Login template is empty");
+        }
+        int groupCount = pattern.matcher("").groupCount();
+        List<Object> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == '\\' && i + 1 < template.length()) {
+                literal.append(template.charAt(i + 1));
+                i += 2;
+                continue;
+            }
+            if (c != '$') {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            Object reference;
+            if (i + 1 < template.length() && template.charAt(i + 1) == '{') {
+                int end = template.indexOf('}', i + 2);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed group reference at index " + i + " of the login template");
+                }
+                String name = template.substring(i + 2, end);
+                if (!pattern.pattern().contains("(?<" + name + ">")) {
+                    throw new IllegalArgumentException("No group named '" + name + "' in the regular expression");
+                }
+                reference = new GroupName(name);
+                i = end + 1;
+            } else {
+                int end = i + 1;
+                while (end < template.length() && Character.isDigit(template.charAt(end))) {
+                    end++;
+                }
+                if (end == i + 1) {
+                    throw new IllegalArgumentException("Missing group reference after '$' at index " + i + " of the login template");
+                }
+                int group = Integer.parseInt(template.substring(i + 1, end));
+                if (group > groupCount) {
+                    throw new IllegalArgumentException("No group " + group + " in the regular expression");
+                }
+                reference = group;
+                i = end;
+            }
+            if (literal.length() > 0) {
+                parts.add(literal.toString());
+                literal.setLength(0);
+            }
+            parts.add(reference);
+        }
+        if (literal.length() > 0) {
+            parts.add(literal.toString());
+        }
+        return parts.toArray();
+    }
+
+    private static final class Rule {
+        private final Pattern pattern;
+        private final Object[] template;
+
+        private Rule(Pattern pattern, Object[] template) {
+            this.pattern = pattern;
+            this.template = template;
+        }
+
+        @CheckForNull
+        String apply(String email) {
+            Matcher matcher = pattern.matcher(email);
+            if (!matcher.matches()) {
+                return null;
+            }
+            if (template.length == 1 && template[0] instanceof String) {
+                return (String) template[0];
+            }
+            StringBuilder login = new StringBuilder(email.length() + 16);
+            for (Object part : template) {
+                if (part instanceof String) {
+                    login.append((String) part);
+                } else if (part instanceof Integer) {
+                    appendGroup(login, matcher.group((Integer) part));
+                } else {
+                    appendGroup(login, matcher.group(((GroupName) part).name));
+                }
+            }
+            return login.length() == 0 ? null : login.toString();
+        }
+
+        private static void appendGroup(StringBuilder login, @CheckForNull String group) {
+            if (group != null) {
+                login.append(group);
+            }
+        }
+    }
+
+    private static final class GroupName {
+        private final String name;
+
+        private GroupName(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.googleapis.auth.oauth2.GoogleRefreshTokenRequest;
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.http.GenericUrl;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically refreshes the users of the {@link RefreshTokenVault} without waiting for them to
+ * log in again. Each refresh token is redeemed for a new ID token, which is verified like the one
+ * of a login and gives the current email of the user, then the Google groups of the user are
+ * loaded into the groups cache. Logins then find up to date groups in memory, so the groups cache
+ * TTL can be much longer than the refresh interval. The name of a user is derived from their email.
+ * <p>
+ * Users are refreshed one after the other, in batches followed by a write of the vault, and no
+ * faster than the configured rate, so that a refresh never competes with logins for the quotas
+ * of the token endpoint and of the Directory API. Tokens revoked by the user or by an
+ * administrator are dropped.
+ */
+@ServerSide
+public class ProfileRefresher implements Startable {
+
+    private static final Logger LOG = Loggers.get(ProfileRefresher.class);
+
+    enum Result {
+        REFRESHED, REVOKED, FAILED
+    }
+
+    private final GoogleSettings settings;
+    private final RefreshTokenVault vault;
+    private final GoogleHttpTransport httpTransport;
+    private final IdTokenReader idTokenReader;
+    private final GoogleIdTokenValidator idTokenValidator;
+    private final GoogleGroups groups;
+    private final Object lifecycle = new Object();
+    // guarded by lifecycle
+    private boolean started;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> refreshes;
+
+    public ProfileRefresher(GoogleSettings settings, RefreshTokenVault vault, GoogleHttpTransport httpTransport,
+                            GoogleIdTokenValidator idTokenValidator, GoogleGroups groups) {
+        this.settings = settings;
+        this.vault = vault;
+        this.httpTransport = httpTransport;
+        this.idTokenReader = new IdTokenReader(httpTransport.jsonFactory());
+        this.idTokenValidator = idTokenValidator;
+        this.groups = groups;
+        // registered after the vault, which is reopened first when profile refresh is enabled
+        settings.addListener(this::settingsChanged);
+    }
+
+    @Override
+    public void start() {
+        synchronized (lifecycle) {
+            started = true;
+            schedule(settings.snapshot());
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (lifecycle) {
+            started = false;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+                refreshes = null;
+            }
+        }
+    }
+
+    boolean isScheduled() {
+        synchronized (lifecycle) {
+            return refreshes != null;
+        }
+    }
+
+    private void settingsChanged(GoogleSettings.Snapshot previous, GoogleSettings.Snapshot current) {
+        if (previous.isProfileRefreshEnabled() != current.isProfileRefreshEnabled() || previous.isEnabled() != current.isEnabled()
+                || previous.profileRefreshIntervalMs() != current.profileRefreshIntervalMs()
+                || !Objects.equals(previous.dataDir(), current.dataDir())) {
+            synchronized (lifecycle) {
+                if (started) {
+                    schedule(current);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the schedule of the refreshes by the one of the given settings. A refresh in
+     * progress completes. Called with the lifecycle lock held.
+     */
+    private void schedule(GoogleSettings.Snapshot snapshot) {
+        if (refreshes != null) {
+            refreshes.cancel(false);
+            refreshes = null;
+        }
+        if (!snapshot.isProfileRefreshEnabled() || !vault.isEnabled()) {
+            return;
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("profile-refresh"));
+        }
+        long intervalMs = Math.max(TimeUnit.MINUTES.toMillis(1), snapshot.profileRefreshIntervalMs());
+        refreshes = scheduler.scheduleWithFixedDelay(this::refreshAllQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshAllQuietly() {
+        try {
+            refreshAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.warn("Profile refresh failed, it is retried at the next interval", e);
+        }
+    }
+
+    /**
+     * Refreshes all the users of the vault in the calling thread. Only called by one thread at
+     * a time: by the scheduler, or by tests.
+     */
+    synchronized int[] refreshAll() throws InterruptedException {
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        List<RefreshTokenVault.Entry> entries = vault.entries();
+        int batchSize = Math.max(1, snapshot.profileRefreshBatchSize());
+        long nanosPerUser = TimeUnit.SECONDS.toNanos(1) / Math.max(1, snapshot.profileRefreshRate());
+        int[] results = new int[Result.values().length];
+        long start = System.nanoTime();
+        for (int from = 0; from < entries.size(); from += batchSize) {
+            long batchStart = System.nanoTime();
+            List<RefreshTokenVault.Entry> batch = entries.subList(from, Math.min(entries.size(), from + batchSize));
+            for (RefreshTokenVault.Entry entry : batch) {
+                results[refresh(snapshot, entry).ordinal()]++;
+            }
+            try {
+                vault.flush();
+            } catch (IOException e) {
+                // written again by the vault itself
+                LOG.debug("Fail to write the refresh tokens", e);
+            }
+            long remainingNanos = batch.size() * nanosPerUser - (System.nanoTime() - batchStart);
+            if (remainingNanos > 0L && from + batchSize < entries.size()) {
+                TimeUnit.NANOSECONDS.sleep(remainingNanos);
+            }
+        }
+        LOG.info("Refreshed the profiles of {} users in {} ms: {} revoked tokens dropped, {} failures", results[Result.REFRESHED.ordinal()],
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), results[Result.REVOKED.ordinal()],
+                results[Result.FAILED.ordinal()]);
+        return results;
+    }
+
+    Result refresh(GoogleSettings.Snapshot snapshot, RefreshTokenVault.Entry entry) {
+        try {
+            GoogleTokenResponse response = new GoogleRefreshTokenRequest(httpTransport.transport(), httpTransport.jsonFactory(),
+                    entry.refreshToken(), snapshot.clientId(), snapshot.clientSecret())
+                    .setTokenServerUrl(new GenericUrl(snapshot.tokenUrl()))
+                    .setRequestInitializer(httpTransport)
+                    .execute();
+            String email = entry.email();
+            if (response.getIdToken() != null) {
+                IdTokenClaims idToken = idTokenReader.read(response.getIdToken());
+                idTokenValidator.validate(snapshot, idToken);
+                if (idToken.email() != null && !idToken.email().equalsIgnoreCase(email)) {
+                    vault.rename(entry, idToken.email());
+                    email = idToken.email();
+                }
+            }
+            if (response.getRefreshToken() != null && !response.getRefreshToken().equals(entry.refreshToken())) {
+                vault.store(email, entry.login(), response.getRefreshToken());
+            }
+            if (snapshot.isGroupsSyncEnabled()) {
+                groups.refresh(email);
+            }
+            return Result.REFRESHED;
+        } catch (TokenResponseException e) {
+            if (e.getDetails() != null && "invalid_grant".equals(e.getDetails().getError())) {
+                vault.remove(entry.email());
+                return Result.REVOKED;
+            }
+            LOG.debug("Fail to refresh the profile of {}", entry.email(), e);
+            return Result.FAILED;
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Fail to refresh the profile of {}", entry.email(), e);
+            return Result.FAILED;
+        }
+    }
+}
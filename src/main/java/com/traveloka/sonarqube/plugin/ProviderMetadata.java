@@ -0,0 +1,113 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Endpoints and capabilities of the OpenID provider, as published by its discovery document
+ * ({@code .well-known/openid-configuration}). Immutable, replaced as a whole when the document
+ * is fetched again.
+ */
+public final class ProviderMetadata {
+
+    private final String discoveryUrl;
+    private final String issuer;
+    private final String authorizationEndpoint;
+    private final String tokenEndpoint;
+    private final String jwksUri;
+    private final Set<String> claimsSupported;
+    private final long expiresAt;
+
+    private ProviderMetadata(String discoveryUrl, Document document, long expiresAt) {
+        this.discoveryUrl = discoveryUrl;
+        this.issuer = document.issuer;
+        this.authorizationEndpoint = document.authorizationEndpoint;
+        this.tokenEndpoint = document.tokenEndpoint;
+        this.jwksUri = document.jwksUri;
+        this.claimsSupported = document.claimsSupported == null ? Collections.<String>emptySet()
+                : Collections.unmodifiableSet(new LinkedHashSet<>(document.claimsSupported));
+        this.expiresAt = expiresAt;
+    }
+
+    static ProviderMetadata of(String discoveryUrl, Document document, long expiresAt) throws IOException {
+        if (isBlank(document.issuer) || isBlank(document.authorizationEndpoint) || isBlank(document.tokenEndpoint)
+                || isBlank(document.jwksUri)) {
+            throw new IOException("Discovery document " + discoveryUrl + " lacks issuer, authorization_endpoint, token_endpoint or jwks_uri");
+        }
+        return new ProviderMetadata(discoveryUrl, document, expiresAt);
+    }
+
+    public String discoveryUrl() {
+        return discoveryUrl;
+    }
+
+    public String issuer() {
+        return issuer;
+    }
+
+    public String authorizationEndpoint() {
+        return authorizationEndpoint;
+    }
+
+    public String tokenEndpoint() {
+        return tokenEndpoint;
+    }
+
+    public String jwksUri() {
+        return jwksUri;
+    }
+
+    /**
+     * Claims the provider may return, empty when the document does not list them.
+     */
+    public Set<String> claimsSupported() {
+        return claimsSupported;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    private static boolean isBlank(@Nullable String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    public static class Document extends GenericJson {
+        @Key
+        public String issuer;
+        @Key("authorization_endpoint")
+        public String authorizationEndpoint;
+        @Key("token_endpoint")
+        public String tokenEndpoint;
+        @Key("jwks_uri")
+        public String jwksUri;
+        @Key("claims_supported")
+        public List<String> claimsSupported;
+    }
+}
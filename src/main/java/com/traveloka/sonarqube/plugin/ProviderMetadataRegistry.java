@@ -0,0 +1,191 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cache of the OpenID Connect discovery documents, keyed by URL. The document of the configured
+ * URL is fetched on startup, before the components depending on its endpoints start, kept for
+ * the {@code max-age} it is served with and refreshed in the background before it expires, then
+ * published to {@link GoogleSettings}. Logins only read the endpoints of the current snapshot
+ * and never wait for a fetch: until the document is loaded, and while it can not be refreshed,
+ * the built-in Google endpoints or the last document loaded are used.
+ * <p>
+ * Pointing the discovery URL at a local OpenID provider is enough to log in against it, which
+ * integration and load tests rely on.
+ */
+@ServerSide
+public class ProviderMetadataRegistry implements Startable {
+
+    private static final Logger LOG = Loggers.get(ProviderMetadataRegistry.class);
+
+    // claims the provider is unusable without
+    static final List<String> REQUIRED_CLAIMS = Arrays.asList("email", "email_verified");
+
+    private final GoogleSettings settings;
+    private final GoogleHttpTransport httpTransport;
+    private final System2 system2;
+    private final Map<String, ProviderMetadata> entries = new ConcurrentHashMap<>();
+    private final AtomicReference<ScheduledFuture<?>> nextRefresh = new AtomicReference<>();
+    private ScheduledExecutorService refresher;
+
+    public ProviderMetadataRegistry(GoogleSettings settings, GoogleHttpTransport httpTransport) {
+        this(settings, httpTransport, System2.INSTANCE);
+    }
+
+    ProviderMetadataRegistry(GoogleSettings settings, GoogleHttpTransport httpTransport, System2 system2) {
+        this.settings = settings;
+        this.httpTransport = httpTransport;
+        this.system2 = system2;
+    }
+
+    @Override
+    public void start() {
+        refresher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("provider-metadata"));
+        // bounded by the connect and read timeouts, retried in the background on failure
+        refreshQuietly();
+    }
+
+    @Override
+    public void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Cached metadata of the given discovery URL, expired or not.
+     */
+    @CheckForNull
+    public ProviderMetadata get(String discoveryUrl) {
+        return entries.get(discoveryUrl);
+    }
+
+    /**
+     * Publishes the cached document of the discovery URL just configured, if any, and fetches it
+     * in the background when missing or expired. Called by {@link GoogleSettingsChangeHandler}.
+     */
+    public void settingsChanged() {
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        ProviderMetadata cached = entries.get(snapshot.discoveryUrl());
+        if (cached != snapshot.providerMetadata()) {
+            settings.useProviderMetadata(cached);
+        }
+        if (cached == null || cached.isExpired(system2.now())) {
+            scheduleRefresh(0L);
+        }
+    }
+
+    /**
+     * Fetches the document of the configured discovery URL and publishes it. Only called by one
+     * thread at a time: by the refresher, or by tests.
+     */
+    synchronized ProviderMetadata refresh() throws IOException {
+        String url = settings.snapshot().discoveryUrl();
+        HttpRequest request = httpTransport.transport().createRequestFactory(httpTransport).buildGetRequest(new GenericUrl(url));
+        request.setParser(httpTransport.jsonFactory().createJsonObjectParser());
+        HttpResponse response = request.execute();
+        ProviderMetadata metadata;
+        try {
+            long maxAge = GoogleSigningKeys.maxAge(response.getHeaders().getCacheControl());
+            metadata = ProviderMetadata.of(url, response.parseAs(ProviderMetadata.Document.class), system2.now() + maxAge);
+            scheduleRefresh(GoogleSigningKeys.refreshDelay(maxAge));
+        } finally {
+            response.disconnect();
+        }
+        checkClaims(metadata);
+        ProviderMetadata previous = entries.put(url, metadata);
+        evictExpired(url);
+        // the URL may have been changed by an administrator during the fetch
+        if (url.equals(settings.snapshot().discoveryUrl())) {
+            settings.useProviderMetadata(metadata);
+        }
+        if (previous == null) {
+            LOG.info("Loaded OpenID provider metadata of {} from {}", metadata.issuer(), url);
+        }
+        return metadata;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evictExpired(String currentUrl) {
+        long now = system2.now();
+        for (Iterator<Map.Entry<String, ProviderMetadata>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, ProviderMetadata> entry = it.next();
+            if (!entry.getKey().equals(currentUrl) && entry.getValue().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void checkClaims(ProviderMetadata metadata) {
+        if (metadata.claimsSupported().isEmpty()) {
+            return;
+        }
+        for (String claim : REQUIRED_CLAIMS) {
+            if (!metadata.claimsSupported().contains(claim)) {
+                LOG.warn("OpenID provider {} does not list the claim '{}', logins are rejected if its ID tokens lack it",
+                        metadata.issuer(), claim);
+            }
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Fail to refresh OpenID provider metadata from {}, keeping the current endpoints", settings.snapshot().discoveryUrl(), e);
+            scheduleRefresh(GoogleSigningKeys.RETRY_DELAY_MS);
+        }
+    }
+
+    private void scheduleRefresh(long delayMs) {
+        ScheduledExecutorService executor = refresher;
+        if (executor != null && !executor.isShutdown()) {
+            ScheduledFuture<?> previous = nextRefresh.getAndSet(executor.schedule(this::refreshQuietly, delayMs, TimeUnit.MILLISECONDS));
+            if (previous != null) {
+                previous.cancel(false);
+            }
+        }
+    }
+}
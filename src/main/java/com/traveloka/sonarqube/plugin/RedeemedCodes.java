@@ -0,0 +1,179 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.utils.System2;
+
+import javax.annotation.CheckForNull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Authorization codes redeemed recently, so that a callback replayed by the browser or a proxy
+ * does not cost another request to Google. Codes are kept as SHA-256 hashes, for a limited time
+ * and up to a maximum number.
+ */
+final class RedeemedCodes<T> {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final System2 system2;
+    private final long ttlMs;
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    RedeemedCodes(System2 system2, long ttlMs, int maxSize) {
+        this.system2 = system2;
+        this.ttlMs = ttlMs;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Starts the redemption of the code. If the code was not redeemed recently, the returned
+     * redemption is {@link Redemption#isFirst() the first}: the caller must exchange the code and
+     * report the outcome. Otherwise it is the earlier redemption, still in flight or completed.
+     */
+    Redemption redeem(String code) {
+        String key = hash(code);
+        long now = system2.now();
+        Entry<T> entry = new Entry<>(new CompletableFuture<>(), now);
+        Entry<T> earlier = entries.putIfAbsent(key, entry);
+        while (earlier != null && now - earlier.startedAt >= ttlMs) {
+            if (entries.replace(key, earlier, entry)) {
+                earlier = null;
+            } else {
+                earlier = entries.putIfAbsent(key, entry);
+            }
+        }
+        if (earlier != null) {
+            return new Redemption(key, earlier, false);
+        }
+        evictIfNeeded();
+        return new Redemption(key, entry, true);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    static String hash(String code) {
+        byte[] digest = SHA256.get().digest(code.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    /**
+     * Drops the expired codes, then the oldest ones, down to 90% of the maximum size. Codes in
+     * flight are kept, so that their duplicates still wait for them.
+     */
+    private void evictIfNeeded() {
+        if (entries.size() <= maxSize || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = system2.now();
+            List<Map.Entry<String, Entry<T>>> redeemed = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+                if (now - entry.getValue().startedAt >= ttlMs) {
+                    entries.remove(entry.getKey(), entry.getValue());
+                } else if (entry.getValue().result == null) {
+                    redeemed.add(entry);
+                }
+            }
+            int target = maxSize - maxSize / 10;
+            if (entries.size() > target) {
+                Collections.sort(redeemed, (e1, e2) -> Long.compare(e1.getValue().startedAt, e2.getValue().startedAt));
+                for (int i = 0; i < redeemed.size() && entries.size() > target; i++) {
+                    entries.remove(redeemed.get(i).getKey(), redeemed.get(i).getValue());
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    final class Redemption {
+        private final String key;
+        private final Entry<T> entry;
+        private final boolean first;
+
+        private Redemption(String key, Entry<T> entry, boolean first) {
+            this.key = key;
+            this.entry = entry;
+            this.first = first;
+        }
+
+        boolean isFirst() {
+            return first;
+        }
+
+        /**
+         * Outcome of the redemption, or {@code null} if it completed already. The outcome is only
+         * kept while in flight, so that no token stays in memory.
+         */
+        @CheckForNull
+        CompletableFuture<T> result() {
+            return entry.result;
+        }
+
+        void succeed(T result) {
+            entries.replace(key, entry, new Entry<T>(null, entry.startedAt));
+            entry.result.complete(result);
+        }
+
+        /**
+         * @param consumed whether the code can not be redeemed anymore, in which case duplicates
+         *                 are rejected without asking Google
+         */
+        void fail(RuntimeException cause, boolean consumed) {
+            if (consumed) {
+                entries.replace(key, entry, new Entry<T>(null, entry.startedAt));
+            } else {
+                entries.remove(key, entry);
+            }
+            entry.result.completeExceptionally(cause);
+        }
+    }
+
+    private static final class Entry<T> {
+        private final CompletableFuture<T> result;
+        private final long startedAt;
+
+        Entry(@CheckForNull CompletableFuture<T> result, long startedAt) {
+            this.result = result;
+            this.startedAt = startedAt;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Refresh tokens returned by Google at login, indexed by the lower-cased email of their user, for
+ * the {@link ProfileRefresher}. They are kept in memory and written behind, every few seconds, to
+ * a single file of the data directory: deflated, then encrypted with AES-GCM. The file is always
+ * rewritten whole, through a temporary file moved over it, so it never holds removed tokens nor
+ * ends up half-written.
+ * <p>
+ * The key is derived from the client secret, so a file written with another secret can not be
+ * read: it is ignored and replaced. When the secret is changed while running, the tokens are
+ * written again with the new one. Refresh tokens are issued for a client ID, they are dropped
+ * when it is changed.
+ */
+@ServerSide
+public class RefreshTokenVault implements Startable {
+
+    private static final Logger LOG = Loggers.get(RefreshTokenVault.class);
+
+    static final String VAULT_FILE = "auth-google/refresh-tokens.vault";
+    static final long FLUSH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final byte[] MAGIC = "AGV1".getBytes(StandardCharsets.US_ASCII);
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private final GoogleSettings settings;
+    private final System2 system2;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private volatile File file;
+    private final Object lifecycle = new Object();
+    // guarded by lifecycle
+    private boolean started;
+    private ScheduledExecutorService flusher;
+
+    public RefreshTokenVault(GoogleSettings settings) {
+        this(settings, System2.INSTANCE);
+    }
+
+    RefreshTokenVault(GoogleSettings settings, System2 system2) {
+        this.settings = settings;
+        this.system2 = system2;
+        settings.addListener(this::settingsChanged);
+    }
+
+    @Override
+    public void start() {
+        synchronized (lifecycle) {
+            started = true;
+            open(settings.snapshot());
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (lifecycle) {
+            started = false;
+            close();
+        }
+    }
+
+    /**
+     * Loads the file and starts writing it behind, if profile refresh is enabled. Called with the
+     * lifecycle lock held.
+     */
+    private void open(GoogleSettings.Snapshot snapshot) {
+        if (!snapshot.isProfileRefreshEnabled() || !snapshot.isEnabled()) {
+            return;
+        }
+        if (snapshot.dataDir() == null) {
+            LOG.warn("Refresh tokens are not kept, the data directory is not set");
+            return;
+        }
+        if (!GoogleSettings.ACCESS_TYPE_OFFLINE.equals(snapshot.accessType())) {
+            LOG.warn("Google returns no refresh token unless {} is '{}', profiles are only refreshed at login",
+                    GoogleSettings.ACCESS_TYPE, GoogleSettings.ACCESS_TYPE_OFFLINE);
+        }
+        File vaultFile = new File(snapshot.dataDir(), VAULT_FILE);
+        load(vaultFile, snapshot.clientSecret());
+        file = vaultFile;
+        flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("token-vault"));
+        flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the pending changes and stops keeping tokens. Called with the lifecycle lock held.
+     */
+    private void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+            flushQuietly();
+        }
+        file = null;
+        entries.clear();
+    }
+
+    private void settingsChanged(GoogleSettings.Snapshot previous, GoogleSettings.Snapshot current) {
+        if (!Objects.equals(previous.clientId(), current.clientId())) {
+            if (!entries.isEmpty()) {
+                LOG.info("Client ID changed, dropping {} refresh tokens issued for the previous one", entries.size());
+                entries.clear();
+            }
+            dirty.set(true);
+        } else if (!Objects.equals(previous.clientSecret(), current.clientSecret())) {
+            dirty.set(true);
+        }
+        if (previous.isProfileRefreshEnabled() != current.isProfileRefreshEnabled() || previous.isEnabled() != current.isEnabled()
+                || !Objects.equals(previous.dataDir(), current.dataDir())) {
+            synchronized (lifecycle) {
+                if (started) {
+                    close();
+                    open(current);
+                }
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Keeps the refresh token of a user who just logged in, replacing the previous one.
+     */
+    public void store(String email, String login, String refreshToken) {
+        if (file == null) {
+            return;
+        }
+        entries.put(key(email), new Entry(email, login, refreshToken, system2.now()));
+        dirty.set(true);
+    }
+
+    /**
+     * Forgets the token of a user, for instance once revoked.
+     */
+    public void remove(String email) {
+        if (entries.remove(key(email)) != null) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Moves the token of a user whose email changed. Does nothing if the token was replaced by
+     * a login meanwhile.
+     */
+    public void rename(Entry entry, String newEmail) {
+        Entry renamed = new Entry(newEmail, entry.login(), entry.refreshToken(), entry.storedAt());
+        if (entries.remove(key(entry.email()), entry)) {
+            entries.putIfAbsent(key(newEmail), renamed);
+            dirty.set(true);
+        }
+    }
+
+    @CheckForNull
+    public Entry get(String email) {
+        return entries.get(key(email));
+    }
+
+    /**
+     * Copy of the entries, in no particular order.
+     */
+    public List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            dirty.set(true);
+            LOG.warn("Fail to write the refresh tokens to {}, retrying in {} ms", file, FLUSH_INTERVAL_MS, e);
+        }
+    }
+
+    /**
+     * Writes the tokens to disk if they changed since the last write.
+     */
+    synchronized void flush() throws IOException {
+        File target = file;
+        if (target == null || !dirty.getAndSet(false)) {
+            return;
+        }
+        byte[] content = encrypt(serialize(entries()), settings.snapshot().clientSecret());
+        Path dir = Files.createDirectories(target.getParentFile().toPath());
+        Path tmp = Files.createTempFile(dir, "refresh-tokens", ".tmp");
+        try {
+            ownerOnly(tmp);
+            Files.write(tmp, content);
+            Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void load(File vaultFile, String secret) {
+        if (!vaultFile.isFile()) {
+            return;
+        }
+        try {
+            for (Entry entry : deserialize(decrypt(Files.readAllBytes(vaultFile.toPath()), secret))) {
+                entries.put(key(entry.email()), entry);
+            }
+            LOG.info("Loaded {} refresh tokens from {}", entries.size(), vaultFile);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            entries.clear();
+            LOG.warn("Ignoring the refresh tokens of {}, they were not written with the current client secret", vaultFile, e);
+        }
+    }
+
+    static byte[] serialize(List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 160);
+        try (DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            output.writeInt(entries.size());
+            // logins and domains repeat, strings are left to the deflater
+            for (Entry entry : entries) {
+                output.writeUTF(entry.email());
+                output.writeUTF(entry.login());
+                output.writeUTF(entry.refreshToken());
+                output.writeLong(entry.storedAt());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<Entry> deserialize(byte[] content) throws IOException {
+        try (DataInputStream input = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(content)))) {
+            int size = input.readInt();
+            List<Entry> entries = new ArrayList<>(Math.min(size, 100_000));
+            for (int i = 0; i < size; i++) {
+                entries.add(new Entry(input.readUTF(), input.readUTF(), input.readUTF(), input.readLong()));
+            }
+            return entries;
+        }
+    }
+
+    byte[] encrypt(byte[] plain, String secret) {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey(secret), new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            cipher.updateAAD(MAGIC);
+            byte[] encrypted = cipher.doFinal(plain);
+            byte[] content = new byte[MAGIC.length + IV_LENGTH + encrypted.length];
+            System.arraycopy(MAGIC, 0, content, 0, MAGIC.length);
+            System.arraycopy(iv, 0, content, MAGIC.length, IV_LENGTH);
+            System.arraycopy(encrypted, 0, content, MAGIC.length + IV_LENGTH, encrypted.length);
+            return content;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Fail to encrypt the refresh tokens", e);
+        }
+    }
+
+    static byte[] decrypt(byte[] content, String secret) throws GeneralSecurityException {
+        if (content.length < MAGIC.length + IV_LENGTH || !Arrays.equals(MAGIC, Arrays.copyOf(content, MAGIC.length))) {
+            throw new GeneralSecurityException("Not a refresh tokens file");
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey(secret), new GCMParameterSpec(TAG_LENGTH_BITS, content, MAGIC.length, IV_LENGTH));
+        cipher.updateAAD(MAGIC);
+        return cipher.doFinal(content, MAGIC.length + IV_LENGTH, content.length - MAGIC.length - IV_LENGTH);
+    }
+
+    /**
+     * AES-128 key derived from the client secret, 128 bits being available on every JRE
+     * whatever its cryptography policy.
+     */
+    private static SecretKeySpec encryptionKey(String secret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec("refresh-token-vault".getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] derived = mac.doFinal(secret.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(derived, 0, 16, "AES");
+    }
+
+    private static void ownerOnly(Path path) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, the permissions of the data directory apply
+        }
+    }
+
+    private static String key(String email) {
+        return email.toLowerCase(Locale.ENGLISH);
+    }
+
+    public static final class Entry {
+        private final String email;
+        private final String login;
+        private final String refreshToken;
+        private final long storedAt;
+
+        Entry(String email, String login, String refreshToken, long storedAt) {
+            this.email = email;
+            this.login = login;
+            this.refreshToken = refreshToken;
+            this.storedAt = storedAt;
+        }
+
+        public String email() {
+            return email;
+        }
+
+        public String login() {
+            return login;
+        }
+
+        public String refreshToken() {
+            return refreshToken;
+        }
+
+        public long storedAt() {
+            return storedAt;
+        }
+    }
+}
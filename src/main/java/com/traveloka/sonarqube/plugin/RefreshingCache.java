@@ -0,0 +1,221 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory cache whose entries expire after a TTL. Once half of the TTL has elapsed,
+ * the stale value is still served while a fresh one is loaded in the background, so that warm
+ * keys never wait for the loader. Concurrent misses on the same key share a single load.
+ */
+final class RefreshingCache<K, V> {
+
+    private static final Logger LOG = Loggers.get(RefreshingCache.class);
+
+    interface Loader<K, V> {
+        V load(K key) throws IOException;
+    }
+
+    private final String name;
+    private final Loader<K, V> loader;
+    private final Executor refreshExecutor;
+    private final System2 system2;
+    private final long ttlMs;
+    private final long refreshAfterMs;
+    private final int maxSize;
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    RefreshingCache(String name, Loader<K, V> loader, Executor refreshExecutor, System2 system2, long ttlMs, int maxSize) {
+        this.name = name;
+        this.loader = loader;
+        this.refreshExecutor = refreshExecutor;
+        this.system2 = system2;
+        this.ttlMs = ttlMs;
+        this.refreshAfterMs = ttlMs / 2;
+        this.maxSize = maxSize;
+    }
+
+    V get(K key) throws IOException {
+        while (true) {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                Entry<V> loading = Entry.loading(key, loader);
+                if (entries.putIfAbsent(key, loading) == null) {
+                    return load(key, loading);
+                }
+            } else if (entry.loading != null) {
+                return await(entry.loading);
+            } else {
+                long age = system2.now() - entry.loadedAt;
+                if (age < ttlMs) {
+                    if (age >= refreshAfterMs) {
+                        refreshInBackground(key, entry);
+                    }
+                    return entry.value;
+                }
+                Entry<V> loading = Entry.loading(key, loader);
+                if (entries.replace(key, entry, loading)) {
+                    return load(key, loading);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the value of a key, for example after it has been refreshed by another component.
+     */
+    void put(K key, V value) {
+        entries.put(key, Entry.loaded(value, system2.now()));
+        evictIfNeeded();
+    }
+
+    void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    void invalidateAll() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private V load(K key, Entry<V> loading) throws IOException {
+        loading.loading.run();
+        try {
+            V value = await(loading.loading);
+            entries.replace(key, loading, Entry.loaded(value, system2.now()));
+            evictIfNeeded();
+            return value;
+        } catch (IOException | RuntimeException e) {
+            entries.remove(key, loading);
+            throw e;
+        }
+    }
+
+    private void refreshInBackground(K key, Entry<V> stale) {
+        if (!stale.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    V value = loader.load(key);
+                    entries.replace(key, stale, Entry.loaded(value, system2.now()));
+                } catch (IOException | RuntimeException e) {
+                    // the stale value is served until it expires, then loaded again on demand
+                    LOG.debug("Fail to refresh {} of {}", name, key, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stale.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Drops the expired entries, then the least recently loaded ones, down to 90% of the
+     * maximum size so that eviction does not run on every insertion.
+     */
+    private void evictIfNeeded() {
+        if (entries.size() <= maxSize || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = system2.now();
+            List<Map.Entry<K, Entry<V>>> loaded = new ArrayList<>(entries.size());
+            for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+                if (entry.getValue().loading != null) {
+                    continue;
+                }
+                if (now - entry.getValue().loadedAt >= ttlMs) {
+                    entries.remove(entry.getKey(), entry.getValue());
+                } else {
+                    loaded.add(entry);
+                }
+            }
+            int target = maxSize - maxSize / 10;
+            if (entries.size() > target) {
+                Collections.sort(loaded, (e1, e2) -> Long.compare(e1.getValue().loadedAt, e2.getValue().loadedAt));
+                for (int i = 0; i < loaded.size() && entries.size() > target; i++) {
+                    entries.remove(loaded.get(i).getKey(), loaded.get(i).getValue());
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private V await(FutureTask<V> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + name, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Fail to load " + name, cause);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final FutureTask<V> loading;
+        private final V value;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(FutureTask<V> loading, V value, long loadedAt) {
+            this.loading = loading;
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+
+        static <K, V> Entry<V> loading(K key, Loader<K, V> loader) {
+            return new Entry<>(new FutureTask<>(() -> loader.load(key)), null, 0L);
+        }
+
+        static <V> Entry<V> loaded(V value, long loadedAt) {
+            return new Entry<>(null, value, loadedAt);
+        }
+    }
+}
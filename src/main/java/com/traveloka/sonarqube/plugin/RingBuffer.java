@@ -0,0 +1,108 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import javax.annotation.CheckForNull;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Producers claim a slot by
+ * incrementing the tail, then publish their element in it; the consumer takes published
+ * elements in order and frees their slot. Neither side locks or allocates.
+ */
+final class RingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    // next slot to claim by producers
+    private final AtomicLong tail = new AtomicLong();
+    // next slot to take by the consumer, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    RingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds the element, or returns {@code false} if the buffer is full.
+     */
+    boolean offer(T element) {
+        while (true) {
+            long claimed = tail.get();
+            if (claimed - head.get() >= slots.length()) {
+                return false;
+            }
+            if (tail.compareAndSet(claimed, claimed + 1)) {
+                slots.lazySet((int) claimed & mask, element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest element, or returns {@code null} if there is none or if its producer has
+     * not published it yet. Only called by the consumer.
+     */
+    @CheckForNull
+    T poll() {
+        long next = head.get();
+        int index = (int) next & mask;
+        T element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        // the slot is freed before the head moves, so that producers never overwrite an element
+        slots.lazySet(index, null);
+        head.lazySet(next + 1);
+        return element;
+    }
+
+    /**
+     * Moves up to {@code max} elements to the given collection and returns their number. Only
+     * called by the consumer.
+     */
+    int drainTo(Collection<? super T> target, int max) {
+        int drained = 0;
+        while (drained < max) {
+            T element = poll();
+            if (element == null) {
+                break;
+            }
+            target.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Number of claimed slots, including the ones not published yet.
+     */
+    int size() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+}
@@ -0,0 +1,637 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.Startable;
+import org.sonar.api.server.ServerSide;
+import org.sonar.api.utils.System2;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Second tier of the identity caches, shared by the web nodes of a cluster through a table of
+ * the SonarQube database, so that a user landing on a node does not cost another call to Google
+ * when any node resolved them recently. The in-memory caches of each node stay in front of it:
+ * the table is only read on their misses.
+ * <p>
+ * Writes are queued and written by a background thread, so that a login never waits for them.
+ * Each batch of writes takes the next value of a counter stored in the database, in the same
+ * transaction, as the version of its entries. Each node periodically reads the entries with a
+ * version greater than the last one it has seen, and drops those written by other nodes from its
+ * in-memory caches, which load them again from the table on next use. The counter row is locked
+ * until the batch is committed, so versions become visible in order and no update is missed.
+ * <p>
+ * The table is an optimization only: when the database can not be reached, values are loaded
+ * from Google as if the tier was disabled. Connections are kept in a small pool, so a miss of the
+ * in-memory caches costs a query, not a connection, and a login never waits for one for long.
+ * <p>
+ * The plugin API gives plugins no access to the database of SonarQube, so the tier connects with
+ * the JDBC settings of the server, and the tables are created by the plugin in the schema of
+ * SonarQube, outside of its migrations. SonarQube neither upgrades nor drops them: they can be
+ * dropped once the tier is disabled, and are created again if it is enabled later.
+ */
+@ServerSide
+public class SharedIdentityCache implements Startable {
+
+    private static final Logger LOG = Loggers.get(SharedIdentityCache.class);
+
+    static final String TABLE = "AUTHGOOGLE_IDENTITY_CACHE";
+    static final String VERSION_TABLE = "AUTHGOOGLE_IDENTITY_VERSION";
+    static final int MAX_KEY_LENGTH = 255;
+    // larger values, users of hundreds of groups, are not shared
+    static final int MAX_PAYLOAD_LENGTH = 4000;
+    // format of the payload, which also keeps empty sets from being stored as NULL by Oracle
+    private static final String PAYLOAD_PREFIX = "1:";
+    private static final String SEPARATOR = "\n";
+    private static final long PURGE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+    static final int MAX_CONNECTIONS = 4;
+    // a login would rather call Google than wait longer for a connection
+    static final long BORROW_TIMEOUT_MS = 200L;
+    // connections idle for longer are checked before being used again
+    static final long VALIDATE_AFTER_IDLE_MS = TimeUnit.SECONDS.toMillis(30);
+    // writes beyond are dropped while the database is slow, the values are loaded again on the other nodes
+    static final int MAX_PENDING_WRITES = 1000;
+
+    interface Loader {
+        Set<String> load(String key) throws IOException;
+    }
+
+    private final GoogleSettings settings;
+    private final System2 system2;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+    private volatile boolean available;
+    private volatile ConnectionPool connections;
+    // only read and written by the polling thread, or by tests
+    private long lastSeenVersion;
+    private long lastPurge;
+    private ScheduledExecutorService poller;
+    // latest value to write of each key, written by the writer thread
+    private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile ExecutorService writer;
+
+    public SharedIdentityCache(GoogleSettings settings) {
+        this(settings, System2.INSTANCE);
+    }
+
+    SharedIdentityCache(GoogleSettings settings, System2 system2) {
+        this.settings = settings;
+        this.system2 = system2;
+    }
+
+    @Override
+    public void start() {
+        GoogleSettings.Snapshot snapshot = settings.snapshot();
+        if (!snapshot.isSharedCacheEnabled()) {
+            return;
+        }
+        if (snapshot.jdbcUrl() == null) {
+            LOG.warn("Shared groups cache is disabled, {} is not set", GoogleSettings.JDBC_URL);
+            return;
+        }
+        Driver driver = findDriver(snapshot.jdbcUrl());
+        if (driver == null) {
+            LOG.warn("Shared groups cache is disabled, no JDBC driver accepting {} is visible to the plugin", snapshot.jdbcUrl());
+            return;
+        }
+        ConnectionPool pool = new ConnectionPool(driver, snapshot.jdbcUrl(), snapshot.jdbcUsername(), snapshot.jdbcPassword(), system2);
+        try (Connection connection = pool.borrow()) {
+            createSchema(connection);
+            lastSeenVersion = currentVersion(connection);
+        } catch (SQLException e) {
+            pool.close();
+            LOG.warn("Shared groups cache is disabled, fail to create table {}", TABLE, e);
+            return;
+        }
+        LOG.info("Shared groups cache uses tables {} and {} of the SonarQube database. They are not managed by SonarQube and "
+                + "can be dropped once the shared cache is disabled.", TABLE, VERSION_TABLE);
+        connections = pool;
+        lastPurge = system2.now();
+        available = true;
+        writer = Executors.newSingleThreadExecutor(new NamedThreadFactory("shared-cache-writer"));
+        poller = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shared-cache"));
+        long intervalMs = Math.max(1000L, snapshot.sharedCachePollIntervalMs());
+        poller.scheduleWithFixedDelay(this::pollQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        available = false;
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+        // pending writes are dropped: the other nodes load the values again
+        ExecutorService pendingWriter = writer;
+        if (pendingWriter != null) {
+            pendingWriter.shutdownNow();
+        }
+        ConnectionPool pool = connections;
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Registers the in-memory cache of a region, whose key is dropped each time another node
+     * writes a new value of it.
+     */
+    public void onUpdate(String region, Consumer<String> listener) {
+        listeners.computeIfAbsent(region, r -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Value of the key shared by the nodes, unless it was loaded more than half of its
+     * time to live ago, in which case it is loaded again and shared with the other nodes.
+     * Half of the time to live is the age at which the in-memory caches refresh their
+     * entries, so an entry is never served older from the table than from memory.
+     */
+    public Set<String> get(String region, String key, long ttlMs, Loader loader) throws IOException {
+        String id = region + ':' + key;
+        if (!available || id.length() > MAX_KEY_LENGTH) {
+            return loader.load(key);
+        }
+        long now = system2.now();
+        Set<String> shared = null;
+        try {
+            shared = read(id, now - ttlMs / 2);
+        } catch (SQLException e) {
+            LOG.debug("Fail to read {} from the shared cache", id, e);
+        }
+        if (shared != null) {
+            return shared;
+        }
+        Set<String> value = loader.load(key);
+        write(id, value, now, ttlMs);
+        return value;
+    }
+
+    /**
+     * Shares a value loaded by this node outside of {@link #get}, for example in the background.
+     */
+    public void put(String region, String key, long ttlMs, Set<String> value) {
+        String id = region + ':' + key;
+        if (available && id.length() <= MAX_KEY_LENGTH) {
+            write(id, value, system2.now(), ttlMs);
+        }
+    }
+
+    private void write(String id, Set<String> value, long now, long ttlMs) {
+        String payload = encode(value);
+        if (payload.length() > MAX_PAYLOAD_LENGTH) {
+            return;
+        }
+        if (pendingWrites.size() >= MAX_PENDING_WRITES && !pendingWrites.containsKey(id)) {
+            LOG.debug("Not writing {} to the shared cache, {} writes are pending", id, MAX_PENDING_WRITES);
+            return;
+        }
+        pendingWrites.put(id, new PendingWrite(payload, now, now + ttlMs));
+        ExecutorService executor = writer;
+        if (executor != null && flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                // stopped
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        // writes queued from now on schedule another flush
+        flushScheduled.set(false);
+        try {
+            flush();
+        } catch (SQLException | RuntimeException e) {
+            LOG.debug("Fail to write to the shared cache", e);
+        }
+    }
+
+    /**
+     * Writes the pending values in a single transaction, taking the lock of the version row once.
+     * Values that fail to be written are dropped.
+     */
+    synchronized void flush() throws SQLException {
+        Map<String, PendingWrite> batch = new HashMap<>();
+        for (String id : pendingWrites.keySet()) {
+            PendingWrite write = pendingWrites.remove(id);
+            if (write != null) {
+                batch.put(id, write);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void pollQuietly() {
+        try {
+            poll();
+        } catch (SQLException | RuntimeException e) {
+            LOG.warn("Fail to read the updates of the shared groups cache, retrying at the next interval", e);
+        }
+    }
+
+    /**
+     * Drops from the in-memory caches the keys updated by other nodes since the last poll,
+     * and from time to time deletes the expired entries of the table.
+     */
+    synchronized void poll() throws SQLException {
+        try (Connection connection = open();
+             PreparedStatement select = connection.prepareStatement(
+                     "SELECT CACHE_KEY, VERSION, NODE_ID FROM " + TABLE + " WHERE VERSION > ? ORDER BY VERSION")) {
+            select.setLong(1, lastSeenVersion);
+            long seen = lastSeenVersion;
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    seen = Math.max(seen, rows.getLong(2));
+                    if (!nodeId.equals(rows.getString(3))) {
+                        notifyUpdate(rows.getString(1));
+                    }
+                }
+            }
+            lastSeenVersion = seen;
+
+            long now = system2.now();
+            if (now - lastPurge >= PURGE_INTERVAL_MS) {
+                try (PreparedStatement purge = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE EXPIRES_AT < ?")) {
+                    purge.setLong(1, now);
+                    purge.executeUpdate();
+                }
+                lastPurge = now;
+            }
+        }
+    }
+
+    private void notifyUpdate(String id) {
+        int separator = id.indexOf(':');
+        List<Consumer<String>> regionListeners = listeners.get(id.substring(0, separator));
+        if (regionListeners != null) {
+            String key = id.substring(separator + 1);
+            for (Consumer<String> listener : regionListeners) {
+                listener.accept(key);
+            }
+        }
+    }
+
+    @CheckForNull
+    private Set<String> read(String id, long staleIfLoadedBy) throws SQLException {
+        try (Connection connection = open();
+             PreparedStatement select = connection.prepareStatement("SELECT PAYLOAD, LOADED_AT FROM " + TABLE + " WHERE CACHE_KEY = ?")) {
+            select.setString(1, id);
+            try (ResultSet rows = select.executeQuery()) {
+                if (!rows.next()) {
+                    return null;
+                }
+                return rows.getLong(2) <= staleIfLoadedBy ? null : decode(rows.getString(1));
+            }
+        }
+    }
+
+    private void write(Map<String, PendingWrite> batch) throws SQLException {
+        try (Connection connection = open()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE " + TABLE + " SET PAYLOAD = ?, VERSION = ?, LOADED_AT = ?, EXPIRES_AT = ?, NODE_ID = ? WHERE CACHE_KEY = ?");
+                 PreparedStatement insert = connection.prepareStatement(
+                         "INSERT INTO " + TABLE + " (CACHE_KEY, PAYLOAD, VERSION, LOADED_AT, EXPIRES_AT, NODE_ID) VALUES (?, ?, ?, ?, ?, ?)")) {
+                long version = nextVersion(connection);
+                for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+                    PendingWrite write = entry.getValue();
+                    update.setString(1, write.payload);
+                    update.setLong(2, version);
+                    update.setLong(3, write.loadedAt);
+                    update.setLong(4, write.expiresAt);
+                    update.setString(5, nodeId);
+                    update.setString(6, entry.getKey());
+                    if (update.executeUpdate() == 0) {
+                        // no other node can insert the key meanwhile, it would first wait for the version row
+                        insert.setString(1, entry.getKey());
+                        insert.setString(2, write.payload);
+                        insert.setLong(3, version);
+                        insert.setLong(4, write.loadedAt);
+                        insert.setLong(5, write.expiresAt);
+                        insert.setString(6, nodeId);
+                        insert.executeUpdate();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Increments the counter, which stays locked by the transaction of the connection until
+     * it is committed or rolled back.
+     */
+    private static long nextVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE " + VERSION_TABLE + " SET VERSION = VERSION + 1");
+        }
+        return currentVersion(connection);
+    }
+
+    private static long currentVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT VERSION FROM " + VERSION_TABLE)) {
+            return rows.next() ? rows.getLong(1) : 0L;
+        }
+    }
+
+    /**
+     * Creates the tables unless they exist. Nodes starting together may race to create them,
+     * in which case the statements of all but one fail and are ignored.
+     */
+    private static void createSchema(Connection connection) throws SQLException {
+        createTable(connection, TABLE, "CREATE TABLE " + TABLE + " ("
+                + "CACHE_KEY VARCHAR(" + MAX_KEY_LENGTH + ") NOT NULL PRIMARY KEY, "
+                + "PAYLOAD VARCHAR(" + MAX_PAYLOAD_LENGTH + ") NOT NULL, "
+                + "VERSION NUMERIC(19) NOT NULL, "
+                + "LOADED_AT NUMERIC(19) NOT NULL, "
+                + "EXPIRES_AT NUMERIC(19) NOT NULL, "
+                + "NODE_ID VARCHAR(40) NOT NULL)",
+                "CREATE INDEX " + TABLE + "_VERSION ON " + TABLE + " (VERSION)");
+        createTable(connection, VERSION_TABLE, "CREATE TABLE " + VERSION_TABLE + " ("
+                + "ID INTEGER NOT NULL PRIMARY KEY, "
+                + "VERSION NUMERIC(19) NOT NULL)",
+                "INSERT INTO " + VERSION_TABLE + " (ID, VERSION) VALUES (1, 0)");
+    }
+
+    private static void createTable(Connection connection, String table, String... statements) throws SQLException {
+        if (tableExists(connection, table)) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.executeUpdate(sql);
+            }
+        } catch (SQLException e) {
+            if (!tableExists(connection, table)) {
+                throw e;
+            }
+        }
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // PostgreSQL stores unquoted names in lower case, the other databases in upper case
+        for (String name : new String[] {table, table.toLowerCase(Locale.ENGLISH)}) {
+            try (ResultSet tables = metaData.getTables(null, null, name, null)) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Connection open() throws SQLException {
+        ConnectionPool pool = connections;
+        if (pool == null) {
+            throw new SQLException("Shared groups cache is not started");
+        }
+        return pool.borrow();
+    }
+
+    /**
+     * Driver of the SonarQube database. {@link DriverManager} only returns the drivers visible from
+     * the classloader of the plugin, while the server loads them from its own classloader, which
+     * is the context classloader of the thread starting the plugin.
+     */
+    @CheckForNull
+    static Driver findDriver(String url) {
+        try {
+            return DriverManager.getDriver(url);
+        } catch (SQLException e) {
+            // not visible from the plugin
+        }
+        for (ClassLoader loader : Arrays.asList(Thread.currentThread().getContextClassLoader(), SharedIdentityCache.class.getClassLoader())) {
+            if (loader == null) {
+                continue;
+            }
+            try {
+                for (Driver driver : ServiceLoader.load(Driver.class, loader)) {
+                    if (driver.acceptsURL(url)) {
+                        return driver;
+                    }
+                }
+            } catch (SQLException | ServiceConfigurationError e) {
+                LOG.debug("Fail to look up JDBC drivers of {}", loader, e);
+            }
+        }
+        return null;
+    }
+
+    static String encode(Set<String> values) {
+        return PAYLOAD_PREFIX + String.join(SEPARATOR, values);
+    }
+
+    static Set<String> decode(String payload) {
+        String values = payload.substring(PAYLOAD_PREFIX.length());
+        if (values.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(values.split(SEPARATOR))));
+    }
+
+    int idleConnections() {
+        ConnectionPool pool = connections;
+        return pool == null ? 0 : pool.idle.size();
+    }
+
+    /**
+     * Bounded pool of connections, handed out as proxies whose {@code close} gives the connection
+     * back. Borrowing waits for {@link #BORROW_TIMEOUT_MS} at most.
+     */
+    private static final class ConnectionPool {
+        private final Driver driver;
+        private final String url;
+        private final Properties properties = new Properties();
+        private final System2 system2;
+        private final Semaphore permits = new Semaphore(MAX_CONNECTIONS);
+        private final BlockingQueue<Idle> idle = new ArrayBlockingQueue<>(MAX_CONNECTIONS);
+        private volatile boolean closed;
+
+        ConnectionPool(Driver driver, String url, @Nullable String username, @Nullable String password, System2 system2) {
+            this.driver = driver;
+            this.url = url;
+            this.system2 = system2;
+            if (username != null) {
+                properties.setProperty("user", username);
+            }
+            if (password != null) {
+                properties.setProperty("password", password);
+            }
+        }
+
+        Connection borrow() throws SQLException {
+            try {
+                if (!permits.tryAcquire(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new SQLException("No connection to the database available within " + BORROW_TIMEOUT_MS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection to the database", e);
+            }
+            try {
+                return lease(connection());
+            } catch (SQLException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private Connection connection() throws SQLException {
+            for (Idle candidate; (candidate = idle.poll()) != null; ) {
+                if (system2.now() - candidate.since < VALIDATE_AFTER_IDLE_MS || candidate.connection.isValid(1)) {
+                    return candidate.connection;
+                }
+                closeQuietly(candidate.connection);
+            }
+            Connection connection = driver.connect(url, properties);
+            if (connection == null) {
+                throw new SQLException("JDBC driver does not accept " + url);
+            }
+            return connection;
+        }
+
+        private Connection lease(Connection connection) {
+            AtomicBoolean released = new AtomicBoolean();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                    (proxy, method, args) -> {
+                        if ("close".equals(method.getName()) && method.getParameterCount() == 0) {
+                            if (released.compareAndSet(false, true)) {
+                                giveBack(connection);
+                            }
+                            return null;
+                        }
+                        if (released.get()) {
+                            throw new SQLException("Connection is closed");
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        private void giveBack(Connection connection) {
+            try {
+                if (!closed && !connection.isClosed()) {
+                    if (!connection.getAutoCommit()) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                    if (idle.offer(new Idle(connection, system2.now()))) {
+                        return;
+                    }
+                }
+                closeQuietly(connection);
+            } catch (SQLException e) {
+                closeQuietly(connection);
+            } finally {
+                permits.release();
+            }
+        }
+
+        void close() {
+            closed = true;
+            for (Idle candidate; (candidate = idle.poll()) != null; ) {
+                closeQuietly(candidate.connection);
+            }
+        }
+
+        private static void closeQuietly(Connection connection) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.debug("Fail to close a connection to the database", e);
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        private final String payload;
+        private final long loadedAt;
+        private final long expiresAt;
+
+        PendingWrite(String payload, long loadedAt, long expiresAt) {
+            this.payload = payload;
+            this.loadedAt = loadedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Idle {
+        private final Connection connection;
+        private final long since;
+
+        Idle(Connection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.utils.System2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token buckets keyed by a string, each holding up to {@code permitsPerMinute} tokens and refilled
+ * continuously at that rate. Buckets are spread over independently locked stripes, so that
+ * threads acquiring for different keys rarely contend.
+ * <p>
+ * Each stripe keeps its buckets in access order. A bucket untouched for a minute is full again,
+ * that is equivalent to no bucket at all, so idle buckets are evicted from the head of the stripe
+ * as new ones are added. Stripes never grow beyond their share of {@code maxKeys}: the least
+ * recently used bucket is evicted first, which at worst grants a fresh burst to its key.
+ */
+final class TokenBuckets {
+
+    static final long IDLE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int maxKeysPerStripe;
+    private final System2 system2;
+
+    TokenBuckets(int maxKeys, System2 system2) {
+        this.maxKeysPerStripe = Math.max(1, maxKeys / STRIPES);
+        this.system2 = system2;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes a token from the bucket of the key, or returns {@code false} if it is empty. Always
+     * succeeds if {@code permitsPerMinute} is not positive.
+     */
+    boolean tryAcquire(String key, int permitsPerMinute) {
+        if (permitsPerMinute <= 0) {
+            return true;
+        }
+        int hash = key.hashCode();
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        long now = system2.now();
+        stripe.lock.lock();
+        try {
+            Bucket bucket = stripe.buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(permitsPerMinute, now);
+                stripe.buckets.put(key, bucket);
+                stripe.evict(now, maxKeysPerStripe);
+            }
+            return bucket.tryAcquire(permitsPerMinute, now);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.buckets.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        // access order, least recently used first
+        private final LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+
+        private void evict(long now, int maxKeys) {
+            Iterator<Map.Entry<String, Bucket>> eldest = buckets.entrySet().iterator();
+            while (eldest.hasNext()) {
+                Bucket bucket = eldest.next().getValue();
+                if (buckets.size() <= maxKeys && now - bucket.updatedAt < IDLE_MS) {
+                    break;
+                }
+                eldest.remove();
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long updatedAt;
+
+        private Bucket(int permitsPerMinute, long now) {
+            this.tokens = permitsPerMinute;
+            this.updatedAt = now;
+        }
+
+        private boolean tryAcquire(int permitsPerMinute, long now) {
+            long elapsed = Math.max(0L, now - updatedAt);
+            tokens = Math.min(permitsPerMinute, tokens + elapsed * (double) permitsPerMinute / IDLE_MS);
+            updatedAt = now;
+            if (tokens < 1d) {
+                return false;
+            }
+            tokens -= 1d;
+            return true;
+        }
+    }
+}
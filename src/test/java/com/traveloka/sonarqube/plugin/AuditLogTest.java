@@ -0,0 +1,200 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.System2;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AuditLogTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  LoginMetrics metrics = new LoginMetrics();
+  System2 system2 = mock(System2.class);
+  File logsDir;
+
+  AuditLog underTest = new AuditLog(googleSettings, metrics, system2);
+
+  @Before
+  public void setUp() throws Exception {
+    logsDir = temp.newFolder("logs");
+    settings.setProperty(GoogleSettings.LOGS_DIR, logsDir.getAbsolutePath());
+    googleSettings.refresh();
+    when(system2.now()).thenReturn(1_476_000_000_123L);
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+  }
+
+  @Test
+  public void write_events_as_json_lines() throws Exception {
+    underTest.start();
+
+    underTest.record(AuditLog.Action.INIT, null, null, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime());
+    underTest.record(AuditLog.Action.CALLBACK, "john.doe@example.com", "example.com", LoginMetrics.Outcome.SUCCESS, null,
+      System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(42));
+    underTest.record(AuditLog.Action.CALLBACK, null, null, LoginMetrics.Outcome.CSRF_FAILURE, "CSRF \"state\"\n\u0001invalid",
+      System.nanoTime());
+    underTest.stop();
+
+    List<String> lines = lines(AuditLog.FILE_NAME);
+    assertThat(lines).hasSize(3);
+    assertThat(lines.get(0)).startsWith("{\"timestamp\":\"2016-10-09T08:00:00.123Z\",\"action\":\"init\",\"outcome\":\"success\",\"latencyMs\":");
+    String callback = "{\"timestamp\":\"2016-10-09T08:00:00.123Z\",\"action\":\"callback\",\"outcome\":\"success\","
+      + "\"email\":\"john.doe@example.com\",\"hostedDomain\":\"example.com\",\"latencyMs\":";
+    assertThat(lines.get(1)).startsWith(callback).endsWith("}");
+    // the thread may be descheduled between the start and the end of the call
+    assertThat(Double.parseDouble(lines.get(1).substring(callback.length(), lines.get(1).length() - 1))).isGreaterThanOrEqualTo(42d);
+    assertThat(lines.get(2)).contains("\"outcome\":\"csrf_failure\",\"reason\":\"CSRF \\\"state\\\"\\n\\u0001invalid\",");
+    assertThat(metrics.getDroppedAuditEvents()).isZero();
+  }
+
+  @Test
+  public void append_to_existing_log() throws Exception {
+    Files.write(new File(logsDir, AuditLog.FILE_NAME).toPath(), "{\"previous\":true}\n".getBytes(StandardCharsets.UTF_8));
+    underTest.start();
+
+    underTest.record(AuditLog.Action.INIT, null, null, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime());
+    underTest.stop();
+
+    assertThat(lines(AuditLog.FILE_NAME)).hasSize(2).startsWith("{\"previous\":true}");
+  }
+
+  @Test
+  public void rotate_log_by_size() throws Exception {
+    settings.setProperty(GoogleSettings.AUDIT_LOG_MAX_FILE_SIZE, 1);
+    settings.setProperty(GoogleSettings.AUDIT_LOG_MAX_FILES, 2);
+    googleSettings.refresh();
+    underTest.open();
+
+    // the writer is started after each batch of 10 events is recorded, so that each is written at once
+    for (int batch = 0; batch < 4; batch++) {
+      for (int i = 0; i < 10; i++) {
+        underTest.record(AuditLog.Action.CALLBACK, "user" + batch + "@example.com", "example.com", LoginMetrics.Outcome.SUCCESS, null,
+          System.nanoTime());
+      }
+      underTest.startWriter();
+      underTest.stop();
+      underTest.open();
+    }
+
+    assertOnlyEventsOf(AuditLog.FILE_NAME, "user3@");
+    assertOnlyEventsOf("auth-google-audit.1.log", "user2@");
+    assertOnlyEventsOf("auth-google-audit.2.log", "user1@");
+    assertThat(new File(logsDir, "auth-google-audit.3.log")).doesNotExist();
+  }
+
+  @Test
+  public void drop_events_when_buffer_is_full() throws Exception {
+    settings.setProperty(GoogleSettings.AUDIT_LOG_BUFFER_SIZE, 4);
+    googleSettings.refresh();
+    underTest.open();
+
+    for (int i = 0; i < 6; i++) {
+      underTest.record(AuditLog.Action.INIT, null, null, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime());
+    }
+    underTest.startWriter();
+    underTest.stop();
+
+    assertThat(metrics.getDroppedAuditEvents()).isEqualTo(2);
+    assertThat(lines(AuditLog.FILE_NAME)).hasSize(4);
+  }
+
+  @Test
+  public void wait_for_room_when_buffer_is_full_and_overflow_blocks() throws Exception {
+    settings.setProperty(GoogleSettings.AUDIT_LOG_BUFFER_SIZE, 4);
+    settings.setProperty(GoogleSettings.AUDIT_LOG_OVERFLOW, "block");
+    googleSettings.refresh();
+    underTest.open();
+    for (int i = 0; i < 4; i++) {
+      underTest.record(AuditLog.Action.INIT, null, null, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime());
+    }
+
+    CompletableFuture<Void> blocked = CompletableFuture.runAsync(
+      () -> underTest.record(AuditLog.Action.INIT, null, null, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime()));
+    Thread.sleep(100L);
+    assertThat(blocked.isDone()).isFalse();
+
+    underTest.startWriter();
+    blocked.get(5, TimeUnit.SECONDS);
+    underTest.stop();
+
+    assertThat(metrics.getDroppedAuditEvents()).isZero();
+    assertThat(lines(AuditLog.FILE_NAME)).hasSize(5);
+  }
+
+  @Test
+  public void do_nothing_when_disabled() throws Exception {
+    settings.setProperty(GoogleSettings.AUDIT_LOG, false);
+    googleSettings.refresh();
+    underTest.start();
+
+    underTest.record(AuditLog.Action.INIT, null, null, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime());
+    underTest.stop();
+
+    assertThat(logsDir.list()).isEmpty();
+    assertThat(metrics.getDroppedAuditEvents()).isZero();
+  }
+
+  @Test
+  public void do_nothing_without_logs_directory() throws Exception {
+    settings.removeProperty(GoogleSettings.LOGS_DIR);
+    googleSettings.refresh();
+    underTest.start();
+
+    underTest.record(AuditLog.Action.INIT, null, null, LoginMetrics.Outcome.SUCCESS, null, System.nanoTime());
+    underTest.stop();
+
+    assertThat(logsDir.list()).isEmpty();
+  }
+
+  private void assertOnlyEventsOf(String fileName, String email) throws Exception {
+    List<String> lines = lines(fileName);
+    assertThat(lines).hasSize(10);
+    for (String line : lines) {
+      assertThat(line).contains(email);
+    }
+  }
+
+  private List<String> lines(String fileName) throws Exception {
+    return Files.readAllLines(new File(logsDir, fileName).toPath(), StandardCharsets.UTF_8);
+  }
+}
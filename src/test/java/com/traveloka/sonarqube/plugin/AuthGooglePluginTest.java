@@ -35,6 +35,6 @@ public class AuthGooglePluginTest {
     public void test_extensions() throws Exception {
         underTest.define(context);
 
-        assertThat(context.getExtensions()).hasSize(8);
+        assertThat(context.getExtensions()).hasSize(76);
     }
 }
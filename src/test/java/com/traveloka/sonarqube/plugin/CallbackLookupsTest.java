@@ -0,0 +1,195 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.server.authentication.UnauthorizedException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class CallbackLookupsTest {
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  CallbackLookups underTest;
+
+  @After
+  public void tearDown() {
+    if (underTest != null) {
+      underTest.stop();
+    }
+  }
+
+  @Test
+  public void run_lookups_in_parallel() {
+    underTest = new CallbackLookups(googleSettings);
+    CountDownLatch bothStarted = new CountDownLatch(2);
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      // each lookup completes only if the other one runs at the same time
+      CallbackLookups.Lookup<Boolean> first = batch.submit("first", () -> awaitOther(bothStarted));
+      CallbackLookups.Lookup<Boolean> second = batch.submit("second", () -> awaitOther(bothStarted));
+
+      assertThat(batch.require(first)).isTrue();
+      assertThat(batch.require(second)).isTrue();
+    }
+  }
+
+  @Test
+  public void apply_new_concurrency_to_next_lookups() {
+    settings.setProperty(GoogleSettings.LOOKUP_MAX_CONCURRENCY, 0);
+    underTest = new CallbackLookups(googleSettings);
+    assertThat(lookupThread()).isEqualTo(Thread.currentThread().getName());
+
+    settings.setProperty(GoogleSettings.LOOKUP_MAX_CONCURRENCY, 2);
+    googleSettings.refresh();
+    assertThat(lookupThread()).startsWith("authgoogle-callback-lookups-");
+  }
+
+  @Test
+  public void fail_required_lookup_which_misses_the_deadline() {
+    settings.setProperty(GoogleSettings.LOOKUP_TIMEOUT, 50);
+    underTest = new CallbackLookups(googleSettings);
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      CallbackLookups.Lookup<String> slow = batch.submit("slow", () -> {
+        Thread.sleep(2_000L);
+        return "late";
+      });
+      batch.require(slow);
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessageContaining("in time");
+    }
+  }
+
+  @Test
+  public void fall_back_when_optional_lookup_misses_the_deadline() {
+    settings.setProperty(GoogleSettings.LOOKUP_TIMEOUT, 50);
+    underTest = new CallbackLookups(googleSettings);
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      CallbackLookups.Lookup<String> slow = batch.submit("slow", () -> {
+        Thread.sleep(2_000L);
+        return "late";
+      });
+      assertThat(batch.orElse(slow, "fallback")).isEqualTo("fallback");
+    }
+  }
+
+  @Test
+  public void deadline_is_shared_by_all_lookups() throws Exception {
+    settings.setProperty(GoogleSettings.LOOKUP_TIMEOUT, 200);
+    underTest = new CallbackLookups(googleSettings);
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      CallbackLookups.Lookup<String> first = batch.submit("first", () -> {
+        Thread.sleep(150L);
+        return "first";
+      });
+      CallbackLookups.Lookup<String> second = batch.submit("second", () -> {
+        Thread.sleep(300L);
+        return "second";
+      });
+      assertThat(batch.orElse(first, "fallback")).isEqualTo("first");
+      // the second lookup gets what is left of the deadline, not a deadline of its own
+      assertThat(batch.orElse(second, "fallback")).isEqualTo("fallback");
+      assertThat(batch.remainingNanos()).isZero();
+    }
+  }
+
+  @Test
+  public void rethrow_failure_of_required_lookup() {
+    underTest = new CallbackLookups(googleSettings);
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      batch.require(batch.submit("failing", () -> {
+        throw new UnauthorizedException("invalid");
+      }));
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage("invalid");
+    }
+  }
+
+  @Test
+  public void fall_back_when_optional_lookup_fails() {
+    underTest = new CallbackLookups(googleSettings);
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      CallbackLookups.Lookup<String> failing = batch.submit("failing", () -> {
+        throw new IllegalStateException("unavailable");
+      });
+      assertThat(batch.orElse(failing, "fallback")).isEqualTo("fallback");
+    }
+  }
+
+  @Test
+  public void run_lookups_in_calling_thread_when_pool_is_full() {
+    settings.setProperty(GoogleSettings.LOOKUP_MAX_CONCURRENCY, 1);
+    underTest = new CallbackLookups(googleSettings);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicReference<Thread> thread = new AtomicReference<>();
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      CallbackLookups.Lookup<Boolean> busy = batch.submit("busy", () -> release.await(5, TimeUnit.SECONDS));
+      batch.submit("inline", () -> {
+        thread.set(Thread.currentThread());
+        return null;
+      });
+      release.countDown();
+      assertThat(batch.require(busy)).isTrue();
+    }
+    assertThat(thread.get()).isSameAs(Thread.currentThread());
+  }
+
+  @Test
+  public void run_lookups_in_calling_thread_when_disabled() {
+    settings.setProperty(GoogleSettings.LOOKUP_MAX_CONCURRENCY, 0);
+    underTest = new CallbackLookups(googleSettings);
+    AtomicReference<Thread> thread = new AtomicReference<>();
+
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      batch.require(batch.submit("inline", () -> {
+        thread.set(Thread.currentThread());
+        return null;
+      }));
+    }
+    assertThat(thread.get()).isSameAs(Thread.currentThread());
+  }
+
+  private static boolean awaitOther(CountDownLatch bothStarted) throws InterruptedException {
+    bothStarted.countDown();
+    return bothStarted.await(5, TimeUnit.SECONDS);
+  }
+
+  private String lookupThread() {
+    try (CallbackLookups.Batch batch = underTest.start(googleSettings.snapshot())) {
+      return batch.require(batch.submit("thread", () -> Thread.currentThread().getName()));
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CircuitBreakerTest {
+
+  System2 system2 = mock(System2.class);
+
+  CircuitBreaker underTest = new CircuitBreaker(system2);
+
+  @Test
+  public void open_after_consecutive_failures() {
+    underTest.onFailure(3);
+    underTest.onFailure(3);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(underTest.tryAcquire(1000L)).isTrue();
+
+    underTest.onFailure(3);
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(underTest.tryAcquire(1000L)).isFalse();
+  }
+
+  @Test
+  public void success_resets_failure_count() {
+    underTest.onFailure(2);
+    underTest.onSuccess();
+    underTest.onFailure(2);
+
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void let_a_single_probe_through_once_open_duration_has_elapsed() {
+    when(system2.now()).thenReturn(10_000L);
+    underTest.onFailure(1);
+
+    when(system2.now()).thenReturn(10_999L);
+    assertThat(underTest.tryAcquire(1000L)).isFalse();
+
+    when(system2.now()).thenReturn(11_000L);
+    assertThat(underTest.tryAcquire(1000L)).isTrue();
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThat(underTest.tryAcquire(1000L)).isFalse();
+  }
+
+  @Test
+  public void close_when_probe_succeeds() {
+    when(system2.now()).thenReturn(10_000L);
+    underTest.onFailure(1);
+    when(system2.now()).thenReturn(20_000L);
+    underTest.tryAcquire(1000L);
+
+    underTest.onSuccess();
+
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(underTest.tryAcquire(1000L)).isTrue();
+  }
+
+  @Test
+  public void reopen_when_probe_fails() {
+    when(system2.now()).thenReturn(10_000L);
+    underTest.onFailure(5);
+    underTest.onFailure(5);
+    underTest.onFailure(5);
+    underTest.onFailure(5);
+    underTest.onFailure(5);
+    when(system2.now()).thenReturn(20_000L);
+    underTest.tryAcquire(1000L);
+
+    underTest.onFailure(5);
+
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(underTest.tryAcquire(1000L)).isFalse();
+  }
+
+  @Test
+  public void released_probe_lets_next_caller_probe() {
+    when(system2.now()).thenReturn(10_000L);
+    underTest.onFailure(1);
+    when(system2.now()).thenReturn(20_000L);
+    underTest.tryAcquire(1000L);
+
+    underTest.release();
+
+    assertThat(underTest.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(underTest.tryAcquire(1000L)).isTrue();
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.System2;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class DeprovisioningSweepTest {
+
+  private static final String ADMIN_AUTHORIZATION = "Basic " + Base64.getEncoder().encodeToString("admin-token:".getBytes(StandardCharsets.UTF_8));
+
+  @Rule
+  public MockWebServer sonarServer = new MockWebServer();
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  GoogleHttpTransport httpTransport = new GoogleHttpTransport(googleSettings);
+  GoogleDirectoryClient directory = mock(GoogleDirectoryClient.class);
+  LoginMappingFile loginMappings = mock(LoginMappingFile.class);
+  // fake SonarQube: active users by login, their email, and the status of the next deactivations
+  Map<String, String> activeUsers = new ConcurrentHashMap<>();
+  Queue<Integer> deactivationStatuses = new ConcurrentLinkedQueue<>();
+  List<String> searches = Collections.synchronizedList(new ArrayList<>());
+  List<RecordedRequest> deactivations = Collections.synchronizedList(new ArrayList<>());
+  LoginMetrics metrics = new LoginMetrics();
+  System2 system2 = mock(System2.class);
+
+  DeprovisioningSweep underTest = new DeprovisioningSweep(googleSettings, directory, httpTransport, loginMappings, metrics, system2);
+
+  @Before
+  public void setUp() throws Exception {
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "example.com");
+    settings.setProperty(GoogleSettings.DEPROVISIONING, true);
+    settings.setProperty(GoogleSettings.DEPROVISIONING_ADMIN_TOKEN, "admin-token");
+    settings.setProperty(GoogleSettings.DEPROVISIONING_PAGE_SIZE, 2);
+    settings.setProperty(GoogleSettings.DEPROVISIONING_SERVER_URL, "http://127.0.0.1:" + sonarServer.getPort() + "/sonar/");
+    googleSettings.refresh();
+    when(directory.deprovisionedUsers(eq(false), anyString(), anyInt())).thenReturn(page(null));
+    when(directory.deprovisionedUsers(eq(true), anyString(), anyInt())).thenReturn(page(null));
+    when(system2.now()).thenReturn(1000L, 1250L, 2000L, 2100L);
+    sonarServer.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        try {
+          return dispatchUsersWs(request);
+        } catch (UnsupportedEncodingException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+    httpTransport.stop();
+  }
+
+  @Test
+  public void deactivate_active_users_of_suspended_and_deleted_accounts() throws Exception {
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page(null, "John@example.com", "jane@other.com", "bob@example.com"));
+    when(directory.deprovisionedUsers(true, null, 2)).thenReturn(page(null, "alice@example.com"));
+    activeUsers("john", "alice", "johnny");
+
+    underTest.sweep();
+
+    List<String> bodies = new ArrayList<>();
+    for (RecordedRequest request : deactivations) {
+      assertThat(request.getMethod()).isEqualTo("POST");
+      assertThat(request.getHeader("Authorization")).isEqualTo(ADMIN_AUTHORIZATION);
+      bodies.add(request.getBody().readUtf8());
+    }
+    assertThat(bodies).containsOnly("login=john", "login=alice");
+    assertThat(activeUsers).containsOnlyKeys("johnny");
+    // the account of the other domain is not looked up
+    assertThat(searches).containsOnly("john", "bob", "alice");
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.SWEEPS)).isEqualTo(1);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.PAGES)).isEqualTo(2);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.USERS_CHECKED)).isEqualTo(4);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.USERS_DEACTIVATED)).isEqualTo(2);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.FAILURES)).isZero();
+    assertThat(metrics.getLastSweepMillis()).isEqualTo(1250L);
+    assertThat(metrics.getLastSweepDurationMillis()).isEqualTo(250L);
+  }
+
+  @Test
+  public void read_pages_one_after_the_other() throws Exception {
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page("second", "john@example.com", "bob@example.com"));
+    when(directory.deprovisionedUsers(false, "second", 2)).thenReturn(page(null, "alice@example.com"));
+    activeUsers("john", "alice");
+
+    underTest.sweep();
+
+    verify(directory).deprovisionedUsers(false, "second", 2);
+    // the users of the first page are deactivated before the second page is read
+    assertThat(deactivatedLogins()).containsExactly("login=john", "login=alice");
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.PAGES)).isEqualTo(3);
+  }
+
+  @Test
+  public void use_login_of_mapping_file() throws Exception {
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page(null, "john@example.com"));
+    when(loginMappings.login("john@example.com")).thenReturn("jdoe");
+    activeUsers.put("jdoe", "john@example.com");
+
+    underTest.sweep();
+
+    assertThat(deactivatedLogins()).containsExactly("login=jdoe");
+  }
+
+  @Test
+  public void skip_accounts_handled_by_previous_sweep() throws Exception {
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page(null, "john@example.com", "bob@example.com"));
+    activeUsers("john");
+
+    underTest.sweep();
+    underTest.sweep();
+
+    assertThat(searches).hasSize(2).containsOnly("john", "bob");
+    assertThat(deactivations).hasSize(1);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.USERS_CHECKED)).isEqualTo(4);
+  }
+
+  @Test
+  public void retry_users_that_could_not_be_deactivated() throws Exception {
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page(null, "john@example.com"));
+    activeUsers("john");
+    deactivationStatuses.add(500);
+
+    underTest.sweep();
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.FAILURES)).isEqualTo(1);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.USERS_DEACTIVATED)).isZero();
+
+    underTest.sweep();
+    assertThat(deactivations).hasSize(2);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.USERS_DEACTIVATED)).isEqualTo(1);
+  }
+
+  @Test
+  public void ignore_users_deactivated_in_the_meantime() throws Exception {
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page(null, "john@example.com"));
+    activeUsers("john");
+    deactivationStatuses.add(404);
+
+    underTest.sweep();
+
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.USERS_DEACTIVATED)).isZero();
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.FAILURES)).isZero();
+  }
+
+  @Test
+  public void do_not_deactivate_user_of_another_account_with_the_same_login() throws Exception {
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "a.com,b.com");
+    googleSettings.refresh();
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page(null, "john@b.com"));
+    activeUsers.put("john", "John@a.com");
+
+    underTest.sweep();
+
+    assertThat(deactivations).isEmpty();
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.USERS_DEACTIVATED)).isZero();
+  }
+
+  @Test
+  public void match_email_of_user_ignoring_case() throws Exception {
+    when(directory.deprovisionedUsers(false, null, 2)).thenReturn(page(null, "john@example.com"));
+    activeUsers.put("john", "John@Example.com");
+
+    underTest.sweep();
+
+    assertThat(deactivatedLogins()).containsExactly("login=john");
+  }
+
+  @Test
+  public void schedule_sweeps_when_enabled_after_start() throws Exception {
+    settings.setProperty(GoogleSettings.DEPROVISIONING, false);
+    googleSettings.refresh();
+    underTest.start();
+    assertThat(underTest.isScheduled()).isFalse();
+
+    settings.setProperty(GoogleSettings.DEPROVISIONING, true);
+    googleSettings.refresh();
+    assertThat(underTest.isScheduled()).isTrue();
+
+    settings.setProperty(GoogleSettings.DEPROVISIONING, false);
+    googleSettings.refresh();
+    assertThat(underTest.isScheduled()).isFalse();
+  }
+
+  @Test
+  public void do_nothing_when_disabled() throws Exception {
+    settings.setProperty(GoogleSettings.DEPROVISIONING, false);
+    googleSettings.refresh();
+
+    underTest.start();
+    underTest.sweep();
+
+    verifyZeroInteractions(directory);
+    assertThat(metrics.count(LoginMetrics.Deprovisioning.SWEEPS)).isZero();
+  }
+
+  @Test
+  public void do_nothing_without_admin_token() throws Exception {
+    settings.removeProperty(GoogleSettings.DEPROVISIONING_ADMIN_TOKEN);
+    googleSettings.refresh();
+
+    underTest.sweep();
+
+    verifyZeroInteractions(directory);
+  }
+
+  @Test
+  public void do_nothing_without_server_url() throws Exception {
+    settings.removeProperty(GoogleSettings.DEPROVISIONING_SERVER_URL);
+    googleSettings.refresh();
+
+    underTest.sweep();
+
+    verifyZeroInteractions(directory);
+  }
+
+  @Test
+  public void send_token_only_over_https_or_to_loopback_address() throws Exception {
+    assertThat(serverUrl("https://sonar.example.com/")).isEqualTo("https://sonar.example.com");
+    assertThat(serverUrl("http://localhost:9000/sonar")).isEqualTo("http://localhost:9000/sonar");
+    assertThat(serverUrl("http://127.0.0.1:9000")).isEqualTo("http://127.0.0.1:9000");
+    assertThat(serverUrl("http://[::1]:9000")).isEqualTo("http://[::1]:9000");
+    assertThat(serverUrl("http://sonar.example.com")).isNull();
+    assertThat(serverUrl("http://localhost.example.com")).isNull();
+    assertThat(serverUrl("ftp://localhost")).isNull();
+    assertThat(serverUrl("not a url")).isNull();
+
+    settings.setProperty(GoogleSettings.DEPROVISIONING_SERVER_URL, "http://sonar.example.com");
+    googleSettings.refresh();
+    underTest.sweep();
+    verifyZeroInteractions(directory);
+  }
+
+  private String serverUrl(String value) {
+    settings.setProperty(GoogleSettings.DEPROVISIONING_SERVER_URL, value);
+    return googleSettings.refresh().deprovisioningServerUrl();
+  }
+
+  private void activeUsers(String... logins) {
+    for (String login : logins) {
+      activeUsers.put(login, login + "@example.com");
+    }
+  }
+
+  private List<String> deactivatedLogins() {
+    List<String> bodies = new ArrayList<>();
+    for (RecordedRequest request : deactivations) {
+      bodies.add(request.getBody().readUtf8());
+    }
+    return bodies;
+  }
+
+  /**
+   * As api/users/search and api/users/deactivate of SonarQube, the search matching logins partially.
+   */
+  private MockResponse dispatchUsersWs(RecordedRequest request) throws UnsupportedEncodingException {
+    if (!ADMIN_AUTHORIZATION.equals(request.getHeader("Authorization"))) {
+      return new MockResponse().setResponseCode(401);
+    }
+    if (request.getPath().startsWith("/sonar/api/users/search?")) {
+      String query = null;
+      for (String parameter : request.getPath().substring(request.getPath().indexOf('?') + 1).split("&")) {
+        if (parameter.startsWith("q=")) {
+          query = URLDecoder.decode(parameter.substring(2), StandardCharsets.UTF_8.name());
+        }
+      }
+      searches.add(query);
+      StringBuilder users = new StringBuilder();
+      for (Map.Entry<String, String> user : activeUsers.entrySet()) {
+        if (user.getKey().contains(query)) {
+          users.append(users.length() == 0 ? "" : ",")
+            .append("{\"login\":\"").append(user.getKey()).append("\",\"email\":\"").append(user.getValue()).append("\"}");
+        }
+      }
+      return new MockResponse().setBody("{\"users\":[" + users + "]}");
+    }
+    if (request.getPath().equals("/sonar/api/users/deactivate")) {
+      deactivations.add(request);
+      Integer status = deactivationStatuses.poll();
+      if (status != null) {
+        return new MockResponse().setResponseCode(status);
+      }
+      activeUsers.remove(request.getBody().clone().readUtf8().substring("login=".length()));
+      return new MockResponse();
+    }
+    return new MockResponse().setResponseCode(404);
+  }
+
+  private static GoogleDirectoryClient.UsersPage page(String nextPageToken, String... emails) {
+    GoogleDirectoryClient.UsersPage page = new GoogleDirectoryClient.UsersPage();
+    page.users = new ArrayList<>();
+    for (String email : emails) {
+      GoogleDirectoryClient.User user = new GoogleDirectoryClient.User();
+      user.primaryEmail = email;
+      user.suspended = true;
+      page.users.add(user);
+    }
+    page.nextPageToken = nextPageToken;
+    return page;
+  }
+}
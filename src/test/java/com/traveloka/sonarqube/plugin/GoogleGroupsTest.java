@@ -0,0 +1,93 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GoogleGroupsTest {
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  GoogleDirectoryClient directory = mock(GoogleDirectoryClient.class);
+
+  GoogleGroups underTest;
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+  }
+
+  @Test
+  public void map_google_groups_to_sonarqube_groups() throws Exception {
+    settings.setProperty(GoogleSettings.GROUPS_MAPPING, "developers@example.com=sonar-users,ops@example.com=sonar-administrators");
+    underTest = new GoogleGroups(googleSettings, directory, new SharedIdentityCache(googleSettings));
+    when(directory.groupsOf("john@example.com")).thenReturn(new HashSet<>(Arrays.asList("developers@example.com", "unmapped@example.com")));
+
+    assertThat(underTest.sonarGroupsOf("John@example.com")).containsOnly("sonar-users");
+  }
+
+  @Test
+  public void cache_memberships() throws Exception {
+    underTest = new GoogleGroups(googleSettings, directory, new SharedIdentityCache(googleSettings));
+    when(directory.groupsOf("john@example.com")).thenReturn(new HashSet<String>());
+
+    underTest.sonarGroupsOf("john@example.com");
+    underTest.sonarGroupsOf("john@example.com");
+
+    verify(directory, times(1)).groupsOf("john@example.com");
+  }
+
+  @Test
+  public void return_null_when_directory_is_unavailable() throws Exception {
+    underTest = new GoogleGroups(googleSettings, directory, new SharedIdentityCache(googleSettings));
+    when(directory.groupsOf("john@example.com")).thenThrow(new IOException("unavailable"));
+
+    assertThat(underTest.sonarGroupsOf("john@example.com")).isNull();
+  }
+
+  @Test
+  public void invalidate_memberships_when_directory_changes() throws Exception {
+    underTest = new GoogleGroups(googleSettings, directory, new SharedIdentityCache(googleSettings));
+    when(directory.groupsOf("john@example.com")).thenReturn(new HashSet<String>());
+    underTest.sonarGroupsOf("john@example.com");
+
+    settings.setProperty(GoogleSettings.GROUPS_MAPPING, "developers@example.com=sonar-users");
+    googleSettings.refresh();
+    underTest.sonarGroupsOf("john@example.com");
+    verify(directory, times(1)).groupsOf("john@example.com");
+
+    settings.setProperty(GoogleSettings.DIRECTORY_ADMIN, "admin@example.com");
+    googleSettings.refresh();
+    underTest.sonarGroupsOf("john@example.com");
+    verify(directory, times(2)).groupsOf("john@example.com");
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpTransport;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.Settings;
+
+import java.net.SocketTimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GoogleHttpTransportTest {
+
+  @Rule
+  public MockWebServer server = new MockWebServer();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  Settings settings = new Settings();
+
+  GoogleHttpTransport underTest;
+
+  @After
+  public void tearDown() {
+    if (underTest != null) {
+      underTest.stop();
+    }
+  }
+
+  @Test
+  public void reuse_pooled_connection() throws Exception {
+    underTest = new GoogleHttpTransport(new GoogleSettings(settings));
+    server.enqueue(new MockResponse().setBody("first"));
+    server.enqueue(new MockResponse().setBody("second"));
+
+    HttpRequestFactory requestFactory = underTest.transport().createRequestFactory(underTest);
+    assertThat(requestFactory.buildGetRequest(new GenericUrl(server.url("/").toString())).execute().parseAsString()).isEqualTo("first");
+    assertThat(requestFactory.buildGetRequest(new GenericUrl(server.url("/").toString())).execute().parseAsString()).isEqualTo("second");
+
+    GoogleHttpTransport.PoolStats stats = underTest.poolStats();
+    assertThat(stats.handshakes()).isEqualTo(1);
+    assertThat(stats.leased()).isEqualTo(0);
+    assertThat(stats.idle()).isEqualTo(1);
+    assertThat(stats.pending()).isEqualTo(0);
+  }
+
+  @Test
+  public void lease_connection_until_response_is_consumed() throws Exception {
+    underTest = new GoogleHttpTransport(new GoogleSettings(settings));
+    server.enqueue(new MockResponse().setBody("body"));
+
+    com.google.api.client.http.HttpResponse response = underTest.transport().createRequestFactory(underTest)
+      .buildGetRequest(new GenericUrl(server.url("/").toString())).execute();
+    assertThat(underTest.poolStats().leased()).isEqualTo(1);
+
+    response.parseAsString();
+    assertThat(underTest.poolStats().leased()).isEqualTo(0);
+  }
+
+  @Test
+  public void apply_read_timeout() throws Exception {
+    settings.setProperty(GoogleSettings.READ_TIMEOUT, 100);
+    underTest = new GoogleHttpTransport(new GoogleSettings(settings));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+    thrown.expect(SocketTimeoutException.class);
+    underTest.transport().createRequestFactory(underTest).buildGetRequest(new GenericUrl(server.url("/").toString())).execute();
+  }
+
+  @Test
+  public void replace_pool_when_its_settings_change() throws Exception {
+    GoogleSettings googleSettings = new GoogleSettings(settings);
+    underTest = new GoogleHttpTransport(googleSettings);
+    server.enqueue(new MockResponse().setBody("first"));
+    server.enqueue(new MockResponse().setBody("second"));
+    com.google.api.client.http.HttpResponse inFlight = underTest.transport().createRequestFactory(underTest)
+      .buildGetRequest(new GenericUrl(server.url("/").toString())).execute();
+
+    HttpTransport previous = underTest.transport();
+    settings.setProperty(GoogleSettings.MAX_CONNECTIONS, 5);
+    googleSettings.refresh();
+    assertThat(underTest.transport()).isNotSameAs(previous);
+    assertThat(underTest.retiredPools()).isEqualTo(1);
+
+    // the request in flight completes on the previous pool, which is then closed
+    underTest.reapIdleConnections();
+    assertThat(underTest.retiredPools()).isEqualTo(1);
+    assertThat(inFlight.parseAsString()).isEqualTo("first");
+    underTest.reapIdleConnections();
+    assertThat(underTest.retiredPools()).isZero();
+
+    assertThat(underTest.transport().createRequestFactory(underTest).buildGetRequest(new GenericUrl(server.url("/").toString())).execute()
+      .parseAsString()).isEqualTo("second");
+  }
+
+  @Test
+  public void keep_pool_when_other_settings_change() throws Exception {
+    GoogleSettings googleSettings = new GoogleSettings(settings);
+    underTest = new GoogleHttpTransport(googleSettings);
+    HttpTransport transport = underTest.transport();
+
+    settings.setProperty(GoogleSettings.READ_TIMEOUT, 100);
+    googleSettings.refresh();
+
+    assertThat(underTest.transport()).isSameAs(transport);
+    assertThat(underTest.retiredPools()).isZero();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.Settings;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.utils.System2;
+
+import java.io.IOException;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GoogleIdTokenValidatorTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  IdTokenFixture fixture = new IdTokenFixture();
+  Settings settings = new Settings();
+  GoogleSigningKeys signingKeys = mock(GoogleSigningKeys.class);
+  System2 system2 = mock(System2.class);
+
+  GoogleIdTokenValidator underTest = new GoogleIdTokenValidator(new GoogleSettings(settings), signingKeys, system2);
+
+  @Before
+  public void setUp() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, IdTokenFixture.CLIENT_ID);
+    when(system2.now()).thenReturn(System.currentTimeMillis());
+    when(signingKeys.get(IdTokenFixture.KEY_ID)).thenReturn(fixture.publicKey());
+  }
+
+  @Test
+  public void accept_valid_token() {
+    underTest.validate(fixture.read(fixture.sign(fixture.payload("john@hd", "hd"))));
+  }
+
+  @Test
+  public void fail_when_signed_by_another_key() throws Exception {
+    when(signingKeys.get(IdTokenFixture.KEY_ID)).thenReturn(new IdTokenFixture().publicKey());
+
+    thrown.expect(UnauthorizedException.class);
+    thrown.expectMessage("ID token signature is invalid");
+    underTest.validate(fixture.read(fixture.sign(fixture.payload("john@hd", "hd"))));
+  }
+
+  @Test
+  public void fail_when_key_is_unknown() {
+    thrown.expect(UnauthorizedException.class);
+    thrown.expectMessage("ID token signature is invalid");
+    underTest.validate(fixture.read(fixture.sign("unknown", fixture.payload("john@hd", "hd"))));
+  }
+
+  @Test
+  public void fail_when_issued_for_another_client() {
+    GoogleIdToken.Payload payload = fixture.payload("john@hd", "hd");
+    payload.setAudience("another-client");
+
+    thrown.expect(UnauthorizedException.class);
+    thrown.expectMessage("ID token is not issued for this application");
+    underTest.validate(fixture.read(fixture.sign(payload)));
+  }
+
+  @Test
+  public void fail_when_not_issued_by_google() {
+    GoogleIdToken.Payload payload = fixture.payload("john@hd", "hd");
+    payload.setIssuer("https://evil.example.com");
+
+    thrown.expect(UnauthorizedException.class);
+    thrown.expectMessage("ID token is not issued by Google");
+    underTest.validate(fixture.read(fixture.sign(payload)));
+  }
+
+  @Test
+  public void fail_when_expired() {
+    GoogleIdToken.Payload payload = fixture.payload("john@hd", "hd");
+    when(system2.now()).thenReturn((payload.getExpirationTimeSeconds() + GoogleIdTokenValidator.ACCEPTABLE_TIME_SKEW_SECONDS + 1) * 1000L);
+
+    thrown.expect(UnauthorizedException.class);
+    thrown.expectMessage("ID token is expired");
+    underTest.validate(fixture.read(fixture.sign(payload)));
+  }
+
+  @Test
+  public void fail_when_keys_can_not_be_fetched() throws Exception {
+    when(signingKeys.get(IdTokenFixture.KEY_ID)).thenThrow(new IOException("unreachable"));
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Fail to fetch Google signing keys");
+    underTest.validate(fixture.read(fixture.sign(fixture.payload("john@hd", "hd"))));
+  }
+}
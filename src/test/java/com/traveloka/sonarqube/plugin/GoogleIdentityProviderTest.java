@@ -20,16 +20,32 @@
 package com.traveloka.sonarqube.plugin;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeTokenRequest;
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
 import org.sonar.api.config.Settings;
 import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.server.authentication.UserIdentity;
+import org.sonar.api.utils.System2;
 
+import javax.annotation.Nullable;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Mockito.*;
 
 public class GoogleIdentityProviderTest {
@@ -37,11 +53,38 @@ public class GoogleIdentityProviderTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public MockWebServer server = new MockWebServer();
+
+  IdTokenFixture idTokens = new IdTokenFixture();
+
+  LoginMetrics metrics = new LoginMetrics();
+
   Settings settings = new Settings();
 
   GoogleSettings googleSettings = new GoogleSettings(settings);
 
-  GoogleIdentityProvider underTest = new GoogleIdentityProvider(googleSettings);
+  GoogleHttpTransport httpTransport = new GoogleHttpTransport(googleSettings);
+
+  // users SonarQube already has, the others are registered by authenticate()
+  Set<String> existingLogins = new HashSet<>();
+
+  LoginMappingFile loginMappings = mock(LoginMappingFile.class);
+
+  AuditLog auditLog = mock(AuditLog.class);
+
+  System2 system2 = mock(System2.class);
+
+  RefreshTokenVault refreshTokens = mock(RefreshTokenVault.class);
+
+  GoogleIdentityProvider underTest = new GoogleIdentityProvider(googleSettings, httpTransport,
+    new GoogleTokenExchange(googleSettings, httpTransport),
+    new GoogleIdTokenValidator(googleSettings, new GoogleSigningKeys(googleSettings, httpTransport, new ProviderMetadataRegistry(googleSettings, httpTransport))),
+    new GoogleGroups(googleSettings, new GoogleDirectoryClient(googleSettings, httpTransport), new SharedIdentityCache(googleSettings)), metrics, loginMappings, auditLog,
+    new LoginRateLimiter(googleSettings, system2), new CallbackLookups(googleSettings), refreshTokens, system2);
+
+  // provider SonarQube asks whether new users may sign up
+  GoogleIdentityProvider signUpProvider = underTest;
 
   @Test
   public void check_fields() throws Exception {
@@ -57,9 +100,11 @@ public class GoogleIdentityProviderTest {
     settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
     settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
     settings.setProperty(GoogleSettings.ENABLED, true);
+    googleSettings.refresh();
     assertThat(underTest.isEnabled()).isTrue();
 
     settings.setProperty(GoogleSettings.ENABLED, false);
+    googleSettings.refresh();
     assertThat(underTest.isEnabled()).isFalse();
   }
 
@@ -68,6 +113,7 @@ public class GoogleIdentityProviderTest {
     assertThat(underTest.allowsUsersToSignUp()).as("default").isFalse();
 
     settings.setProperty("sonar.auth.google.allowUsersToSignUp", true);
+    googleSettings.refresh();
     assertThat(underTest.allowsUsersToSignUp()).isTrue();
   }
 
@@ -80,7 +126,58 @@ public class GoogleIdentityProviderTest {
     underTest.init(context);
     verify(context).redirectTo("https://accounts.google.com/o/oauth2/auth?access_type=offline&client_id=id&redirect_uri=redirect&response_type=code" +
             "&scope=email%20profile%20openid&state=state&hd=hd");
+    assertThat(metrics.latency(LoginMetrics.Phase.INIT).count()).isEqualTo(1);
+    verify(auditLog).record(eq(AuditLog.Action.INIT), isNull(String.class), isNull(String.class), eq(LoginMetrics.Outcome.SUCCESS),
+      isNull(String.class), anyLong());
   }
+
+  @Test
+  public void init_silently_when_account_is_remembered() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.SILENT_LOGIN, true);
+    googleSettings.refresh();
+    OAuth2IdentityProvider.InitContext context = initContext(LoginHintCookie.create(mock(HttpServletRequest.class), "secret", "john.doe@hd", 0L, 60_000L));
+
+    underTest.init(context);
+
+    verify(context).redirectTo(endsWith("&state=state&hd=hd&prompt=none&login_hint=john.doe@hd"));
+  }
+
+  @Test
+  public void init_interactively_when_remembered_account_is_not_signed_with_client_secret() throws Exception {
+    setSettings(true);
+    OAuth2IdentityProvider.InitContext context = initContext(LoginHintCookie.create(mock(HttpServletRequest.class), "other", "john.doe@hd", 0L, 60_000L));
+
+    underTest.init(context);
+
+    verify(context).redirectTo(endsWith("&state=state&hd=hd"));
+  }
+
+  @Test
+  public void init_interactively_when_falling_back_from_silent_login() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.SILENT_LOGIN, true);
+    googleSettings.refresh();
+    OAuth2IdentityProvider.InitContext context = initContext(LoginHintCookie.create(mock(HttpServletRequest.class), "secret", "john.doe@hd", 0L, 60_000L));
+    when(context.getRequest().getParameter(GoogleIdentityProvider.INTERACTIVE_PARAMETER)).thenReturn("true");
+
+    underTest.init(context);
+
+    verify(context).redirectTo(endsWith("&state=state&hd=hd"));
+  }
+
+  @Test
+  public void init_interactively_when_silent_login_is_disabled() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.SILENT_LOGIN, false);
+    googleSettings.refresh();
+    OAuth2IdentityProvider.InitContext context = initContext(LoginHintCookie.create(mock(HttpServletRequest.class), "secret", "john.doe@hd", 0L, 60_000L));
+
+    underTest.init(context);
+
+    verify(context).redirectTo(endsWith("&state=state&hd=hd"));
+  }
+
   @Test
   public void fail_to_init_when_disabled() throws Exception {
     setSettings(false);
@@ -91,14 +188,510 @@ public class GoogleIdentityProviderTest {
     underTest.init(context);
   }
 
+  @Test
+  public void callback_authenticates_verified_member() throws Exception {
+    setSettings(true);
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().getLogin()).isEqualTo("john.doe");
+    assertThat(identity.getValue().getEmail()).isEqualTo("john.doe@hd");
+    verify(context).redirectToRequestedPage();
+    assertThat(metrics.count(LoginMetrics.Outcome.SUCCESS)).isEqualTo(1);
+    for (LoginMetrics.Phase phase : new LoginMetrics.Phase[] {LoginMetrics.Phase.TOKEN_EXCHANGE, LoginMetrics.Phase.TOKEN_PARSE,
+      LoginMetrics.Phase.TOKEN_VALIDATION, LoginMetrics.Phase.AUTHENTICATE, LoginMetrics.Phase.CALLBACK}) {
+      assertThat(metrics.latency(phase).count()).as(phase.name()).isEqualTo(1);
+    }
+    verify(auditLog).record(eq(AuditLog.Action.CALLBACK), eq("john.doe@hd"), eq("hd"), eq(LoginMetrics.Outcome.SUCCESS),
+      isNull(String.class), anyLong());
+  }
+
+  @Test
+  public void callback_remembers_account_of_user() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.SILENT_LOGIN, true);
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(context.getResponse()).addCookie(cookie.capture());
+    assertThat(cookie.getValue().getName()).isEqualTo(LoginHintCookie.NAME);
+    assertThat(cookie.getValue().getMaxAge()).isEqualTo(12 * 3600);
+    assertThat(LoginHintCookie.verify(cookie.getValue().getValue(), "secret", 0L)).isEqualTo("john.doe@hd");
+  }
+
+  @Test
+  public void callback_keeps_refresh_token_of_user() throws Exception {
+    setSettings(true);
+    String idToken = idTokens.sign(idTokens.payload("john.doe@hd", "hd"));
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        if (request.getPath().startsWith("/certs")) {
+          return new MockResponse().setBody(idTokens.jwks());
+        }
+        return new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"refresh_token\":\"the-refresh-token\","
+          + "\"id_token\":\"" + idToken + "\"}");
+      }
+    });
+
+    underTest.callback(callbackContext());
+
+    verify(refreshTokens).store("john.doe@hd", "john.doe", "the-refresh-token");
+  }
+
+  @Test
+  public void callback_restarts_login_interactively_when_google_requires_interaction() throws Exception {
+    setSettings(true);
+    OAuth2IdentityProvider.CallbackContext context = callbackContext(null, null);
+    when(context.getRequest().getParameter("error")).thenReturn("login_required");
+    when(context.getRequest().getContextPath()).thenReturn("/sonar");
+
+    underTest.callback(context);
+
+    verify(context.getResponse()).sendRedirect("/sonar/sessions/init/google?interactive=true");
+    ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(context.getResponse()).addCookie(cookie.capture());
+    assertThat(cookie.getValue().getName()).isEqualTo(LoginHintCookie.NAME);
+    assertThat(cookie.getValue().getMaxAge()).isZero();
+    assertThat(cookie.getValue().getPath()).isEqualTo("/sonar");
+    verify(context, never()).authenticate(any(UserIdentity.class));
+    verify(context, never()).redirectToRequestedPage();
+    assertThat(metrics.count(LoginMetrics.Outcome.INTERACTION_REQUIRED)).isEqualTo(1);
+    verify(auditLog).record(eq(AuditLog.Action.CALLBACK), isNull(String.class), isNull(String.class),
+      eq(LoginMetrics.Outcome.INTERACTION_REQUIRED), eq("login_required"), anyLong());
+  }
+
+  @Test
+  public void fail_callback_when_hosted_domain_differs() throws Exception {
+    setSettings(true);
+    serveIdToken(idTokens.payload("john.doe@gmail.com", null));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    try {
+      underTest.callback(context);
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage("You must be a verified member of traveloka");
+    }
+    verify(context, never()).authenticate(any(UserIdentity.class));
+    assertThat(metrics.count(LoginMetrics.Outcome.WRONG_HOSTED_DOMAIN)).isEqualTo(1);
+    assertThat(metrics.latency(LoginMetrics.Phase.CALLBACK).count()).isEqualTo(1);
+    verify(auditLog).record(eq(AuditLog.Action.CALLBACK), eq("john.doe@gmail.com"), isNull(String.class),
+      eq(LoginMetrics.Outcome.WRONG_HOSTED_DOMAIN), eq("You must be a verified member of traveloka"), anyLong());
+  }
+
+  @Test
+  public void fail_callback_when_email_is_not_verified() throws Exception {
+    setSettings(true);
+    GoogleIdToken.Payload payload = idTokens.payload("john.doe@hd", "hd");
+    payload.setEmailVerified(false);
+    serveIdToken(payload);
+
+    try {
+      underTest.callback(callbackContext());
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(metrics.count(LoginMetrics.Outcome.UNVERIFIED_EMAIL)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void callback_applies_policy_of_user_domain() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "hd,acquired.com");
+    settings.setProperty(GoogleSettings.DOMAIN_POLICIES, "acquired.com:login=email;groups=sonar-users|acquired");
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@acquired.com", "acquired.com"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    // signed up, then given the default groups
+    verify(context, times(2)).authenticate(identity.capture());
+    assertThat(identity.getValue().getLogin()).isEqualTo("john.doe@acquired.com");
+    assertThat(identity.getValue().getName()).isEqualTo("john.doe");
+    assertThat(identity.getValue().shouldSyncGroups()).isTrue();
+    assertThat(identity.getValue().getGroups()).containsOnly("sonar-users", "acquired");
+  }
+
+  @Test
+  public void callback_keeps_groups_of_existing_user_when_groups_are_not_synchronized() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "hd,acquired.com");
+    settings.setProperty(GoogleSettings.DOMAIN_POLICIES, "acquired.com:login=email;groups=sonar-users|acquired");
+    googleSettings.refresh();
+    existingLogins.add("john.doe@acquired.com");
+    serveIdToken(idTokens.payload("john.doe@acquired.com", "acquired.com"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().shouldSyncGroups()).isFalse();
+  }
+
+  @Test
+  public void callback_applies_default_groups_at_sign_up_when_groups_are_not_synchronized() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "hd,acquired.com");
+    settings.setProperty(GoogleSettings.DOMAIN_POLICIES, "acquired.com:login=email;groups=sonar-users|acquired");
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@acquired.com", "acquired.com"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context, times(2)).authenticate(identity.capture());
+    assertThat(identity.getAllValues().get(0).shouldSyncGroups()).isFalse();
+    assertThat(identity.getAllValues().get(1).getGroups()).containsOnly("sonar-users", "acquired");
+  }
+
+  @Test
+  public void allow_sign_up_per_domain_of_the_user_logging_in() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "hd,acquired.com");
+    settings.setProperty(GoogleSettings.DOMAIN_POLICIES, "acquired.com:signUp=false");
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+
+    underTest.callback(callbackContext());
+
+    assertThat(existingLogins).containsOnly("john.doe");
+    assertThat(underTest.allowsUsersToSignUp()).as("outside of a login").isTrue();
+  }
+
+  @Test
+  public void callback_applies_login_rules() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.LOGIN_RULES, "(.+)@hd=>hd-$1");
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().getLogin()).isEqualTo("hd-john.doe");
+    assertThat(identity.getValue().getProviderLogin()).isEqualTo("hd-john.doe");
+  }
+
+  @Test
+  public void login_mapping_file_takes_precedence_over_login_rules() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.LOGIN_RULES, "(.+)@hd=>hd-$1");
+    googleSettings.refresh();
+    when(loginMappings.login("john.doe@hd")).thenReturn("jdoe");
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().getLogin()).isEqualTo("jdoe");
+    assertThat(identity.getValue().getEmail()).isEqualTo("john.doe@hd");
+  }
+
+  @Test
+  public void fail_callback_when_domain_does_not_allow_sign_up_of_new_users() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.DOMAIN_POLICIES, "hd:signUp=false");
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    try {
+      underTest.callback(context);
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage("'google' users are not allowed to sign up");
+    }
+    assertThat(existingLogins).isEmpty();
+    assertThat(metrics.count(LoginMetrics.Outcome.SIGN_UP_NOT_ALLOWED)).isEqualTo(1);
+  }
+
+  @Test
+  public void authenticate_existing_user_when_domain_does_not_allow_sign_up() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.DOMAIN_POLICIES, "hd:signUp=false");
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    existingLogins.add("john.doe");
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    underTest.callback(context);
+
+    verify(context).authenticate(any(UserIdentity.class));
+    assertThat(metrics.count(LoginMetrics.Outcome.SUCCESS)).isEqualTo(1);
+  }
+
+  @Test
+  public void count_csrf_failures() throws Exception {
+    setSettings(true);
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+    doThrow(new UnauthorizedException("CSRF state value is invalid")).when(context).verifyCsrfState();
+
+    try {
+      underTest.callback(context);
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(metrics.count(LoginMetrics.Outcome.CSRF_FAILURE)).isEqualTo(1);
+    }
+    assertThat(server.getRequestCount()).isZero();
+    verify(auditLog).record(eq(AuditLog.Action.CALLBACK), isNull(String.class), isNull(String.class), eq(LoginMetrics.Outcome.CSRF_FAILURE),
+      eq("CSRF state value is invalid"), anyLong());
+  }
+
+  @Test
+  public void count_token_failures() throws Exception {
+    setSettings(true);
+    server.enqueue(new MockResponse().setResponseCode(400).setBody("{\"error\":\"invalid_grant\"}"));
+
+    try {
+      underTest.callback(callbackContext());
+      fail("should have failed");
+    } catch (IllegalStateException e) {
+      assertThat(metrics.count(LoginMetrics.Outcome.TOKEN_FAILURE)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void reject_callbacks_of_client_over_its_limit_before_calling_google() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 2);
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    underTest.callback(callbackContext("code1", "10.0.0.1"));
+    underTest.callback(callbackContext("code2", "10.0.0.1"));
+    int requests = server.getRequestCount();
+
+    OAuth2IdentityProvider.CallbackContext context = callbackContext("code3", "10.0.0.1");
+    try {
+      underTest.callback(context);
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage(GoogleIdentityProvider.TOO_MANY_ATTEMPTS);
+    }
+    verify(context, never()).verifyCsrfState();
+    assertThat(server.getRequestCount()).isEqualTo(requests);
+    assertThat(metrics.count(LoginMetrics.Outcome.RATE_LIMITED)).isEqualTo(1);
+
+    // other clients are not limited
+    underTest.callback(callbackContext("code4", "10.0.0.2"));
+    assertThat(metrics.count(LoginMetrics.Outcome.SUCCESS)).isEqualTo(3);
+
+    // one token is back after 30 seconds
+    when(system2.now()).thenReturn(30_000L);
+    underTest.callback(callbackContext("code5", "10.0.0.1"));
+    assertThat(metrics.count(LoginMetrics.Outcome.SUCCESS)).isEqualTo(4);
+  }
+
+  @Test
+  public void reject_logins_of_account_over_its_limit() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 1);
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    underTest.callback(callbackContext("code1", "10.0.0.1"));
+
+    OAuth2IdentityProvider.CallbackContext context = callbackContext("code2", "10.0.0.2");
+    try {
+      underTest.callback(context);
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage(GoogleIdentityProvider.TOO_MANY_ATTEMPTS);
+    }
+    verify(context, never()).authenticate(any(UserIdentity.class));
+    assertThat(metrics.count(LoginMetrics.Outcome.RATE_LIMITED)).isEqualTo(1);
+    // rejected before the token is verified, so the claimed account is not audited
+    verify(auditLog).record(eq(AuditLog.Action.CALLBACK), isNull(String.class), isNull(String.class), eq(LoginMetrics.Outcome.RATE_LIMITED),
+      eq(GoogleIdentityProvider.TOO_MANY_ATTEMPTS), anyLong());
+  }
+
+  @Test
+  public void reject_logins_of_account_over_its_limit_before_looking_up_groups() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.GROUPS_SYNC, true);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 1);
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    GoogleGroups groups = mock(GoogleGroups.class);
+    when(groups.sonarGroupsOf(any(GoogleSettings.Snapshot.class), eq("john.doe@hd"))).thenReturn(Collections.singleton("developers"));
+    GoogleIdentityProvider provider = providerWith(groups);
+    provider.callback(callbackContext("code1", "10.0.0.1"));
+    int requests = server.getRequestCount();
+
+    try {
+      provider.callback(callbackContext("code2", "10.0.0.2"));
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage(GoogleIdentityProvider.TOO_MANY_ATTEMPTS);
+    }
+    verify(groups, times(1)).sonarGroupsOf(any(GoogleSettings.Snapshot.class), anyString());
+    // only the token exchange, which tells the account
+    assertThat(server.getRequestCount()).isEqualTo(requests + 1);
+  }
+
+  @Test
+  public void charge_client_once_per_login() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 1);
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn("10.0.0.1");
+    OAuth2IdentityProvider.InitContext context = mock(OAuth2IdentityProvider.InitContext.class);
+    when(context.generateCsrfState()).thenReturn("state");
+    when(context.getRequest()).thenReturn(request);
+    underTest.init(context);
+    underTest.init(context);
+
+    underTest.callback(callbackContext("code1", "10.0.0.1"));
+    assertThat(metrics.count(LoginMetrics.Outcome.SUCCESS)).isEqualTo(1);
+    assertThat(metrics.count(LoginMetrics.Outcome.RATE_LIMITED)).isZero();
+  }
+
+  @Test
+  public void do_not_limit_clients_by_default() throws Exception {
+    setSettings(true);
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    for (int i = 0; i < 5; i++) {
+      underTest.callback(callbackContext("code" + i, "10.0.0.1"));
+    }
+    assertThat(metrics.count(LoginMetrics.Outcome.RATE_LIMITED)).isZero();
+  }
+
+  @Test
+  public void log_in_with_unchanged_groups_when_groups_miss_the_deadline() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.GROUPS_SYNC, true);
+    settings.setProperty(GoogleSettings.LOOKUP_TIMEOUT, 200);
+    googleSettings.refresh();
+    serveIdToken(idTokens.payload("john.doe@hd", "hd"));
+    GoogleGroups slowGroups = mock(GoogleGroups.class);
+    when(slowGroups.sonarGroupsOf(any(GoogleSettings.Snapshot.class), eq("john.doe@hd"))).thenAnswer(invocation -> {
+      Thread.sleep(2_000L);
+      return Collections.singleton("developers");
+    });
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    providerWith(slowGroups).callback(context);
+
+    ArgumentCaptor<UserIdentity> identity = ArgumentCaptor.forClass(UserIdentity.class);
+    verify(context).authenticate(identity.capture());
+    assertThat(identity.getValue().shouldSyncGroups()).isFalse();
+    assertThat(metrics.count(LoginMetrics.Outcome.SUCCESS)).isEqualTo(1);
+  }
+
+  @Test
+  public void fail_callback_when_signature_is_invalid_even_if_groups_are_resolved() throws Exception {
+    setSettings(true);
+    settings.setProperty(GoogleSettings.GROUPS_SYNC, true);
+    googleSettings.refresh();
+    String idToken = idTokens.sign(idTokens.payload("john.doe@hd", "hd"));
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        if (request.getPath().startsWith("/certs")) {
+          return new MockResponse().setBody(idTokens.jwks("other-key"));
+        }
+        return new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"id_token\":\"" + idToken + "\"}");
+      }
+    });
+    GoogleGroups groups = mock(GoogleGroups.class);
+    when(groups.sonarGroupsOf(any(GoogleSettings.Snapshot.class), eq("john.doe@hd"))).thenReturn(Collections.singleton("developers"));
+    OAuth2IdentityProvider.CallbackContext context = callbackContext();
+
+    try {
+      providerWith(groups).callback(context);
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage("ID token signature is invalid");
+    }
+    verify(context, never()).authenticate(any(UserIdentity.class));
+    assertThat(metrics.count(LoginMetrics.Outcome.TOKEN_FAILURE)).isEqualTo(1);
+  }
+
+  private GoogleIdentityProvider providerWith(GoogleGroups groups) {
+    signUpProvider = new GoogleIdentityProvider(googleSettings, httpTransport, new GoogleTokenExchange(googleSettings, httpTransport),
+      new GoogleIdTokenValidator(googleSettings, new GoogleSigningKeys(googleSettings, httpTransport, new ProviderMetadataRegistry(googleSettings, httpTransport))),
+      groups, metrics, loginMappings, auditLog, new LoginRateLimiter(googleSettings, system2), new CallbackLookups(googleSettings),
+      refreshTokens);
+    return signUpProvider;
+  }
+
+  private OAuth2IdentityProvider.CallbackContext callbackContext() {
+    return callbackContext("the-code", null);
+  }
+
+  private OAuth2IdentityProvider.CallbackContext callbackContext(String code, @Nullable String clientIp) {
+    OAuth2IdentityProvider.CallbackContext context = mock(OAuth2IdentityProvider.CallbackContext.class);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("code")).thenReturn(code);
+    when(request.getRemoteAddr()).thenReturn(clientIp);
+    when(context.getRequest()).thenReturn(request);
+    when(context.getResponse()).thenReturn(mock(HttpServletResponse.class));
+    // as SonarQube, which asks the provider when it registers a new user
+    doAnswer(invocation -> {
+      UserIdentity identity = (UserIdentity) invocation.getArguments()[0];
+      if (!existingLogins.contains(identity.getLogin())) {
+        if (!signUpProvider.allowsUsersToSignUp()) {
+          throw new UnauthorizedException("'google' users are not allowed to sign up");
+        }
+        existingLogins.add(identity.getLogin());
+      }
+      return null;
+    }).when(context).authenticate(any(UserIdentity.class));
+    return context;
+  }
+
+  private static OAuth2IdentityProvider.InitContext initContext(Cookie... cookies) {
+    OAuth2IdentityProvider.InitContext context = mock(OAuth2IdentityProvider.InitContext.class);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getCookies()).thenReturn(cookies);
+    when(context.getRequest()).thenReturn(request);
+    when(context.generateCsrfState()).thenReturn("state");
+    return context;
+  }
+
+  private void serveIdToken(GoogleIdToken.Payload payload) {
+    String idToken = idTokens.sign(payload);
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        if (request.getPath().startsWith("/certs")) {
+          return new MockResponse().setBody(idTokens.jwks());
+        }
+        return new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"id_token\":\"" + idToken + "\"}");
+      }
+    });
+  }
+
   private void setSettings(boolean enabled) {
     if (enabled) {
       settings.setProperty(GoogleSettings.CLIENT_ID, "id");
       settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
       settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "hd");
+      settings.setProperty(GoogleSettings.ALLOW_USERS_TO_SIGN_UP, true);
       settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
       settings.setProperty(GoogleSettings.ENABLED, true);
+      settings.setProperty(GoogleSettings.TOKEN_URL, server.url("/token").toString());
+      settings.setProperty(GoogleSettings.CERTS_URL, server.url("/certs").toString());
     } else {
       settings.setProperty(GoogleSettings.ENABLED, false);
     }
+    googleSettings.refresh();
+}
 }
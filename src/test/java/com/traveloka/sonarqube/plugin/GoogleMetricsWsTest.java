@@ -0,0 +1,221 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.server.ws.LocalConnector;
+import org.sonar.api.server.ws.Response;
+import org.sonar.api.server.ws.WebService;
+import org.sonar.api.server.ws.internal.SimpleGetRequest;
+import org.sonar.api.utils.text.JsonWriter;
+import org.sonar.api.utils.text.XmlWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GoogleMetricsWsTest {
+
+  LoginMetrics metrics = new LoginMetrics();
+
+  GoogleMetricsWs underTest = new GoogleMetricsWs(metrics);
+
+  LocalConnector localConnector = mock(LocalConnector.class);
+  LocalConnector.LocalResponse adminCheck = mock(LocalConnector.LocalResponse.class);
+  SimpleGetRequest request = new SimpleGetRequest() {
+    @Override
+    public LocalConnector localConnector() {
+      return localConnector;
+    }
+  };
+
+  @Before
+  public void setUp() {
+    when(localConnector.call(any(LocalConnector.LocalRequest.class))).thenReturn(adminCheck);
+    when(adminCheck.getStatus()).thenReturn(200);
+  }
+
+  @Test
+  public void define_ws() {
+    WebService.Context context = new WebService.Context();
+    underTest.define(context);
+
+    WebService.Controller controller = context.controller("api/authgoogle");
+    assertThat(controller).isNotNull();
+    WebService.Action action = controller.action("metrics");
+    assertThat(action.isPost()).isFalse();
+    assertThat(action.isInternal()).isTrue();
+    assertThat(action.since()).isEqualTo("1.1");
+    assertThat(action.responseExampleAsString()).contains("\"outcomes\"", "\"phases\"", "\"deprovisioning\"");
+    assertThat(action.param("format").possibleValues()).containsOnly("json", "prometheus");
+    assertThat(action.param("format").defaultValue()).isEqualTo("json");
+  }
+
+  @Test
+  public void write_json() throws Exception {
+    metrics.increment(LoginMetrics.Outcome.SUCCESS);
+    metrics.record(LoginMetrics.Phase.TOKEN_EXCHANGE, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(40));
+
+    FakeResponse response = new FakeResponse();
+    underTest.handle(request, response);
+
+    String json = response.written();
+    assertThat(json).contains("\"outcomes\":{\"success\":1,\"wrong_hosted_domain\":0,");
+    assertThat(json).contains("\"token_exchange\":{\"count\":1,");
+    assertThat(json).contains("{\"leMillis\":50,\"count\":1}");
+    assertThat(json).contains("\"droppedAuditEvents\":0");
+    assertThat(json).contains("\"deprovisioning\":{\"sweeps\":0,");
+  }
+
+  @Test
+  public void write_prometheus_text_format() throws Exception {
+    metrics.increment(LoginMetrics.Outcome.TOKEN_FAILURE);
+    metrics.auditEventDropped();
+    metrics.add(LoginMetrics.Deprovisioning.USERS_DEACTIVATED, 3);
+    metrics.sweepCompleted(1_000L, 3_500L);
+    metrics.record(LoginMetrics.Phase.CALLBACK, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(3));
+
+    FakeResponse response = new FakeResponse();
+    request.setParam("format", "prometheus");
+    underTest.handle(request, response);
+
+    assertThat(response.mediaType).isEqualTo("text/plain; version=0.0.4");
+    String text = response.written();
+    assertThat(text).contains("# TYPE sonar_auth_google_phase_duration_seconds histogram\n");
+    assertThat(text).contains("sonar_auth_google_phase_duration_seconds_bucket{phase=\"callback\",le=\"0.002\"} 0\n");
+    assertThat(text).contains("sonar_auth_google_phase_duration_seconds_bucket{phase=\"callback\",le=\"0.005\"} 1\n");
+    assertThat(text).contains("sonar_auth_google_phase_duration_seconds_bucket{phase=\"callback\",le=\"+Inf\"} 1\n");
+    assertThat(text).contains("sonar_auth_google_phase_duration_seconds_count{phase=\"callback\"} 1\n");
+    assertThat(text).contains("sonar_auth_google_phase_duration_seconds_count{phase=\"init\"} 0\n");
+    assertThat(text).contains("sonar_auth_google_logins_total{outcome=\"token_failure\"} 1\n");
+    assertThat(text).contains("sonar_auth_google_audit_events_dropped_total 1\n");
+    assertThat(text).contains("sonar_auth_google_deprovisioning_total{counter=\"users_deactivated\"} 3\n");
+    assertThat(text).contains("sonar_auth_google_deprovisioning_last_sweep_timestamp_seconds 3.5\n");
+    assertThat(text).contains("sonar_auth_google_deprovisioning_last_sweep_duration_seconds 2.5\n");
+  }
+
+  @Test
+  public void check_administer_system_permission_of_current_user() throws Exception {
+    underTest.handle(request, new FakeResponse());
+
+    ArgumentCaptor<LocalConnector.LocalRequest> check = ArgumentCaptor.forClass(LocalConnector.LocalRequest.class);
+    verify(localConnector).call(check.capture());
+    assertThat(check.getValue().getPath()).isEqualTo("api/permissions/search_global_permissions");
+    assertThat(check.getValue().getMethod()).isEqualTo("GET");
+  }
+
+  @Test
+  public void forbid_users_without_administer_system_permission() throws Exception {
+    metrics.increment(LoginMetrics.Outcome.SUCCESS);
+    when(adminCheck.getStatus()).thenReturn(403);
+
+    FakeResponse response = new FakeResponse();
+    underTest.handle(request, response);
+
+    assertThat(response.status).isEqualTo(403);
+    assertThat(response.written()).isEqualTo("{\"errors\":[{\"msg\":\"Insufficient privileges\"}]}");
+  }
+
+  @Test
+  public void ask_anonymous_users_to_log_in() throws Exception {
+    when(adminCheck.getStatus()).thenReturn(401);
+    request.setParam("format", "prometheus");
+
+    FakeResponse response = new FakeResponse();
+    underTest.handle(request, response);
+
+    assertThat(response.status).isEqualTo(401);
+    assertThat(response.written()).isEqualTo("{\"errors\":[{\"msg\":\"Authentication is required\"}]}");
+  }
+
+  private static class FakeResponse implements Response, Response.Stream {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private String mediaType;
+    private int status = 200;
+
+    String written() {
+      return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public JsonWriter newJsonWriter() {
+      return JsonWriter.of(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public XmlWriter newXmlWriter() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response noContent() {
+      return this;
+    }
+
+    @Override
+    public Response setHeader(String name, String value) {
+      return this;
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return null;
+    }
+
+    @Override
+    public Stream stream() {
+      return this;
+    }
+
+    @Override
+    public Stream setMediaType(String s) {
+      this.mediaType = s;
+      return this;
+    }
+
+    @Override
+    public Stream setStatus(int httpStatus) {
+      this.status = httpStatus;
+      return this;
+    }
+
+    @Override
+    public OutputStream output() {
+      return output;
+    }
+  }
+}
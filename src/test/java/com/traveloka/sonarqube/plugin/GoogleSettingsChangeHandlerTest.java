@@ -0,0 +1,62 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+import org.sonar.api.config.GlobalPropertyChangeHandler.PropertyChange;
+import org.sonar.api.config.Settings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class GoogleSettingsChangeHandlerTest {
+
+  Settings settings = new Settings();
+
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+
+  ProviderMetadataRegistry providerMetadata = mock(ProviderMetadataRegistry.class);
+
+  GoogleSettingsChangeHandler underTest = new GoogleSettingsChangeHandler(googleSettings, providerMetadata);
+
+  @Test
+  public void refresh_snapshot_when_plugin_property_changes() {
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "old");
+    assertThat(googleSettings.hostedDomains().domains()).containsOnly("old");
+
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "new");
+    underTest.onChange(PropertyChange.create(GoogleSettings.HOSTED_DOMAIN, "new"));
+
+    assertThat(googleSettings.hostedDomains().domains()).containsOnly("new");
+    verify(providerMetadata).settingsChanged();
+  }
+
+  @Test
+  public void ignore_other_properties() {
+    GoogleSettings.Snapshot snapshot = googleSettings.snapshot();
+
+    underTest.onChange(PropertyChange.create("sonar.core.serverBaseURL", "http://sonar"));
+
+    assertThat(googleSettings.snapshot()).isSameAs(snapshot);
+    verifyZeroInteractions(providerMetadata);
+  }
+}
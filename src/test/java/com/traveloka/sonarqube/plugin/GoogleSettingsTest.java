@@ -20,8 +20,12 @@
 package com.traveloka.sonarqube.plugin;
 
 import org.junit.Test;
+import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.Settings;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class GoogleSettingsTest {
@@ -41,6 +45,7 @@ public class GoogleSettingsTest {
     assertThat(underTest.isEnabled()).isTrue();
 
     settings.setProperty(GoogleSettings.ENABLED, false);
+    underTest.refresh();
     assertThat(underTest.isEnabled()).isFalse();
   }
 
@@ -88,7 +93,19 @@ public class GoogleSettingsTest {
   @Test
   public void return_hosted_domain() throws Exception {
     settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "hd");
-    assertThat(underTest.hostedDomain()).isEqualTo("hd");
+    assertThat(underTest.hostedDomains().domains()).containsOnly("hd");
+  }
+
+  @Test
+  public void send_wildcard_hosted_domain_when_several_are_allowed() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "traveloka.com,acquired.com");
+
+    assertThat(underTest.hostedDomains().domains()).containsOnly("traveloka.com", "acquired.com");
+    assertThat(underTest.snapshot().authorizationUrl("state")).endsWith("&state=state&hd=*");
   }
 
   @Test
@@ -97,11 +114,190 @@ public class GoogleSettingsTest {
     assertThat(underTest.allowUsersToSignUp()).isTrue();
 
     settings.setProperty(GoogleSettings.ALLOW_USERS_TO_SIGN_UP, "false");
+    underTest.refresh();
     assertThat(underTest.allowUsersToSignUp()).isFalse();
   }
 
+  @Test
+  public void return_connection_settings() throws Exception {
+    settings.setProperty(GoogleSettings.CONNECT_TIMEOUT, 1000);
+    settings.setProperty(GoogleSettings.READ_TIMEOUT, 2000);
+    settings.setProperty(GoogleSettings.MAX_CONNECTIONS, 3);
+    assertThat(underTest.connectTimeout()).isEqualTo(1000);
+    assertThat(underTest.readTimeout()).isEqualTo(2000);
+    assertThat(underTest.maxConnections()).isEqualTo(3);
+  }
+
+  @Test
+  public void connection_settings_have_defaults() throws Exception {
+    assertThat(underTest.connectTimeout()).isEqualTo(GoogleSettings.DEFAULT_CONNECT_TIMEOUT);
+    assertThat(underTest.readTimeout()).isEqualTo(GoogleSettings.DEFAULT_READ_TIMEOUT);
+    assertThat(underTest.maxConnections()).isEqualTo(GoogleSettings.DEFAULT_MAX_CONNECTIONS);
+  }
+
+  @Test
+  public void fall_back_to_default_of_invalid_integer() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.CONNECT_TIMEOUT, "5s");
+
+    assertThat(underTest.isEnabled()).isTrue();
+    assertThat(underTest.connectTimeout()).isEqualTo(GoogleSettings.DEFAULT_CONNECT_TIMEOUT);
+  }
+
+  @Test
+  public void keep_snapshot_until_refreshed() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    GoogleSettings.Snapshot snapshot = underTest.snapshot();
+
+    settings.setProperty(GoogleSettings.CLIENT_ID, "other");
+    assertThat(underTest.snapshot()).isSameAs(snapshot);
+    assertThat(underTest.clientId()).isEqualTo("id");
+
+    assertThat(underTest.refresh().clientId()).isEqualTo("other");
+    assertThat(snapshot.clientId()).isEqualTo("id");
+  }
+
+  @Test
+  public void publish_new_generation_only_when_settings_change() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    GoogleSettings.Snapshot snapshot = underTest.snapshot();
+    assertThat(snapshot.generation()).isEqualTo(1L);
+
+    assertThat(underTest.refresh()).isSameAs(snapshot);
+
+    settings.setProperty(GoogleSettings.CLIENT_ID, "other");
+    assertThat(underTest.refresh().generation()).isEqualTo(2L);
+  }
+
+  @Test
+  public void notify_listeners_of_new_generation() throws Exception {
+    List<String> changes = new ArrayList<>();
+    underTest.addListener((previous, current) -> changes.add(previous.clientId() + "->" + current.clientId()));
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    underTest.snapshot();
+
+    underTest.refresh();
+    settings.setProperty(GoogleSettings.CLIENT_ID, "other");
+    underTest.refresh();
+    underTest.useProviderMetadata(null);
+
+    assertThat(changes).containsExactly("id->other");
+  }
+
+  @Test
+  public void failure_of_listener_does_not_prevent_others_from_being_notified() throws Exception {
+    List<Long> generations = new ArrayList<>();
+    underTest.addListener((previous, current) -> {
+      throw new IllegalStateException("failure");
+    });
+    underTest.addListener((previous, current) -> generations.add(current.generation()));
+    underTest.snapshot();
+
+    settings.setProperty(GoogleSettings.CLIENT_ID, "other");
+    underTest.refresh();
+
+    assertThat(generations).containsExactly(2L);
+    assertThat(underTest.clientId()).isEqualTo("other");
+  }
+
+  @Test
+  public void precompile_authorization_url() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "my id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "https://sonar/oauth2/callback/google");
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "traveloka.com");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+
+    assertThat(underTest.snapshot().authorizationUrl("a b")).isEqualTo("https://accounts.google.com/o/oauth2/auth?access_type=offline&client_id=my%20id" +
+      "&redirect_uri=https://sonar/oauth2/callback/google&response_type=code&scope=email%20profile%20openid&state=a%20b&hd=traveloka.com");
+  }
+
+  @Test
+  public void override_authorization_endpoint() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.AUTHORIZATION_URL, "http://localhost:8080/auth");
+
+    assertThat(underTest.authorizationServerUrl()).isEqualTo("http://localhost:8080/auth");
+    assertThat(underTest.snapshot().authorizationUrl("state")).startsWith("http://localhost:8080/auth?access_type=offline&client_id=id");
+  }
+
+  @Test
+  public void request_online_access() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.ACCESS_TYPE, "online");
+
+    assertThat(underTest.snapshot().accessType()).isEqualTo("online");
+    assertThat(underTest.snapshot().authorizationUrl("state")).contains("?access_type=online&");
+  }
+
+  @Test
+  public void add_login_hint_to_authorization_url_of_silent_login() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+
+    assertThat(underTest.snapshot().authorizationUrl("state", "john doe@example.com"))
+      .endsWith("&state=state&prompt=none&login_hint=john%20doe@example.com");
+  }
+
+  @Test
+  public void do_not_send_hosted_domain_when_not_defined() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+
+    assertThat(underTest.snapshot().authorizationUrl("state")).endsWith("&state=state");
+  }
+
+  @Test
+  public void compile_groups_mapping() throws Exception {
+    settings.setProperty(GoogleSettings.GROUPS_MAPPING, "Developers@example.com=sonar-users,developers@example.com=devs,ops@example.com = sonar-administrators,invalid");
+
+    assertThat(underTest.snapshot().groupsMapping()).hasSize(2);
+    assertThat(underTest.snapshot().groupsMapping().get("developers@example.com")).containsOnly("sonar-users", "devs");
+    assertThat(underTest.snapshot().groupsMapping().get("ops@example.com")).containsOnly("sonar-administrators");
+  }
+
+  @Test
+  public void compile_login_rules() throws Exception {
+    Settings withDefinitions = new Settings(new PropertyDefinitions(GoogleSettings.definitions()));
+    withDefinitions.setProperty(GoogleSettings.LOGIN_RULES, "([a-z]{1%2C8}).*@example\\.com=>$1,invalid");
+    withDefinitions.setProperty(GoogleSettings.LOGIN_MAPPING_FILE, "/etc/sonar/logins.csv");
+
+    GoogleSettings.Snapshot snapshot = new GoogleSettings(withDefinitions).snapshot();
+
+    assertThat(snapshot.loginRules().size()).isEqualTo(1);
+    assertThat(snapshot.loginRules().login("johnathan.doe@example.com")).isEqualTo("johnatha");
+    assertThat(snapshot.loginMappingFile()).isEqualTo("/etc/sonar/logins.csv");
+  }
+
+  @Test
+  public void no_login_rules_by_default() throws Exception {
+    assertThat(underTest.snapshot().loginRules().size()).isZero();
+    assertThat(underTest.snapshot().loginMappingFile()).isNull();
+  }
+
+  @Test
+  public void groups_cache_settings_have_defaults() throws Exception {
+    assertThat(underTest.snapshot().groupsCacheTtlMs()).isEqualTo(GoogleSettings.DEFAULT_GROUPS_CACHE_TTL * 1000L);
+    assertThat(underTest.snapshot().groupsCacheSize()).isEqualTo(GoogleSettings.DEFAULT_GROUPS_CACHE_SIZE);
+    assertThat(underTest.snapshot().directoryUrl()).isEqualTo(GoogleSettings.DEFAULT_DIRECTORY_URL);
+    assertThat(underTest.snapshot().isGroupsSyncEnabled()).isFalse();
+  }
+
   @Test
   public void definitions() throws Exception {
-    assertThat(GoogleSettings.definitions()).hasSize(6);
+    assertThat(GoogleSettings.definitions()).hasSize(55);
   }
 }
@@ -0,0 +1,318 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.System2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GoogleSigningKeysTest {
+
+  @Rule
+  public MockWebServer server = new MockWebServer();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  IdTokenFixture fixture = new IdTokenFixture();
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  GoogleHttpTransport httpTransport = new GoogleHttpTransport(googleSettings);
+  System2 system2 = mock(System2.class);
+
+  GoogleSigningKeys underTest = new GoogleSigningKeys(googleSettings, httpTransport, system2);
+
+  @Before
+  public void setUp() {
+    settings.setProperty(GoogleSettings.CERTS_URL, server.url("/certs").toString());
+    googleSettings.refresh();
+    when(system2.now()).thenReturn(1_000_000L);
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+    httpTransport.stop();
+  }
+
+  @Test
+  public void fetch_keys_once_and_serve_them_from_memory() throws Exception {
+    server.enqueue(jwksResponse());
+
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void refetch_on_unknown_key_id() throws Exception {
+    server.enqueue(new MockResponse().setBody(fixture.jwks("old-key")));
+    server.enqueue(jwksResponse());
+    assertThat(underTest.get("old-key")).isNotNull();
+
+    when(system2.now()).thenReturn(1_000_000L + GoogleSigningKeys.MIN_REFETCH_INTERVAL_MS);
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void do_not_refetch_unknown_key_id_right_after_a_fetch() throws Exception {
+    server.enqueue(jwksResponse());
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+
+    assertThat(underTest.get("unknown")).isNull();
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void refetch_right_away_when_keys_url_changes() throws Exception {
+    server.enqueue(new MockResponse().setBody(fixture.jwks("old-key")));
+    server.enqueue(jwksResponse());
+    assertThat(underTest.get("old-key")).isNotNull();
+
+    // for instance once the discovery document is loaded
+    settings.setProperty(GoogleSettings.CERTS_URL, server.url("/other-certs").toString());
+    googleSettings.refresh();
+
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void concurrent_lookups_of_unknown_key_share_a_single_fetch() throws Exception {
+    server.enqueue(jwksResponse().setBodyDelay(200, TimeUnit.MILLISECONDS));
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Object>> lookups = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        lookups.add(executor.submit((Callable<Object>) () -> underTest.get(IdTokenFixture.KEY_ID)));
+      }
+      for (Future<Object> lookup : lookups) {
+        assertThat(lookup.get(5, TimeUnit.SECONDS)).isNotNull();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void refresh_keys_in_background_when_started() throws Exception {
+    server.enqueue(jwksResponse());
+    underTest.start();
+
+    assertThat(server.takeRequest(5, TimeUnit.SECONDS)).isNotNull();
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void load_keys_saved_by_previous_run_when_google_is_unreachable() throws Exception {
+    File dataDir = temp.newFolder();
+    settings.setProperty(GoogleSettings.DATA_DIR, dataDir.getAbsolutePath());
+    googleSettings.refresh();
+    server.enqueue(jwksResponse());
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(new File(dataDir, GoogleSigningKeys.KEYS_FILE)).isFile();
+
+    settings.setProperty(GoogleSettings.CERTS_URL, "http://localhost:1/certs");
+    GoogleSettings restartedSettings = new GoogleSettings(settings);
+    GoogleHttpTransport restartedTransport = new GoogleHttpTransport(restartedSettings);
+    GoogleSigningKeys restarted = new GoogleSigningKeys(restartedSettings, restartedTransport, system2);
+    try {
+      restarted.start();
+
+      assertThat(restarted.get(IdTokenFixture.KEY_ID)).isNotNull();
+    } finally {
+      restarted.stop();
+      restartedTransport.stop();
+    }
+  }
+
+  @Test
+  public void keep_serving_keys_within_grace_period() throws Exception {
+    server.enqueue(jwksResponse());
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+
+    when(system2.now()).thenReturn(1_000_000L + TimeUnit.HOURS.toMillis(1) + GoogleSigningKeys.EXPIRY_GRACE_MS - 1L);
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void stop_trusting_keys_past_grace_period() throws Exception {
+    server.enqueue(jwksResponse());
+    server.enqueue(new MockResponse().setResponseCode(404));
+    server.enqueue(jwksResponse());
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+
+    long expiredAt = 1_000_000L + TimeUnit.HOURS.toMillis(1) + GoogleSigningKeys.EXPIRY_GRACE_MS;
+    when(system2.now()).thenReturn(expiredAt);
+    try {
+      underTest.get(IdTokenFixture.KEY_ID);
+      fail("should have failed");
+    } catch (IOException e) {
+      // keys expired, and Google is unreachable
+    }
+
+    when(system2.now()).thenReturn(expiredAt + GoogleSigningKeys.MIN_REFETCH_INTERVAL_MS);
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void do_not_refetch_expired_keys_on_every_login() throws Exception {
+    server.enqueue(jwksResponse());
+    server.enqueue(new MockResponse().setResponseCode(404));
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+
+    when(system2.now()).thenReturn(1_000_000L + TimeUnit.HOURS.toMillis(1) + GoogleSigningKeys.EXPIRY_GRACE_MS);
+    try {
+      underTest.get(IdTokenFixture.KEY_ID);
+      fail("should have failed");
+    } catch (IOException e) {
+      // keys expired, and Google is unreachable
+    }
+
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNull();
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNull();
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void do_not_refetch_missing_keys_on_every_login() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404));
+    try {
+      underTest.get(IdTokenFixture.KEY_ID);
+      fail("should have failed");
+    } catch (IOException e) {
+      // Google is unreachable
+    }
+
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNull();
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void keep_current_keys_when_response_has_none() throws Exception {
+    server.enqueue(jwksResponse());
+    server.enqueue(new MockResponse().setBody("{\"keys\":[]}"));
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+
+    when(system2.now()).thenReturn(1_000_000L + GoogleSigningKeys.MIN_REFETCH_INTERVAL_MS);
+    try {
+      underTest.refresh();
+      fail("should have failed");
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("No Google signing key");
+    }
+
+    assertThat(underTest.get(IdTokenFixture.KEY_ID)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void ignore_expired_saved_keys() throws Exception {
+    File dataDir = temp.newFolder();
+    File saved = new File(dataDir, GoogleSigningKeys.KEYS_FILE);
+    saved.getParentFile().mkdirs();
+    Files.write(saved.toPath(), fixture.jwks().getBytes(StandardCharsets.UTF_8));
+    long savedAt = saved.lastModified();
+    settings.setProperty(GoogleSettings.DATA_DIR, dataDir.getAbsolutePath());
+    settings.setProperty(GoogleSettings.CERTS_URL, "http://localhost:1/certs");
+    googleSettings.refresh();
+    when(system2.now()).thenReturn(savedAt + GoogleSigningKeys.DEFAULT_MAX_AGE_MS + GoogleSigningKeys.EXPIRY_GRACE_MS);
+
+    underTest.start();
+
+    // saved keys expired, and Google is unreachable
+    assertNoKey(IdTokenFixture.KEY_ID);
+  }
+
+  @Test
+  public void ignore_corrupted_saved_keys() throws Exception {
+    File dataDir = temp.newFolder();
+    File saved = new File(dataDir, GoogleSigningKeys.KEYS_FILE);
+    saved.getParentFile().mkdirs();
+    Files.write(saved.toPath(), "{not json".getBytes(StandardCharsets.UTF_8));
+    settings.setProperty(GoogleSettings.DATA_DIR, dataDir.getAbsolutePath());
+    settings.setProperty(GoogleSettings.CERTS_URL, "http://localhost:1/certs");
+    googleSettings.refresh();
+
+    underTest.start();
+
+    // no keys loaded, and Google is unreachable
+    assertNoKey(IdTokenFixture.KEY_ID);
+  }
+
+  @Test
+  public void parse_max_age_of_cache_control() {
+    assertThat(GoogleSigningKeys.maxAge("public, max-age=19845, must-revalidate, no-transform")).isEqualTo(19_845_000L);
+    assertThat(GoogleSigningKeys.maxAge("no-cache")).isEqualTo(GoogleSigningKeys.DEFAULT_MAX_AGE_MS);
+    assertThat(GoogleSigningKeys.maxAge(null)).isEqualTo(GoogleSigningKeys.DEFAULT_MAX_AGE_MS);
+  }
+
+  @Test
+  public void refresh_before_keys_expire() {
+    assertThat(GoogleSigningKeys.refreshDelay(10_000_000L)).isEqualTo(8_000_000L);
+    assertThat(GoogleSigningKeys.refreshDelay(0L)).isEqualTo(GoogleSigningKeys.MIN_REFETCH_INTERVAL_MS);
+  }
+
+  /**
+   * Depending on whether the background refresh already failed, the lookup fails or is throttled.
+   */
+  private void assertNoKey(String keyId) {
+    try {
+      assertThat(underTest.get(keyId)).isNull();
+    } catch (IOException e) {
+      // the lookup refetched the keys itself
+    }
+  }
+
+  private MockResponse jwksResponse() {
+    return new MockResponse()
+      .setHeader("Cache-Control", "public, max-age=3600")
+      .setHeader("Content-Type", "application/json")
+      .setBody(fixture.jwks());
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.server.authentication.UnauthorizedException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class GoogleTokenExchangeTest {
+
+  @Rule
+  public MockWebServer server = new MockWebServer();
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  GoogleHttpTransport httpTransport;
+
+  GoogleTokenExchange underTest;
+
+  @Before
+  public void setUp() {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "http://localhost/oauth2/callback/google");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.TOKEN_URL, server.url("/token").toString());
+    settings.setProperty(GoogleSettings.TOKEN_TIMEOUT, 500);
+    settings.setProperty(GoogleSettings.CIRCUIT_BREAKER_THRESHOLD, 2);
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+    httpTransport.stop();
+  }
+
+  @Test
+  public void exchange_code_against_tokens() throws Exception {
+    start();
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"id_token\":\"jwt\"}"));
+
+    GoogleTokenResponse response = underTest.exchange(googleSettings.snapshot(), "the-code");
+
+    assertThat(response.getIdToken()).isEqualTo("jwt");
+    assertThat(server.takeRequest().getBody().readUtf8()).contains("code=the-code").contains("grant_type=authorization_code");
+    assertThat(underTest.circuitState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void invalid_code_does_not_open_circuit() throws Exception {
+    start();
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setResponseCode(400).setBody("{\"error\":\"invalid_grant\"}"));
+      try {
+        underTest.exchange(googleSettings.snapshot(), "bad-code-" + i);
+        fail("should have failed");
+      } catch (IllegalStateException e) {
+        assertThat(e).hasMessage("Authorization Token Fail");
+      }
+    }
+
+    assertThat(underTest.circuitState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void open_circuit_after_consecutive_server_errors_and_fail_fast() throws Exception {
+    start();
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setResponseCode(500));
+    exchangeAndExpectFailure(IllegalStateException.class);
+    exchangeAndExpectFailure(IllegalStateException.class);
+    assertThat(underTest.circuitState()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    exchangeAndExpectFailure(UnauthorizedException.class);
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void give_up_when_token_endpoint_does_not_respond_in_time() throws Exception {
+    settings.setProperty(GoogleSettings.READ_TIMEOUT, 5000);
+    start();
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+    long start = System.nanoTime();
+    exchangeAndExpectFailure(UnauthorizedException.class);
+
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(3000L);
+  }
+
+  @Test
+  public void free_slot_of_request_that_misses_the_deadline() throws Exception {
+    settings.setProperty(GoogleSettings.READ_TIMEOUT, 10000);
+    settings.setProperty(GoogleSettings.TOKEN_MAX_CONCURRENCY, 1);
+    settings.setProperty(GoogleSettings.TOKEN_QUEUE_SIZE, 0);
+    settings.setProperty(GoogleSettings.CIRCUIT_BREAKER_THRESHOLD, 5);
+    start();
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\"}"));
+    exchangeAndExpectFailure(UnauthorizedException.class);
+
+    // the read of the first request times out with the deadline, well before the read timeout
+    Thread.sleep(300L);
+    GoogleTokenResponse response = underTest.exchange(googleSettings.snapshot(), "other-code");
+
+    assertThat(response.getAccessToken()).isEqualTo("token");
+  }
+
+  @Test
+  public void reject_when_all_slots_are_busy() throws Exception {
+    settings.setProperty(GoogleSettings.TOKEN_MAX_CONCURRENCY, 1);
+    settings.setProperty(GoogleSettings.TOKEN_QUEUE_SIZE, 0);
+    settings.setProperty(GoogleSettings.TOKEN_TIMEOUT, 5000);
+    start();
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\"}").setBodyDelay(1, TimeUnit.SECONDS));
+
+    CountDownLatch sent = new CountDownLatch(1);
+    ExecutorService client = Executors.newSingleThreadExecutor();
+    try {
+      client.submit(() -> {
+        sent.countDown();
+        return underTest.exchange(googleSettings.snapshot(), "slow");
+      });
+      sent.await();
+      server.takeRequest();
+
+      exchangeAndExpectFailure(UnauthorizedException.class);
+    } finally {
+      client.shutdownNow();
+    }
+    assertThat(underTest.circuitState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void apply_new_concurrency_to_next_exchanges() throws Exception {
+    settings.setProperty(GoogleSettings.TOKEN_MAX_CONCURRENCY, 1);
+    settings.setProperty(GoogleSettings.TOKEN_QUEUE_SIZE, 0);
+    settings.setProperty(GoogleSettings.TOKEN_TIMEOUT, 5000);
+    start();
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"id_token\":\"slow\"}")
+      .setBodyDelay(500, TimeUnit.MILLISECONDS));
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"id_token\":\"fast\"}"));
+
+    ExecutorService client = Executors.newSingleThreadExecutor();
+    try {
+      Future<GoogleTokenResponse> inFlight = client.submit(() -> underTest.exchange(googleSettings.snapshot(), "slow"));
+      server.takeRequest();
+
+      settings.setProperty(GoogleSettings.TOKEN_MAX_CONCURRENCY, 2);
+      googleSettings.refresh();
+
+      assertThat(underTest.exchange(googleSettings.snapshot(), "fast").getIdToken()).isEqualTo("fast");
+      assertThat(inFlight.get().getIdToken()).isEqualTo("slow");
+    } finally {
+      client.shutdownNow();
+    }
+  }
+
+  @Test
+  public void duplicate_of_code_in_flight_shares_its_tokens() throws Exception {
+    settings.setProperty(GoogleSettings.TOKEN_TIMEOUT, 5000);
+    start();
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"id_token\":\"jwt\"}")
+      .setBodyDelay(300, TimeUnit.MILLISECONDS));
+
+    ExecutorService client = Executors.newSingleThreadExecutor();
+    try {
+      Future<GoogleTokenResponse> first = client.submit(() -> underTest.exchange(googleSettings.snapshot(), "the-code"));
+      server.takeRequest();
+
+      GoogleTokenResponse duplicate = underTest.exchange(googleSettings.snapshot(), "the-code");
+
+      assertThat(duplicate).isSameAs(first.get());
+      assertThat(server.getRequestCount()).isEqualTo(1);
+    } finally {
+      client.shutdownNow();
+    }
+  }
+
+  @Test
+  public void reject_redeemed_code_without_asking_google() throws Exception {
+    start();
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\"}"));
+    underTest.exchange(googleSettings.snapshot(), "the-code");
+
+    try {
+      underTest.exchange(googleSettings.snapshot(), "the-code");
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessage("This sign-in has already been completed, please sign in again");
+    }
+    assertThat(server.getRequestCount()).isEqualTo(1);
+    assertThat(underTest.redeemedCodes()).isEqualTo(1);
+  }
+
+  @Test
+  public void reject_code_refused_by_google_without_asking_again() throws Exception {
+    start();
+    server.enqueue(new MockResponse().setResponseCode(400).setBody("{\"error\":\"invalid_grant\"}"));
+    exchangeAndExpectFailure(IllegalStateException.class);
+
+    exchangeAndExpectFailure(UnauthorizedException.class);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void retry_code_after_server_error() throws Exception {
+    start();
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\"}"));
+    exchangeAndExpectFailure(IllegalStateException.class);
+
+    GoogleTokenResponse response = underTest.exchange(googleSettings.snapshot(), "code");
+
+    assertThat(response.getAccessToken()).isEqualTo("token");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  private void start() {
+    googleSettings.refresh();
+    httpTransport = new GoogleHttpTransport(googleSettings);
+    underTest = new GoogleTokenExchange(googleSettings, httpTransport);
+    underTest.start();
+  }
+
+  private void exchangeAndExpectFailure(Class<? extends Exception> expected) {
+    try {
+      underTest.exchange(googleSettings.snapshot(), "code");
+      fail("should have failed");
+    } catch (Exception e) {
+      assertThat(e).isInstanceOf(expected);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class GoogleWarmUpTest {
+
+  @Rule
+  public MockWebServer server = new MockWebServer();
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  GoogleHttpTransport httpTransport;
+  GoogleWarmUp underTest;
+
+  @Before
+  public void setUp() {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "http://localhost/oauth2/callback/google");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "example.com");
+    settings.setProperty(GoogleSettings.TOKEN_URL, server.url("/oauth2/v4/token").toString());
+    settings.setProperty(GoogleSettings.CERTS_URL, server.url("/oauth2/v3/certs").toString());
+  }
+
+  @After
+  public void tearDown() {
+    if (underTest != null) {
+      underTest.stop();
+      httpTransport.stop();
+    }
+  }
+
+  @Test
+  public void open_a_pooled_connection_to_google_in_background() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404));
+    create();
+
+    underTest.start();
+
+    RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+    assertThat(request.getMethod()).isEqualTo("HEAD");
+    assertThat(request.getPath()).isEqualTo("/");
+    for (int i = 0; i < 50 && httpTransport.poolStats().idle() == 0; i++) {
+      Thread.sleep(100L);
+    }
+    assertThat(httpTransport.poolStats().idle()).isEqualTo(1);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void do_nothing_when_disabled() throws Exception {
+    settings.setProperty(GoogleSettings.WARM_UP, false);
+    create();
+
+    underTest.start();
+
+    assertThat(server.takeRequest(500, TimeUnit.MILLISECONDS)).isNull();
+  }
+
+  @Test
+  public void warm_up_each_origin_called_on_logins_once() {
+    settings.setProperty(GoogleSettings.TOKEN_URL, "https://oauth2.googleapis.com/token");
+    settings.setProperty(GoogleSettings.CERTS_URL, "https://www.googleapis.com/oauth2/v3/certs");
+    settings.setProperty(GoogleSettings.DIRECTORY_URL, "https://www.googleapis.com");
+    settings.setProperty(GoogleSettings.GROUPS_SYNC, true);
+
+    assertThat(GoogleWarmUp.origins(googleSettings.refresh()))
+      .containsExactly("https://oauth2.googleapis.com/", "https://www.googleapis.com/");
+  }
+
+  @Test
+  public void skip_directory_when_groups_are_not_synchronized() {
+    settings.setProperty(GoogleSettings.DIRECTORY_URL, "https://directory.example.com:8443/admin");
+
+    assertThat(GoogleWarmUp.origins(googleSettings.refresh())).containsExactly(server.url("/").toString());
+  }
+
+  private void create() {
+    googleSettings.refresh();
+    httpTransport = new GoogleHttpTransport(googleSettings);
+    underTest = new GoogleWarmUp(googleSettings, httpTransport, mock(GoogleSigningKeys.class));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HostedDomainsTest {
+
+  @Test
+  public void match_any_configured_domain() {
+    HostedDomains underTest = HostedDomains.compile(new String[] {"traveloka.com", " Acquired.com "}, new String[0], true);
+
+    assertThat(underTest.policy("traveloka.com").domain()).isEqualTo("traveloka.com");
+    assertThat(underTest.policy("acquired.com").domain()).isEqualTo("acquired.com");
+    assertThat(underTest.policy("ACQUIRED.com").domain()).isEqualTo("acquired.com");
+    assertThat(underTest.policy("gmail.com")).isNull();
+    assertThat(underTest.policy(null)).isNull();
+    assertThat(underTest.authorizationHint()).isEqualTo("*");
+  }
+
+  @Test
+  public void domains_inherit_global_policy() {
+    HostedDomains.Policy policy = HostedDomains.compile(new String[] {"traveloka.com"}, new String[0], true).policy("traveloka.com");
+
+    assertThat(policy.allowsSignUp()).isTrue();
+    assertThat(policy.defaultGroups()).isEmpty();
+    assertThat(policy.login("john.doe@traveloka.com")).isEqualTo("john.doe");
+  }
+
+  @Test
+  public void override_policy_of_a_domain() {
+    HostedDomains underTest = HostedDomains.compile(new String[] {"traveloka.com", "acquired.com"},
+      new String[] {"acquired.com: signUp=false ; groups=sonar-users|acquired ; login=email"}, true);
+
+    HostedDomains.Policy acquired = underTest.policy("acquired.com");
+    assertThat(acquired.allowsSignUp()).isFalse();
+    assertThat(acquired.defaultGroups()).containsExactly("sonar-users", "acquired");
+    assertThat(acquired.loginRule()).isEqualTo(HostedDomains.LoginRule.EMAIL);
+    assertThat(acquired.login("john.doe@acquired.com")).isEqualTo("john.doe@acquired.com");
+    assertThat(underTest.policy("traveloka.com").allowsSignUp()).isTrue();
+    assertThat(underTest.anyAllowsSignUp()).isTrue();
+  }
+
+  @Test
+  public void ignore_invalid_policies_and_options() {
+    HostedDomains underTest = HostedDomains.compile(new String[] {"traveloka.com"},
+      new String[] {"unknown.com:signUp=false", "no-separator", "traveloka.com:signUp=maybe;login=upper;groups=devs"}, false);
+
+    assertThat(underTest.domains()).containsOnly("traveloka.com");
+    HostedDomains.Policy policy = underTest.policy("traveloka.com");
+    assertThat(policy.allowsSignUp()).isFalse();
+    assertThat(policy.loginRule()).isEqualTo(HostedDomains.LoginRule.LOCAL_PART);
+    assertThat(policy.defaultGroups()).containsExactly("devs");
+  }
+
+  @Test
+  public void sign_up_is_allowed_if_any_domain_allows_it() {
+    assertThat(HostedDomains.compile(new String[] {"a.com", "b.com"}, new String[] {"b.com:signUp=true"}, false).anyAllowsSignUp()).isTrue();
+    assertThat(HostedDomains.compile(new String[] {"a.com", "b.com"}, new String[] {"b.com:signUp=false"}, true).anyAllowsSignUp()).isTrue();
+    assertThat(HostedDomains.compile(new String[] {"a.com"}, new String[] {"a.com:signUp=false"}, true).anyAllowsSignUp()).isFalse();
+    assertThat(HostedDomains.compile(new String[0], new String[0], true).anyAllowsSignUp()).isTrue();
+  }
+
+  @Test
+  public void send_single_domain_as_authorization_hint() {
+    assertThat(HostedDomains.compile(new String[] {"traveloka.com"}, new String[0], true).authorizationHint()).isEqualTo("traveloka.com");
+    assertThat(HostedDomains.compile(new String[0], new String[0], true).authorizationHint()).isNull();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+
+/**
+ * Signs ID tokens with a locally generated RSA key and publishes the matching key set,
+ * standing in for Google in tests.
+ */
+class IdTokenFixture {
+
+  static final String KEY_ID = "test-key";
+  static final String CLIENT_ID = "id";
+
+  private final KeyPair keyPair;
+
+  IdTokenFixture() {
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+      generator.initialize(2048);
+      this.keyPair = generator.generateKeyPair();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  PublicKey publicKey() {
+    return keyPair.getPublic();
+  }
+
+  String jwks() {
+    return jwks(KEY_ID);
+  }
+
+  String jwks(String keyId) {
+    RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return "{\"keys\":[{\"kty\":\"RSA\",\"alg\":\"RS256\",\"use\":\"sig\",\"kid\":\"" + keyId + "\"," +
+      "\"n\":\"" + encoder.encodeToString(unsigned(publicKey.getModulus().toByteArray())) + "\"," +
+      "\"e\":\"" + encoder.encodeToString(unsigned(publicKey.getPublicExponent().toByteArray())) + "\"}]}";
+  }
+
+  GoogleIdToken.Payload payload(String email, String hostedDomain) {
+    long now = System.currentTimeMillis() / 1000L;
+    GoogleIdToken.Payload payload = new GoogleIdToken.Payload();
+    payload.setIssuer("https://accounts.google.com");
+    payload.setAudience(CLIENT_ID);
+    payload.setSubject("1234567890");
+    payload.setIssuedAtTimeSeconds(now);
+    payload.setExpirationTimeSeconds(now + 3600L);
+    payload.setEmail(email);
+    payload.setEmailVerified(true);
+    payload.setHostedDomain(hostedDomain);
+    return payload;
+  }
+
+  /**
+   * Payload with all the claims Google sends for the email, profile and openid scopes.
+   */
+  GoogleIdToken.Payload profilePayload(String email, String hostedDomain) {
+    GoogleIdToken.Payload payload = payload(email, hostedDomain);
+    payload.setAuthorizedParty(CLIENT_ID);
+    payload.setAccessTokenHash("HK6E_P6Dh8Y93mRNtsDB1Q");
+    payload.set("name", "John Doe");
+    payload.set("given_name", "John");
+    payload.set("family_name", "Doe");
+    payload.set("picture", "https://lh3.googleusercontent.com/a-/AOh14GhRFWgUPpj8G4kMj7wF4q2ZzA9qPzN8dK5b1Y2x=s96-c");
+    payload.set("locale", "en");
+    return payload;
+  }
+
+  String sign(GoogleIdToken.Payload payload) {
+    return sign(KEY_ID, payload);
+  }
+
+  String sign(String keyId, GoogleIdToken.Payload payload) {
+    JsonWebSignature.Header header = new JsonWebSignature.Header();
+    header.setAlgorithm("RS256");
+    header.setType("JWT");
+    header.setKeyId(keyId);
+    try {
+      return JsonWebSignature.signUsingRsaSha256(keyPair.getPrivate(), JacksonFactory.getDefaultInstance(), header, payload);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  GoogleIdToken parse(String idToken) {
+    try {
+      return GoogleIdToken.parse(JacksonFactory.getDefaultInstance(), idToken);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  IdTokenClaims read(String idToken) {
+    try {
+      return new IdTokenReader(JacksonFactory.getDefaultInstance()).read(idToken);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] unsigned(byte[] bytes) {
+    if (bytes.length > 1 && bytes[0] == 0) {
+      byte[] result = new byte[bytes.length - 1];
+      System.arraycopy(bytes, 1, result, 0, result.length);
+      return result;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IdTokenReaderTest {
+
+  static final String HEADER = "{\"alg\":\"RS256\",\"kid\":\"test-key\",\"typ\":\"JWT\"}";
+  static final String PAYLOAD = "{\"iss\":\"https://accounts.google.com\",\"aud\":\"id\",\"sub\":\"1234567890\",\"iat\":1500000000,"
+    + "\"exp\":1500003600,\"email\":\"john@example.com\",\"email_verified\":true,\"hd\":\"example.com\"}";
+
+  JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+  IdTokenFixture fixture = new IdTokenFixture();
+  IdTokenReader underTest = new IdTokenReader(jsonFactory);
+
+  @Test
+  public void read_tokens_signed_by_google_without_falling_back() throws Exception {
+    for (String token : Arrays.asList(
+      fixture.sign(fixture.payload("john@example.com", "example.com")),
+      fixture.sign(fixture.profilePayload("john.doe@example.com", "example.com")),
+      token(HEADER, PAYLOAD))) {
+      assertSameAsClientLibrary(token);
+    }
+
+    assertThat(underTest.fallbacks()).isZero();
+  }
+
+  @Test
+  public void read_claims() throws Exception {
+    IdTokenClaims claims = underTest.read(token(HEADER, PAYLOAD));
+
+    assertThat(claims.algorithm()).isEqualTo("RS256");
+    assertThat(claims.keyId()).isEqualTo("test-key");
+    assertThat(claims.issuer()).isEqualTo("https://accounts.google.com");
+    assertThat(claims.audience()).containsExactly("id");
+    assertThat(claims.subject()).isEqualTo("1234567890");
+    assertThat(claims.issuedAtTimeSeconds()).isEqualTo(1_500_000_000L);
+    assertThat(claims.expirationTimeSeconds()).isEqualTo(1_500_003_600L);
+    assertThat(claims.email()).isEqualTo("john@example.com");
+    assertThat(claims.emailVerified()).isTrue();
+    assertThat(claims.hostedDomain()).isEqualTo("example.com");
+  }
+
+  @Test
+  public void give_same_results_as_client_library_on_unusual_tokens() throws Exception {
+    List<String> corpus = new ArrayList<>();
+    corpus.add(token(HEADER, with("\"name\":\"Jos\u00e9 M\u00fcller \u65e5\u672c \uD83D\uDE00\"")));
+    corpus.add(token(HEADER, with("\"email\":\"jo\\u0068n\\/\\n\\\"\\\\@example.com\"")));
+    corpus.add(token(HEADER, with("\"email\":\"\\uD83D\\uDE00@example.com\"")));
+    corpus.add(token(HEADER, with("\"aud\":[\"id\",\"other\"]")));
+    corpus.add(token(HEADER, with("\"aud\":[]")));
+    corpus.add(token(HEADER, "{\"email\":\"john@example.com\"}"));
+    corpus.add(token(HEADER, "{}"));
+    corpus.add(token(HEADER, with("\"email_verified\":\"true\"")));
+    corpus.add(token(HEADER, with("\"email_verified\":\"TRUE\"")));
+    corpus.add(token(HEADER, with("\"email_verified\":\"yes\"")));
+    corpus.add(token(HEADER, with("\"email_verified\":false")));
+    corpus.add(token(HEADER, with("\"address\":{\"a\":[1,2.5e3,-0,{\"b\":null}],\"c\":true,\"d\":1e400}")));
+    corpus.add(token(HEADER, " \n{ \"email\" : \"john@example.com\" ,\t\"hd\" :\r\"example.com\" } \n"));
+    corpus.add(token(HEADER, with("\"iat\":-15")));
+    corpus.add(token(HEADER, with("\"email\":\"first@example.com\",\"email\":\"second@example.com\"")));
+    corpus.add(token(HEADER, with("\"amr\":[\"pwd\",\"otp\"],\"auth_time\":1500000000,\"nonce\":\"n\"")));
+    corpus.add(token("{\"alg\":\"RS256\",\"crit\":[\"exp\"],\"x5c\":[\"MIIC\"]}", PAYLOAD));
+    corpus.add(token("{\"alg\":\"HS256\"}", PAYLOAD));
+    // left to the client library
+    corpus.add(token(HEADER, with("\"exp\":1.5e9")));
+    corpus.add(token(HEADER, with("\"exp\":\"1500003600\"")));
+    corpus.add(token(HEADER, with("\"exp\":123456789012345678901")));
+    corpus.add(token(HEADER, with("\"exp\":null")));
+    corpus.add(token(HEADER, with("\"email\":5")));
+    corpus.add(token(HEADER, with("\"email\":null")));
+    corpus.add(token(HEADER, with("\"hd\":true")));
+    corpus.add(token(HEADER, with("\"aud\":[\"id\",5]")));
+    corpus.add(token(HEADER, with("\"email_verified\":null")));
+    corpus.add(token(HEADER, with("\"email_verified\":1")));
+    corpus.add(token(HEADER, with("\"typ\":5")));
+    corpus.add(token(HEADER, with("\"amr\":[\"pwd\",1]")));
+    corpus.add(token(HEADER, with("\"em\\u0061il\":\"escaped@example.com\"")));
+    corpus.add(token(HEADER, with("\"count\":0123")));
+    corpus.add(token(HEADER, with("\"bad\":\"\\x\"")));
+    corpus.add(token(HEADER, with("\"raw\":\"line\nbreak\"")));
+    corpus.add(token(HEADER, with("\"deep\":" + repeat("[", 40) + repeat("]", 40))));
+    corpus.add(token(HEADER, PAYLOAD + "x"));
+    corpus.add(token(HEADER, "{\"email\":\"john@example.com\",}"));
+    corpus.add(token(HEADER, "{\"email\":\"john@example.com\""));
+    corpus.add(token(HEADER, "hello"));
+    corpus.add(token(HEADER, "[1]"));
+    corpus.add(token(HEADER, ""));
+    corpus.add(token("{\"kid\":\"test-key\"}", PAYLOAD));
+    corpus.add(token("{\"alg\":\"RS256\",\"jwk\":{\"kty\":\"RSA\"}}", PAYLOAD));
+    corpus.add(token(HEADER.getBytes(StandardCharsets.UTF_8), utf8Payload(0xFF)));
+    corpus.add(token(HEADER.getBytes(StandardCharsets.UTF_8), utf8Payload(0xC0, 0xAF)));
+    corpus.add(token(HEADER.getBytes(StandardCharsets.UTF_8), utf8Payload(0xED, 0xA0, 0x80)));
+    corpus.add(token(HEADER.getBytes(StandardCharsets.UTF_8), utf8Payload(0xE6, 0x97)));
+    String valid = token(HEADER, PAYLOAD);
+    corpus.add(valid.replace('-', '+').replace('_', '/'));
+    corpus.add(valid.substring(0, valid.indexOf('.')) + "=" + valid.substring(valid.indexOf('.')));
+    corpus.add(valid + "A");
+    corpus.add(valid.substring(0, valid.lastIndexOf('.')) + ".AB");
+    corpus.add(valid.substring(0, valid.lastIndexOf('.')) + ".\u00e9");
+    corpus.add(valid + ".more");
+    corpus.add(valid.substring(0, valid.lastIndexOf('.')));
+    corpus.add("");
+    corpus.add("..");
+    corpus.add("not a token");
+
+    for (String token : corpus) {
+      assertSameAsClientLibrary(token);
+    }
+  }
+
+  @Test
+  public void verify_signature_as_client_library() throws Exception {
+    String token = fixture.sign(fixture.profilePayload("john.doe@example.com", "example.com"));
+    String otherSignature = fixture.sign(fixture.payload("jane@example.com", "example.com"));
+    String forged = token.substring(0, token.lastIndexOf('.')) + otherSignature.substring(otherSignature.lastIndexOf('.'));
+
+    assertThat(underTest.read(token).verifySignature(fixture.publicKey())).isTrue();
+    assertThat(underTest.read(token).verifySignature(new IdTokenFixture().publicKey())).isFalse();
+    assertThat(underTest.read(forged).verifySignature(fixture.publicKey())).isFalse();
+    assertThat(underTest.read(token(HEADER, PAYLOAD)).verifySignature(fixture.publicKey())).isFalse();
+    assertThat(underTest.fallbacks()).isZero();
+    assertThat(GoogleIdToken.parse(jsonFactory, forged).verifySignature(fixture.publicKey())).isFalse();
+  }
+
+  @Test
+  public void reuse_buffers_across_tokens_of_different_sizes() throws Exception {
+    String large = token(HEADER, with("\"padding\":\"" + repeat("x", 20_000) + "\""));
+    String small = token(HEADER, PAYLOAD);
+
+    assertSameAsClientLibrary(large);
+    assertSameAsClientLibrary(small);
+    assertSameAsClientLibrary(large);
+    assertThat(underTest.fallbacks()).isZero();
+  }
+
+  private void assertSameAsClientLibrary(String token) {
+    assertThat(describe(() -> underTest.read(token)))
+      .as(token)
+      .isEqualTo(describe(() -> IdTokenClaims.of(GoogleIdToken.parse(jsonFactory, token))));
+  }
+
+  private static String describe(Read read) {
+    try {
+      return read.read().toString();
+    } catch (Exception e) {
+      return e.getClass().getName();
+    }
+  }
+
+  private interface Read {
+    IdTokenClaims read() throws Exception;
+  }
+
+  private static String with(String claims) {
+    return PAYLOAD.substring(0, PAYLOAD.length() - 1) + "," + claims + "}";
+  }
+
+  private static byte[] utf8Payload(int... bytes) {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    byte[] start = "{\"name\":\"".getBytes(StandardCharsets.UTF_8);
+    payload.write(start, 0, start.length);
+    for (int b : bytes) {
+      payload.write(b);
+    }
+    payload.write('"');
+    payload.write('}');
+    return payload.toByteArray();
+  }
+
+  private static String token(String header, String payload) {
+    return token(header.getBytes(StandardCharsets.UTF_8), payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String token(byte[] header, byte[] payload) {
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString(header) + "." + encoder.encodeToString(payload) + "." + encoder.encodeToString("signature".getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      result.append(s);
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyHistogramTest {
+
+  LatencyHistogram underTest = new LatencyHistogram();
+
+  @Test
+  public void empty() {
+    assertThat(underTest.count()).isZero();
+    assertThat(underTest.quantileMillis(0.99)).isZero();
+    assertThat(underTest.maxNanos()).isZero();
+  }
+
+  @Test
+  public void put_samples_in_buckets_by_upper_bound() {
+    underTest.record(TimeUnit.MICROSECONDS.toNanos(300));
+    underTest.record(TimeUnit.MILLISECONDS.toNanos(1));
+    underTest.record(TimeUnit.MILLISECONDS.toNanos(30));
+    underTest.record(TimeUnit.SECONDS.toNanos(20));
+
+    long[] counts = underTest.bucketCounts();
+    assertThat(counts).hasSize(LatencyHistogram.BOUNDS_MS.length + 1);
+    assertThat(counts[0]).isEqualTo(2);
+    assertThat(counts[5]).isEqualTo(1);
+    assertThat(counts[counts.length - 1]).isEqualTo(1);
+    assertThat(underTest.count()).isEqualTo(4);
+    assertThat(underTest.maxNanos()).isEqualTo(TimeUnit.SECONDS.toNanos(20));
+  }
+
+  @Test
+  public void estimate_quantiles() {
+    for (int i = 0; i < 98; i++) {
+      underTest.record(TimeUnit.MILLISECONDS.toNanos(3));
+    }
+    underTest.record(TimeUnit.MILLISECONDS.toNanos(200));
+    underTest.record(TimeUnit.SECONDS.toNanos(12));
+
+    assertThat(underTest.quantileMillis(0.5)).isEqualTo(5d);
+    assertThat(underTest.quantileMillis(0.99)).isEqualTo(250d);
+    assertThat(underTest.quantileMillis(1d)).isEqualTo(12_000d);
+  }
+
+  @Test
+  public void record_concurrently() throws Exception {
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < 10_000; j++) {
+          underTest.record(j);
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(underTest.count()).isEqualTo(40_000);
+    assertThat(underTest.sumNanos()).isEqualTo(4L * 9_999 * 10_000 / 2);
+    assertThat(underTest.maxNanos()).isEqualTo(9_999);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LoginHintCookieTest {
+
+  HttpServletRequest request = mock(HttpServletRequest.class);
+
+  @Test
+  public void read_email_of_signed_cookie() {
+    Cookie cookie = LoginHintCookie.create(request, "secret", "john.doe@example.com", 1_000L, 60_000L);
+    when(request.getCookies()).thenReturn(new Cookie[] {new Cookie("other", "value"), cookie});
+
+    assertThat(LoginHintCookie.read(request, "secret", 2_000L)).isEqualTo("john.doe@example.com");
+  }
+
+  @Test
+  public void create_http_only_cookie_of_server_context() {
+    when(request.getContextPath()).thenReturn("/sonar");
+    when(request.isSecure()).thenReturn(true);
+
+    Cookie cookie = LoginHintCookie.create(request, "secret", "john.doe@example.com", 0L, 3_600_000L);
+
+    assertThat(cookie.getName()).isEqualTo(LoginHintCookie.NAME);
+    assertThat(cookie.getPath()).isEqualTo("/sonar");
+    assertThat(cookie.isHttpOnly()).isTrue();
+    assertThat(cookie.getSecure()).isTrue();
+    assertThat(cookie.getMaxAge()).isEqualTo(3600);
+    assertThat(LoginHintCookie.create(mock(HttpServletRequest.class), "secret", "john.doe@example.com", 0L, 1L).getPath()).isEqualTo("/");
+  }
+
+  @Test
+  public void ignore_expired_cookie() {
+    String value = LoginHintCookie.create(request, "secret", "john.doe@example.com", 1_000L, 60_000L).getValue();
+
+    assertThat(LoginHintCookie.verify(value, "secret", 60_999L)).isEqualTo("john.doe@example.com");
+    assertThat(LoginHintCookie.verify(value, "secret", 61_000L)).isNull();
+  }
+
+  @Test
+  public void ignore_cookie_signed_with_another_secret() {
+    String value = LoginHintCookie.create(request, "other", "john.doe@example.com", 0L, 60_000L).getValue();
+
+    assertThat(LoginHintCookie.verify(value, "secret", 0L)).isNull();
+  }
+
+  @Test
+  public void ignore_tampered_cookie() {
+    String value = LoginHintCookie.create(request, "secret", "john.doe@example.com", 0L, 60_000L).getValue();
+    String[] parts = value.split("\\.");
+    String otherEmail = LoginHintCookie.create(request, "secret", "jane.doe@example.com", 0L, 60_000L).getValue().split("\\.")[0];
+
+    assertThat(LoginHintCookie.verify(otherEmail + "." + parts[1] + "." + parts[2], "secret", 0L)).isNull();
+    assertThat(LoginHintCookie.verify(parts[0] + ".999999999999." + parts[2], "secret", 0L)).isNull();
+  }
+
+  @Test
+  public void ignore_malformed_cookie() {
+    assertThat(LoginHintCookie.verify(null, "secret", 0L)).isNull();
+    assertThat(LoginHintCookie.verify("", "secret", 0L)).isNull();
+    assertThat(LoginHintCookie.verify("a.b", "secret", 0L)).isNull();
+    assertThat(LoginHintCookie.verify("!!.1.sig", "secret", 0L)).isNull();
+    assertThat(LoginHintCookie.verify("am9obg.notanumber.sig", "secret", 0L)).isNull();
+  }
+
+  @Test
+  public void ignore_request_without_cookie() {
+    assertThat(LoginHintCookie.read(null, "secret", 0L)).isNull();
+    assertThat(LoginHintCookie.read(request, "secret", 0L)).isNull();
+  }
+
+  @Test
+  public void delete_cookie() {
+    Cookie cookie = LoginHintCookie.delete(request);
+
+    assertThat(cookie.getName()).isEqualTo(LoginHintCookie.NAME);
+    assertThat(cookie.getMaxAge()).isZero();
+  }
+}
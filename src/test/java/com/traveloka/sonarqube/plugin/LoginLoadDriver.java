@@ -0,0 +1,306 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs full logins, {@code init}, then the browser hop through the authorization endpoint, then
+ * {@code callback}, from concurrent users against a {@link MockGoogleServer}, and reports the
+ * throughput and the latency distribution.
+ *
+ * <p>Run {@code mvn -Pbenchmark test-compile exec:exec@load-test -Dload.args="..."} with:
+ * <pre>
+ *   --threads N               concurrent users (16)
+ *   --logins N                logins per user (100)
+ *   --latency ENDPOINT=MIN[-MAX]   delay of the responses of an endpoint, in ms
+ *   --errors ENDPOINT=RATE[:STATUS] ratio of failed responses of an endpoint (status 503)
+ * </pre>
+ * where ENDPOINT is authorization, token or certs.
+ */
+class LoginLoadDriver {
+
+  private final GoogleIdentityProvider provider;
+  private final int threads;
+
+  LoginLoadDriver(GoogleIdentityProvider provider, int threads) {
+    this.provider = provider;
+    this.threads = threads;
+  }
+
+  Report run(int loginsPerThread) throws InterruptedException {
+    long[][] flowLatencies = new long[threads][loginsPerThread];
+    long[][] pluginLatencies = new long[threads][loginsPerThread];
+    Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+    CountDownLatch ready = new CountDownLatch(threads);
+    CountDownLatch go = new CountDownLatch(1);
+    List<Thread> users = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int user = t;
+      Thread thread = new Thread(() -> {
+        ready.countDown();
+        try {
+          go.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int i = 0; i < loginsPerThread; i++) {
+          long[] latencies = login(failures);
+          flowLatencies[user][i] = latencies[0];
+          pluginLatencies[user][i] = latencies[1];
+        }
+      }, "login-user-" + t);
+      users.add(thread);
+      thread.start();
+    }
+    ready.await();
+    long start = System.nanoTime();
+    go.countDown();
+    for (Thread thread : users) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    Map<String, Long> failureCounts = new HashMap<>();
+    failures.forEach((type, count) -> failureCounts.put(type, count.get()));
+    return new Report(elapsed, flatten(flowLatencies), flatten(pluginLatencies), failureCounts);
+  }
+
+  /**
+   * Latency of the whole flow and of the part spent in the plugin, in nanoseconds. A failed
+   * login is counted in {@code failures} by type of error, its latencies are negative.
+   */
+  private long[] login(Map<String, AtomicLong> failures) {
+    long start = System.nanoTime();
+    try {
+      String state = UUID.randomUUID().toString();
+      StubContexts.Init init = new StubContexts.Init(state);
+      provider.init(init);
+      long inPlugin = System.nanoTime() - start;
+
+      Map<String, String> callbackParameters = followAuthorization(init.redirectedTo());
+
+      long callbackStart = System.nanoTime();
+      StubContexts.Callback callback = new StubContexts.Callback(callbackParameters, state);
+      provider.callback(callback);
+      long end = System.nanoTime();
+      if (callback.authenticated() == null) {
+        throw new IllegalStateException("Not authenticated");
+      }
+      return new long[] {end - start, inPlugin + end - callbackStart};
+    } catch (Exception e) {
+      failures.computeIfAbsent(e.getClass().getSimpleName() + ": " + e.getMessage(), k -> new AtomicLong()).incrementAndGet();
+      return new long[] {-1L, -1L};
+    }
+  }
+
+  private static Map<String, String> followAuthorization(String authorizationUrl) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(authorizationUrl).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    int status = connection.getResponseCode();
+    // the body is read to the end so that the connection is kept alive
+    try (InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+      if (body != null) {
+        IOUtils.toByteArray(body);
+      }
+    }
+    String location = connection.getHeaderField("Location");
+    if (status != 302 || location == null) {
+      throw new IllegalStateException("Authorization failed with status " + status);
+    }
+    int query = location.indexOf('?');
+    return MockGoogleServer.parameters(query < 0 ? "" : location.substring(query + 1));
+  }
+
+  private static long[] flatten(long[][] latencies) {
+    return Arrays.stream(latencies).flatMapToLong(Arrays::stream).filter(l -> l >= 0).sorted().toArray();
+  }
+
+  static final class Report {
+    final long elapsedNanos;
+    final long[] flowLatencies;
+    final long[] pluginLatencies;
+    final Map<String, Long> failures;
+
+    Report(long elapsedNanos, long[] flowLatencies, long[] pluginLatencies, Map<String, Long> failures) {
+      this.elapsedNanos = elapsedNanos;
+      this.flowLatencies = flowLatencies;
+      this.pluginLatencies = pluginLatencies;
+      this.failures = failures;
+    }
+
+    long successes() {
+      return flowLatencies.length;
+    }
+
+    long failureCount() {
+      return failures.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    double throughput() {
+      return successes() * 1_000_000_000d / elapsedNanos;
+    }
+
+    /**
+     * Latency of the given quantile of the successful logins, in milliseconds.
+     */
+    static double quantileMillis(long[] sortedLatencies, double quantile) {
+      if (sortedLatencies.length == 0) {
+        return 0d;
+      }
+      int rank = (int) Math.ceil(quantile * sortedLatencies.length);
+      return sortedLatencies[Math.max(0, rank - 1)] / 1_000_000d;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format(Locale.ENGLISH, "%d logins in %.1f s: %.1f logins/s, %d failed%n",
+        successes(), elapsedNanos / 1_000_000_000d, throughput(), failureCount()));
+      sb.append(String.format(Locale.ENGLISH, "%-8s %9s %9s %9s %9s %9s%n", "ms", "p50", "p90", "p99", "p99.9", "max"));
+      appendDistribution(sb, "flow", flowLatencies);
+      appendDistribution(sb, "plugin", pluginLatencies);
+      failures.forEach((type, count) -> sb.append(String.format(Locale.ENGLISH, "%8d x %s%n", count, type)));
+      return sb.toString();
+    }
+
+    private static void appendDistribution(StringBuilder sb, String name, long[] latencies) {
+      sb.append(String.format(Locale.ENGLISH, "%-8s %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+        quantileMillis(latencies, 0.5), quantileMillis(latencies, 0.9), quantileMillis(latencies, 0.99),
+        quantileMillis(latencies, 0.999), quantileMillis(latencies, 1d)));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = 16;
+    int logins = 100;
+    try (MockGoogleServer google = new MockGoogleServer("example.com").start()) {
+      for (int i = 0; i + 1 < args.length; i += 2) {
+        String value = args[i + 1];
+        switch (args[i]) {
+          case "--threads":
+            threads = Integer.parseInt(value);
+            break;
+          case "--logins":
+            logins = Integer.parseInt(value);
+            break;
+          case "--latency": {
+            String[] bounds = value.substring(value.indexOf('=') + 1).split("-");
+            google.setLatency(endpoint(value), Long.parseLong(bounds[0]), Long.parseLong(bounds[bounds.length - 1]));
+            break;
+          }
+          case "--errors": {
+            String[] rate = value.substring(value.indexOf('=') + 1).split(":");
+            google.setErrorRate(endpoint(value), Double.parseDouble(rate[0]), rate.length > 1 ? Integer.parseInt(rate[1]) : 503);
+            break;
+          }
+          default:
+            throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+      }
+
+      Settings settings = new Settings(new PropertyDefinitions(GoogleSettings.definitions()));
+      settings.setProperty(GoogleSettings.CLIENT_ID, IdTokenFixture.CLIENT_ID);
+      settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+      settings.setProperty(GoogleSettings.REDIRECT_URI, StubContexts.CALLBACK_URL);
+      settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "example.com");
+      settings.setProperty(GoogleSettings.ALLOW_USERS_TO_SIGN_UP, true);
+      settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 0);
+      settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 0);
+      settings.setProperty(GoogleSettings.ENABLED, true);
+      google.configure(settings);
+      try (Plugin plugin = new Plugin(new GoogleSettings(settings))) {
+        LoginLoadDriver driver = new LoginLoadDriver(plugin.provider, threads);
+        // warms up the JIT, the connection pool and the signing keys
+        driver.run(Math.max(1, logins / 10));
+        System.out.print(driver.run(logins));
+        System.out.println(plugin.metrics.getPhaseLatencies().entrySet().stream()
+          .map(e -> String.format(Locale.ENGLISH, "%s p99=%.0fms", e.getKey(), e.getValue().getP99Millis()))
+          .reduce((a, b) -> a + ", " + b).orElse(""));
+      }
+    }
+  }
+
+  private static MockGoogleServer.Endpoint endpoint(String option) {
+    return MockGoogleServer.Endpoint.valueOf(option.substring(0, option.indexOf('=')).toUpperCase(Locale.ENGLISH));
+  }
+
+  /**
+   * The components of the plugin, wired and started as SonarQube does.
+   */
+  static final class Plugin implements AutoCloseable {
+    final GoogleHttpTransport httpTransport;
+    final ProviderMetadataRegistry providerMetadata;
+    final GoogleTokenExchange tokenExchange;
+    final GoogleSigningKeys signingKeys;
+    final GoogleGroups groups;
+    final LoginMetrics metrics = new LoginMetrics();
+    final AuditLog auditLog;
+    final CallbackLookups lookups;
+    final GoogleIdentityProvider provider;
+
+    Plugin(GoogleSettings settings) {
+      httpTransport = new GoogleHttpTransport(settings);
+      providerMetadata = new ProviderMetadataRegistry(settings, httpTransport);
+      tokenExchange = new GoogleTokenExchange(settings, httpTransport);
+      signingKeys = new GoogleSigningKeys(settings, httpTransport, providerMetadata);
+      groups = new GoogleGroups(settings, new GoogleDirectoryClient(settings, httpTransport), new SharedIdentityCache(settings));
+      auditLog = new AuditLog(settings, metrics);
+      lookups = new CallbackLookups(settings);
+      httpTransport.start();
+      providerMetadata.start();
+      tokenExchange.start();
+      signingKeys.start();
+      groups.start();
+      auditLog.start();
+      provider = new GoogleIdentityProvider(settings, httpTransport, tokenExchange, new GoogleIdTokenValidator(settings, signingKeys),
+        groups, metrics, new LoginMappingFile(settings), auditLog,
+        new LoginRateLimiter(settings), lookups, new RefreshTokenVault(settings));
+    }
+
+    @Override
+    public void close() {
+      lookups.stop();
+      auditLog.stop();
+      groups.stop();
+      signingKeys.stop();
+      tokenExchange.stop();
+      providerMetadata.stop();
+      httpTransport.stop();
+    }
+  }
+}
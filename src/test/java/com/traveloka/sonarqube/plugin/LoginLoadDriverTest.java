@@ -0,0 +1,84 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoginLoadDriverTest {
+
+  @Test
+  public void run_concurrent_logins() throws Exception {
+    try (MockGoogleServer google = new MockGoogleServer("example.com").start()) {
+      Settings settings = new Settings();
+      settings.setProperty(GoogleSettings.CLIENT_ID, IdTokenFixture.CLIENT_ID);
+      settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+      settings.setProperty(GoogleSettings.REDIRECT_URI, StubContexts.CALLBACK_URL);
+      settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "example.com");
+      settings.setProperty(GoogleSettings.ALLOW_USERS_TO_SIGN_UP, true);
+      settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 0);
+      settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 0);
+      settings.setProperty(GoogleSettings.ENABLED, true);
+      google.configure(settings);
+
+      try (LoginLoadDriver.Plugin plugin = new LoginLoadDriver.Plugin(new GoogleSettings(settings))) {
+        LoginLoadDriver.Report report = new LoginLoadDriver(plugin.provider, 4).run(10);
+
+        assertThat(report.successes()).isEqualTo(40);
+        assertThat(report.failureCount()).isZero();
+        assertThat(report.throughput()).isPositive();
+        assertThat(report.toString()).contains("40 logins in").contains("flow").contains("plugin");
+        assertThat(plugin.metrics.getOutcomes().get("success")).isEqualTo(40L);
+        assertThat(google.requestCount(MockGoogleServer.Endpoint.TOKEN)).isEqualTo(40);
+      }
+    }
+  }
+
+  @Test
+  public void count_failures_by_type() throws Exception {
+    try (MockGoogleServer google = new MockGoogleServer("example.com").start()) {
+      google.setErrorRate(MockGoogleServer.Endpoint.AUTHORIZATION, 1d, 500);
+      Settings settings = new Settings();
+      settings.setProperty(GoogleSettings.CLIENT_ID, IdTokenFixture.CLIENT_ID);
+      settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+      settings.setProperty(GoogleSettings.REDIRECT_URI, StubContexts.CALLBACK_URL);
+      settings.setProperty(GoogleSettings.ENABLED, true);
+      google.configure(settings);
+
+      try (LoginLoadDriver.Plugin plugin = new LoginLoadDriver.Plugin(new GoogleSettings(settings))) {
+        LoginLoadDriver.Report report = new LoginLoadDriver(plugin.provider, 2).run(3);
+
+        assertThat(report.successes()).isZero();
+        assertThat(report.failures).containsEntry("IllegalStateException: Authorization failed with status 500", 6L);
+      }
+    }
+  }
+
+  @Test
+  public void compute_quantiles() {
+    long[] latencies = {1_000_000L, 2_000_000L, 3_000_000L, 4_000_000L};
+
+    assertThat(LoginLoadDriver.Report.quantileMillis(latencies, 0.5)).isEqualTo(2d);
+    assertThat(LoginLoadDriver.Report.quantileMillis(latencies, 0.99)).isEqualTo(4d);
+    assertThat(LoginLoadDriver.Report.quantileMillis(new long[0], 0.99)).isZero();
+  }
+}
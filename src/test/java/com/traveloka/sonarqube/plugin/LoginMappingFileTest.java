@@ -0,0 +1,227 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoginMappingFileTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+
+  LoginMappingFile underTest = new LoginMappingFile(googleSettings);
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+  }
+
+  @Test
+  public void load_properties_file_on_start() throws Exception {
+    File file = mappingFile("logins.properties", "# exported from LDAP\n"
+      + "john.doe@example.com=jdoe\n"
+      + "\n"
+      + "  Jane.Doe@Example.com = jane  \n"
+      + "invalid line\n"
+      + "no-email=login\n");
+
+    underTest.start();
+
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("jdoe");
+    assertThat(underTest.login("jane.doe@example.com")).isEqualTo("jane");
+    assertThat(underTest.login("JOHN.DOE@example.com")).isEqualTo("jdoe");
+    assertThat(underTest.login("unknown@example.com")).isNull();
+    assertThat(file).exists();
+  }
+
+  @Test
+  public void load_csv_file() throws Exception {
+    mappingFile("logins.csv", "email,login\r\n\"john.doe@example.com\",\"jdoe\"\r\njane.doe@example.com,jane\r\n");
+
+    underTest.reload();
+
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("jdoe");
+    assertThat(underTest.login("jane.doe@example.com")).isEqualTo("jane");
+  }
+
+  @Test
+  public void later_line_overrides_earlier_one() throws Exception {
+    mappingFile("logins.properties", "john.doe@example.com=jdoe\njohn.doe@example.com=john\n");
+
+    underTest.reload();
+
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("john");
+  }
+
+  @Test
+  public void read_only_appended_lines() throws Exception {
+    File file = mappingFile("logins.properties", "john.doe@example.com=jdoe\njane.doe@example.com=jane\n");
+    underTest.reload();
+    LoginMappingFile.Index loaded = underTest.index();
+
+    append(file, "new.hire@example.com=nhire\njohn.doe@example.com=john\n");
+    underTest.reload();
+
+    assertThat(underTest.index().hasAppended()).isTrue();
+    assertThat(underTest.size()).isEqualTo(3);
+    assertThat(underTest.login("new.hire@example.com")).isEqualTo("nhire");
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("john");
+    assertThat(underTest.login("jane.doe@example.com")).isEqualTo("jane");
+    // the main index is reused as is
+    assertThat(loaded.hasAppended()).isFalse();
+    assertThat(loaded.get("new.hire@example.com")).isNull();
+  }
+
+  @Test
+  public void merge_appended_lines_once_numerous() throws Exception {
+    File file = mappingFile("logins.properties", "john.doe@example.com=jdoe\n");
+    underTest.reload();
+
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 1024; i++) {
+      lines.append("user").append(i).append("@example.com=user").append(i).append('\n');
+    }
+    append(file, lines.toString());
+    underTest.reload();
+
+    assertThat(underTest.index().hasAppended()).isFalse();
+    assertThat(underTest.size()).isEqualTo(1025);
+    assertThat(underTest.login("user1023@example.com")).isEqualTo("user1023");
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("jdoe");
+  }
+
+  @Test
+  public void wait_for_end_of_line_of_appended_line() throws Exception {
+    File file = mappingFile("logins.properties", "john.doe@example.com=jdoe\n");
+    underTest.reload();
+
+    append(file, "new.hire@example.com=nh");
+    underTest.reload();
+    assertThat(underTest.login("new.hire@example.com")).isNull();
+
+    append(file, "ire\n");
+    underTest.reload();
+    assertThat(underTest.login("new.hire@example.com")).isEqualTo("nhire");
+  }
+
+  @Test
+  public void reload_whole_file_when_replaced() throws Exception {
+    File file = mappingFile("logins.properties", "john.doe@example.com=jdoe\njane.doe@example.com=jane\n");
+    underTest.reload();
+
+    File replacement = temp.newFile("logins.tmp");
+    Files.write(replacement.toPath(), "jane.doe@example.com=jdoe2\n".getBytes(StandardCharsets.UTF_8));
+    Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    underTest.reload();
+
+    assertThat(underTest.size()).isEqualTo(1);
+    assertThat(underTest.login("john.doe@example.com")).isNull();
+    assertThat(underTest.login("jane.doe@example.com")).isEqualTo("jdoe2");
+  }
+
+  @Test
+  public void reload_whole_file_when_edited_in_place() throws Exception {
+    File file = mappingFile("logins.properties", "john.doe@example.com=jdoe\njane.doe@example.com=jane\n");
+    underTest.reload();
+
+    // same length, previous lines changed
+    Files.write(file.toPath(), "john.doe@example.com=john\njane.doe@example.com=jdoe\n".getBytes(StandardCharsets.UTF_8));
+    file.setLastModified(file.lastModified() + 2000L);
+    underTest.reload();
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("john");
+
+    // longer, previous lines changed
+    Files.write(file.toPath(), "john.doe@example.com=jdoe\njane.doe@example.com=janedoe\nnew.hire@example.com=nhire\n".getBytes(StandardCharsets.UTF_8));
+    underTest.reload();
+    assertThat(underTest.login("jane.doe@example.com")).isEqualTo("janedoe");
+    assertThat(underTest.index().hasAppended()).isFalse();
+
+    // shorter
+    Files.write(file.toPath(), "jane.doe@example.com=jane\n".getBytes(StandardCharsets.UTF_8));
+    underTest.reload();
+    assertThat(underTest.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void keep_mappings_while_file_is_missing() throws Exception {
+    File file = mappingFile("logins.properties", "john.doe@example.com=jdoe\n");
+    underTest.reload();
+
+    Files.delete(file.toPath());
+    underTest.reload();
+    underTest.reload();
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("jdoe");
+
+    Files.write(file.toPath(), "john.doe@example.com=john\n".getBytes(StandardCharsets.UTF_8));
+    underTest.reload();
+    assertThat(underTest.login("john.doe@example.com")).isEqualTo("john");
+  }
+
+  @Test
+  public void clear_mappings_when_file_is_unset() throws Exception {
+    mappingFile("logins.properties", "john.doe@example.com=jdoe\n");
+    underTest.reload();
+
+    settings.removeProperty(GoogleSettings.LOGIN_MAPPING_FILE);
+    googleSettings.refresh();
+    underTest.reload();
+
+    assertThat(underTest.size()).isZero();
+    assertThat(underTest.login("john.doe@example.com")).isNull();
+  }
+
+  @Test
+  public void no_mappings_by_default() {
+    underTest.start();
+
+    assertThat(underTest.size()).isZero();
+    assertThat(underTest.login("john.doe@example.com")).isNull();
+  }
+
+  private File mappingFile(String name, String content) throws IOException {
+    File file = new File(temp.getRoot(), name);
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    settings.setProperty(GoogleSettings.LOGIN_MAPPING_FILE, file.getAbsolutePath());
+    googleSettings.refresh();
+    return file;
+  }
+
+  private static void append(File file, String content) throws IOException {
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+  }
+}
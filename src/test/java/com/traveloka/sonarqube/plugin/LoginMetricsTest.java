@@ -0,0 +1,86 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoginMetricsTest {
+
+  LoginMetrics underTest = new LoginMetrics();
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+  }
+
+  @Test
+  public void count_outcomes() {
+    underTest.increment(LoginMetrics.Outcome.SUCCESS);
+    underTest.increment(LoginMetrics.Outcome.SUCCESS);
+    underTest.increment(LoginMetrics.Outcome.CSRF_FAILURE);
+
+    assertThat(underTest.getOutcomes()).containsEntry("success", 2L).containsEntry("csrf_failure", 1L).containsEntry("token_failure", 0L);
+  }
+
+  @Test
+  public void record_phase_latency() {
+    underTest.record(LoginMetrics.Phase.TOKEN_EXCHANGE, System.nanoTime());
+
+    assertThat(underTest.getPhaseLatencies().get("token_exchange").getCount()).isEqualTo(1);
+    assertThat(underTest.getPhaseLatencies().get("authenticate").getCount()).isZero();
+  }
+
+  @Test
+  public void expose_through_jmx() throws Exception {
+    underTest.start();
+    underTest.increment(LoginMetrics.Outcome.WRONG_HOSTED_DOMAIN);
+    underTest.record(LoginMetrics.Phase.CALLBACK, System.nanoTime());
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(LoginMetrics.OBJECT_NAME);
+    TabularData outcomes = (TabularData) server.getAttribute(name, "Outcomes");
+    assertThat(outcomes.get(new Object[] {"wrong_hosted_domain"}).get("value")).isEqualTo(1L);
+    TabularData latencies = (TabularData) server.getAttribute(name, "PhaseLatencies");
+    CompositeData callback = (CompositeData) latencies.get(new Object[] {"callback"}).get("value");
+    assertThat(callback.get("count")).isEqualTo(1L);
+
+    underTest.stop();
+    assertThat(server.isRegistered(name)).isFalse();
+  }
+
+  @Test
+  public void replace_registration_left_by_previous_instance() throws Exception {
+    LoginMetrics previous = new LoginMetrics();
+    previous.start();
+
+    underTest.start();
+
+    assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(LoginMetrics.OBJECT_NAME))).isTrue();
+  }
+}
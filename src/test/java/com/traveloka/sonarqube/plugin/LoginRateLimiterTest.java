@@ -0,0 +1,104 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.System2;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LoginRateLimiterTest {
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+
+  LoginRateLimiter underTest = new LoginRateLimiter(googleSettings, mock(System2.class));
+
+  @Test
+  public void limit_each_client() {
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 2);
+    GoogleSettings.Snapshot snapshot = googleSettings.refresh();
+
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.1", null))).isTrue();
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.1", null))).isTrue();
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.1", null))).isFalse();
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.2", null))).isTrue();
+    assertThat(underTest.trackedClients()).isEqualTo(2);
+  }
+
+  @Test
+  public void identify_clients_by_header_of_reverse_proxy() {
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 1);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_CLIENT_IP_HEADER, "X-Forwarded-For");
+    GoogleSettings.Snapshot snapshot = googleSettings.refresh();
+
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.254", "1.2.3.4"))).isTrue();
+    // the first entries are sent by the client, they can not be trusted
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.254", "6.6.6.6, 1.2.3.4"))).isFalse();
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.254", "5.6.7.8"))).isTrue();
+    assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.254", null))).isTrue();
+  }
+
+  @Test
+  public void limit_each_account_whatever_the_case_of_its_email() {
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 1);
+    GoogleSettings.Snapshot snapshot = googleSettings.refresh();
+
+    assertThat(underTest.tryAcquireAccount(snapshot, "john.doe@example.com")).isTrue();
+    assertThat(underTest.tryAcquireAccount(snapshot, "John.Doe@example.com")).isFalse();
+    assertThat(underTest.tryAcquireAccount(snapshot, "jane.doe@example.com")).isTrue();
+    assertThat(underTest.trackedAccounts()).isEqualTo(2);
+  }
+
+  @Test
+  public void limits_can_be_disabled() {
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 0);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 0);
+    GoogleSettings.Snapshot snapshot = googleSettings.refresh();
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(underTest.tryAcquireClient(snapshot, request("10.0.0.1", null))).isTrue();
+      assertThat(underTest.tryAcquireAccount(snapshot, "john.doe@example.com")).isTrue();
+    }
+    assertThat(underTest.trackedClients()).isZero();
+  }
+
+  @Test
+  public void limits_have_defaults() {
+    GoogleSettings.Snapshot snapshot = googleSettings.snapshot();
+
+    assertThat(snapshot.rateLimitPerClient()).isEqualTo(GoogleSettings.DEFAULT_RATE_LIMIT_PER_CLIENT);
+    assertThat(snapshot.rateLimitPerAccount()).isEqualTo(GoogleSettings.DEFAULT_RATE_LIMIT_PER_ACCOUNT);
+    assertThat(snapshot.rateLimitClientIpHeader()).isNull();
+    assertThat(snapshot.rateLimitMaxKeys()).isEqualTo(GoogleSettings.DEFAULT_RATE_LIMIT_MAX_KEYS);
+  }
+
+  private static HttpServletRequest request(String remoteAddr, String forwardedFor) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteAddr()).thenReturn(remoteAddr);
+    when(request.getHeader("X-Forwarded-For")).thenReturn(forwardedFor);
+    return request;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoginRulesTest {
+
+  @Test
+  public void first_matching_rule_wins() {
+    LoginRules underTest = LoginRules.compile(new String[] {"(.+)@acquired\\.com => acq-$1", "(.+)@(.+)\\.com=>$1.$2"});
+
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.login("john@acquired.com")).isEqualTo("acq-john");
+    assertThat(underTest.login("john@traveloka.com")).isEqualTo("john.traveloka");
+    assertThat(underTest.login("john@traveloka.co.id")).isNull();
+  }
+
+  @Test
+  public void expression_must_match_the_whole_email() {
+    LoginRules underTest = LoginRules.compile(new String[] {"john=>johnny"});
+
+    assertThat(underTest.login("john@example.com")).isNull();
+  }
+
+  @Test
+  public void refer_to_named_groups_and_escape_dollar() {
+    LoginRules underTest = LoginRules.compile(new String[] {"(?<user>[^@]+)@(?<domain>[^.]+)\\.com=>${domain}\\$${user}"});
+
+    assertThat(underTest.login("john@example.com")).isEqualTo("example$john");
+  }
+
+  @Test
+  public void template_may_be_a_constant() {
+    LoginRules underTest = LoginRules.compile(new String[] {"root@example\\.com=>admin"});
+
+    assertThat(underTest.login("root@example.com")).isEqualTo("admin");
+  }
+
+  @Test
+  public void skip_rule_producing_an_empty_login() {
+    LoginRules underTest = LoginRules.compile(new String[] {"(a*)@example\\.com=>$1", ".*=>fallback"});
+
+    assertThat(underTest.login("@example.com")).isEqualTo("fallback");
+  }
+
+  @Test
+  public void ignore_invalid_rules() {
+    LoginRules underTest = LoginRules.compile(new String[] {"no separator", "(.+=>$1", "(.+)@example\\.com=>$2",
+      "(.+)@example\\.com=>${user}", "(.+)@example\\.com=>$", "(.+)@example\\.com=>", "=>login", "(.+)@example\\.com=>$1"});
+
+    assertThat(underTest.size()).isEqualTo(1);
+    assertThat(underTest.login("john@example.com")).isEqualTo("john");
+  }
+
+  @Test
+  public void no_rules() {
+    assertThat(LoginRules.compile(new String[0])).isSameAs(LoginRules.NONE);
+    assertThat(LoginRules.NONE.login("john@example.com")).isNull();
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.util.escape.CharEscapers;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.sonar.api.config.Settings;
+
+import javax.annotation.CheckForNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in for the Google endpoints used by the plugin. The authorization endpoint signs in a
+ * user without any page and redirects back with a one-time code. The token endpoint exchanges
+ * that code against an ID token signed with a local key, published by the certs endpoint.
+ * The discovery endpoint publishes the three others. Each endpoint can be slowed down and made
+ * to fail randomly.
+ */
+class MockGoogleServer implements Closeable {
+
+  enum Endpoint {
+    AUTHORIZATION("/o/oauth2/auth"), TOKEN("/oauth2/v4/token"), CERTS("/oauth2/v3/certs"),
+    DISCOVERY("/.well-known/openid-configuration");
+
+    private final String path;
+
+    Endpoint(String path) {
+      this.path = path;
+    }
+  }
+
+  private final String hostedDomain;
+  private final IdTokenFixture idTokens = new IdTokenFixture();
+  private final MockWebServer server = new MockWebServer();
+  private final Map<String, String> codes = new ConcurrentHashMap<>();
+  private final Map<Endpoint, Behavior> behaviors = new ConcurrentHashMap<>();
+  private final AtomicLongArray requestCounts = new AtomicLongArray(Endpoint.values().length);
+  private final AtomicInteger nextUser = new AtomicInteger();
+  private final String jwks = idTokens.jwks();
+
+  MockGoogleServer(String hostedDomain) {
+    this.hostedDomain = hostedDomain;
+    for (Endpoint endpoint : Endpoint.values()) {
+      behaviors.put(endpoint, new Behavior(0, 0, 0d, 0));
+    }
+  }
+
+  MockGoogleServer start() throws IOException {
+    // MockWebServer logs each request
+    Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+    server.setServerSocketFactory(new NoDelayServerSocketFactory());
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        return MockGoogleServer.this.dispatch(request);
+      }
+    });
+    server.start();
+    return this;
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.shutdown();
+  }
+
+  String url(Endpoint endpoint) {
+    return server.url(endpoint.path).toString();
+  }
+
+  /**
+   * Points the plugin at this server, whether the discovery document is loaded or not.
+   */
+  void configure(Settings settings) {
+    configureDiscovery(settings);
+    settings.setProperty(GoogleSettings.AUTHORIZATION_URL, url(Endpoint.AUTHORIZATION));
+    settings.setProperty(GoogleSettings.TOKEN_URL, url(Endpoint.TOKEN));
+    settings.setProperty(GoogleSettings.CERTS_URL, url(Endpoint.CERTS));
+  }
+
+  /**
+   * Points the plugin at the discovery document of this server only.
+   */
+  void configureDiscovery(Settings settings) {
+    settings.setProperty(GoogleSettings.DISCOVERY_URL, url(Endpoint.DISCOVERY));
+  }
+
+  /**
+   * Responses of the endpoint are delayed by a random time between the two bounds, in milliseconds.
+   */
+  MockGoogleServer setLatency(Endpoint endpoint, long minMs, long maxMs) {
+    Behavior current = behaviors.get(endpoint);
+    behaviors.put(endpoint, new Behavior(minMs, maxMs, current.errorRate, current.errorStatus));
+    return this;
+  }
+
+  /**
+   * The given ratio of the requests to the endpoint fail with the HTTP status.
+   */
+  MockGoogleServer setErrorRate(Endpoint endpoint, double rate, int status) {
+    Behavior current = behaviors.get(endpoint);
+    behaviors.put(endpoint, new Behavior(current.minLatencyMs, current.maxLatencyMs, rate, status));
+    return this;
+  }
+
+  /**
+   * Signs in the user as the authorization endpoint does, and returns the code to exchange.
+   */
+  String issueCode(String email) {
+    String code = "4/" + UUID.randomUUID();
+    codes.put(code, email);
+    return code;
+  }
+
+  long requestCount(Endpoint endpoint) {
+    return requestCounts.get(endpoint.ordinal());
+  }
+
+  private MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+    String path = request.getPath();
+    int query = path.indexOf('?');
+    Endpoint endpoint = endpointOf(query < 0 ? path : path.substring(0, query));
+    if (endpoint == null) {
+      return new MockResponse().setResponseCode(404);
+    }
+    requestCounts.incrementAndGet(endpoint.ordinal());
+    Behavior behavior = behaviors.get(endpoint);
+    behavior.delay();
+    if (behavior.fails()) {
+      return json(behavior.errorStatus, "{\"error\":\"backend_error\"}");
+    }
+    switch (endpoint) {
+      case AUTHORIZATION:
+        return authorize(parameters(query < 0 ? "" : path.substring(query + 1)));
+      case TOKEN:
+        return token(parameters(request.getBody().readUtf8()));
+      case DISCOVERY:
+        return json(200, "{\"issuer\":\"https://accounts.google.com\",\"authorization_endpoint\":\"" + url(Endpoint.AUTHORIZATION) + "\","
+          + "\"token_endpoint\":\"" + url(Endpoint.TOKEN) + "\",\"jwks_uri\":\"" + url(Endpoint.CERTS) + "\","
+          + "\"claims_supported\":[\"aud\",\"email\",\"email_verified\",\"exp\",\"hd\",\"iat\",\"iss\",\"sub\"]}")
+          .setHeader("Cache-Control", "public, max-age=3600");
+      default:
+        return json(200, jwks).setHeader("Cache-Control", "public, max-age=3600");
+    }
+  }
+
+  private MockResponse authorize(Map<String, String> parameters) {
+    String redirectUri = parameters.get("redirect_uri");
+    if (redirectUri == null || parameters.get("client_id") == null) {
+      return json(400, "{\"error\":\"invalid_request\"}");
+    }
+    String email = parameters.get("login_hint");
+    if (email == null) {
+      email = "user" + nextUser.incrementAndGet() + "@" + hostedDomain;
+    }
+    String location = redirectUri + (redirectUri.contains("?") ? "&" : "?") + "code=" + CharEscapers.escapeUriQuery(issueCode(email));
+    String state = parameters.get("state");
+    if (state != null) {
+      location += "&state=" + CharEscapers.escapeUriQuery(state);
+    }
+    return new MockResponse().setResponseCode(302).setHeader("Location", location);
+  }
+
+  private MockResponse token(Map<String, String> parameters) {
+    String code = parameters.get("code");
+    String email = code == null ? null : codes.remove(code);
+    if (!"authorization_code".equals(parameters.get("grant_type")) || email == null) {
+      return json(400, "{\"error\":\"invalid_grant\",\"error_description\":\"Bad Request\"}");
+    }
+    GoogleIdToken.Payload payload = idTokens.profilePayload(email, hostedDomain);
+    payload.setAudience(parameters.get("client_id"));
+    payload.setAuthorizedParty(parameters.get("client_id"));
+    return json(200, "{\"access_token\":\"ya29." + UUID.randomUUID() + "\",\"token_type\":\"Bearer\",\"expires_in\":3600,"
+      + "\"id_token\":\"" + idTokens.sign(payload) + "\"}");
+  }
+
+  @CheckForNull
+  private static Endpoint endpointOf(String path) {
+    for (Endpoint endpoint : Endpoint.values()) {
+      if (endpoint.path.equals(path)) {
+        return endpoint;
+      }
+    }
+    return null;
+  }
+
+  private static MockResponse json(int status, String body) {
+    return new MockResponse().setResponseCode(status).setHeader("Content-Type", "application/json; charset=utf-8").setBody(body);
+  }
+
+  static Map<String, String> parameters(String encoded) {
+    Map<String, String> parameters = new HashMap<>();
+    for (String pair : encoded.split("&")) {
+      if (pair.isEmpty()) {
+        continue;
+      }
+      int equal = pair.indexOf('=');
+      try {
+        parameters.put(URLDecoder.decode(equal < 0 ? pair : pair.substring(0, equal), "UTF-8"),
+          equal < 0 ? "" : URLDecoder.decode(pair.substring(equal + 1), "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return parameters;
+  }
+
+  private static final class Behavior {
+    private final long minLatencyMs;
+    private final long maxLatencyMs;
+    private final double errorRate;
+    private final int errorStatus;
+
+    Behavior(long minLatencyMs, long maxLatencyMs, double errorRate, int errorStatus) {
+      this.minLatencyMs = minLatencyMs;
+      this.maxLatencyMs = Math.max(minLatencyMs, maxLatencyMs);
+      this.errorRate = errorRate;
+      this.errorStatus = errorStatus;
+    }
+
+    void delay() throws InterruptedException {
+      if (maxLatencyMs > 0) {
+        Thread.sleep(minLatencyMs == maxLatencyMs ? minLatencyMs : ThreadLocalRandom.current().nextLong(minLatencyMs, maxLatencyMs + 1));
+      }
+    }
+
+    boolean fails() {
+      return errorRate > 0d && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.server.authentication.UnauthorizedException;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class MockGoogleServerTest {
+
+  MockGoogleServer google = new MockGoogleServer("example.com");
+  Settings settings = new Settings();
+  LoginLoadDriver.Plugin plugin;
+
+  @Before
+  public void setUp() throws Exception {
+    google.start();
+    settings.setProperty(GoogleSettings.CLIENT_ID, IdTokenFixture.CLIENT_ID);
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, StubContexts.CALLBACK_URL);
+    settings.setProperty(GoogleSettings.HOSTED_DOMAIN, "example.com");
+    settings.setProperty(GoogleSettings.ALLOW_USERS_TO_SIGN_UP, true);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_CLIENT, 0);
+    settings.setProperty(GoogleSettings.RATE_LIMIT_PER_ACCOUNT, 0);
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.CIRCUIT_BREAKER_THRESHOLD, 100);
+    google.configure(settings);
+    plugin = new LoginLoadDriver.Plugin(new GoogleSettings(settings));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    plugin.close();
+    google.close();
+  }
+
+  @Test
+  public void redirect_back_with_code_and_state() throws Exception {
+    StubContexts.Init init = new StubContexts.Init("the-state");
+    plugin.provider.init(init);
+
+    assertThat(init.redirectedTo()).startsWith(google.url(MockGoogleServer.Endpoint.AUTHORIZATION));
+    HttpURLConnection connection = (HttpURLConnection) new URL(init.redirectedTo() + "&login_hint=jane@example.com").openConnection();
+    connection.setInstanceFollowRedirects(false);
+    assertThat(connection.getResponseCode()).isEqualTo(302);
+    String location = connection.getHeaderField("Location");
+    assertThat(location).startsWith(StubContexts.CALLBACK_URL + "?code=").endsWith("&state=the-state");
+
+    Map<String, String> parameters = MockGoogleServer.parameters(location.substring(location.indexOf('?') + 1));
+    StubContexts.Callback callback = new StubContexts.Callback(parameters, "the-state");
+    plugin.provider.callback(callback);
+    assertThat(callback.authenticated().getEmail()).isEqualTo("jane@example.com");
+  }
+
+  @Test
+  public void resolve_endpoints_from_discovery_document() throws Exception {
+    settings.removeProperty(GoogleSettings.AUTHORIZATION_URL);
+    settings.removeProperty(GoogleSettings.TOKEN_URL);
+    settings.removeProperty(GoogleSettings.CERTS_URL);
+    try (LoginLoadDriver.Plugin discovering = new LoginLoadDriver.Plugin(new GoogleSettings(settings))) {
+      discovering.providerMetadata.refresh();
+
+      StubContexts.Init init = new StubContexts.Init("the-state");
+      discovering.provider.init(init);
+      assertThat(init.redirectedTo()).startsWith(google.url(MockGoogleServer.Endpoint.AUTHORIZATION));
+
+      StubContexts.Callback callback = new StubContexts.Callback(Collections.singletonMap("code", google.issueCode("jane@example.com")), null);
+      discovering.provider.callback(callback);
+      assertThat(callback.authenticated().getEmail()).isEqualTo("jane@example.com");
+    }
+  }
+
+  @Test
+  public void code_can_be_exchanged_once() {
+    String code = google.issueCode("john@example.com");
+    plugin.provider.callback(new StubContexts.Callback(Collections.singletonMap("code", code), null));
+
+    // another server does not know that the code was redeemed
+    try (LoginLoadDriver.Plugin otherNode = new LoginLoadDriver.Plugin(new GoogleSettings(settings))) {
+      otherNode.provider.callback(new StubContexts.Callback(Collections.singletonMap("code", code), null));
+      fail("should have failed");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Authorization Token Fail");
+    }
+    assertThat(google.requestCount(MockGoogleServer.Endpoint.TOKEN)).isEqualTo(2);
+  }
+
+  @Test
+  public void inject_errors() {
+    google.setErrorRate(MockGoogleServer.Endpoint.TOKEN, 1d, 503);
+
+    try {
+      plugin.provider.callback(new StubContexts.Callback(Collections.singletonMap("code", google.issueCode("john@example.com")), null));
+      fail("should have failed");
+    } catch (IllegalStateException e) {
+      assertThat(google.requestCount(MockGoogleServer.Endpoint.TOKEN)).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void inject_latency() {
+    settings.setProperty(GoogleSettings.TOKEN_TIMEOUT, 100);
+    google.setLatency(MockGoogleServer.Endpoint.TOKEN, 500, 500);
+    try (LoginLoadDriver.Plugin impatient = new LoginLoadDriver.Plugin(new GoogleSettings(settings))) {
+      impatient.provider.callback(new StubContexts.Callback(Collections.singletonMap("code", google.issueCode("john@example.com")), null));
+      fail("should have failed");
+    } catch (UnauthorizedException e) {
+      assertThat(e).hasMessageContaining("did not respond in time");
+    }
+  }
+}
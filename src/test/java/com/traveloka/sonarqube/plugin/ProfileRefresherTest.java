@@ -0,0 +1,220 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.System2;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProfileRefresherTest {
+
+  @Rule
+  public MockWebServer server = new MockWebServer();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  IdTokenFixture idTokens = new IdTokenFixture();
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  GoogleHttpTransport httpTransport = new GoogleHttpTransport(googleSettings);
+  GoogleSigningKeys signingKeys = mock(GoogleSigningKeys.class);
+  System2 system2 = mock(System2.class);
+  GoogleGroups groups = mock(GoogleGroups.class);
+  RefreshTokenVault vault = new RefreshTokenVault(googleSettings);
+  // ID token returned for each refresh token, an invalid_grant error for the others
+  Map<String, String> idTokenByRefreshToken = new HashMap<>();
+
+  ProfileRefresher underTest;
+
+  @Before
+  public void setUp() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, IdTokenFixture.CLIENT_ID);
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH, true);
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH_RATE, 1000);
+    settings.setProperty(GoogleSettings.GROUPS_SYNC, true);
+    settings.setProperty(GoogleSettings.TOKEN_URL, server.url("/token").toString());
+    settings.setProperty("sonar.path.data", temp.newFolder().getAbsolutePath());
+    googleSettings.refresh();
+    when(system2.now()).thenReturn(System.currentTimeMillis());
+    when(signingKeys.get(IdTokenFixture.KEY_ID)).thenReturn(idTokens.publicKey());
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        String body = request.getBody().readUtf8();
+        String refreshToken = body.replaceAll(".*refresh_token=([^&]*).*", "$1");
+        String idToken = body.contains("grant_type=refresh_token") ? idTokenByRefreshToken.get(refreshToken) : null;
+        if (idToken == null) {
+          return new MockResponse().setResponseCode(400).setHeader("Content-Type", "application/json")
+            .setBody("{\"error\":\"invalid_grant\",\"error_description\":\"Token has been expired or revoked.\"}");
+        }
+        return new MockResponse().setHeader("Content-Type", "application/json")
+          .setBody("{\"access_token\":\"token\",\"token_type\":\"Bearer\",\"expires_in\":3599,\"id_token\":\"" + idToken + "\"}");
+      }
+    });
+    vault.start();
+    underTest = new ProfileRefresher(googleSettings, vault, httpTransport,
+      new GoogleIdTokenValidator(googleSettings, signingKeys, system2), groups);
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+    vault.stop();
+  }
+
+  @Test
+  public void schedule_refreshes_when_enabled_after_start() throws Exception {
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH, false);
+    googleSettings.refresh();
+    underTest.start();
+    assertThat(vault.isEnabled()).isFalse();
+    assertThat(underTest.isScheduled()).isFalse();
+
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH, true);
+    googleSettings.refresh();
+    assertThat(vault.isEnabled()).isTrue();
+    assertThat(underTest.isScheduled()).isTrue();
+
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH_INTERVAL, 5);
+    googleSettings.refresh();
+    assertThat(underTest.isScheduled()).isTrue();
+
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH, false);
+    googleSettings.refresh();
+    assertThat(vault.isEnabled()).isFalse();
+    assertThat(underTest.isScheduled()).isFalse();
+  }
+
+  @Test
+  public void refresh_groups_of_users() throws Exception {
+    vault.store("john@example.com", "john", "refresh-john");
+    vault.store("jane@example.com", "jane", "refresh-jane");
+    idTokenByRefreshToken.put("refresh-john", idTokens.sign(idTokens.payload("john@example.com", "example.com")));
+    idTokenByRefreshToken.put("refresh-jane", idTokens.sign(idTokens.payload("jane@example.com", "example.com")));
+
+    int[] results = underTest.refreshAll();
+
+    assertThat(results[ProfileRefresher.Result.REFRESHED.ordinal()]).isEqualTo(2);
+    verify(groups).refresh("john@example.com");
+    verify(groups).refresh("jane@example.com");
+  }
+
+  @Test
+  public void follow_changed_email() throws Exception {
+    vault.store("john@example.com", "john", "refresh-john");
+    idTokenByRefreshToken.put("refresh-john", idTokens.sign(idTokens.payload("john.doe@example.com", "example.com")));
+
+    underTest.refreshAll();
+
+    verify(groups).refresh("john.doe@example.com");
+    assertThat(vault.get("john@example.com")).isNull();
+    assertThat(vault.get("john.doe@example.com").login()).isEqualTo("john");
+  }
+
+  @Test
+  public void drop_revoked_tokens() throws Exception {
+    vault.store("john@example.com", "john", "revoked");
+
+    int[] results = underTest.refreshAll();
+
+    assertThat(results[ProfileRefresher.Result.REVOKED.ordinal()]).isEqualTo(1);
+    assertThat(vault.size()).isZero();
+    verify(groups, never()).refresh("john@example.com");
+  }
+
+  @Test
+  public void keep_token_when_id_token_is_invalid() throws Exception {
+    vault.store("john@example.com", "john", "refresh-john");
+    idTokenByRefreshToken.put("refresh-john", idTokens.sign("unknown-key", idTokens.payload("john@example.com", "example.com")));
+
+    int[] results = underTest.refreshAll();
+
+    assertThat(results[ProfileRefresher.Result.FAILED.ordinal()]).isEqualTo(1);
+    assertThat(vault.get("john@example.com")).isNotNull();
+    verify(groups, never()).refresh("john@example.com");
+  }
+
+  @Test
+  public void keep_refreshing_when_groups_of_a_user_fail() throws Exception {
+    vault.store("john@example.com", "john", "refresh-john");
+    vault.store("jane@example.com", "jane", "refresh-jane");
+    idTokenByRefreshToken.put("refresh-john", idTokens.sign(idTokens.payload("john@example.com", "example.com")));
+    idTokenByRefreshToken.put("refresh-jane", idTokens.sign(idTokens.payload("jane@example.com", "example.com")));
+    doThrow(new IOException("unavailable")).when(groups).refresh("john@example.com");
+
+    int[] results = underTest.refreshAll();
+
+    assertThat(results[ProfileRefresher.Result.FAILED.ordinal()]).isEqualTo(1);
+    assertThat(results[ProfileRefresher.Result.REFRESHED.ordinal()]).isEqualTo(1);
+  }
+
+  @Test
+  public void do_not_refresh_groups_when_not_synchronized() throws Exception {
+    settings.setProperty(GoogleSettings.GROUPS_SYNC, false);
+    googleSettings.refresh();
+    vault.store("john@example.com", "john", "refresh-john");
+    idTokenByRefreshToken.put("refresh-john", idTokens.sign(idTokens.payload("john@example.com", "example.com")));
+
+    underTest.refreshAll();
+
+    verify(groups, never()).refresh("john@example.com");
+  }
+
+  @Test
+  public void limit_rate_of_refreshes() throws Exception {
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH_RATE, 20);
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH_BATCH_SIZE, 2);
+    googleSettings.refresh();
+    for (int i = 0; i < 6; i++) {
+      vault.store("user" + i + "@example.com", "user" + i, "revoked-" + i);
+    }
+
+    long start = System.nanoTime();
+    underTest.refreshAll();
+
+    // two batches of 2 users wait 100 ms each, the last one does not wait
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(200L);
+    assertThat(vault.size()).isZero();
+  }
+}
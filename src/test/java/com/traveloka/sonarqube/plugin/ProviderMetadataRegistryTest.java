@@ -0,0 +1,193 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.System2;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProviderMetadataRegistryTest {
+
+  @Rule
+  public MockWebServer server = new MockWebServer();
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  GoogleHttpTransport httpTransport = new GoogleHttpTransport(googleSettings);
+  System2 system2 = mock(System2.class);
+
+  ProviderMetadataRegistry underTest = new ProviderMetadataRegistry(googleSettings, httpTransport, system2);
+
+  @Before
+  public void setUp() {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.DISCOVERY_URL, server.url("/idp/.well-known/openid-configuration").toString());
+    googleSettings.refresh();
+    when(system2.now()).thenReturn(1_000_000L);
+  }
+
+  @After
+  public void tearDown() {
+    underTest.stop();
+    httpTransport.stop();
+  }
+
+  @Test
+  public void use_built_in_endpoints_until_document_is_loaded() {
+    GoogleSettings.Snapshot snapshot = googleSettings.snapshot();
+
+    assertThat(snapshot.providerMetadata()).isNull();
+    assertThat(snapshot.tokenUrl()).isEqualTo(GoogleSettings.DEFAULT_TOKEN_URL);
+    assertThat(snapshot.certsUrl()).isEqualTo(GoogleSettings.DEFAULT_CERTS_URL);
+    assertThat(snapshot.authorizationServerUrl()).isEqualTo(GoogleSettings.DEFAULT_AUTHORIZATION_URL);
+    assertThat(snapshot.issuers()).containsOnly("accounts.google.com", "https://accounts.google.com");
+  }
+
+  @Test
+  public void publish_endpoints_of_discovery_document() throws Exception {
+    server.enqueue(document("http://idp"));
+
+    ProviderMetadata metadata = underTest.refresh();
+
+    assertThat(metadata.claimsSupported()).containsOnly("email", "email_verified");
+    GoogleSettings.Snapshot snapshot = googleSettings.snapshot();
+    assertThat(snapshot.providerMetadata()).isSameAs(metadata);
+    assertThat(snapshot.authorizationServerUrl()).isEqualTo("http://idp/auth");
+    assertThat(snapshot.authorizationUrl("state")).startsWith("http://idp/auth?access_type=offline&client_id=id");
+    assertThat(snapshot.tokenUrl()).isEqualTo("http://idp/token");
+    assertThat(snapshot.certsUrl()).isEqualTo("http://idp/certs");
+    assertThat(snapshot.issuers()).containsOnly("accounts.google.com", "https://accounts.google.com", "http://idp");
+    assertThat(server.takeRequest().getPath()).isEqualTo("/idp/.well-known/openid-configuration");
+  }
+
+  @Test
+  public void properties_take_precedence_over_discovery_document() throws Exception {
+    settings.setProperty(GoogleSettings.TOKEN_URL, "http://override/token");
+    googleSettings.refresh();
+    server.enqueue(document("http://idp"));
+
+    underTest.refresh();
+
+    assertThat(googleSettings.snapshot().tokenUrl()).isEqualTo("http://override/token");
+    assertThat(googleSettings.snapshot().certsUrl()).isEqualTo("http://idp/certs");
+  }
+
+  @Test
+  public void reject_incomplete_document() {
+    server.enqueue(new MockResponse().setBody("{\"issuer\":\"http://idp\"}"));
+
+    try {
+      underTest.refresh();
+      fail("should have failed");
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("lacks issuer");
+    }
+    assertThat(googleSettings.snapshot().tokenUrl()).isEqualTo(GoogleSettings.DEFAULT_TOKEN_URL);
+  }
+
+  @Test
+  public void keep_built_in_endpoints_when_startup_fetch_fails() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(503));
+
+    underTest.start();
+
+    assertThat(server.getRequestCount()).isEqualTo(1);
+    assertThat(googleSettings.snapshot().tokenUrl()).isEqualTo(GoogleSettings.DEFAULT_TOKEN_URL);
+  }
+
+  @Test
+  public void load_document_on_start() {
+    server.enqueue(document("http://idp"));
+
+    underTest.start();
+
+    assertThat(googleSettings.snapshot().tokenUrl()).isEqualTo("http://idp/token");
+  }
+
+  @Test
+  public void expire_after_max_age() throws Exception {
+    server.enqueue(document("http://idp"));
+
+    ProviderMetadata metadata = underTest.refresh();
+
+    assertThat(metadata.isExpired(1_000_000L + TimeUnit.SECONDS.toMillis(599))).isFalse();
+    assertThat(metadata.isExpired(1_000_000L + TimeUnit.SECONDS.toMillis(600))).isTrue();
+  }
+
+  @Test
+  public void reuse_cached_document_when_discovery_url_is_changed_back() throws Exception {
+    String firstUrl = googleSettings.snapshot().discoveryUrl();
+    server.enqueue(document("http://idp"));
+    underTest.refresh();
+
+    settings.setProperty(GoogleSettings.DISCOVERY_URL, server.url("/other/.well-known/openid-configuration").toString());
+    googleSettings.refresh();
+    underTest.settingsChanged();
+    // metadata of the previous URL is not used
+    assertThat(googleSettings.snapshot().tokenUrl()).isEqualTo(GoogleSettings.DEFAULT_TOKEN_URL);
+
+    settings.setProperty(GoogleSettings.DISCOVERY_URL, firstUrl);
+    googleSettings.refresh();
+    underTest.settingsChanged();
+
+    assertThat(googleSettings.snapshot().tokenUrl()).isEqualTo("http://idp/token");
+    assertThat(underTest.get(firstUrl)).isNotNull();
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void evict_expired_documents_of_other_urls() throws Exception {
+    server.enqueue(document("http://idp"));
+    underTest.refresh();
+
+    settings.setProperty(GoogleSettings.DISCOVERY_URL, server.url("/other/.well-known/openid-configuration").toString());
+    googleSettings.refresh();
+    server.enqueue(document("http://other"));
+    when(system2.now()).thenReturn(1_000_000L + TimeUnit.HOURS.toMillis(1));
+    underTest.refresh();
+
+    assertThat(underTest.size()).isEqualTo(1);
+    assertThat(googleSettings.snapshot().tokenUrl()).isEqualTo("http://other/token");
+  }
+
+  private static MockResponse document(String issuer) {
+    return new MockResponse()
+      .setHeader("Content-Type", "application/json")
+      .setHeader("Cache-Control", "public, max-age=600")
+      .setBody("{\"issuer\":\"" + issuer + "\",\"authorization_endpoint\":\"" + issuer + "/auth\",\"token_endpoint\":\"" + issuer + "/token\","
+        + "\"jwks_uri\":\"" + issuer + "/certs\",\"claims_supported\":[\"email\",\"email_verified\"]}");
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RedeemedCodesTest {
+
+  System2 system2 = mock(System2.class);
+
+  RedeemedCodes<String> underTest = new RedeemedCodes<>(system2, 1000L, 10);
+
+  @Test
+  public void first_redemption_owns_the_code() {
+    assertThat(underTest.redeem("code").isFirst()).isTrue();
+    assertThat(underTest.redeem("other").isFirst()).isTrue();
+  }
+
+  @Test
+  public void duplicate_in_flight_shares_the_result() throws Exception {
+    RedeemedCodes<String>.Redemption first = underTest.redeem("code");
+    RedeemedCodes<String>.Redemption duplicate = underTest.redeem("code");
+
+    assertThat(duplicate.isFirst()).isFalse();
+    assertThat(duplicate.result().isDone()).isFalse();
+    first.succeed("tokens");
+    assertThat(duplicate.result().get()).isEqualTo("tokens");
+  }
+
+  @Test
+  public void result_is_not_kept_once_redeemed() {
+    underTest.redeem("code").succeed("tokens");
+
+    RedeemedCodes<String>.Redemption duplicate = underTest.redeem("code");
+
+    assertThat(duplicate.isFirst()).isFalse();
+    assertThat(duplicate.result()).isNull();
+  }
+
+  @Test
+  public void duplicate_in_flight_shares_the_failure() throws Exception {
+    RedeemedCodes<String>.Redemption first = underTest.redeem("code");
+    RedeemedCodes<String>.Redemption duplicate = underTest.redeem("code");
+
+    first.fail(new IllegalStateException("boom"), false);
+
+    try {
+      duplicate.result().get();
+      fail("should have failed");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).hasMessage("boom");
+    }
+  }
+
+  @Test
+  public void code_can_be_redeemed_again_after_retriable_failure() {
+    underTest.redeem("code").fail(new IllegalStateException("boom"), false);
+
+    assertThat(underTest.redeem("code").isFirst()).isTrue();
+  }
+
+  @Test
+  public void consumed_code_can_not_be_redeemed_again() {
+    underTest.redeem("code").fail(new IllegalStateException("invalid_grant"), true);
+
+    RedeemedCodes<String>.Redemption duplicate = underTest.redeem("code");
+    assertThat(duplicate.isFirst()).isFalse();
+    assertThat(duplicate.result()).isNull();
+  }
+
+  @Test
+  public void code_expires() {
+    when(system2.now()).thenReturn(0L);
+    underTest.redeem("code").succeed("tokens");
+
+    when(system2.now()).thenReturn(1000L);
+    assertThat(underTest.redeem("code").isFirst()).isTrue();
+  }
+
+  @Test
+  public void evict_oldest_redeemed_codes_but_keep_codes_in_flight() {
+    when(system2.now()).thenReturn(0L);
+    underTest.redeem("in-flight");
+    for (int i = 0; i < 10; i++) {
+      when(system2.now()).thenReturn((long) i);
+      underTest.redeem("code-" + i).succeed("tokens");
+    }
+
+    assertThat(underTest.size()).isEqualTo(9);
+    assertThat(underTest.redeem("in-flight").isFirst()).isFalse();
+    assertThat(underTest.redeem("code-0").isFirst()).isTrue();
+    assertThat(underTest.redeem("code-9").isFirst()).isFalse();
+  }
+
+  @Test
+  public void codes_are_not_kept_in_clear() {
+    assertThat(RedeemedCodes.hash("4/the-code")).isNotEqualTo("4/the-code").hasSize(43);
+    assertThat(RedeemedCodes.hash("4/the-code")).isEqualTo(RedeemedCodes.hash("4/the-code"));
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class RefreshTokenVaultTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  Settings settings = new Settings();
+  GoogleSettings googleSettings = new GoogleSettings(settings);
+  RefreshTokenVault underTest;
+  File file;
+
+  @Before
+  public void setUp() throws Exception {
+    settings.setProperty(GoogleSettings.CLIENT_ID, "id");
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "secret");
+    settings.setProperty(GoogleSettings.REDIRECT_URI, "redirect");
+    settings.setProperty(GoogleSettings.ENABLED, true);
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH, true);
+    settings.setProperty("sonar.path.data", temp.newFolder().getAbsolutePath());
+    file = new File(settings.getString("sonar.path.data"), RefreshTokenVault.VAULT_FILE);
+  }
+
+  @After
+  public void tearDown() {
+    if (underTest != null) {
+      underTest.stop();
+    }
+  }
+
+  @Test
+  public void keep_tokens_across_restarts() throws Exception {
+    underTest = startVault();
+    underTest.store("John@example.com", "john", "refresh-john");
+    underTest.store("jane@example.com", "jane", "refresh-jane");
+    underTest.stop();
+
+    underTest = startVault();
+
+    assertThat(underTest.size()).isEqualTo(2);
+    RefreshTokenVault.Entry john = underTest.get("john@example.com");
+    assertThat(john.email()).isEqualTo("John@example.com");
+    assertThat(john.login()).isEqualTo("john");
+    assertThat(john.refreshToken()).isEqualTo("refresh-john");
+  }
+
+  @Test
+  public void encrypt_file() throws Exception {
+    underTest = startVault();
+    underTest.store("john@example.com", "john", "refresh-john");
+    underTest.flush();
+
+    String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+    assertThat(content).startsWith("AGV1");
+    assertThat(content).doesNotContain("refresh-john");
+    assertThat(content).doesNotContain("john@example.com");
+  }
+
+  @Test
+  public void ignore_file_written_with_another_client_secret() throws Exception {
+    underTest = startVault();
+    underTest.store("john@example.com", "john", "refresh-john");
+    underTest.stop();
+
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "other");
+    googleSettings.refresh();
+    underTest = startVault();
+
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void rewrite_file_when_client_secret_changes() throws Exception {
+    underTest = startVault();
+    underTest.store("john@example.com", "john", "refresh-john");
+    underTest.flush();
+
+    settings.setProperty(GoogleSettings.CLIENT_SECRET, "other");
+    googleSettings.refresh();
+    underTest.flush();
+    underTest.stop();
+
+    underTest = startVault();
+    assertThat(underTest.get("john@example.com").refreshToken()).isEqualTo("refresh-john");
+  }
+
+  @Test
+  public void drop_tokens_when_client_id_changes() throws Exception {
+    underTest = startVault();
+    underTest.store("john@example.com", "john", "refresh-john");
+    underTest.flush();
+
+    settings.setProperty(GoogleSettings.CLIENT_ID, "other");
+    googleSettings.refresh();
+    assertThat(underTest.size()).isZero();
+    underTest.stop();
+
+    underTest = startVault();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void ignore_corrupted_file() throws Exception {
+    underTest = startVault();
+    underTest.store("john@example.com", "john", "refresh-john");
+    underTest.flush();
+    byte[] content = Files.readAllBytes(file.toPath());
+    content[content.length - 1] ^= 1;
+    Files.write(file.toPath(), content);
+    underTest.stop();
+
+    underTest = startVault();
+
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void write_only_when_changed() throws Exception {
+    underTest = startVault();
+    underTest.flush();
+    assertThat(file).doesNotExist();
+
+    underTest.store("john@example.com", "john", "refresh-john");
+    underTest.flush();
+    assertThat(file).exists();
+    assertThat(file.delete()).isTrue();
+
+    underTest.flush();
+    assertThat(file).doesNotExist();
+    underTest.remove("john@example.com");
+    underTest.flush();
+    assertThat(file).exists();
+  }
+
+  @Test
+  public void rename_entry() {
+    underTest = startVault();
+    underTest.store("john@example.com", "john", "refresh-john");
+
+    underTest.rename(underTest.get("john@example.com"), "john.doe@example.com");
+
+    assertThat(underTest.get("john@example.com")).isNull();
+    assertThat(underTest.get("john.doe@example.com").refreshToken()).isEqualTo("refresh-john");
+    assertThat(underTest.get("john.doe@example.com").login()).isEqualTo("john");
+  }
+
+  @Test
+  public void do_not_rename_entry_replaced_meanwhile() {
+    underTest = startVault();
+    underTest.store("john@example.com", "john", "refresh-john");
+    RefreshTokenVault.Entry previous = underTest.get("john@example.com");
+    underTest.store("john@example.com", "john", "newer");
+
+    underTest.rename(previous, "john.doe@example.com");
+
+    assertThat(underTest.get("john@example.com").refreshToken()).isEqualTo("newer");
+    assertThat(underTest.get("john.doe@example.com")).isNull();
+  }
+
+  @Test
+  public void deflate_entries() throws Exception {
+    List<RefreshTokenVault.Entry> entries = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      entries.add(new RefreshTokenVault.Entry("user" + i + "@example.com", "user" + i, "1//0refresh-token-" + i, 1_500_000_000_000L + i));
+    }
+
+    byte[] serialized = RefreshTokenVault.serialize(entries);
+
+    assertThat(serialized.length).isLessThan(1000 * 40);
+    List<RefreshTokenVault.Entry> read = RefreshTokenVault.deserialize(serialized);
+    assertThat(read).hasSize(1000);
+    assertThat(read.get(999).email()).isEqualTo("user999@example.com");
+    assertThat(read.get(999).storedAt()).isEqualTo(1_500_000_000_999L);
+  }
+
+  @Test
+  public void do_not_keep_tokens_when_profile_refresh_is_disabled() {
+    settings.setProperty(GoogleSettings.PROFILE_REFRESH, false);
+    underTest = startVault();
+
+    underTest.store("john@example.com", "john", "refresh-john");
+
+    assertThat(underTest.isEnabled()).isFalse();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void do_not_keep_tokens_without_data_directory() {
+    settings.removeProperty("sonar.path.data");
+    underTest = startVault();
+
+    underTest.store("john@example.com", "john", "refresh-john");
+
+    assertThat(underTest.isEnabled()).isFalse();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void decrypt_only_with_the_same_secret() throws Exception {
+    underTest = new RefreshTokenVault(googleSettings);
+    byte[] plain = "tokens".getBytes(StandardCharsets.UTF_8);
+    byte[] encrypted = underTest.encrypt(plain, "secret");
+
+    assertThat(RefreshTokenVault.decrypt(encrypted, "secret")).isEqualTo(plain);
+    assertThat(Arrays.equals(encrypted, underTest.encrypt(plain, "secret"))).as("random IV").isFalse();
+    try {
+      RefreshTokenVault.decrypt(encrypted, "other");
+      fail("should have failed");
+    } catch (GeneralSecurityException e) {
+      // expected
+    }
+  }
+
+  private RefreshTokenVault startVault() {
+    googleSettings.refresh();
+    RefreshTokenVault vault = new RefreshTokenVault(googleSettings);
+    vault.start();
+    return vault;
+  }
+}
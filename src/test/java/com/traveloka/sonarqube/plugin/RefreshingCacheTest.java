@@ -0,0 +1,152 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.utils.System2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RefreshingCacheTest {
+
+  private static final long TTL = 1000L;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  System2 system2 = mock(System2.class);
+  AtomicInteger loads = new AtomicInteger();
+  List<Runnable> backgroundTasks = new ArrayList<>();
+
+  RefreshingCache<String, String> underTest = new RefreshingCache<>("test values", key -> key + loads.incrementAndGet(),
+    backgroundTasks::add, system2, TTL, 10);
+
+  @Test
+  public void load_missing_key_once() throws Exception {
+    assertThat(underTest.get("a")).isEqualTo("a1");
+    assertThat(underTest.get("a")).isEqualTo("a1");
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void serve_stale_value_while_refreshing_in_background() throws Exception {
+    underTest.get("a");
+
+    when(system2.now()).thenReturn(TTL / 2);
+    assertThat(underTest.get("a")).isEqualTo("a1");
+    assertThat(underTest.get("a")).isEqualTo("a1");
+    assertThat(backgroundTasks).hasSize(1);
+
+    backgroundTasks.get(0).run();
+    assertThat(underTest.get("a")).isEqualTo("a2");
+  }
+
+  @Test
+  public void load_expired_value_on_demand() throws Exception {
+    underTest.get("a");
+
+    when(system2.now()).thenReturn(TTL);
+    assertThat(underTest.get("a")).isEqualTo("a2");
+    assertThat(backgroundTasks).isEmpty();
+  }
+
+  @Test
+  public void do_not_cache_failures() throws Exception {
+    RefreshingCache<String, String> cache = new RefreshingCache<>("test values", key -> {
+      if (loads.incrementAndGet() == 1) {
+        throw new IOException("unavailable");
+      }
+      return key;
+    }, backgroundTasks::add, system2, TTL, 10);
+
+    try {
+      cache.get("a");
+    } catch (IOException e) {
+      assertThat(e).hasMessage("unavailable");
+    }
+    assertThat(cache.get("a")).isEqualTo("a");
+  }
+
+  @Test
+  public void evict_least_recently_loaded_entries_when_full() throws Exception {
+    for (int i = 0; i < 11; i++) {
+      when(system2.now()).thenReturn((long) i);
+      underTest.get("key" + i);
+    }
+
+    assertThat(underTest.size()).isEqualTo(9);
+    underTest.get("key10");
+    assertThat(loads.get()).isEqualTo(11);
+    underTest.get("key0");
+    assertThat(loads.get()).isEqualTo(12);
+  }
+
+  @Test
+  public void concurrent_misses_share_a_single_load() throws Exception {
+    CountDownLatch loading = new CountDownLatch(1);
+    RefreshingCache<String, String> cache = new RefreshingCache<>("test values", key -> {
+      loads.incrementAndGet();
+      try {
+        loading.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return key;
+    }, backgroundTasks::add, system2, TTL, 10);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        results.add(executor.submit(() -> cache.get("a")));
+      }
+      Thread.sleep(100);
+      loading.countDown();
+      for (Future<String> result : results) {
+        assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("a");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void invalidate_all() throws Exception {
+    underTest.get("a");
+    underTest.invalidateAll();
+
+    assertThat(underTest.get("a")).isEqualTo("a2");
+  }
+}
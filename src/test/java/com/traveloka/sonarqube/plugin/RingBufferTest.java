@@ -0,0 +1,127 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RingBufferTest {
+
+  @Test
+  public void capacity_is_rounded_up_to_a_power_of_two() {
+    assertThat(new RingBuffer<String>(1).capacity()).isEqualTo(2);
+    assertThat(new RingBuffer<String>(8).capacity()).isEqualTo(8);
+    assertThat(new RingBuffer<String>(1000).capacity()).isEqualTo(1024);
+  }
+
+  @Test
+  public void take_elements_in_order() {
+    RingBuffer<String> underTest = new RingBuffer<>(4);
+
+    assertThat(underTest.poll()).isNull();
+    assertThat(underTest.offer("a")).isTrue();
+    assertThat(underTest.offer("b")).isTrue();
+    assertThat(underTest.size()).isEqualTo(2);
+    assertThat(underTest.poll()).isEqualTo("a");
+    assertThat(underTest.poll()).isEqualTo("b");
+    assertThat(underTest.poll()).isNull();
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void reject_elements_when_full() {
+    RingBuffer<String> underTest = new RingBuffer<>(4);
+    for (int i = 0; i < 4; i++) {
+      assertThat(underTest.offer("e" + i)).isTrue();
+    }
+
+    assertThat(underTest.offer("e4")).isFalse();
+    assertThat(underTest.poll()).isEqualTo("e0");
+    assertThat(underTest.offer("e4")).isTrue();
+
+    List<String> drained = new ArrayList<>();
+    assertThat(underTest.drainTo(drained, 10)).isEqualTo(4);
+    assertThat(drained).containsExactly("e1", "e2", "e3", "e4");
+  }
+
+  @Test
+  public void drain_at_most_the_given_number_of_elements() {
+    RingBuffer<Integer> underTest = new RingBuffer<>(8);
+    for (int i = 0; i < 5; i++) {
+      underTest.offer(i);
+    }
+
+    List<Integer> drained = new ArrayList<>();
+    assertThat(underTest.drainTo(drained, 3)).isEqualTo(3);
+    assertThat(drained).containsExactly(0, 1, 2);
+    assertThat(underTest.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void no_element_is_lost_or_duplicated_by_concurrent_producers() throws Exception {
+    int producers = 8;
+    int perProducer = 50_000;
+    RingBuffer<Integer> underTest = new RingBuffer<>(64);
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    CountDownLatch done = new CountDownLatch(producers);
+    for (int p = 0; p < producers; p++) {
+      int first = p * perProducer;
+      executor.submit(() -> {
+        for (int i = first; i < first + perProducer; i++) {
+          while (!underTest.offer(i)) {
+            Thread.yield();
+          }
+        }
+        done.countDown();
+      });
+    }
+
+    boolean[] seen = new boolean[producers * perProducer];
+    int[] lastOfProducer = new int[producers];
+    Arrays.fill(lastOfProducer, -1);
+    int taken = 0;
+    while (taken < seen.length) {
+      Integer element = underTest.poll();
+      if (element == null) {
+        Thread.yield();
+        continue;
+      }
+      assertThat(seen[element]).isFalse();
+      seen[element] = true;
+      // elements of a producer are taken in the order they were added
+      int producer = element / perProducer;
+      assertThat(element).isGreaterThan(lastOfProducer[producer]);
+      lastOfProducer[producer] = element;
+      taken++;
+    }
+    assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+    executor.shutdown();
+    assertThat(underTest.poll()).isNull();
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.System2;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SharedIdentityCacheTest {
+
+  private static final AtomicInteger DATABASES = new AtomicInteger();
+  private static final long TTL = 60_000L;
+  private static final long HOUR = 3_600_000L;
+
+  String jdbcUrl = "jdbc:h2:mem:authgoogle-" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+  System2 system2 = mock(System2.class);
+  List<SharedIdentityCache> nodes = new ArrayList<>();
+
+  @After
+  public void tearDown() throws Exception {
+    for (SharedIdentityCache node : nodes) {
+      node.stop();
+    }
+    try (Connection connection = DriverManager.getConnection(jdbcUrl);
+         Statement statement = connection.createStatement()) {
+      statement.execute("DROP ALL OBJECTS");
+    }
+  }
+
+  @Test
+  public void share_values_between_nodes() throws Exception {
+    SharedIdentityCache node1 = startNode();
+    SharedIdentityCache node2 = startNode();
+    CountingLoader loader = new CountingLoader("developers@example.com", "ops@example.com");
+
+    assertThat(node1.get("groups", "john@example.com", TTL, loader)).containsOnly("developers@example.com", "ops@example.com");
+    node1.flush();
+    assertThat(node2.get("groups", "john@example.com", TTL, loader)).containsOnly("developers@example.com", "ops@example.com");
+
+    assertThat(loader.calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void share_empty_values() throws Exception {
+    SharedIdentityCache node1 = startNode();
+    SharedIdentityCache node2 = startNode();
+    CountingLoader loader = new CountingLoader();
+
+    node1.get("groups", "john@example.com", TTL, loader);
+    node1.flush();
+
+    assertThat(node2.get("groups", "john@example.com", TTL, loader)).isEmpty();
+    assertThat(loader.calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void load_again_values_older_than_half_of_their_ttl() throws Exception {
+    SharedIdentityCache node1 = startNode();
+    SharedIdentityCache node2 = startNode();
+    CountingLoader loader = new CountingLoader("developers@example.com");
+    node1.get("groups", "john@example.com", TTL, loader);
+    node1.flush();
+
+    when(system2.now()).thenReturn(TTL / 2);
+    node2.get("groups", "john@example.com", TTL, loader);
+
+    assertThat(loader.calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void notify_other_nodes_of_updated_values() throws Exception {
+    SharedIdentityCache node1 = startNode();
+    SharedIdentityCache node2 = startNode();
+    SharedIdentityCache node3 = startNode();
+    List<String> updatedOn1 = listen(node1, "groups");
+    List<String> updatedOn2 = listen(node2, "groups");
+    List<String> otherRegion = listen(node3, "other");
+    node1.get("groups", "john@example.com", TTL, new CountingLoader("developers@example.com"));
+    node2.get("groups", "jane@example.com", TTL, new CountingLoader("ops@example.com"));
+    node1.flush();
+    node2.flush();
+
+    for (SharedIdentityCache node : nodes) {
+      node.poll();
+    }
+
+    assertThat(updatedOn1).containsOnly("jane@example.com");
+    assertThat(updatedOn2).containsOnly("john@example.com");
+    assertThat(otherRegion).isEmpty();
+
+    // versions already seen are not notified again
+    updatedOn1.clear();
+    node1.poll();
+    assertThat(updatedOn1).isEmpty();
+  }
+
+  @Test
+  public void ignore_values_written_before_startup() throws Exception {
+    SharedIdentityCache node1 = startNode();
+    node1.get("groups", "john@example.com", TTL, new CountingLoader("developers@example.com"));
+    node1.flush();
+
+    SharedIdentityCache node2 = startNode();
+    List<String> updated = listen(node2, "groups");
+    node2.poll();
+
+    assertThat(updated).isEmpty();
+  }
+
+  @Test
+  public void invalidate_in_memory_groups_updated_by_another_node() throws Exception {
+    Settings settings = nodeSettings();
+    settings.setProperty(GoogleSettings.GROUPS_MAPPING, "developers@example.com=sonar-users,ops@example.com=sonar-administrators");
+    GoogleSettings googleSettings = new GoogleSettings(settings);
+    GoogleDirectoryClient directory = mock(GoogleDirectoryClient.class);
+    when(directory.groupsOf("john@example.com")).thenReturn(Collections.singleton("developers@example.com"));
+    SharedIdentityCache cache1 = startNode(googleSettings);
+    SharedIdentityCache cache2 = startNode(googleSettings);
+    GoogleGroups node1 = new GoogleGroups(googleSettings, directory, cache1, system2);
+    GoogleGroups node2 = new GoogleGroups(googleSettings, directory, cache2, system2);
+    try {
+      assertThat(node1.sonarGroupsOf("john@example.com")).containsOnly("sonar-users");
+      cache1.flush();
+      when(system2.now()).thenReturn(20 * 60_000L);
+      assertThat(node2.sonarGroupsOf("john@example.com")).containsOnly("sonar-users");
+      verify(directory, times(1)).groupsOf("john@example.com");
+
+      // a third node resolves the groups again, node 2 still has the previous ones in memory
+      when(system2.now()).thenReturn(31 * 60_000L);
+      SharedIdentityCache cache3 = startNode(googleSettings);
+      cache3.get(GoogleGroups.SHARED_CACHE_REGION, "john@example.com", HOUR, new CountingLoader("ops@example.com"));
+      cache3.flush();
+      cache2.poll();
+
+      assertThat(node2.sonarGroupsOf("john@example.com")).containsOnly("sonar-administrators");
+      verify(directory, times(1)).groupsOf("john@example.com");
+    } finally {
+      node1.stop();
+      node2.stop();
+    }
+  }
+
+  @Test
+  public void do_not_share_values_too_large_for_the_table() throws Exception {
+    SharedIdentityCache node1 = startNode();
+    SharedIdentityCache node2 = startNode();
+    Set<String> groups = new HashSet<>();
+    for (int i = 0; i < 500; i++) {
+      groups.add("group-" + i + "@example.com");
+    }
+    CountingLoader loader = new CountingLoader(groups.toArray(new String[0]));
+
+    assertThat(node1.get("groups", "john@example.com", TTL, loader)).hasSize(500);
+    node1.flush();
+    assertThat(node2.get("groups", "john@example.com", TTL, loader)).hasSize(500);
+
+    assertThat(loader.calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void write_values_in_background() throws Exception {
+    SharedIdentityCache node = startNode();
+
+    for (int i = 0; i < 10; i++) {
+      node.get("groups", "user" + i + "@example.com", TTL, new CountingLoader("developers@example.com"));
+    }
+
+    long deadline = System.currentTimeMillis() + 5_000L;
+    while (rowCount() < 10 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertThat(rowCount()).isEqualTo(10);
+  }
+
+  @Test
+  public void delete_expired_values() throws Exception {
+    SharedIdentityCache node1 = startNode();
+    node1.get("groups", "john@example.com", TTL, new CountingLoader("developers@example.com"));
+    node1.get("groups", "jane@example.com", TTL, new CountingLoader("developers@example.com"));
+    node1.flush();
+
+    when(system2.now()).thenReturn(2 * HOUR);
+    node1.get("groups", "jane@example.com", TTL, new CountingLoader("developers@example.com"));
+    node1.flush();
+    node1.poll();
+
+    assertThat(rowCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void create_tables_once_when_several_nodes_start() throws Exception {
+    startNode();
+    SharedIdentityCache node2 = startNode();
+
+    assertThat(node2.isAvailable()).isTrue();
+    assertThat(rowCount()).isZero();
+  }
+
+  @Test
+  public void load_values_directly_when_disabled() throws Exception {
+    Settings settings = nodeSettings();
+    settings.setProperty(GoogleSettings.SHARED_CACHE, false);
+    SharedIdentityCache node = startNode(new GoogleSettings(settings));
+    CountingLoader loader = new CountingLoader("developers@example.com");
+
+    node.get("groups", "john@example.com", TTL, loader);
+    node.get("groups", "john@example.com", TTL, loader);
+
+    assertThat(node.isAvailable()).isFalse();
+    assertThat(loader.calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void load_values_directly_when_database_is_unreachable() throws Exception {
+    Settings settings = nodeSettings();
+    settings.setProperty(GoogleSettings.JDBC_URL, "jdbc:unknown:database");
+    SharedIdentityCache node = startNode(new GoogleSettings(settings));
+    CountingLoader loader = new CountingLoader("developers@example.com");
+
+    assertThat(node.get("groups", "john@example.com", TTL, loader)).containsOnly("developers@example.com");
+    assertThat(node.isAvailable()).isFalse();
+  }
+
+  @Test
+  public void reuse_connections() throws Exception {
+    SharedIdentityCache node = startNode();
+    CountingLoader loader = new CountingLoader("developers@example.com");
+
+    for (int i = 0; i < 10; i++) {
+      node.get("groups", "user" + i + "@example.com", TTL, loader);
+      node.flush();
+      node.poll();
+    }
+
+    assertThat(node.idleConnections()).isEqualTo(1);
+  }
+
+  @Test
+  public void find_driver_of_database() throws Exception {
+    assertThat(SharedIdentityCache.findDriver(jdbcUrl)).isNotNull();
+    assertThat(SharedIdentityCache.findDriver("jdbc:unknown:database")).isNull();
+  }
+
+  private Settings nodeSettings() {
+    Settings settings = new Settings();
+    settings.setProperty(GoogleSettings.SHARED_CACHE, true);
+    settings.setProperty(GoogleSettings.JDBC_URL, jdbcUrl);
+    return settings;
+  }
+
+  private SharedIdentityCache startNode() {
+    return startNode(new GoogleSettings(nodeSettings()));
+  }
+
+  private SharedIdentityCache startNode(GoogleSettings googleSettings) {
+    SharedIdentityCache node = new SharedIdentityCache(googleSettings, system2);
+    node.start();
+    nodes.add(node);
+    return node;
+  }
+
+  private static List<String> listen(SharedIdentityCache node, String region) {
+    List<String> keys = Collections.synchronizedList(new ArrayList<>());
+    node.onUpdate(region, keys::add);
+    return keys;
+  }
+
+  private int rowCount() throws Exception {
+    try (Connection connection = DriverManager.getConnection(jdbcUrl);
+         Statement statement = connection.createStatement();
+         ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM " + SharedIdentityCache.TABLE)) {
+      rows.next();
+      return rows.getInt(1);
+    }
+  }
+
+  private static class CountingLoader implements SharedIdentityCache.Loader {
+    private final Set<String> values;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    CountingLoader(String... values) {
+      this.values = new HashSet<>(Arrays.asList(values));
+    }
+
+    @Override
+    public Set<String> load(String key) throws IOException {
+      calls.incrementAndGet();
+      return values;
+    }
+  }
+}
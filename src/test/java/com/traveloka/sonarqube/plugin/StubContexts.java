@@ -0,0 +1,186 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.sonar.api.server.authentication.OAuth2IdentityProvider;
+import org.sonar.api.server.authentication.UnauthorizedException;
+import org.sonar.api.server.authentication.UserIdentity;
+
+import javax.annotation.CheckForNull;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plain implementations of the SonarQube login contexts, cheaper than mocks when a login is run
+ * many times, for instance by benchmarks and load tests.
+ */
+final class StubContexts {
+
+  static final String CALLBACK_URL = "https://sonar.example.com/oauth2/callback/google";
+
+  private StubContexts() {
+    // only static stuff
+  }
+
+  static final String CLIENT_IP = "127.0.0.1";
+
+  /**
+   * Request of {@link #CLIENT_IP} carrying the given parameters.
+   */
+  static HttpServletRequest request(Map<String, String> parameters) {
+    return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+      new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+        if ("getParameter".equals(method.getName())) {
+          return parameters.get((String) args[0]);
+        }
+        if ("getRemoteAddr".equals(method.getName())) {
+          return CLIENT_IP;
+        }
+        if ("getHeader".equals(method.getName()) || "getCookies".equals(method.getName())) {
+          return null;
+        }
+        if ("getContextPath".equals(method.getName())) {
+          return "";
+        }
+        if ("isSecure".equals(method.getName())) {
+          return true;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      });
+  }
+
+  /**
+   * Response keeping the cookies added to it.
+   */
+  static HttpServletResponse response(List<Cookie> cookies) {
+    return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+      new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+        if ("addCookie".equals(method.getName())) {
+          cookies.add((Cookie) args[0]);
+          return null;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      });
+  }
+
+  static class Init implements OAuth2IdentityProvider.InitContext {
+    private final HttpServletRequest request = request(Collections.<String, String>emptyMap());
+    private final String state;
+    private String redirectedTo;
+
+    Init(String state) {
+      this.state = state;
+    }
+
+    @CheckForNull
+    String redirectedTo() {
+      return redirectedTo;
+    }
+
+    @Override
+    public String generateCsrfState() {
+      return state;
+    }
+
+    @Override
+    public void redirectTo(String url) {
+      redirectedTo = url;
+    }
+
+    @Override
+    public String getCallbackUrl() {
+      return CALLBACK_URL;
+    }
+
+    @Override
+    public HttpServletRequest getRequest() {
+      return request;
+    }
+
+    @Override
+    public HttpServletResponse getResponse() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Callback whose request carries the given parameters. The CSRF state is verified against
+   * {@code expectedState} when it is set.
+   */
+  static class Callback implements OAuth2IdentityProvider.CallbackContext {
+    private final HttpServletRequest request;
+    private final List<Cookie> cookies = new ArrayList<>();
+    private final HttpServletResponse response = response(cookies);
+    private final String expectedState;
+    private UserIdentity authenticated;
+
+    Callback(Map<String, String> parameters, @CheckForNull String expectedState) {
+      this.expectedState = expectedState;
+      this.request = request(parameters);
+    }
+
+    @CheckForNull
+    UserIdentity authenticated() {
+      return authenticated;
+    }
+
+    List<Cookie> cookies() {
+      return cookies;
+    }
+
+    @Override
+    public void verifyCsrfState() {
+      if (expectedState != null && !expectedState.equals(request.getParameter("state"))) {
+        throw new UnauthorizedException("CSRF state value is invalid");
+      }
+    }
+
+    @Override
+    public void redirectToRequestedPage() {
+      // nothing to do
+    }
+
+    @Override
+    public void authenticate(UserIdentity userIdentity) {
+      authenticated = userIdentity;
+    }
+
+    @Override
+    public String getCallbackUrl() {
+      return CALLBACK_URL;
+    }
+
+    @Override
+    public HttpServletRequest getRequest() {
+      return request;
+    }
+
+    @Override
+    public HttpServletResponse getResponse() {
+      return response;
+    }
+  }
+}
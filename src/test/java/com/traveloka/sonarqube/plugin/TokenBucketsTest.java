@@ -0,0 +1,98 @@
+/*
+ * Google Authentication for SonarQube
+ * Copyright (C) 2016-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.traveloka.sonarqube.plugin;
+
+import org.junit.Test;
+import org.sonar.api.utils.System2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TokenBucketsTest {
+
+  System2 system2 = mock(System2.class);
+
+  TokenBuckets underTest = new TokenBuckets(1000, system2);
+
+  @Test
+  public void allow_bursts_up_to_the_limit() {
+    for (int i = 0; i < 3; i++) {
+      assertThat(underTest.tryAcquire("key", 3)).isTrue();
+    }
+    assertThat(underTest.tryAcquire("key", 3)).isFalse();
+    assertThat(underTest.tryAcquire("other", 3)).isTrue();
+  }
+
+  @Test
+  public void refill_buckets_continuously() {
+    for (int i = 0; i < 6; i++) {
+      underTest.tryAcquire("key", 6);
+    }
+    assertThat(underTest.tryAcquire("key", 6)).isFalse();
+
+    when(system2.now()).thenReturn(9_999L);
+    assertThat(underTest.tryAcquire("key", 6)).isFalse();
+    when(system2.now()).thenReturn(10_000L);
+    assertThat(underTest.tryAcquire("key", 6)).isTrue();
+    assertThat(underTest.tryAcquire("key", 6)).isFalse();
+
+    // never more than the limit
+    when(system2.now()).thenReturn(3_600_000L);
+    for (int i = 0; i < 6; i++) {
+      assertThat(underTest.tryAcquire("key", 6)).isTrue();
+    }
+    assertThat(underTest.tryAcquire("key", 6)).isFalse();
+  }
+
+  @Test
+  public void no_limit_when_not_positive() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(underTest.tryAcquire("key", 0)).isTrue();
+    }
+    assertThat(underTest.size()).isZero();
+  }
+
+  @Test
+  public void evict_idle_buckets() {
+    for (int i = 0; i < 100; i++) {
+      underTest.tryAcquire("key" + i, 10);
+    }
+    assertThat(underTest.size()).isEqualTo(100);
+
+    when(system2.now()).thenReturn(TokenBuckets.IDLE_MS);
+    for (int i = 0; i < 100; i++) {
+      underTest.tryAcquire("new" + i, 10);
+    }
+
+    assertThat(underTest.size()).isEqualTo(100);
+  }
+
+  @Test
+  public void evict_least_recently_used_buckets_beyond_max_size() {
+    TokenBuckets small = new TokenBuckets(16 * 4, system2);
+    for (int i = 0; i < 1000; i++) {
+      small.tryAcquire("key" + i, 10);
+    }
+
+    assertThat(small.size()).isLessThanOrEqualTo(16 * 4);
+    assertThat(small.tryAcquire("key999", 10)).isTrue();
+  }
+}